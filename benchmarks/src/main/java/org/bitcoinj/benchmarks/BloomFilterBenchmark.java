@@ -0,0 +1,67 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FilteredBlock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering of a full block against a Bloom filter, as done when serving filtered blocks to SPV clients. A fresh
+ * filter is used for every invocation, as applying a filter can update it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BloomFilterBenchmark {
+    @Param({"100", "2000"})
+    public int numTransactions;
+
+    @Param({"10", "1000"})
+    public int numKeys;
+
+    private Block block;
+    private BloomFilter filter;
+    private byte[] filterBytes;
+
+    @Setup
+    public void setUp() {
+        Fixtures.initContext();
+        block = Fixtures.createBlock(Fixtures.PARAMS.getGenesisBlock(), numTransactions);
+        BloomFilter template = new BloomFilter(numKeys * 2, 0.0001, 1, BloomFilter.BloomUpdate.UPDATE_ALL);
+        for (int i = 0; i < numKeys; i++)
+            template.insert(new ECKey());
+        filterBytes = template.bitcoinSerialize();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetFilter() {
+        filter = new BloomFilter(Fixtures.PARAMS, filterBytes);
+    }
+
+    @Benchmark
+    public FilteredBlock applyAndUpdate() {
+        return filter.applyAndUpdate(block);
+    }
+}
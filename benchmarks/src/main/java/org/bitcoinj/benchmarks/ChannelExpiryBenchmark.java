@@ -0,0 +1,102 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.TimingWheel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens {@link #numChannels} payment channels that expire over the course of a day, and expires all of them, with the
+ * given scheduler. {@code TIMER} is a {@link Timer} task per channel, as the channel stores used to have. Its tasks are
+ * scheduled in the past, so that the day passes as fast as the timer can run them. {@code TIMING_WHEEL} is the
+ * {@link TimingWheel} the channel stores use now, advanced a second at a time through the day like their scheduler
+ * thread does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChannelExpiryBenchmark {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    @Param({"500000"})
+    public int numChannels;
+
+    @Param({"TIMER", "TIMING_WHEEL"})
+    public String scheduler;
+
+    private Sha256Hash[] channels;
+    private long[] expiryOffsets;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        channels = new Sha256Hash[numChannels];
+        expiryOffsets = new long[numChannels];
+        for (int i = 0; i < numChannels; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            channels[i] = Sha256Hash.wrap(bytes);
+            expiryOffsets[i] = (long) (random.nextDouble() * DAY_MILLIS);
+        }
+    }
+
+    @Benchmark
+    public int openAndExpire() throws Exception {
+        return scheduler.equals("TIMER") ? openAndExpireWithTimer() : openAndExpireWithTimingWheel();
+    }
+
+    private int openAndExpireWithTimer() throws Exception {
+        Timer timer = new Timer(true);
+        final CountDownLatch expired = new CountDownLatch(numChannels);
+        long start = System.currentTimeMillis() - DAY_MILLIS;
+        for (int i = 0; i < numChannels; i++) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    expired.countDown();
+                }
+            }, new Date(start + expiryOffsets[i]));
+        }
+        expired.await();
+        timer.cancel();
+        return numChannels;
+    }
+
+    private int openAndExpireWithTimingWheel() {
+        long start = System.currentTimeMillis();
+        TimingWheel<Sha256Hash> wheel = new TimingWheel<>(1000, 64, start);
+        for (int i = 0; i < numChannels; i++)
+            wheel.schedule(channels[i], start + expiryOffsets[i]);
+        int expired = 0;
+        for (long now = start; now <= start + DAY_MILLIS + 1000; now += 1000)
+            expired += wheel.advance(now).size();
+        if (expired != numChannels)
+            throw new IllegalStateException("Expired " + expired + " of " + numChannels + " channels");
+        return expired;
+    }
+}
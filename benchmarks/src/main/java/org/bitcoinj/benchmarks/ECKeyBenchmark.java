@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ECDSA signing and verification. {@link #sign()} and {@link #verify()} go through {@link ECKey} and thus use
+ * whichever implementation it picks. The other benchmarks call Bouncy Castle and libsecp256k1 directly so they can be
+ * compared. The native ones need libsecp256k1 on the <tt>java.library.path</tt> and fail otherwise. The batch ones
+ * sign and verify {@link #BATCH_SIZE} hashes by a handful of keys, as when spending many outputs of a few addresses,
+ * and report the rate per signature.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ECKeyBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature signature;
+    private byte[] derSignature;
+    private byte[] pubKey;
+    private byte[] privKey;
+    private List<Sha256Hash> batchHashes;
+    private List<byte[]> batchHashBytes;
+    private List<BigInteger> batchPrivKeys;
+    private List<byte[]> batchPubKeys;
+    private List<ECKey.ECDSASignature> batchSignatures;
+
+    @Setup
+    public void setUp() {
+        key = new ECKey();
+        hash = Fixtures.randomHash();
+        signature = key.sign(hash);
+        derSignature = signature.encodeToDER();
+        pubKey = key.getPubKey();
+        privKey = key.getPrivKeyBytes();
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            keys.add(new ECKey());
+        batchHashes = new ArrayList<>();
+        batchHashBytes = new ArrayList<>();
+        batchPrivKeys = new ArrayList<>();
+        batchPubKeys = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ECKey batchKey = keys.get(i % keys.size());
+            Sha256Hash batchHash = Fixtures.randomHash();
+            batchHashes.add(batchHash);
+            batchHashBytes.add(batchHash.getBytes());
+            batchPrivKeys.add(batchKey.getPrivKey());
+            batchPubKeys.add(batchKey.getPubKey());
+        }
+        batchSignatures = ECKey.sign(batchHashes, batchPrivKeys);
+    }
+
+    @State(Scope.Thread)
+    public static class NativeState {
+        @Setup
+        public void setUp() {
+            if (!Secp256k1Context.isEnabled())
+                throw new IllegalStateException("libsecp256k1 could not be loaded, check java.library.path");
+        }
+    }
+
+    @Benchmark
+    public ECKey.ECDSASignature sign() {
+        return key.sign(hash);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return key.verify(hash, signature);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<ECKey.ECDSASignature> signBatch() {
+        return ECKey.sign(batchHashes, batchPrivKeys);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean[] verifyBatch() {
+        return ECKey.verify(batchHashBytes, batchSignatures, batchPubKeys);
+    }
+
+    @Benchmark
+    public BigInteger[] signBouncyCastle() {
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        signer.init(true, new ECPrivateKeyParameters(key.getPrivKey(), ECKey.CURVE));
+        return signer.generateSignature(hash.getBytes());
+    }
+
+    @Benchmark
+    public boolean verifyBouncyCastle() {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pubKey), ECKey.CURVE));
+        return signer.verifySignature(hash.getBytes(), signature.r, signature.s);
+    }
+
+    @Benchmark
+    public byte[] signNative(NativeState state) throws Exception {
+        return NativeSecp256k1.sign(hash.getBytes(), privKey);
+    }
+
+    @Benchmark
+    public boolean verifyNative(NativeState state) throws Exception {
+        return NativeSecp256k1.verify(hash.getBytes(), derSignature, pubKey);
+    }
+
+    @Benchmark
+    public byte[] publicKeyFromPrivate() {
+        return ECKey.publicKeyFromPrivate(new BigInteger(1, privKey), true);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Generates the data the benchmarks work on, entirely in memory so that they run offline and are reproducible. This
+ * is in the spirit of the FakeTxBuilder used by the unit tests: transactions spend made up outputs, and blocks are
+ * solved against {@link UnitTestParams} so that mining them is cheap.
+ */
+public class Fixtures {
+    public static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private static final Random random = new Random(42);
+    private static final Address CHANGE_ADDRESS = new ECKey().toAddress(PARAMS);
+
+    /** Sets up a context for the current thread, with a zero fee so that wallet benchmarks don't depend on fees. */
+    public static void initContext() {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+    }
+
+    /** Returns a random hash, from a fixed seed. */
+    public static Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    /**
+     * Creates a transaction of the given value to the given address, plus a change output to a shared address. It
+     * spends a random outpoint and is round tripped through the serializer, so it looks like it came from the wire.
+     */
+    public static Transaction createFakeTx(Coin value, Address to) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, randomHash())));
+        tx.addOutput(value, to);
+        tx.addOutput(Coin.COIN, CHANGE_ADDRESS);
+        return roundTrip(tx);
+    }
+
+    /** Creates a transaction spending a random outpoint to the given number of fresh addresses. */
+    public static Transaction createFakeTx(int numOutputs) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, randomHash())));
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+        return roundTrip(tx);
+    }
+
+    /**
+     * Creates a transaction with the given number of inputs, each properly signed by the given key and spending a
+     * pay-to-address output of the given previous transaction.
+     */
+    public static Transaction createSignedTx(ECKey key, Transaction prevTx, int numInputs) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+        for (int i = 0; i < numInputs; i++)
+            tx.addSignedInput(prevTx.getOutput(i), key);
+        return roundTrip(tx);
+    }
+
+    /** Creates a transaction paying the given number of outputs to the given key. */
+    public static Transaction createFundingTx(ECKey key, int numOutputs) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, randomHash())));
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.CENT, key.toAddress(PARAMS));
+        return roundTrip(tx);
+    }
+
+    /** Creates a solved block on top of the given one, containing the given number of transactions. */
+    public static Block createBlock(Block prev, int numTransactions) {
+        Block block = prev.createNextBlock(new ECKey().toAddress(PARAMS));
+        for (int i = 0; i < numTransactions; i++)
+            block.addTransaction(createFakeTx(2));
+        block.solve();
+        return block;
+    }
+
+    /**
+     * Creates a header on top of the given block, with a random merkle root and without solving it. This is cheap and
+     * good enough for exercising block stores, which don't verify what they store.
+     */
+    public static StoredBlock createStoredHeader(StoredBlock prev) {
+        Block prevHeader = prev.getHeader();
+        Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, prevHeader.getHash(), randomHash(),
+                prevHeader.getTimeSeconds() + 600, prevHeader.getDifficultyTarget(), 0, new ArrayList<Transaction>());
+        return prev.build(header);
+    }
+
+    /**
+     * Creates a wallet holding the given number of confirmed outputs, spread over the given number of blocks, which
+     * are connected through a chain backed by a memory store. The number of blocks must stay below the difficulty
+     * retarget interval of the unit test network.
+     */
+    public static Wallet createWallet(int numOutputs, int numBlocks) throws Exception {
+        checkArgument(numBlocks < PARAMS.getInterval());
+        Wallet wallet = new Wallet(PARAMS);
+        BlockStore store = new MemoryBlockStore(PARAMS);
+        BlockChain chain = new BlockChain(PARAMS, wallet, store);
+        Address address = wallet.currentReceiveAddress();
+        int perBlock = (numOutputs + numBlocks - 1) / numBlocks;
+        int created = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            Block block = store.getChainHead().getHeader().createNextBlock(new ECKey().toAddress(PARAMS));
+            for (int i = 0; i < perBlock && created < numOutputs; i++, created++)
+                block.addTransaction(createFakeTx(Coin.COIN, address));
+            block.solve();
+            chain.add(block);
+        }
+        return wallet;
+    }
+
+    private static Transaction roundTrip(Transaction tx) {
+        return PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+    }
+}
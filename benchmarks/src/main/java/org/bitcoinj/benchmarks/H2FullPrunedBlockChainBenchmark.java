@@ -0,0 +1,145 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects {@link #BLOCKS} blocks of {@link #numTransactions} transactions each to a {@link FullPrunedBlockChain}
+ * backed by an {@link H2FullPrunedBlockStore}. Every transaction spends an output of the block before and creates two
+ * new ones, so each block removes and adds thousands of open outputs. The score is the time for all blocks; divide
+ * {@link #BLOCKS} by it for blocks per second. Scripts are not run, to measure the store rather than ECDSA. With
+ * {@link #bulkLoad} the store stages the open outputs of all blocks and writes them once, see
+ * {@link H2FullPrunedBlockStore#beginBulkLoad(int)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = H2FullPrunedBlockChainBenchmark.BLOCKS)
+@Measurement(iterations = 5, batchSize = H2FullPrunedBlockChainBenchmark.BLOCKS)
+@Fork(1)
+public class H2FullPrunedBlockChainBenchmark {
+    public static final int BLOCKS = 20;
+
+    // The chain is longer than the difficulty retarget interval of the unit test network.
+    private static final NetworkParameters PARAMS = new UnitTestParams() {
+        @Override
+        public int getInterval() {
+            return 10000;
+        }
+    };
+    private static final byte[] OP_TRUE_SCRIPT = { (byte) ScriptOpCodes.OP_TRUE };
+
+    @Param({"100", "1000"})
+    public int numTransactions;
+
+    @Param({"false", "true"})
+    public boolean bulkLoad;
+
+    // The blocks that make a coinbase spendable and split it into an output for every transaction, then the blocks
+    // to connect.
+    private List<Block> fundingBlocks;
+    private List<Block> blocks;
+    private File dir;
+    private H2FullPrunedBlockStore store;
+    private FullPrunedBlockChain chain;
+    private int index;
+
+    @Setup
+    public void createBlocks() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        fundingBlocks = new ArrayList<>();
+        ECKey key = new ECKey();
+        int height = 1;
+        Block block = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS,
+                key.getPubKey(), Coin.FIFTY_COINS, height++);
+        fundingBlocks.add(block);
+        TransactionOutput coinbase = block.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            block = block.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, key.getPubKey(), Coin.FIFTY_COINS,
+                    height++);
+            fundingBlocks.add(block);
+        }
+        Transaction split = new Transaction(PARAMS);
+        split.addInput(coinbase);
+        Coin value = coinbase.getValue().divide(numTransactions);
+        for (int i = 0; i < numTransactions; i++)
+            split.addOutput(new TransactionOutput(PARAMS, split, value, OP_TRUE_SCRIPT));
+        block = block.createNextBlock(null);
+        block.addTransaction(split);
+        block.solve();
+        fundingBlocks.add(block);
+
+        List<TransactionOutput> spendable = split.getOutputs();
+        blocks = new ArrayList<>(BLOCKS);
+        for (int b = 0; b < BLOCKS; b++) {
+            block = block.createNextBlock(null);
+            List<TransactionOutput> next = new ArrayList<>(numTransactions);
+            for (TransactionOutput out : spendable) {
+                Transaction tx = new Transaction(PARAMS);
+                tx.addInput(out);
+                tx.addOutput(new TransactionOutput(PARAMS, tx, out.getValue().subtract(Coin.SATOSHI),
+                        OP_TRUE_SCRIPT));
+                tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.SATOSHI, OP_TRUE_SCRIPT));
+                block.addTransaction(tx);
+                next.add(tx.getOutput(0));
+            }
+            block.solve();
+            blocks.add(block);
+            spendable = next;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void createChain() throws Exception {
+        dir = File.createTempFile("h2fullprunedblockstore", null);
+        dir.delete();
+        dir.mkdir();
+        store = new H2FullPrunedBlockStore(PARAMS, new File(dir, "chain").getAbsolutePath(), 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setRunScripts(false);
+        for (Block block : fundingBlocks)
+            chain.add(block);
+        if (bulkLoad)
+            store.beginBulkLoad(BLOCKS);
+        index = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteChain() {
+        store.close();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean connectBlock() throws Exception {
+        return chain.add(blocks.get(index++));
+    }
+}
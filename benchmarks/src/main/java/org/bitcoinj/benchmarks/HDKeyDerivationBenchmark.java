@@ -0,0 +1,78 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BIP32 child key derivation, both from a private parent (as done when signing) and from a public only parent (as
+ * done by watching wallets and when extending the lookahead of a key chain). The address benchmarks also hash the
+ * public key of the new key, as key chains do for every key they hand out or put in a Bloom filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HDKeyDerivationBenchmark {
+    private DeterministicKey privateParent;
+    private DeterministicKey publicParent;
+    private int childNumber;
+
+    @Setup
+    public void setUp() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey(Fixtures.randomHash().getBytes());
+        privateParent = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        publicParent = privateParent.dropPrivateBytes().dropParent();
+    }
+
+    private ChildNumber nextChild() {
+        childNumber = (childNumber + 1) & ~ChildNumber.HARDENED_BIT;
+        return new ChildNumber(childNumber);
+    }
+
+    @Benchmark
+    public DeterministicKey deriveChildKeyFromPrivate() {
+        return HDKeyDerivation.deriveChildKey(privateParent, nextChild());
+    }
+
+    @Benchmark
+    public DeterministicKey deriveChildKeyFromPublic() {
+        return HDKeyDerivation.deriveChildKey(publicParent, nextChild());
+    }
+
+    @Benchmark
+    public byte[] deriveChildAddressFromPrivate() {
+        return HDKeyDerivation.deriveChildKey(privateParent, nextChild()).getPubKeyHash();
+    }
+
+    @Benchmark
+    public byte[] deriveChildAddressFromPublic() {
+        return HDKeyDerivation.deriveChildKey(publicParent, nextChild()).getPubKeyHash();
+    }
+
+    @Benchmark
+    public DeterministicKey deriveHardenedChildKey() {
+        return HDKeyDerivation.deriveChildKey(privateParent, new ChildNumber(nextChild().num(), true));
+    }
+}
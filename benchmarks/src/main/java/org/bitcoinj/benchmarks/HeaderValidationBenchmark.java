@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.HeaderIndex;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headers per second that can be connected to an {@link SPVBlockStore}, counting the store lookups header validation
+ * does: the 11 blocks of the median timestamp check for every header, and the block at the start of the difficulty
+ * interval at every retarget, with the main net interval of 2016 blocks. With {@link #indexed} set, the lookups go
+ * through a {@link HeaderIndex}, as the block chain does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HeaderValidationBenchmark {
+    private static final int INTERVAL = 2016;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private File file;
+    private SPVBlockStore store;
+    private BlockStore lookups;
+    private StoredBlock head;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new SPVBlockStore(Fixtures.PARAMS, file);
+        lookups = indexed ? new HeaderIndex(store, INTERVAL + 11) : store;
+        head = store.getChainHead();
+        for (int i = 0; i < INTERVAL * 2; i++)
+            connect();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    private long connect() throws Exception {
+        StoredBlock prev = head;
+        long time = 0;
+        StoredBlock cursor = prev;
+        for (int i = 0; i < 11 && cursor != null; i++) {
+            time += cursor.getHeader().getTimeSeconds();
+            cursor = cursor.getPrev(lookups);
+        }
+        if ((prev.getHeight() + 1) % INTERVAL == 0)
+            time += HeaderIndex.getAncestor(lookups, prev, prev.getHeight() - INTERVAL + 1).getHeader().getTimeSeconds();
+        head = Fixtures.createStoredHeader(prev);
+        lookups.put(head);
+        lookups.setChainHead(head);
+        return time;
+    }
+
+    @Benchmark
+    public long connectHeader() throws Exception {
+        return connect();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.protocols.channels.ServerState;
+import org.bitcoinj.protocols.channels.StoredPaymentChannelServerStates;
+import org.bitcoinj.protocols.channels.StoredServerChannel;
+import org.bitcoinj.protocols.channels.StoredServerChannelLog;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sustained payments per second on a payment channel server with {@link #numChannels} open channels, paid
+ * concurrently by several threads. Each payment persists the channel, either by saving the wallet, which serializes
+ * every channel, or by appending to a {@link StoredServerChannelLog} with the given durability. The wallet is auto
+ * saved to a file in all cases, so checkpoints are part of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Threads(8)
+@Fork(1)
+public class PaymentChannelServerBenchmark {
+    @Param({"1000"})
+    public int numChannels;
+
+    @Param({"WALLET", "SYNC", "DELAYED"})
+    public String store;
+
+    private File walletFile;
+    private File logFile;
+    private Wallet wallet;
+    private StoredServerChannelLog channelLog;
+    private StoredPaymentChannelServerStates states;
+    private List<StoredServerChannel> channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        walletFile = File.createTempFile("channels", ".wallet");
+        walletFile.deleteOnExit();
+        logFile = File.createTempFile("channels", ".log");
+        logFile.delete();
+        logFile.deleteOnExit();
+        wallet = new Wallet(Fixtures.PARAMS);
+        if (store.equals("WALLET")) {
+            states = new StoredPaymentChannelServerStates(wallet);
+        } else {
+            channelLog = new StoredServerChannelLog(logFile, StoredServerChannelLog.Durability.valueOf(store),
+                    StoredServerChannelLog.DEFAULT_SYNC_INTERVAL_MILLIS, StoredServerChannelLog.DEFAULT_CHECKPOINT_BYTES);
+            states = new StoredPaymentChannelServerStates(wallet, channelLog);
+        }
+        // Open the channels the way a restart would find them.
+        ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
+        for (int i = 0; i < numChannels; i++) {
+            Transaction contract = new Transaction(Fixtures.PARAMS);
+            contract.addOutput(Coin.COIN, new ECKey());
+            builder.addChannels(ServerState.StoredServerPaymentChannel.newBuilder()
+                    .setMajorVersion(2)
+                    .setBestValueToMe(Coin.CENT.value)
+                    .setRefundTransactionUnlockTimeSecs(Utils.currentTimeSeconds() + 24 * 60 * 60)
+                    .setContractTransaction(ByteString.copyFrom(contract.unsafeBitcoinSerialize()))
+                    .setMyKey(ByteString.copyFrom(new ECKey().getPrivKeyBytes()))
+                    .setClientKey(ByteString.copyFrom(new ECKey().getPubKey()))
+                    .setBestValueSignature(ByteString.copyFrom(new byte[72])));
+        }
+        states.deserializeWalletExtension(wallet, builder.build().toByteArray());
+        wallet.addExtension(states);
+        wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, null);
+        channels = new ArrayList<>(states.getChannelMap().values());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wallet.shutdownAutosaveAndWait();
+        if (channelLog != null)
+            channelLog.close();
+        walletFile.delete();
+        logFile.delete();
+    }
+
+    @Benchmark
+    public StoredServerChannel payment() {
+        StoredServerChannel channel = channels.get((nextChannel.getAndIncrement() & Integer.MAX_VALUE) % numChannels);
+        states.updatedChannel(channel);
+        return channel;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.net.NioServer;
+import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.net.StreamConnectionFactory;
+import org.bitcoinj.net.discovery.PeerAddressDatabase;
+import org.bitcoinj.net.discovery.PeerDiscovery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a freshly started {@link PeerGroup} takes to get {@link #numPeers} connections, with and without a
+ * {@link PeerAddressDatabase} saved by an earlier run. The peers are in process servers on localhost that only do the
+ * version handshake. Discovery returns the same servers, but only after {@link #DISCOVERY_DELAY_MILLIS}, like slow DNS
+ * seeds would. Loading the database is part of the measured time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PeerGroupStartupBenchmark {
+    private static final int BASE_PORT = 19500;
+    private static final long DISCOVERY_DELAY_MILLIS = 2000;
+
+    @Param({"8"})
+    public int numPeers;
+
+    @Param({"false", "true"})
+    public boolean withDatabase;
+
+    private NioServer[] servers;
+    private InetSocketAddress[] addresses;
+    private File databaseFile;
+    private PeerGroup peerGroup;
+
+    @Setup
+    public void startServers() throws Exception {
+        Fixtures.initContext();
+        servers = new NioServer[numPeers];
+        addresses = new InetSocketAddress[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            addresses[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + i);
+            servers[i] = new NioServer(new StreamConnectionFactory() {
+                @Override
+                public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                    return new HandshakingPeer(new InetSocketAddress(inetAddress, port));
+                }
+            }, addresses[i]);
+            servers[i].startAsync();
+            servers[i].awaitRunning();
+        }
+        // What a previous run would have left behind.
+        databaseFile = File.createTempFile("peers", null);
+        databaseFile.delete();
+        databaseFile.deleteOnExit();
+        PeerAddressDatabase database = new PeerAddressDatabase(databaseFile);
+        for (InetSocketAddress address : addresses)
+            database.recordSuccess(address, VersionMessage.NODE_NETWORK);
+        database.save();
+    }
+
+    @TearDown
+    public void stopServers() {
+        for (NioServer server : servers)
+            server.stopAsync().awaitTerminated();
+        databaseFile.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void createPeerGroup() {
+        peerGroup = new PeerGroup(Fixtures.PARAMS);
+        peerGroup.setUseLocalhostPeerWhenPossible(false);
+        peerGroup.setMaxConnections(numPeers);
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            @Override
+            public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) {
+                Utils.sleep(DISCOVERY_DELAY_MILLIS);
+                return addresses;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopPeerGroup() {
+        peerGroup.stop();
+    }
+
+    @Benchmark
+    public int startUntilConnected() throws Exception {
+        if (withDatabase)
+            peerGroup.setAddressDatabase(new PeerAddressDatabase(databaseFile));
+        peerGroup.start();
+        return peerGroup.waitForPeers(numPeers).get().size();
+    }
+
+    // The remote end of a connection: answers the version message of the peer group and ignores everything else.
+    private static class HandshakingPeer extends PeerSocketHandler {
+        HandshakingPeer(InetSocketAddress remoteAddress) {
+            super(Fixtures.PARAMS, remoteAddress);
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            if (m instanceof VersionMessage) {
+                VersionMessage version = new VersionMessage(Fixtures.PARAMS, 1);
+                version.localServices = VersionMessage.NODE_NETWORK;
+                sendMessage(version);
+                sendMessage(new VersionAck());
+            }
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+    }
+}
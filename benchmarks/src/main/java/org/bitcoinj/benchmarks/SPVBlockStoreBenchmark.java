@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and inserts on the memory mapped {@link SPVBlockStore}. The store holds {@link #numBlocks} headers, more
+ * than its in-memory cache, so that lookups of old blocks have to scan the ring buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SPVBlockStoreBenchmark {
+    @Param({"4000"})
+    public int numBlocks;
+
+    private File file;
+    private SPVBlockStore store;
+    private List<StoredBlock> blocks;
+    private StoredBlock head;
+    private int index;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        file = File.createTempFile("spvblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new SPVBlockStore(Fixtures.PARAMS, file);
+        blocks = new ArrayList<>(numBlocks);
+        head = store.getChainHead();
+        for (int i = 0; i < numBlocks; i++) {
+            head = Fixtures.createStoredHeader(head);
+            store.put(head);
+            blocks.add(head);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public StoredBlock getRecent() throws Exception {
+        return store.get(blocks.get(numBlocks - 1 - (index++ & 1023)).getHeader().getHash());
+    }
+
+    @Benchmark
+    public StoredBlock getOld() throws Exception {
+        return store.get(blocks.get(index++ & 1023).getHeader().getHash());
+    }
+
+    @Benchmark
+    public StoredBlock getMissing() throws Exception {
+        return store.get(Sha256Hash.of(new byte[] { (byte) index++ }));
+    }
+
+    @Benchmark
+    public StoredBlock put() throws Exception {
+        head = Fixtures.createStoredHeader(head);
+        store.put(head);
+        return head;
+    }
+}
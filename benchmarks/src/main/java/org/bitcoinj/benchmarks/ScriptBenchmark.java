@@ -0,0 +1,62 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution of a pay-to-address input script against its output script, including the signature check. This is the
+ * per input cost of verifying transactions in full verification mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScriptBenchmark {
+    private Transaction tx;
+    private Script scriptSig;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        Fixtures.initContext();
+        ECKey key = new ECKey();
+        Transaction prevTx = Fixtures.createFundingTx(key, 1);
+        tx = Fixtures.createSignedTx(key, prevTx, 1);
+        scriptSig = tx.getInput(0).getScriptSig();
+        scriptPubKey = prevTx.getOutput(0).getScriptPubKey();
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Benchmark
+    public Script parseAndCorrectlySpends() {
+        Script parsedSig = new Script(scriptSig.getProgram());
+        parsedSig.correctlySpends(tx, 0, new Script(scriptPubKey.getProgram()), Script.ALL_VERIFY_FLAGS);
+        return parsedSig;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serializing of wire messages through {@link org.bitcoinj.core.BitcoinSerializer}, for a single
+ * transaction and for a block of {@link #numTransactions} transactions. The default serializer doesn't retain the
+ * parsed bytes, so serializing does the full work every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializerBenchmark {
+    @Param({"100", "2000"})
+    public int numTransactions;
+
+    private MessageSerializer serializer;
+    private Transaction tx;
+    private Block block;
+    private byte[] txMessage;
+    private byte[] blockMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        serializer = Fixtures.PARAMS.getDefaultSerializer();
+        tx = Fixtures.createFakeTx(2);
+        block = Fixtures.createBlock(Fixtures.PARAMS.getGenesisBlock(), numTransactions);
+        txMessage = serialize(tx);
+        blockMessage = serialize(block);
+    }
+
+    private byte[] serialize(Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(message, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object parseTransaction() throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(txMessage));
+    }
+
+    @Benchmark
+    public Object parseBlock() throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(blockMessage));
+    }
+
+    @Benchmark
+    public Object parseAndHashBlock() throws Exception {
+        Block parsed = (Block) serializer.deserialize(ByteBuffer.wrap(blockMessage));
+        for (Transaction t : parsed.getTransactions())
+            t.getHash();
+        return parsed;
+    }
+
+    @Benchmark
+    public byte[] serializeTransaction() throws Exception {
+        return serialize(tx);
+    }
+
+    @Benchmark
+    public byte[] serializeBlock() throws Exception {
+        return serialize(block);
+    }
+}
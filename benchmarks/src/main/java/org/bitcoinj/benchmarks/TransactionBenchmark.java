@@ -0,0 +1,65 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calculation of signature hashes, which has to serialize a modified copy of the transaction for every input and
+ * therefore gets expensive for transactions with many inputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransactionBenchmark {
+    @Param({"1", "10", "100"})
+    public int numInputs;
+
+    private Transaction tx;
+    private Script scriptPubKey;
+
+    @Setup
+    public void setUp() {
+        Fixtures.initContext();
+        ECKey key = new ECKey();
+        Transaction prevTx = Fixtures.createFundingTx(key, numInputs);
+        tx = Fixtures.createSignedTx(key, prevTx, numInputs);
+        scriptPubKey = prevTx.getOutput(0).getScriptPubKey();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignatureFirstInput() {
+        return tx.hashForSignature(0, scriptPubKey, Transaction.SigHash.ALL, false);
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignatureAllInputs() {
+        Sha256Hash hash = null;
+        for (int i = 0; i < numInputs; i++)
+            hash = tx.hashForSignature(i, scriptPubKey, Transaction.SigHash.ALL, false);
+        return hash;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds {@link #numTransactions} transactions to a {@link TxMemoryPool}, once with room for all of them and once with
+ * room for a quarter, so that most additions evict. The score is the time for all of them. The transactions pay random
+ * fees and a fifth of them spend an output of an earlier one, so the pool has packages to keep track of.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TxMemoryPoolBenchmark {
+    @Param({"10000", "100000"})
+    public int numTransactions;
+
+    private List<Transaction> transactions;
+    private long totalBytes;
+
+    @Setup
+    public void createTransactions() {
+        Fixtures.initContext();
+        Random random = new Random(42);
+        Address to = new ECKey().toAddress(Fixtures.PARAMS);
+        transactions = new ArrayList<>(numTransactions);
+        List<TransactionOutput> unspent = new ArrayList<>();
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(Fixtures.PARAMS);
+            Coin value;
+            if (!unspent.isEmpty() && random.nextInt(5) == 0) {
+                int index = random.nextInt(unspent.size());
+                TransactionOutput parentOutput = unspent.get(index);
+                unspent.set(index, unspent.get(unspent.size() - 1));
+                unspent.remove(unspent.size() - 1);
+                tx.addInput(parentOutput);
+                value = parentOutput.getValue();
+            } else {
+                value = Coin.COIN;
+                tx.addInput(new TransactionInput(Fixtures.PARAMS, tx, new byte[0],
+                        new TransactionOutPoint(Fixtures.PARAMS, 0, Fixtures.randomHash()), value));
+            }
+            Coin fee = Coin.valueOf(1000 + random.nextInt(100000));
+            Coin change = value.subtract(fee).divide(2);
+            tx.addOutput(value.subtract(fee).subtract(change), to);
+            tx.addOutput(change, to);
+            if (change.isGreaterThan(Coin.CENT))
+                unspent.add(tx.getOutput(1));
+            transactions.add(tx);
+            totalBytes += tx.getMessageSize();
+        }
+    }
+
+    @Benchmark
+    public TxMemoryPool addWithinBudget() {
+        return fill(new TxMemoryPool(Fixtures.PARAMS, totalBytes, null));
+    }
+
+    @Benchmark
+    public TxMemoryPool addEvicting() {
+        return fill(new TxMemoryPool(Fixtures.PARAMS, totalBytes / 4, null));
+    }
+
+    private TxMemoryPool fill(TxMemoryPool pool) {
+        for (Transaction tx : transactions)
+            pool.add(tx);
+        return pool;
+    }
+}
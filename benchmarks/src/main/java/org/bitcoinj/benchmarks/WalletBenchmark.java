@@ -0,0 +1,72 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance calculation and transaction completion on a wallet holding {@link #numOutputs} confirmed outputs. Completing
+ * a transaction includes coin selection, fee calculation and signing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalletBenchmark {
+    @Param({"100", "1000"})
+    public int numOutputs;
+
+    @Param({"1", "20"})
+    public int numCoinsToSpend;
+
+    private Wallet wallet;
+    private Address destination;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        wallet = Fixtures.createWallet(numOutputs, 5);
+        destination = new ECKey().toAddress(Fixtures.PARAMS);
+    }
+
+    @Benchmark
+    public Coin getBalanceAvailable() {
+        return wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+    }
+
+    @Benchmark
+    public Coin getBalanceEstimated() {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    @Benchmark
+    public SendRequest completeTx() throws Exception {
+        // Each output is worth one coin, so this spends the given number of them, minus a bit to force change.
+        SendRequest req = SendRequest.to(destination, Coin.COIN.multiply(numCoinsToSpend).subtract(Coin.CENT));
+        wallet.completeTx(req);
+        return req;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * Measures how much heap a wallet takes per transaction it holds. JMH measures time, not retained memory, so unlike the
+ * other benchmarks this is a program of its own:
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar org.bitcoinj.benchmarks.WalletMemoryBenchmark [numTransactions]
+ * </pre>
+ *
+ * It creates a wallet holding the given number of confirmed transactions, 10000 by default, and prints the heap in use
+ * after a full collection, before and after, divided by the number of transactions. Each transaction is a typical
+ * payment, with one input and two outputs of which one is to the wallet. Run with a heap big enough that the numbers
+ * are not distorted by the collector struggling.
+ */
+public class WalletMemoryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Fixtures.initContext();
+        // Warm up, so that classes and shared tables are loaded before measuring.
+        Fixtures.createWallet(100, 1);
+        long before = usedHeap();
+        Wallet wallet = Fixtures.createWallet(numTransactions, Fixtures.PARAMS.getInterval() - 1);
+        long after = usedHeap();
+        System.out.println("Transactions:             " + wallet.getTransactions(false).size());
+        System.out.println("Heap in use:              " + (after - before) / 1024 + " KiB");
+        System.out.println("Heap in use per tx:       " + (after - before) / numTransactions + " bytes");
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collecting a few times gives finalizers and weak references a chance to be cleared.
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
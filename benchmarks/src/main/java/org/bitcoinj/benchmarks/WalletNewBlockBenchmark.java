@@ -0,0 +1,72 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a wallet holding {@link #numTransactions} confirmed transactions takes to process a new best block that
+ * doesn't contain any of its transactions, with and without depth notification thresholds. A confidence listener is
+ * registered on the wallet, as wallet apps do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalletNewBlockBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int numTransactions;
+
+    @Param({"false", "true"})
+    public boolean thresholds;
+
+    private Wallet wallet;
+    private StoredBlock chainHead;
+    private long events;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        wallet = Fixtures.createWallet(numTransactions, 5);
+        if (thresholds)
+            wallet.setDepthNotificationThresholds(1, 6, 100);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                events++;
+            }
+        });
+        chainHead = new StoredBlock(Fixtures.PARAMS.getGenesisBlock(), Fixtures.PARAMS.getGenesisBlock().getWork(),
+                wallet.getLastBlockSeenHeight());
+    }
+
+    @Benchmark
+    public long notifyNewBestBlock() throws Exception {
+        chainHead = Fixtures.createStoredHeader(chainHead);
+        wallet.notifyNewBestBlock(chainHead);
+        return events;
+    }
+}
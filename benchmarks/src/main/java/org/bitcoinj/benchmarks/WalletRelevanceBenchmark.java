@@ -0,0 +1,68 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.benchmarks;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many relevance checks of mempool transactions per second a wallet holding {@link #numTransactions} confirmed
+ * transactions can do. An unrelated transaction is the common case, and a transaction double spending a wallet
+ * transaction to someone else is only found relevant by looking for double spends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalletRelevanceBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int numTransactions;
+
+    private Wallet wallet;
+    private Transaction unrelatedTx;
+    private Transaction doubleSpendTx;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.initContext();
+        wallet = Fixtures.createWallet(numTransactions, 5);
+        unrelatedTx = Fixtures.createFakeTx(2);
+        Transaction walletTx = wallet.getTransactions(false).iterator().next();
+        Transaction tx = new Transaction(Fixtures.PARAMS);
+        tx.addInput(new TransactionInput(Fixtures.PARAMS, tx, new byte[0], walletTx.getInput(0).getOutpoint()));
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(Fixtures.PARAMS));
+        doubleSpendTx = Fixtures.PARAMS.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+    }
+
+    @Benchmark
+    public boolean isUnrelatedTransactionRelevant() {
+        return wallet.isPendingTransactionRelevant(unrelatedTx);
+    }
+
+    @Benchmark
+    public boolean isDoubleSpendRelevant() {
+        return wallet.isPendingTransactionRelevant(doubleSpendTx);
+    }
+}
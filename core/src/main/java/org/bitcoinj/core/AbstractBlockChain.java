@@ -110,6 +110,9 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how much memory the block takes, and when it arrived.
+        final int size;
+        final long receivedAt = System.nanoTime();
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -117,11 +120,31 @@ public abstract class AbstractBlockChain {
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            if (filtered) {
+                int size = Block.HEADER_SIZE + filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+                this.size = size;
+            } else {
+                this.size = block.getOptimalEncodingMessageSize();
+            }
         }
     }
+    /** The default for {@link #setMaxOrphanBytes(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 32 * 1024 * 1024;
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. They are also indexed by the hash of their previous block, so that connecting a
+    // block only looks at its own children. The oldest ones are dropped once they take more than maxOrphanBytes.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    private final HashMap<Sha256Hash, List<OrphanBlock>> orphansByPrev = new HashMap<>();
+    // The hashes of orphanBlocks, for checking whether a block is a known orphan without taking the lock.
+    private final Set<Sha256Hash> orphanHashes = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+    private long orphanBytes;
+    private long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
+    private long connectedOrphans;
+    private long evictedOrphans;
+    private long totalOrphanLatencyNanos;
+    private long maxOrphanLatencyNanos;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -134,6 +157,9 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    // The recent blocks of the best chain, which header validation looks at, kept in memory in front of the store.
+    private final HeaderIndex headerIndex;
+
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
                               BlockStore blockStore) throws BlockStoreException {
@@ -157,8 +183,11 @@ public abstract class AbstractBlockChain {
         for (ReorganizeListener l : wallets) addReorganizeListener(Threading.SAME_THREAD, l);
         for (TransactionReceivedInBlockListener l : wallets) addTransactionReceivedListener(Threading.SAME_THREAD, l);
 
+        // Big enough for the median timestamp check, difficulty transitions and the version tally.
+        this.headerIndex = new HeaderIndex(blockStore, Math.max(params.getInterval(), params.getMajorityWindow()) + 11);
+        this.headerIndex.chainHeadChanged(chainHead);
         this.versionTally = new VersionTally(context.getParams());
-        this.versionTally.initialize(blockStore, chainHead);
+        this.versionTally.initialize(headerIndex, chainHead);
     }
 
     /**
@@ -348,8 +377,13 @@ public abstract class AbstractBlockChain {
      * Accessing block's transactions in another thread while this method runs may result in undefined behavior.
      */
     public boolean add(Block block) throws VerificationException, PrunedException {
+        return add(block, false);
+    }
+
+    // Like add(Block), but skips the checks of verifyContextFree() if contextFreeChecked is set.
+    boolean add(Block block, boolean contextFreeChecked) throws VerificationException, PrunedException {
         try {
-            return add(block, true, null, null);
+            return add(block, true, null, null, contextFreeChecked);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -370,6 +404,11 @@ public abstract class AbstractBlockChain {
      * If the block can be connected to the chain, returns true.
      */
     public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
+        return add(block, false);
+    }
+
+    // Like add(FilteredBlock), but skips the checks of verifyContextFree() if contextFreeChecked is set.
+    boolean add(FilteredBlock block, boolean contextFreeChecked) throws VerificationException, PrunedException {
         try {
             // The block has a list of hashes of transactions that matched the Bloom filter, and a list of associated
             // Transaction objects. There may be fewer Transaction objects than hashes, this is expected. It can happen
@@ -378,7 +417,8 @@ public abstract class AbstractBlockChain {
             // a false positive, as expected in any Bloom filtering scheme). The filteredTxn list here will usually
             // only be full of data when we are catching up to the head of the chain and thus haven't witnessed any
             // of the transactions.
-            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions());
+            return add(block.getBlockHeader(), true, block.getTransactionHashes(), block.getAssociatedTransactions(),
+                    contextFreeChecked);
         } catch (BlockStoreException e) {
             // TODO: Figure out a better way to propagate this exception to the user.
             throw new RuntimeException(e);
@@ -421,11 +461,44 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
+    /**
+     * Runs the checks of a block that don't depend on the chain: the proof of work and timestamp of the header and,
+     * when verifying transactions, the merkle root, size and sigops of the body. They don't need the block chain lock,
+     * so {@link #add(Block)} runs them before taking it, and a {@link BlockVerificationPipeline} runs them in parallel.
+     */
+    void verifyContextFree(Block block) throws VerificationException {
+        try {
+            block.verifyHeader();
+            if (shouldVerifyTransactions()) {
+                // If we want to verify transactions (ie we are running with full blocks), verify that block has
+                // transactions.
+                if (block.transactions == null)
+                    throw new VerificationException("Got a block header while running in full-block mode");
+                block.verifyTransactionsContextFree();
+            }
+        } catch (VerificationException e) {
+            log.error("Failed to verify block: ", e);
+            log.error(block.getHashAsString());
+            throw e;
+        }
+    }
+
     // filteredTxHashList contains all transactions, filteredTxn just a subset
     private boolean add(Block block, boolean tryConnecting,
-                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
+                        @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn,
+                        boolean contextFreeChecked)
             throws BlockStoreException, VerificationException, PrunedException {
-        // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
+        // The context free checks are the expensive part of verifying a block, so do them before taking the lock. That
+        // keeps the lock, and thus properties like the chain head, available during chain download. Blocks that are
+        // sent again, or that we already hold as orphans, are ruled out first so they don't pay for the checks. The
+        // same checks are repeated under the lock below.
+        if (!contextFreeChecked) {
+            if (block.equals(getChainHead().getHeader()))
+                return true;
+            if (tryConnecting && orphanHashes.contains(block.getHash()))
+                return false;
+            verifyContextFree(block);
+        }
         lock.lock();
         try {
             // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
@@ -437,10 +510,6 @@ public abstract class AbstractBlockChain {
                 return false;
             }
 
-            // If we want to verify transactions (ie we are running with full blocks), verify that block has transactions
-            if (shouldVerifyTransactions() && block.transactions == null)
-                throw new VerificationException("Got a block header while running in full-block mode");
-
             // Check for already-seen block, but only for full pruned mode, where the DB is
             // more likely able to handle these queries quickly.
             if (shouldVerifyTransactions() && blockStore.get(block.getHash()) != null) {
@@ -451,12 +520,11 @@ public abstract class AbstractBlockChain {
             final int height;
             final EnumSet<Block.VerifyFlag> flags;
 
-            // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
-            // if there is a tx sending or receiving coins using an address in one of our wallets. And those transactions
-            // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
-            // article here for more details: https://bitcoinj.github.io/security-model
+            // The block was proven internally valid by verifyContextFree(): hash is lower than target, etc. This only
+            // checks the block contents if there is a tx sending or receiving coins using an address in one of our
+            // wallets. And those transactions are only lightly verified: presence in a valid connecting block is taken
+            // as proof of validity. See the article here for more details: https://bitcoinj.github.io/security-model
             try {
-                block.verifyHeader();
                 storedPrev = getStoredBlockInCurrentScope(block.getPrevBlockHash());
                 if (storedPrev != null) {
                     height = storedPrev.getHeight() + 1;
@@ -465,7 +533,7 @@ public abstract class AbstractBlockChain {
                 }
                 flags = params.getBlockVerificationFlags(block, versionTally, height);
                 if (shouldVerifyTransactions())
-                    block.verifyTransactions(height, flags);
+                    block.checkCoinBaseHeight(height, flags);
             } catch (VerificationException e) {
                 log.error("Failed to verify block: ", e);
                 log.error(block.getHashAsString());
@@ -480,17 +548,17 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                params.checkDifficultyTransitions(storedPrev, block, headerIndex);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             return true;
         } finally {
@@ -508,6 +576,9 @@ public abstract class AbstractBlockChain {
         try {
             Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
             orphanBlocks.clear();
+            orphanHashes.clear();
+            orphansByPrev.clear();
+            orphanBytes = 0;
             return hashes;
         } finally {
             lock.unlock();
@@ -539,7 +610,7 @@ public abstract class AbstractBlockChain {
                         block.getHashAsString(), filteredTxHashList.size(), filteredTxn.size());
                 for (Sha256Hash hash : filteredTxHashList) log.debug("  matched tx {}", hash);
             }
-            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, blockStore))
+            if (expensiveChecks && block.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(head, headerIndex))
                 throw new VerificationException("Block's timestamp is too early");
 
             // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks
@@ -629,7 +700,7 @@ public abstract class AbstractBlockChain {
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
                 final boolean notFirst = !first;
-                registration.executor.execute(new Runnable() {
+                Threading.dispatch(registration.executor, this, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -655,7 +726,7 @@ public abstract class AbstractBlockChain {
                     registration.listener.notifyNewBestBlock(newStoredBlock);
             } else {
                 // Listener wants to be run on some other thread, so marshal it across here.
-                registration.executor.execute(new Runnable() {
+                Threading.dispatch(registration.executor, this, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -775,7 +846,7 @@ public abstract class AbstractBlockChain {
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
                 Block cursorBlock = cursor.getHeader();
-                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursorBlock.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(headerIndex), headerIndex))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -797,7 +868,7 @@ public abstract class AbstractBlockChain {
                 // TODO: Do we really need to do this or should it be irrelevant?
                 registration.listener.reorganize(splitPoint, oldBlocks, newBlocks);
             } else {
-                registration.executor.execute(new Runnable() {
+                Threading.dispatch(registration.executor, this, new Runnable() {
                     @Override
                     public void run() {
                         try {
@@ -892,46 +963,153 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        headerIndex.chainHeadChanged(chainHead);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
     }
 
+    private void addOrphan(OrphanBlock orphan) {
+        checkState(lock.isHeldByCurrentThread());
+        orphanBlocks.put(orphan.block.getHash(), orphan);
+        orphanHashes.add(orphan.block.getHash());
+        List<OrphanBlock> siblings = orphansByPrev.get(orphan.block.getPrevBlockHash());
+        if (siblings == null) {
+            siblings = new ArrayList<>(1);
+            orphansByPrev.put(orphan.block.getPrevBlockHash(), siblings);
+        }
+        siblings.add(orphan);
+        orphanBytes += orphan.size;
+        // Drop the oldest orphans if they take too much memory. Peers will send them again if we ask for the chain.
+        Iterator<OrphanBlock> oldest = orphanBlocks.values().iterator();
+        while (orphanBytes > maxOrphanBytes && oldest.hasNext()) {
+            OrphanBlock evicted = oldest.next();
+            oldest.remove();
+            unindexOrphan(evicted);
+            evictedOrphans++;
+            log.info("Dropped orphan block {} as orphans take {} bytes", evicted.block.getHash(), orphanBytes);
+        }
+    }
+
+    // Removes an orphan from the indexes and from the byte count. The caller removes it from orphanBlocks.
+    private void unindexOrphan(OrphanBlock orphan) {
+        orphanHashes.remove(orphan.block.getHash());
+        orphanBytes -= orphan.size;
+        Sha256Hash prevHash = orphan.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = orphansByPrev.get(prevHash);
+        if (siblings != null && siblings.remove(orphan) && siblings.isEmpty())
+            orphansByPrev.remove(prevHash);
+    }
+
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphans that were waiting for the block with the given hash, then the ones waiting for those, and
+     * so on. Only the children of connected blocks are looked at, so this doesn't depend on the number of orphans.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connectedHash) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
-                    continue;
-                }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+        if (orphansByPrev.isEmpty())
+            return;
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> work = new LinkedList<>();
+        work.add(connectedHash);
+        while (!work.isEmpty()) {
+            Sha256Hash prevHash = work.poll();
+            List<OrphanBlock> children = orphansByPrev.get(prevHash);
+            if (children == null || getStoredBlockInCurrentScope(prevHash) == null)
+                continue;
+            for (OrphanBlock orphanBlock : new ArrayList<>(children)) {
+                orphanBlocks.remove(orphanBlock.block.getHash());
+                unindexOrphan(orphanBlock);
+                // False here ensures we don't recurse infinitely downwards when connecting huge chains. The orphan
+                // already passed the context free checks when it arrived.
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn, true);
+                long latency = System.nanoTime() - orphanBlock.receivedAt;
+                totalOrphanLatencyNanos += latency;
+                maxOrphanLatencyNanos = Math.max(maxOrphanLatencyNanos, latency);
+                connectedOrphans++;
+                blocksConnected++;
+                work.add(orphanBlock.block.getHash());
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    /**
+     * Sets how much memory, in bytes of serialized blocks, the orphan blocks may take. Once they take more, the oldest
+     * ones are dropped. The default is {@link #DEFAULT_MAX_ORPHAN_BYTES}.
+     */
+    public void setMaxOrphanBytes(long maxOrphanBytes) {
+        checkArgument(maxOrphanBytes >= 0, "maxOrphanBytes must not be negative");
+        lock.lock();
+        try {
+            this.maxOrphanBytes = maxOrphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks held. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how much memory the orphan blocks take, in bytes of serialized blocks. */
+    public long getOrphanBytes() {
+        lock.lock();
+        try {
+            return orphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks that were connected once their parent arrived. */
+    public long getConnectedOrphans() {
+        lock.lock();
+        try {
+            return connectedOrphans;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks that were dropped because the orphans took too much memory. */
+    public long getEvictedOrphans() {
+        lock.lock();
+        try {
+            return evictedOrphans;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the average time orphan blocks waited for their parent before being connected, in the given unit. */
+    public long getAverageOrphanConnectLatency(TimeUnit unit) {
+        lock.lock();
+        try {
+            return connectedOrphans == 0 ? 0 :
+                    unit.convert(totalOrphanLatencyNanos / connectedOrphans, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the longest time an orphan block waited for its parent before being connected, in the given unit. */
+    public long getMaxOrphanConnectLatency(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(maxOrphanLatencyNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
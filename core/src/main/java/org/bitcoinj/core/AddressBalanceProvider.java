@@ -0,0 +1,65 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AddressBalanceProvider returns the balances of many addresses at once, which is much cheaper than adding up the
+ * outputs a {@link UTXOProvider} returns for them. It is optional: the full pruned block stores of bitcoinj implement
+ * it, and {@link Helper#getBalances(UTXOProvider, List)} falls back to the outputs for providers that don't.
+ */
+public interface AddressBalanceProvider {
+    /**
+     * Get the total value of the unspent outputs of each of the given addresses.
+     * @param addresses List of address.
+     * @return The balance of each address, {@link Coin#ZERO} for addresses without unspent outputs.
+     * @throws UTXOProviderException If there is an error.
+     */
+    Map<Address, Coin> getBalances(List<Address> addresses) throws UTXOProviderException;
+
+    class Helper {
+        private Helper() {
+        }
+
+        /**
+         * Get the balances of the given addresses from the given provider, see
+         * {@link AddressBalanceProvider#getBalances(List)}. If the provider isn't an AddressBalanceProvider, they are
+         * added up from its open outputs.
+         */
+        public static Map<Address, Coin> getBalances(UTXOProvider provider, List<Address> addresses)
+                throws UTXOProviderException {
+            if (provider instanceof AddressBalanceProvider)
+                return ((AddressBalanceProvider) provider).getBalances(addresses);
+            Map<Address, Coin> balances = new HashMap<>(addresses.size());
+            Map<String, Address> byString = new HashMap<>(addresses.size());
+            for (Address address : addresses) {
+                balances.put(address, Coin.ZERO);
+                byString.put(address.toString(), address);
+            }
+            for (UTXO output : provider.getOpenTransactionOutputs(new ArrayList<>(byString.values()))) {
+                Address address = byString.get(output.getAddress());
+                if (address != null)
+                    balances.put(address, balances.get(address).add(output.getValue()));
+            }
+            return balances;
+        }
+    }
+}
@@ -223,6 +223,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
             return new MemoryPoolMessage();
+        } else if (command.equals("getaddr")) {
+            return new GetAddrMessage(params);
         } else if (command.equals("reject")) {
             return new RejectMessage(params, payloadBytes);
         } else if (command.equals("utxos")) {
@@ -644,19 +644,11 @@ public class Block extends Message {
 
     /**
      * Verify the transactions on a block.
-     *
-     * @param height block height, if known, or -1 otherwise. If provided, used
-     * to validate the coinbase input script of v2 and above blocks.
-     * @throws VerificationException if there was an error verifying the block.
      */
-    private void checkTransactions(final int height, final EnumSet<VerifyFlag> flags)
-            throws VerificationException {
+    private void checkTransactions() throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
             throw new VerificationException("First tx is not coinbase");
-        if (flags.contains(Block.VerifyFlag.HEIGHT_IN_COINBASE) && height >= BLOCK_HEIGHT_GENESIS) {
-            transactions.get(0).checkCoinBaseHeight(height);
-        }
         // The rest must not be.
         for (int i = 1; i < transactions.size(); i++) {
             if (transactions.get(i).isCoinBase())
@@ -664,6 +656,20 @@ public class Block extends Message {
         }
     }
 
+    /**
+     * Verify the height in the coinbase transaction, the only check of the transactions that depends on the chain.
+     * Expects {@link #verifyTransactionsContextFree()} to have passed.
+     *
+     * @param height block height, if known, or -1 otherwise. If provided, used
+     * to validate the coinbase input script of v2 and above blocks.
+     * @throws VerificationException if there was an error verifying the block.
+     */
+    void checkCoinBaseHeight(final int height, final EnumSet<VerifyFlag> flags) throws VerificationException {
+        if (flags.contains(Block.VerifyFlag.HEIGHT_IN_COINBASE) && height >= BLOCK_HEIGHT_GENESIS) {
+            transactions.get(0).checkCoinBaseHeight(height);
+        }
+    }
+
     /**
      * Checks the block data to ensure it follows the rules laid out in the network parameters. Specifically,
      * throws an exception if the proof of work is invalid, or if the timestamp is too far from what it should be.
@@ -692,6 +698,18 @@ public class Block extends Message {
      * @throws VerificationException if there was an error verifying the block.
      */
     public void verifyTransactions(final int height, final EnumSet<VerifyFlag> flags) throws VerificationException {
+        verifyTransactionsContextFree();
+        checkCoinBaseHeight(height, flags);
+    }
+
+    /**
+     * Checks the block transactions like {@link #verifyTransactions(int, EnumSet)} does, except for the height in the
+     * coinbase. None of these checks depend on the chain, so they can run before the block is connected and without
+     * holding the block chain lock.
+     *
+     * @throws VerificationException if there was an error verifying the block.
+     */
+    public void verifyTransactionsContextFree() throws VerificationException {
         // Now we need to check that the body of the block actually matches the headers. The network won't generate
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
@@ -700,12 +718,12 @@ public class Block extends Message {
             throw new VerificationException("Block had no transactions");
         if (this.getOptimalEncodingMessageSize() > MAX_BLOCK_SIZE)
             throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
-        checkTransactions(height, flags);
+        checkTransactions();
         checkMerkleRoot();
         checkSigOps();
         for (Transaction transaction : transactions)
             transaction.verify();
-        }
+    }
 
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
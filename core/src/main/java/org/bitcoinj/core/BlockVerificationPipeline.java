@@ -0,0 +1,196 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Adds blocks to a block chain in two stages. The first stage runs the checks that don't depend on the chain, like
+ * proof of work, merkle root and sigops, for several blocks at once on a pool of threads. The second stage connects
+ * the blocks to the chain, which needs the block chain lock, on a single thread and in the order the blocks were
+ * given. Adding blocks to the chain directly via {@link AbstractBlockChain#add(Block)} also runs the first stage
+ * outside the lock, but only on the calling thread.</p>
+ *
+ * <p>At most a given number of blocks are in flight at any time. Once that many have been added and haven't been
+ * connected yet, adding another blocks the caller, so that a fast source of blocks can't exhaust memory.</p>
+ *
+ * <p>The pipeline keeps counters of the blocks that went through it and of the time they spent in each stage: being
+ * verified, waiting for their turn to be connected, and being connected. These show whether it is the verification
+ * or the chain that holds up the download.</p>
+ */
+public class BlockVerificationPipeline {
+    private final AbstractBlockChain chain;
+    private final ListeningExecutorService verifiers;
+    private final ExecutorService connector;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    private final AtomicLong verifiedBlocks = new AtomicLong();
+    private final AtomicLong rejectedBlocks = new AtomicLong();
+    private final AtomicLong connectedBlocks = new AtomicLong();
+    private final AtomicLong totalVerifyNanos = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalConnectNanos = new AtomicLong();
+
+    /**
+     * Creates a pipeline for the given chain, verifying blocks on the given number of threads and keeping at most
+     * the given number of blocks in flight.
+     */
+    public BlockVerificationPipeline(AbstractBlockChain chain, int numThreads, int maxInFlight) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.chain = chain;
+        this.verifiers = MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(numThreads, new ContextPropagatingThreadFactory("block verifier")));
+        this.connector = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("block connector"));
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Adds a block to the pipeline, waiting for room if the maximum number of blocks are in flight. The returned future
+     * completes like {@link AbstractBlockChain#add(Block)} would return: true if the block was connected, false if it
+     * is an orphan for now, or with an exception if the block is invalid.
+     */
+    public ListenableFuture<Boolean> add(Block block) {
+        return submit(block, null);
+    }
+
+    /** Like {@link #add(Block)}, for a block filtered by a Bloom filter. */
+    public ListenableFuture<Boolean> add(FilteredBlock block) {
+        return submit(block.getBlockHeader(), block);
+    }
+
+    private ListenableFuture<Boolean> submit(final Block block, @Nullable final FilteredBlock filteredBlock) {
+        inFlight.acquireUninterruptibly();
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        final ListenableFuture<Long> verified = verifiers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws VerificationException {
+                long start = System.nanoTime();
+                chain.verifyContextFree(block);
+                long end = System.nanoTime();
+                totalVerifyNanos.addAndGet(end - start);
+                verifiedBlocks.incrementAndGet();
+                return end;
+            }
+        });
+        connector.execute(new Runnable() {
+            @Override
+            public void run() {
+                Boolean connected = null;
+                Exception failure = null;
+                try {
+                    long verifiedAt = Uninterruptibles.getUninterruptibly(verified);
+                    long start = System.nanoTime();
+                    totalWaitNanos.addAndGet(start - verifiedAt);
+                    connected = filteredBlock != null ? chain.add(filteredBlock, true) : chain.add(block, true);
+                    totalConnectNanos.addAndGet(System.nanoTime() - start);
+                    connectedBlocks.incrementAndGet();
+                } catch (ExecutionException e) {
+                    rejectedBlocks.incrementAndGet();
+                    failure = new VerificationException("Could not verify block " + block.getHashAsString(),
+                            e.getCause());
+                } catch (Exception e) {
+                    rejectedBlocks.incrementAndGet();
+                    failure = e;
+                } finally {
+                    // Make room before completing the future, so that whoever waits for it sees the block as done.
+                    inFlight.release();
+                }
+                if (failure != null)
+                    result.setException(failure);
+                else
+                    result.set(connected);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops the threads of the pipeline once the blocks already added have been connected. No more blocks can be added
+     * afterwards.
+     */
+    public void shutdown() {
+        verifiers.shutdown();
+        connector.shutdown();
+    }
+
+    /** Returns the number of blocks that have been added but not connected or rejected yet. */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /** Returns the number of blocks that passed the context free checks. */
+    public long getVerifiedBlocks() {
+        return verifiedBlocks.get();
+    }
+
+    /** Returns the number of blocks that were handed to the chain, whether they connected or turned out orphans. */
+    public long getConnectedBlocks() {
+        return connectedBlocks.get();
+    }
+
+    /** Returns the number of blocks that failed verification, in either stage. */
+    public long getRejectedBlocks() {
+        return rejectedBlocks.get();
+    }
+
+    /** Returns the average time the context free checks of a block took, in the given unit. */
+    public long getAverageVerifyTime(TimeUnit unit) {
+        return average(totalVerifyNanos, verifiedBlocks, unit);
+    }
+
+    /** Returns the average time a verified block waited for its turn to be connected, in the given unit. */
+    public long getAverageWaitTime(TimeUnit unit) {
+        return average(totalWaitNanos, connectedBlocks, unit);
+    }
+
+    /** Returns the average time connecting a block to the chain took, in the given unit. */
+    public long getAverageConnectTime(TimeUnit unit) {
+        return average(totalConnectNanos, connectedBlocks, unit);
+    }
+
+    private static long average(AtomicLong totalNanos, AtomicLong count, TimeUnit unit) {
+        long n = count.get();
+        return n == 0 ? 0 : unit.convert(totalNanos.get() / n, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BlockVerificationPipeline: %d in flight, %d verified, %d connected, %d rejected, " +
+                "average verify %d us, wait %d us, connect %d us", getInFlight(), getVerifiedBlocks(),
+                getConnectedBlocks(), getRejectedBlocks(), getAverageVerifyTime(TimeUnit.MICROSECONDS),
+                getAverageWaitTime(TimeUnit.MICROSECONDS), getAverageConnectTime(TimeUnit.MICROSECONDS));
+    }
+}
@@ -58,8 +58,19 @@ public class Context {
      * @param params The network parameters that will be associated with this context.
      */
     public Context(NetworkParameters params) {
+        this(params, new TxConfidenceTable());
+    }
+
+    /**
+     * Creates a new context object that uses the given confidence table, for example one created with
+     * {@link TxConfidenceTable#MEMPOOL_SIZE} when watching all transactions on the network.
+     *
+     * @param params The network parameters that will be associated with this context.
+     * @param confidenceTable The table that will track the confidence of announced transactions.
+     */
+    public Context(NetworkParameters params, TxConfidenceTable confidenceTable) {
         log.info("Creating bitcoinj {} context.", VersionMessage.BITCOINJ_VERSION);
-        this.confidenceTable = new TxConfidenceTable();
+        this.confidenceTable = confidenceTable;
         this.params = params;
         this.eventHorizon = DEFAULT_EVENT_HORIZON;
         this.ensureMinRequiredFee = true;
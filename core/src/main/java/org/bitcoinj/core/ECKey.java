@@ -25,9 +25,6 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.UnsignedBytes;
-import org.bitcoin.NativeSecp256k1;
-import org.bitcoin.NativeSecp256k1Util;
-import org.bitcoin.Secp256k1Context;
 import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
@@ -36,16 +33,11 @@ import org.spongycastle.asn1.*;
 import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.asn1.x9.X9IntegerConverter;
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
-import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.ec.CustomNamedCurves;
 import org.spongycastle.crypto.generators.ECKeyPairGenerator;
 import org.spongycastle.crypto.params.*;
-import org.spongycastle.crypto.signers.ECDSASigner;
-import org.spongycastle.crypto.signers.HMacDSAKCalculator;
 import org.spongycastle.math.ec.ECAlgorithms;
 import org.spongycastle.math.ec.ECPoint;
-import org.spongycastle.math.ec.FixedPointCombMultiplier;
-import org.spongycastle.math.ec.FixedPointUtil;
 import org.spongycastle.math.ec.custom.sec.SecP256K1Curve;
 import org.spongycastle.util.encoders.Base64;
 
@@ -56,8 +48,10 @@ import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -136,10 +130,6 @@ public class ECKey implements EncryptableItem {
         if (Utils.isAndroidRuntime())
             new LinuxSecureRandom();
 
-        // Tell Bouncy Castle to precompute data that's needed during secp256k1 calculations. Increasing the width
-        // number makes calculations faster, but at a cost of extra memory usage and with decreasing returns. 12 was
-        // picked after consulting with the BC team.
-        FixedPointUtil.precompute(CURVE_PARAMS.getG(), 12);
         CURVE = new ECDomainParameters(CURVE_PARAMS.getCurve(), CURVE_PARAMS.getG(), CURVE_PARAMS.getN(),
                 CURVE_PARAMS.getH());
         HALF_CURVE_ORDER = CURVE_PARAMS.getN().shiftRight(1);
@@ -459,14 +449,7 @@ public class ECKey implements EncryptableItem {
      * new BigInteger(1, bytes);</tt>
      */
     public static ECPoint publicPointFromPrivate(BigInteger privKey) {
-        /*
-         * TODO: FixedPointCombMultiplier currently doesn't support scalars longer than the group order,
-         * but that could change in future versions.
-         */
-        if (privKey.bitLength() > CURVE.getN().bitLength()) {
-            privKey = privKey.mod(CURVE.getN());
-        }
-        return new FixedPointCombMultiplier().multiply(CURVE.getG(), privKey);
+        return Secp256k1Provider.get().publicPointFromPrivate(privKey);
     }
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
@@ -667,26 +650,53 @@ public class ECKey implements EncryptableItem {
     }
 
     protected ECDSASignature doSign(Sha256Hash input, BigInteger privateKeyForSigning) {
-        if (Secp256k1Context.isEnabled()) {
-            try {
-                byte[] signature = NativeSecp256k1.sign(
-                        input.getBytes(),
-                        Utils.bigIntegerToBytes(privateKeyForSigning, 32)
-                );
-                return ECDSASignature.decodeFromDER(signature);
-            } catch (NativeSecp256k1Util.AssertFailException e) {
-                log.error("Caught AssertFailException inside secp256k1", e);
-                throw new RuntimeException(e);
-            }
-        }
         if (FAKE_SIGNATURES)
             return TransactionSignature.dummy();
         checkNotNull(privateKeyForSigning);
-        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(privateKeyForSigning, CURVE);
-        signer.init(true, privKey);
-        BigInteger[] components = signer.generateSignature(input.getBytes());
-        return new ECDSASignature(components[0], components[1]).toCanonicalised();
+        return Secp256k1Provider.get().sign(input, privateKeyForSigning);
+    }
+
+    /**
+     * Returns the private key that {@link #sign(Sha256Hash)} would sign with, for signing many hashes at once via
+     * {@link #sign(List, List)}.
+     *
+     * @throws KeyIsEncryptedException if this key is encrypted, decrypt it first.
+     * @throws ECKey.MissingPrivateKeyException if this key cannot sign because it's pubkey only.
+     */
+    public BigInteger getPrivKeyForSigning() {
+        if (getKeyCrypter() != null)
+            throw new KeyIsEncryptedException();
+        if (priv == null)
+            throw new MissingPrivateKeyException();
+        return priv;
+    }
+
+    /**
+     * Signs each of the given hashes with the private key at the same position in the other list, as returned by
+     * {@link #getPrivKeyForSigning()}. This gives the same signatures as signing them one by one, but lets the
+     * {@link Secp256k1Provider} share work between them.
+     */
+    public static List<ECDSASignature> sign(List<Sha256Hash> hashes, List<BigInteger> privKeys) {
+        if (FAKE_SIGNATURES) {
+            List<ECDSASignature> signatures = new ArrayList<>(hashes.size());
+            for (int i = 0; i < hashes.size(); i++)
+                signatures.add(TransactionSignature.dummy());
+            return signatures;
+        }
+        return Secp256k1Provider.get().sign(hashes, privKeys);
+    }
+
+    /**
+     * Verifies each of the given signatures, of the hash and against the public key at the same position in the other
+     * lists. The result has an element for every signature, true if it was valid.
+     */
+    public static boolean[] verify(List<byte[]> hashes, List<ECDSASignature> signatures, List<byte[]> pubs) {
+        if (FAKE_SIGNATURES) {
+            boolean[] results = new boolean[signatures.size()];
+            Arrays.fill(results, true);
+            return results;
+        }
+        return Secp256k1Provider.get().verify(hashes, signatures, pubs);
     }
 
     /**
@@ -702,27 +712,7 @@ public class ECKey implements EncryptableItem {
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
         if (FAKE_SIGNATURES)
             return true;
-
-        if (Secp256k1Context.isEnabled()) {
-            try {
-                return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
-            } catch (NativeSecp256k1Util.AssertFailException e) {
-                log.error("Caught AssertFailException inside secp256k1", e);
-                return false;
-            }
-        }
-
-        ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
-        signer.init(false, params);
-        try {
-            return signer.verifySignature(data, signature.r, signature.s);
-        } catch (NullPointerException e) {
-            // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
-            // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
-            log.error("Caught NPE inside bouncy castle", e);
-            return false;
-        }
+        return Secp256k1Provider.get().verify(data, signature, pub);
     }
 
     /**
@@ -733,15 +723,9 @@ public class ECKey implements EncryptableItem {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
-        if (Secp256k1Context.isEnabled()) {
-            try {
-                return NativeSecp256k1.verify(data, signature, pub);
-            } catch (NativeSecp256k1Util.AssertFailException e) {
-                log.error("Caught AssertFailException inside secp256k1", e);
-                return false;
-            }
-        }
-        return verify(data, ECDSASignature.decodeFromDER(signature), pub);
+        if (FAKE_SIGNATURES)
+            return true;
+        return Secp256k1Provider.get().verify(data, signature, pub);
     }
 
     /**
@@ -758,7 +742,9 @@ public class ECKey implements EncryptableItem {
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        if (FAKE_SIGNATURES)
+            return true;
+        return Secp256k1Provider.get().verify(sigHash.getBytes(), signature, pub);
     }
 
     /**
@@ -777,7 +763,7 @@ public class ECKey implements EncryptableItem {
      * @throws java.security.SignatureException if the signature does not match.
      */
     public void verifyOrThrow(Sha256Hash sigHash, ECDSASignature signature) throws SignatureException {
-        if (!ECKey.verify(sigHash.getBytes(), signature, getPubKey()))
+        if (!verify(sigHash, signature))
             throw new SignatureException();
     }
 
@@ -0,0 +1,402 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Estimates the fee rate a transaction needs to confirm within a number of blocks, from how long the transactions
+ * seen on the network took to confirm. It works like the estimator of Bitcoin Core: transactions are sorted into
+ * buckets by fee rate, and for each bucket and target the estimator counts how many confirmed within that many blocks.
+ * The counts decay by {@link #DECAY} every block, so that old blocks matter less. The estimate for a target is the
+ * lowest fee rate at which, counting all buckets from the top down to it, at least {@link #SUCCESS_THRESHOLD} of the
+ * transactions confirmed in time.</p>
+ *
+ * <p>To feed it, add it to a {@link PeerGroup} as an {@link OnTransactionBroadcastListener} and to a block chain as a
+ * {@link TransactionReceivedInBlockListener} and a {@link NewBestBlockListener}. It can only use transactions whose
+ * fee is known: those whose inputs are connected, and those the {@link TxMemoryPool} given to the constructor knows the
+ * fee of. The pool must be added to the peer group before the estimator. With Bloom filtering, only the transactions
+ * matching the filter are seen, so a wallet needs some time before it can estimate.</p>
+ *
+ * <p>Memory is bounded: the estimator tracks at most {@link #MAX_TRACKED} unconfirmed transactions, and a transaction
+ * that doesn't confirm within {@link #MAX_TARGET} blocks counts as failed and is forgotten. Estimates are computed for
+ * every target once per block, so {@link #estimateFeePerKb(int)} takes constant time. The counts, but not the
+ * unconfirmed transactions, can be saved with {@link #saveToFile(File)} and loaded with
+ * {@link #loadFromFile(File, TxMemoryPool)}, or saved after every block with {@link #autosaveTo(File)}. Use
+ * {@link org.bitcoinj.wallet.SendRequest#useFeeEstimate(FeeEstimator, int)} to pay the estimated fee.</p>
+ */
+public class FeeEstimator implements OnTransactionBroadcastListener, TransactionReceivedInBlockListener,
+        NewBestBlockListener {
+    private static final Logger log = LoggerFactory.getLogger(FeeEstimator.class);
+
+    /** The most blocks a transaction is tracked for, and the longest target the estimator can answer for. */
+    public static final int MAX_TARGET = 48;
+    /** How much the counts decay every block. Counts halve after about 350 blocks. */
+    public static final double DECAY = 0.998;
+    /** The fraction of transactions that must have confirmed within the target for a fee rate to pass. */
+    public static final double SUCCESS_THRESHOLD = 0.85;
+    /** The most unconfirmed transactions tracked at a time. */
+    public static final int MAX_TRACKED = 100000;
+
+    // Transactions paying less than the lowest bucket are ignored, those paying more than the highest fall into it.
+    private static final long MIN_BUCKET_FEE_RATE = 1000;
+    private static final long MAX_BUCKET_FEE_RATE = 10000000;
+    private static final double BUCKET_SPACING = 1.1;
+    // How many transactions per block a range of buckets needs on average, before decay, to estimate from.
+    private static final double SUFFICIENT_TRANSACTIONS_PER_BLOCK = 0.1;
+    private static final int FILE_MAGIC = 0x66656573;
+    private static final int FILE_VERSION = 1;
+
+    private static final long[] BUCKET_FEE_RATES;
+
+    static {
+        List<Long> rates = new ArrayList<>();
+        for (double rate = MIN_BUCKET_FEE_RATE; rate < MAX_BUCKET_FEE_RATE; rate *= BUCKET_SPACING)
+            rates.add((long) rate);
+        BUCKET_FEE_RATES = new long[rates.size()];
+        for (int i = 0; i < BUCKET_FEE_RATES.length; i++)
+            BUCKET_FEE_RATES[i] = rates.get(i);
+    }
+
+    @Nullable private final TxMemoryPool pool;
+    private final ReentrantLock lock = Threading.lock("feeestimator");
+
+    // The decayed number of transactions per bucket that confirmed or failed to.
+    @GuardedBy("lock") private final double[] totals = new double[BUCKET_FEE_RATES.length];
+    // The decayed number of transactions per bucket that confirmed within target + 1 blocks, by target - 1.
+    @GuardedBy("lock") private final double[][] confirmed = new double[MAX_TARGET][BUCKET_FEE_RATES.length];
+    // The number of unconfirmed transactions per bucket, by the height they were first seen at modulo MAX_TARGET.
+    @GuardedBy("lock") private final int[][] unconfirmed = new int[MAX_TARGET][BUCKET_FEE_RATES.length];
+    // Unconfirmed transactions, in the order they were seen.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Tracked> tracked = new LinkedHashMap<>();
+    // Transactions of the blocks since the last new best block.
+    @GuardedBy("lock") private final List<Sha256Hash> confirmedSinceLastBlock = new ArrayList<>();
+    @GuardedBy("lock") private int height = -1;
+    @GuardedBy("lock") @Nullable private File autosaveFile;
+
+    // Fee rates by target - 1, -1 where there is no estimate. Replaced, never changed, so reads take no lock.
+    private volatile long[] estimates = newEmptyEstimates();
+
+    private static class Tracked {
+        final int height;
+        final int bucket;
+
+        Tracked(int height, int bucket) {
+            this.height = height;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Creates an estimator with no data. If a pool is given, the fees of transactions broadcast to us are taken from
+     * it.
+     */
+    public FeeEstimator(@Nullable TxMemoryPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        Coin fee = tx.getFee();
+        if (fee == null && pool != null)
+            fee = pool.getFee(tx.getHash());
+        if (fee != null)
+            addTransaction(tx.getHash(), fee, tx.getMessageSize());
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, AbstractBlockChain.NewBlockType blockType,
+                                 int relativityOffset) throws VerificationException {
+        notifyTransactionIsInBlock(tx.getHash(), block, blockType, relativityOffset);
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType,
+                                              int relativityOffset) throws VerificationException {
+        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN) {
+            lock.lock();
+            try {
+                if (tracked.containsKey(txHash))
+                    confirmedSinceLastBlock.add(txHash);
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Whether we track it says nothing about the relevance of the transaction to wallets.
+        return false;
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        newBlock(block.getHeight());
+    }
+
+    /**
+     * Starts tracking an unconfirmed transaction paying the given fee. Nothing is tracked before the first block has
+     * been seen, and transactions paying less than the lowest bucket are ignored.
+     */
+    public void addTransaction(Sha256Hash hash, Coin fee, int size) {
+        checkArgument(size > 0, "size must be positive");
+        long feeRate = fee.value * 1000 / size;
+        if (feeRate < MIN_BUCKET_FEE_RATE)
+            return;
+        lock.lock();
+        try {
+            if (height < 0 || tracked.containsKey(hash))
+                return;
+            if (tracked.size() >= MAX_TRACKED) {
+                log.debug("Tracking {} transactions, ignoring {}", MAX_TRACKED, hash);
+                return;
+            }
+            int bucket = bucketOf(feeRate);
+            tracked.put(hash, new Tracked(height, bucket));
+            unconfirmed[height % MAX_TARGET][bucket]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes a new block of the best chain: counts the transactions it confirmed, counts those that waited too long
+     * as failed, and updates the estimates. Blocks that are not higher than the last one are ignored.
+     */
+    public void newBlock(int newHeight) {
+        lock.lock();
+        try {
+            if (newHeight <= height)
+                return;
+            for (double[] row : confirmed)
+                for (int b = 0; b < row.length; b++)
+                    row[b] *= DECAY;
+            for (int b = 0; b < totals.length; b++)
+                totals[b] *= DECAY;
+            for (Sha256Hash hash : confirmedSinceLastBlock) {
+                Tracked tx = tracked.remove(hash);
+                if (tx == null)
+                    continue;
+                int blocks = Math.max(1, newHeight - tx.height);
+                for (int target = blocks; target <= MAX_TARGET; target++)
+                    confirmed[target - 1][tx.bucket]++;
+                totals[tx.bucket]++;
+                unconfirmed[tx.height % MAX_TARGET][tx.bucket]--;
+            }
+            confirmedSinceLastBlock.clear();
+            boolean wasSynced = height >= 0;
+            height = newHeight;
+            Iterator<Tracked> iterator = tracked.values().iterator();
+            while (iterator.hasNext()) {
+                Tracked tx = iterator.next();
+                if (tx.height > newHeight - MAX_TARGET)
+                    break;
+                totals[tx.bucket]++;
+                unconfirmed[tx.height % MAX_TARGET][tx.bucket]--;
+                iterator.remove();
+            }
+            if (wasSynced)
+                updateEstimates();
+            if (autosaveFile != null) {
+                try {
+                    saveToFile(autosaveFile);
+                } catch (IOException e) {
+                    log.error("Failed to save fee estimates to " + autosaveFile, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee per 1000 bytes a transaction needs to confirm within the given number of blocks, or null if the
+     * estimator hasn't seen enough transactions yet. Where there are not enough transactions to tell for the target,
+     * the estimate for the closest shorter target is returned.
+     *
+     * @param targetBlocks between 1 and {@link #MAX_TARGET}
+     */
+    @Nullable
+    public Coin estimateFeePerKb(int targetBlocks) {
+        checkArgument(targetBlocks >= 1 && targetBlocks <= MAX_TARGET, "targetBlocks out of range: %s", targetBlocks);
+        long estimate = estimates[targetBlocks - 1];
+        return estimate >= 0 ? Coin.valueOf(estimate) : null;
+    }
+
+    /** Returns the number of unconfirmed transactions being tracked. */
+    public int getTrackedCount() {
+        lock.lock();
+        try {
+            return tracked.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the height of the last block seen, or -1 if none was. */
+    public int getHeight() {
+        lock.lock();
+        try {
+            return height;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Saves the estimates to the given file after every block from now on, or stops doing so if null. */
+    public void autosaveTo(@Nullable File file) {
+        lock.lock();
+        try {
+            autosaveFile = file;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the counts the estimates are computed from, first to a temporary file in the same directory and then
+     * renaming it. Unconfirmed transactions are not saved.
+     */
+    public void saveToFile(File file) throws IOException {
+        lock.lock();
+        try {
+            Utils.replaceFile(file, "fees", new Utils.FileWriter() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(FILE_VERSION);
+                    out.writeInt(MAX_TARGET);
+                    out.writeInt(BUCKET_FEE_RATES.length);
+                    out.writeInt(height);
+                    for (double total : totals)
+                        out.writeDouble(total);
+                    for (double[] row : confirmed)
+                        for (double count : row)
+                            out.writeDouble(count);
+                    out.flush();
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Loads an estimator saved with {@link #saveToFile(File)}. Until the next block, it estimates from the saved
+     * counts.
+     *
+     * @throws IOException if the file can't be read or was not saved by an estimator with the same buckets and targets
+     */
+    public static FeeEstimator loadFromFile(File file, @Nullable TxMemoryPool pool) throws IOException {
+        FeeEstimator estimator = new FeeEstimator(pool);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a fee estimates file");
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown version " + version + " of " + file);
+            if (in.readInt() != MAX_TARGET || in.readInt() != BUCKET_FEE_RATES.length)
+                throw new IOException(file + " has different targets or buckets");
+            estimator.lock.lock();
+            try {
+                estimator.height = in.readInt();
+                for (int b = 0; b < estimator.totals.length; b++)
+                    estimator.totals[b] = in.readDouble();
+                for (double[] row : estimator.confirmed)
+                    for (int b = 0; b < row.length; b++)
+                        row[b] = in.readDouble();
+                estimator.updateEstimates();
+            } finally {
+                estimator.lock.unlock();
+            }
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated", e);
+        } finally {
+            in.close();
+        }
+        return estimator;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "FeeEstimator at height " + height + ", tracking " + tracked.size() + " transactions, estimates "
+                    + Arrays.toString(estimates);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For each target, walks the buckets from the highest fee rate down, gathering them into ranges of enough
+    // transactions. The estimate is the lowest fee rate of the last range that passes before one fails.
+    @GuardedBy("lock")
+    private void updateEstimates() {
+        double sufficient = SUFFICIENT_TRANSACTIONS_PER_BLOCK / (1 - DECAY);
+        long[] newEstimates = newEmptyEstimates();
+        for (int target = 1; target <= MAX_TARGET; target++) {
+            double[] confirmedWithin = confirmed[target - 1];
+            double rangeConfirmed = 0, rangeTotal = 0;
+            int passing = -1;
+            for (int b = BUCKET_FEE_RATES.length - 1; b >= 0; b--) {
+                rangeConfirmed += confirmedWithin[b];
+                rangeTotal += totals[b];
+                // Transactions still waiting after the target have already failed it.
+                for (int age = target; age < MAX_TARGET; age++)
+                    if (height - age >= 0)
+                        rangeTotal += unconfirmed[(height - age) % MAX_TARGET][b];
+                if (rangeTotal < sufficient)
+                    continue;
+                if (rangeConfirmed / rangeTotal < SUCCESS_THRESHOLD)
+                    break;
+                passing = b;
+                rangeConfirmed = rangeTotal = 0;
+            }
+            long estimate = passing >= 0 ? BUCKET_FEE_RATES[passing] : -1;
+            // A longer target never needs more, and can do with what a shorter one needs.
+            long shorter = target > 1 ? newEstimates[target - 2] : -1;
+            if (shorter >= 0 && (estimate < 0 || estimate > shorter))
+                estimate = shorter;
+            newEstimates[target - 1] = estimate;
+        }
+        estimates = newEstimates;
+    }
+
+    private static int bucketOf(long feeRate) {
+        int index = Arrays.binarySearch(BUCKET_FEE_RATES, feeRate);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static long[] newEmptyEstimates() {
+        long[] estimates = new long[MAX_TARGET];
+        Arrays.fill(estimates, -1);
+        return estimates;
+    }
+}
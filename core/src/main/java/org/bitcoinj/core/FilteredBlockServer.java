@@ -0,0 +1,267 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.GetDataEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Answers <tt>merkleblock</tt> requests from remote SPV peers, out of a bounded cache of recently seen full blocks.
+ * For each cached block the transaction hashes and all levels of the merkle tree are calculated just once, so that
+ * serving a filtered block to a peer only costs the evaluation of that peers {@link BloomFilter} plus the (hash free)
+ * assembly of a {@link PartialMerkleTree}.</p>
+ *
+ * <p>The filters loaded by remote peers are tracked per peer. Filter evaluation happens on the network thread of the
+ * requesting peer and outside of any shared lock, so many peers can be served concurrently. A <tt>getdata</tt>
+ * message asking for several filtered blocks is answered in one batch: each <tt>merkleblock</tt> is followed by the
+ * matched transactions, and a single <tt>notfound</tt> lists the blocks that aren't in the cache.</p>
+ *
+ * <p>To use it, register it with a {@link PeerGroup} as a {@link GetDataEventListener},
+ * {@link PreMessageReceivedEventListener} and {@link PeerDisconnectedEventListener}, all using
+ * {@link Threading#SAME_THREAD}. Blocks can be fed in via {@link #addBlock(Block)}, or by also registering it as a
+ * {@link BlocksDownloadedEventListener} when downloading full blocks.</p>
+ */
+public class FilteredBlockServer implements GetDataEventListener, PreMessageReceivedEventListener,
+        PeerDisconnectedEventListener, BlocksDownloadedEventListener {
+    private static final Logger log = LoggerFactory.getLogger(FilteredBlockServer.class);
+
+    /** The number of blocks kept in the cache of a server created with the no-args constructor. */
+    public static final int DEFAULT_CACHE_SIZE = 144;
+
+    protected final ReentrantLock lock = Threading.lock("filteredblockserver");
+
+    private final LinkedHashMap<Sha256Hash, CachedBlock> blocks;
+    private final Map<Peer, BloomFilter> filters = new WeakHashMap<>();
+
+    /**
+     * A block whose transaction hashes and merkle tree levels have been precalculated. Instances are immutable once
+     * constructed and thus safe to share between threads.
+     */
+    public static class CachedBlock {
+        private final NetworkParameters params;
+        private final Block header;
+        private final List<Transaction> transactions;
+        private final List<Sha256Hash[]> merkleLevels;
+
+        public CachedBlock(Block block) {
+            List<Transaction> txns = block.getTransactions();
+            checkArgument(txns != null && !txns.isEmpty(), "Block has no transactions: %s", block.getHashAsString());
+            this.params = block.getParams();
+            this.header = block.cloneAsHeader();
+            this.header.getHash();
+            List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
+            for (Transaction tx : txns) {
+                txHashes.add(tx.getHash());
+                // Parse the scripts now, so the lazily parsed state is never written to by concurrent readers.
+                for (TransactionOutput output : tx.getOutputs())
+                    output.getScriptPubKey().getChunks();
+                if (!tx.isCoinBase())
+                    for (TransactionInput input : tx.getInputs())
+                        input.getScriptSig().getChunks();
+            }
+            this.transactions = Collections.unmodifiableList(new ArrayList<>(txns));
+            this.merkleLevels = Collections.unmodifiableList(PartialMerkleTree.buildMerkleLevels(txHashes));
+        }
+
+        /** Returns the hash of the block. */
+        public Sha256Hash getHash() {
+            return header.getHash();
+        }
+
+        /** Returns the transactions of the block. */
+        public List<Transaction> getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * Applies the given filter to this block, updating the filter as specified by its {@link BloomFilter.BloomUpdate}
+         * flag. Returns the filtered block, followed by the transactions that matched the filter, in the order they
+         * are sent on the wire.
+         */
+        public List<Message> applyAndUpdate(BloomFilter filter) {
+            List<Message> result = new ArrayList<>();
+            byte[] bits = new byte[(int) Math.ceil(transactions.size() / 8.0)];
+            result.add(null);
+            // Hold the filter lock across the whole block, so that updates done by earlier transactions are
+            // consistently seen by later ones.
+            synchronized (filter) {
+                for (int i = 0; i < transactions.size(); i++) {
+                    Transaction tx = transactions.get(i);
+                    if (filter.applyAndUpdate(tx)) {
+                        Utils.setBitLE(bits, i);
+                        result.add(tx);
+                    }
+                }
+            }
+            PartialMerkleTree pmt = PartialMerkleTree.buildFromLevels(params, bits, merkleLevels);
+            result.set(0, new FilteredBlock(params, header, pmt));
+            return result;
+        }
+    }
+
+    /** Creates a server that caches at most {@link #DEFAULT_CACHE_SIZE} blocks. */
+    public FilteredBlockServer() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a server that caches at most the given number of blocks. The least recently added or requested block is
+     * evicted first.
+     */
+    @SuppressWarnings("serial")
+    public FilteredBlockServer(final int cacheSize) {
+        checkArgument(cacheSize > 0);
+        blocks = new LinkedHashMap<Sha256Hash, CachedBlock>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, CachedBlock> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Adds a full block to the cache, precalculating its merkle tree. The expensive work is done before the lock is
+     * taken, so this may be called from any thread. Returns the cached block.
+     */
+    public CachedBlock addBlock(Block block) {
+        CachedBlock cached = new CachedBlock(block);
+        lock.lock();
+        try {
+            blocks.put(cached.getHash(), cached);
+        } finally {
+            lock.unlock();
+        }
+        return cached;
+    }
+
+    /** Returns the cached block with the given hash, or null if it isn't cached. */
+    @Nullable
+    public CachedBlock getBlock(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return blocks.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks currently in the cache. */
+    public int getCachedBlockCount() {
+        lock.lock();
+        try {
+            return blocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the filter that will be used for the given peer, as if the peer had sent a <tt>filterload</tt>. */
+    public void setFilter(Peer peer, BloomFilter filter) {
+        lock.lock();
+        try {
+            filters.put(checkNotNull(peer), checkNotNull(filter));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the filter loaded by the given peer, or null if the peer hasn't loaded one. */
+    @Nullable
+    public BloomFilter getFilter(Peer peer) {
+        lock.lock();
+        try {
+            return filters.get(peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers the filtered block items of the given getdata message using the given filter, ignoring other item types.
+     * For every block found, the resulting list contains the {@link FilteredBlock} followed by its matched
+     * transactions. If some blocks aren't in the cache, the list ends with a {@link NotFoundMessage} for them.
+     */
+    public List<Message> serve(BloomFilter filter, GetDataMessage getdata) {
+        List<Message> result = new ArrayList<>();
+        List<InventoryItem> notFound = new ArrayList<>();
+        for (InventoryItem item : getdata.getItems()) {
+            if (item.type != InventoryItem.Type.FilteredBlock)
+                continue;
+            CachedBlock block = getBlock(item.hash);
+            if (block == null)
+                notFound.add(item);
+            else
+                result.addAll(block.applyAndUpdate(filter));
+        }
+        if (!notFound.isEmpty())
+            result.add(new NotFoundMessage(getdata.getParams(), notFound));
+        return result;
+    }
+
+    @Nullable
+    @Override
+    public List<Message> getData(Peer peer, GetDataMessage m) {
+        BloomFilter filter = getFilter(peer);
+        if (filter == null)
+            return null; // Peers that didn't load a filter can't ask for filtered blocks.
+        List<Message> result = serve(filter, m);
+        return result.isEmpty() ? null : result;
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message m) {
+        if (m instanceof BloomFilter) {
+            log.debug("{}: Loaded Bloom filter", peer);
+            setFilter(peer, (BloomFilter) m);
+            return null;
+        }
+        return m;
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        lock.lock();
+        try {
+            filters.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+        if (block.getTransactions() != null && filteredBlock == null)
+            addBlock(block);
+    }
+}
@@ -144,6 +144,15 @@ public abstract class Message {
         recached = false;
     }
 
+    /**
+     * Drops the bytes this message was parsed from, if they were retained, without changing the message itself. Unlike
+     * {@link #unCache()} anything derived from the message, like its hash, stays valid.
+     */
+    protected void releasePayload() {
+        payload = null;
+        recached = false;
+    }
+
     protected void adjustLength(int newArraySize, int adjustment) {
         if (length == UNKNOWN_LENGTH)
             return;
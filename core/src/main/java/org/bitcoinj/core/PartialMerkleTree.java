@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static org.bitcoinj.core.Utils.*;
+import static com.google.common.base.Preconditions.checkArgument;
 import com.google.common.base.Objects;
 
 /**
@@ -85,18 +86,48 @@ public class PartialMerkleTree extends Message {
      * are calculated and a new PMT returned.
      */
     public static PartialMerkleTree buildFromLeaves(NetworkParameters params, byte[] includeBits, List<Sha256Hash> allLeafHashes) {
-        // Calculate height of the tree.
-        int height = 0;
-        while (getTreeWidth(allLeafHashes.size(), height) > 1)
-            height++;
+        return buildFromLevels(params, includeBits, buildMerkleLevels(allLeafHashes));
+    }
+
+    /**
+     * Calculates a PMT given the complete set of merkle tree levels as returned by {@link #buildMerkleLevels(List)}
+     * and which leaves need to be included. As no hashing is done here, this is the cheap way to build many PMTs for
+     * the same block, for instance when serving filtered blocks to a lot of peers.
+     */
+    public static PartialMerkleTree buildFromLevels(NetworkParameters params, byte[] includeBits, List<Sha256Hash[]> levels) {
+        Sha256Hash[] leaves = levels.get(0);
+        int height = levels.size() - 1;
         List<Boolean> bitList = new ArrayList<>();
         List<Sha256Hash> hashes = new ArrayList<>();
-        traverseAndBuild(height, 0, allLeafHashes, includeBits, bitList, hashes);
+        traverseAndBuild(height, 0, levels, includeBits, bitList, hashes);
         byte[] bits = new byte[(int)Math.ceil(bitList.size() / 8.0)];
         for (int i = 0; i < bitList.size(); i++)
             if (bitList.get(i))
                 Utils.setBitLE(bits, i);
-        return new PartialMerkleTree(params, bits, hashes, allLeafHashes.size());
+        return new PartialMerkleTree(params, bits, hashes, leaves.length);
+    }
+
+    /**
+     * Calculates all levels of the merkle tree over the given leaf hashes. The first element of the returned list holds
+     * the leaves themselves, the last one holds just the merkle root. If the number of nodes on a level is odd, the last
+     * node is paired with itself, as usual.
+     */
+    public static List<Sha256Hash[]> buildMerkleLevels(List<Sha256Hash> allLeafHashes) {
+        checkArgument(!allLeafHashes.isEmpty(), "Cannot build a merkle tree without leaves");
+        List<Sha256Hash[]> levels = new ArrayList<>();
+        Sha256Hash[] level = allLeafHashes.toArray(new Sha256Hash[allLeafHashes.size()]);
+        levels.add(level);
+        while (level.length > 1) {
+            Sha256Hash[] next = new Sha256Hash[(level.length + 1) / 2];
+            for (int i = 0; i < next.length; i++) {
+                byte[] left = level[i * 2].getBytes();
+                byte[] right = i * 2 + 1 < level.length ? level[i * 2 + 1].getBytes() : left;
+                next[i] = combineLeftRight(left, right);
+            }
+            levels.add(next);
+            level = next;
+        }
+        return levels;
     }
 
     @Override
@@ -127,11 +158,12 @@ public class PartialMerkleTree extends Message {
     }
 
     // Based on CPartialMerkleTree::TraverseAndBuild in Bitcoin Core.
-    private static void traverseAndBuild(int height, int pos, List<Sha256Hash> allLeafHashes, byte[] includeBits,
+    private static void traverseAndBuild(int height, int pos, List<Sha256Hash[]> levels, byte[] includeBits,
                                          List<Boolean> matchedChildBits, List<Sha256Hash> resultHashes) {
+        int leafCount = levels.get(0).length;
         boolean parentOfMatch = false;
         // Is this node a parent of at least one matched hash?
-        for (int p = pos << height; p < (pos+1) << height && p < allLeafHashes.size(); p++) {
+        for (int p = pos << height; p < (pos+1) << height && p < leafCount; p++) {
             if (Utils.checkBitLE(includeBits, p)) {
                 parentOfMatch = true;
                 break;
@@ -141,33 +173,15 @@ public class PartialMerkleTree extends Message {
         matchedChildBits.add(parentOfMatch);
         if (height == 0 || !parentOfMatch) {
             // If at height 0, or nothing interesting below, store hash and stop.
-            resultHashes.add(calcHash(height, pos, allLeafHashes));
+            resultHashes.add(levels.get(height)[pos]);
         } else {
             // Otherwise descend into the subtrees.
             int h = height - 1;
             int p = pos * 2;
-            traverseAndBuild(h, p, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-            if (p + 1 < getTreeWidth(allLeafHashes.size(), h))
-                traverseAndBuild(h, p + 1, allLeafHashes, includeBits, matchedChildBits, resultHashes);
-        }
-    }
-
-    private static Sha256Hash calcHash(int height, int pos, List<Sha256Hash> hashes) {
-        if (height == 0) {
-            // Hash at height 0 is just the regular tx hash itself.
-            return hashes.get(pos);
-        }
-        int h = height - 1;
-        int p = pos * 2;
-        Sha256Hash left = calcHash(h, p, hashes);
-        // Calculate right hash if not beyond the end of the array - copy left hash otherwise.
-        Sha256Hash right;
-        if (p + 1 < getTreeWidth(hashes.size(), h)) {
-            right = calcHash(h, p + 1, hashes);
-        } else {
-            right = left;
+            traverseAndBuild(h, p, levels, includeBits, matchedChildBits, resultHashes);
+            if (p + 1 < getTreeWidth(leafCount, h))
+                traverseAndBuild(h, p + 1, levels, includeBits, matchedChildBits, resultHashes);
         }
-        return combineLeftRight(left.getBytes(), right.getBytes());
     }
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
@@ -417,7 +417,7 @@ public class Peer extends PeerSocketHandler {
     @Override
     public void connectionClosed() {
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : disconnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerDisconnected(Peer.this, 0);
@@ -589,7 +589,7 @@ public class Peer extends PeerSocketHandler {
         log.debug("{}: Handshake complete.", this);
         setTimeoutEnabled(false);
         for (final ListenerRegistration<PeerConnectedEventListener> registration : connectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerConnected(Peer.this, 1);
@@ -839,7 +839,7 @@ public class Peer extends PeerSocketHandler {
         // Tell all listeners about this tx so they can decide whether to keep it or not. If no listener keeps a
         // reference around then the memory pool will forget about it after a while too because it uses weak references.
         for (final ListenerRegistration<OnTransactionBroadcastListener> registration : onTransactionEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onTransaction(Peer.this, tx);
@@ -978,12 +978,12 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
-        // Did we lose download peer status after requesting block data?
-        if (!vDownloadData) {
+        // Blocks we asked for are used even if we lost download peer status after requesting them, so that moving the
+        // download to another peer doesn't waste what is in flight.
+        if (!removePendingBlockDownload(m.getHash()) && !vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1010,7 +1010,9 @@ public class Peer extends PeerSocketHandler {
                 // off a request for lots more headers in parallel.
                 lock.lock();
                 try {
-                    if (downloadBlockBodies) {
+                    if (!vDownloadData) {
+                        log.info("Not asking for the parents of orphan block {} as we are not the download peer", m.getHashAsString());
+                    } else if (downloadBlockBodies) {
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
                         blockChainDownloadLocked(orphanRoot.getHash());
                     } else {
@@ -1033,7 +1035,8 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
-        if (!vDownloadData) {
+        // As for full blocks, those we asked for are used even if we lost download peer status since.
+        if (!removePendingBlockDownload(m.getHash()) && !vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
         }
@@ -1044,7 +1047,6 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1111,8 +1113,10 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    if (vDownloadData) {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    }
                 } finally {
                     lock.unlock();
                 }
@@ -1156,7 +1160,7 @@ public class Peer extends PeerSocketHandler {
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
         final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
         for (final ListenerRegistration<BlocksDownloadedEventListener> registration : blocksDownloadedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onBlocksDownloaded(Peer.this, block, fb, blocksLeft);
@@ -1203,18 +1207,22 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
+        List<Sha256Hash> txHashes = new ArrayList<>(transactions.size());
+        for (InventoryItem item : transactions)
+            txHashes.add(item.hash);
+        // The line below can trigger confidence listeners.
+        List<TransactionConfidence> confidences = context.getConfidenceTable().seen(txHashes, this.getAddress());
         Iterator<InventoryItem> it = transactions.iterator();
+        Iterator<TransactionConfidence> confIt = confidences.iterator();
         while (it.hasNext()) {
             InventoryItem item = it.next();
+            TransactionConfidence conf = confIt.next();
             // Only download the transaction if we are the first peer that saw it be advertised. Other peers will also
             // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
             // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
             // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
             // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
             // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-            //
-            // The line below can trigger confidence listeners.
-            TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
             if (conf.numBroadcastPeers() > 1) {
                 // Some other peer already announced this so don't download.
                 it.remove();
@@ -1489,7 +1497,7 @@ public class Peer extends PeerSocketHandler {
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
             for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(new Runnable() {
+                Threading.dispatch(registration.executor, this, new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
@@ -1506,6 +1514,16 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Returns true if the block was requested from this peer and had not arrived yet.
+    private boolean removePendingBlockDownload(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return pendingBlockDownloads.remove(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
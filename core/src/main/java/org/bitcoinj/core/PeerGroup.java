@@ -132,10 +132,16 @@ public class PeerGroup implements TransactionBroadcaster {
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<PreMessageReceivedEventListener>> peersPreMessageReceivedEventListeners
         = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ListenerRegistration<PeerThroughputEventListener>> peerThroughputEventListeners
+        = new CopyOnWriteArrayList<>();
     protected final CopyOnWriteArrayList<ListenerRegistration<OnTransactionBroadcastListener>> peersTransactionBroadastEventListeners
         = new CopyOnWriteArrayList<>();
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private final CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
+    // Remembers peer addresses across restarts, tried before the discovery sources if set.
+    @Nullable private volatile PeerAddressDatabase vAddressDatabase;
+    // How often the address database is saved while running.
+    private static final long ADDRESS_DATABASE_SAVE_INTERVAL_MSEC = 5 * 60 * 1000;
     // The version message to use for new connections.
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Maximum depth up to which pending transaction dependencies are downloaded, or 0 for disabled.
@@ -162,6 +168,17 @@ public class PeerGroup implements TransactionBroadcaster {
     private final PeerListener peerListener = new PeerListener();
 
     private int minBroadcastConnections = 0;
+
+    // Added to every peer while there is an address database, to put the addresses peers gossip in it.
+    private final PreMessageReceivedEventListener addressMessageListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressDatabase addressDatabase = vAddressDatabase;
+            if (addressDatabase != null && m instanceof AddressMessage)
+                addressDatabase.addAll(((AddressMessage) m).getAddresses());
+            return m;
+        }
+    };
     private final ScriptsChangeEventListener walletScriptEventListener = new ScriptsChangeEventListener() {
         @Override public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
             recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
@@ -453,6 +470,10 @@ public class PeerGroup implements TransactionBroadcaster {
                 }
 
                 boolean havePeerWeCanTry = !inactives.isEmpty() && backoffMap.get(inactives.peek()).getRetryTime() <= now;
+                // Known good peers are quicker to get than asking the discovery sources. They were not tried yet, so
+                // can be tried straight away.
+                if (!havePeerWeCanTry && addInactivesFromAddressDatabase() > 0)
+                    havePeerWeCanTry = true;
                 doDiscovery = !havePeerWeCanTry;
             } finally {
                 firstRun = false;
@@ -536,27 +557,21 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private List<Message> handleGetData(GetDataMessage m) {
         // Scans the wallets and memory pool for transactions in the getdata message and returns them.
-        // Runs on peer threads.
-        lock.lock();
-        try {
-            LinkedList<Message> transactions = new LinkedList<>();
-            LinkedList<InventoryItem> items = new LinkedList<>(m.getItems());
-            Iterator<InventoryItem> it = items.iterator();
-            while (it.hasNext()) {
-                InventoryItem item = it.next();
-                // Check the wallets.
-                for (Wallet w : wallets) {
-                    Transaction tx = w.getTransaction(item.hash);
-                    if (tx == null) continue;
-                    transactions.add(tx);
-                    it.remove();
-                    break;
-                }
+        // Runs on peer threads. The wallet list is copy-on-write and wallets do their own locking, so there is no
+        // need to hold the group lock here. Other item types (eg, filtered blocks) are left to other listeners.
+        LinkedList<Message> transactions = new LinkedList<>();
+        for (InventoryItem item : m.getItems()) {
+            if (item.type != InventoryItem.Type.Transaction)
+                continue;
+            // Check the wallets.
+            for (Wallet w : wallets) {
+                Transaction tx = w.getTransaction(item.hash);
+                if (tx == null) continue;
+                transactions.add(tx);
+                break;
             }
-            return transactions;
-        } finally {
-            lock.unlock();
         }
+        return transactions;
     }
 
     /**
@@ -738,6 +753,22 @@ public class PeerGroup implements TransactionBroadcaster {
         peerDiscoveredEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
     }
 
+    /**
+     * Adds a listener that is told once a second, for every connected peer, how fast it served the block chain whilst
+     * the chain is being downloaded.
+     */
+    public void addPeerThroughputEventListener(PeerThroughputEventListener listener) {
+        addPeerThroughputEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * Adds a listener that is told on the given executor once a second, for every connected peer, how fast it served
+     * the block chain whilst the chain is being downloaded.
+     */
+    public void addPeerThroughputEventListener(Executor executor, PeerThroughputEventListener listener) {
+        peerThroughputEventListeners.add(new ListenerRegistration<>(checkNotNull(listener), executor));
+    }
+
     /** See {@link Peer#addGetDataEventListener(GetDataEventListener)} */
     public void addGetDataEventListener(GetDataEventListener listener) {
         addGetDataEventListener(Threading.USER_THREAD, listener);
@@ -837,6 +868,11 @@ public class PeerGroup implements TransactionBroadcaster {
         return result;
     }
 
+    /** The given event listener will no longer be called with events. */
+    public boolean removePeerThroughputEventListener(PeerThroughputEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, peerThroughputEventListeners);
+    }
+
     /** The given event listener will no longer be called with events. */
     public boolean removeGetDataEventListener(GetDataEventListener listener) {
         boolean result = ListenerRegistration.removeFromList(listener, peerGetDataEventListeners);
@@ -909,19 +945,72 @@ public class PeerGroup implements TransactionBroadcaster {
         setMaxConnections(newMax);
     }
 
-    private void addInactive(PeerAddress peerAddress) {
+    private boolean addInactive(PeerAddress peerAddress) {
         lock.lock();
         try {
             // Deduplicate
             if (backoffMap.containsKey(peerAddress))
-                return;
+                return false;
             backoffMap.put(peerAddress, new ExponentialBackoff(peerBackoffParams));
             inactives.offer(peerAddress);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds the best addresses of the address database that were not tried yet, enough to fill the connection slots
+    // twice over. Returns how many were added.
+    private int addInactivesFromAddressDatabase() {
+        PeerAddressDatabase addressDatabase = vAddressDatabase;
+        if (addressDatabase == null)
+            return 0;
+        lock.lock();
+        try {
+            int wanted = Math.max(2 * (getMaxConnections() - countConnectedAndPendingPeers()), 1);
+            int added = 0;
+            for (InetSocketAddress address : addressDatabase.getCandidates(PeerAddressDatabase.MAX_CANDIDATES,
+                    requiredServices)) {
+                if (ipv6Unreachable && address.getAddress() instanceof Inet6Address)
+                    continue;
+                if (addInactive(new PeerAddress(params, address)) && ++added >= wanted)
+                    break;
+            }
+            if (added > 0)
+                log.info("Trying {} peers from the address database", added);
+            return added;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Sets a database of peer addresses that is tried for peers before the discovery sources, or null for none. The
+     * peer group puts the addresses it discovers and those that peers send in it, asks every new peer for addresses,
+     * and records how connecting to them went and their ping times. The database is saved every few minutes and when
+     * the peer group stops, so that the next start can connect to known good peers without waiting for discovery.
+     */
+    public void setAddressDatabase(@Nullable PeerAddressDatabase addressDatabase) {
+        this.vAddressDatabase = addressDatabase;
+    }
+
+    /** Returns the database of peer addresses, or null if none was set. */
+    @Nullable
+    public PeerAddressDatabase getAddressDatabase() {
+        return vAddressDatabase;
+    }
+
+    private void saveAddressDatabase() {
+        PeerAddressDatabase addressDatabase = vAddressDatabase;
+        if (addressDatabase == null)
+            return;
+        try {
+            addressDatabase.save();
+        } catch (IOException e) {
+            log.warn("Failed to save the peer address database", e);
+        }
+    }
+
     /**
      * Convenience for connecting only to peers that can serve specific services. It will configure suitable peer
      * discoveries.
@@ -972,13 +1061,16 @@ public class PeerGroup implements TransactionBroadcaster {
             for (InetSocketAddress address : addresses) addressList.add(new PeerAddress(params, address));
             if (addressList.size() >= maxPeersToDiscoverCount) break;
         }
+        PeerAddressDatabase addressDatabase = vAddressDatabase;
+        if (addressDatabase != null)
+            addressDatabase.addAll(addressList);
         if (!addressList.isEmpty()) {
             for (PeerAddress address : addressList) {
                 addInactive(address);
             }
             final ImmutableSet<PeerAddress> peersDiscoveredSet = ImmutableSet.copyOf(addressList);
             for (final ListenerRegistration<PeerDiscoveredEventListener> registration : peerDiscoveredEventListeners /* COW */) {
-                registration.executor.execute(new Runnable() {
+                Threading.dispatch(registration.executor, this, new Runnable() {
                     @Override
                     public void run() {
                         registration.listener.onPeersDiscovered(peersDiscoveredSet);
@@ -1063,6 +1155,12 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    executor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            saveAddressDatabase();
+                        }
+                    }, ADDRESS_DATABASE_SAVE_INTERVAL_MSEC, ADDRESS_DATABASE_SAVE_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1095,6 +1193,7 @@ public class PeerGroup implements TransactionBroadcaster {
                     for (PeerDiscovery peerDiscovery : peerDiscoverers) {
                         peerDiscovery.shutdown();
                     }
+                    saveAddressDatabase();
                     vRunning = false;
                     log.info("Stopped.");
                 } catch (Throwable e) {
@@ -1525,6 +1624,14 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            // Remember the peer worked and ask it for more addresses.
+            PeerAddressDatabase addressDatabase = vAddressDatabase;
+            if (addressDatabase != null) {
+                addressDatabase.recordSuccess(peer.getAddress().toSocketAddress(),
+                        peer.getPeerVersionMessage().localServices);
+                peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, addressMessageListener);
+                peer.getAddr();
+            }
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1557,7 +1664,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerConnectedEventListener> registration : peerConnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, peer, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerConnected(peer, fNewSize);
@@ -1585,9 +1692,12 @@ public class PeerGroup implements TransactionBroadcaster {
                         }
                         return;  // Disabled.
                     }
+                    PeerAddressDatabase addressDatabase = vAddressDatabase;
                     for (Peer peer : getConnectedPeers()) {
                         if (peer.getPeerVersionMessage().clientVersion < params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG))
                             continue;
+                        if (addressDatabase != null)
+                            addressDatabase.recordPingTime(peer.getAddress().toSocketAddress(), peer.getPingTime());
                         peer.ping();
                     }
                 } catch (Throwable e) {
@@ -1671,10 +1781,17 @@ public class PeerGroup implements TransactionBroadcaster {
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            boolean wasPending = pendingPeers.remove(peer);
             peers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            PeerAddressDatabase addressDatabase = vAddressDatabase;
+            if (addressDatabase != null) {
+                if (wasPending && !(exception instanceof NoRouteToHostException))
+                    addressDatabase.recordFailure(address.toSocketAddress());
+                else if (!wasPending)
+                    addressDatabase.recordPingTime(address.toSocketAddress(), peer.getPingTime());
+            }
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
             if (peer == downloadPeer) {
@@ -1714,6 +1831,8 @@ public class PeerGroup implements TransactionBroadcaster {
 
         peer.removeBlocksDownloadedEventListener(peerListener);
         peer.removeGetDataEventListener(peerListener);
+        peer.removePreMessageReceivedEventListener(addressMessageListener);
+        throughputTracker.remove(peer);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
@@ -1731,7 +1850,7 @@ public class PeerGroup implements TransactionBroadcaster {
         for (ListenerRegistration<OnTransactionBroadcastListener> registration : peersTransactionBroadastEventListeners)
             peer.removeOnTransactionBroadcastListener(registration.listener);
         for (final ListenerRegistration<PeerDisconnectedEventListener> registration : peerDisconnectedEventListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, peer, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onPeerDisconnected(peer, fNumConnectedPeers);
@@ -1784,6 +1903,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
         @Override
         public synchronized void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+            long bytesBefore = bytesInLastSecond;
             blocksInLastSecond++;
             bytesInLastSecond += Block.HEADER_SIZE;
             List<Transaction> blockTransactions = block.getTransactions();
@@ -1793,6 +1913,7 @@ public class PeerGroup implements TransactionBroadcaster {
             txnsInLastSecond = txnsInLastSecond + txCount;
             if (filteredBlock != null)
                 origTxnsInLastSecond += filteredBlock.getTransactionCount();
+            throughputTracker.addBytes(peer, bytesInLastSecond - bytesBefore);
         }
 
         private int countAndMeasureSize(Collection<Transaction> transactions) {
@@ -1813,6 +1934,7 @@ public class PeerGroup implements TransactionBroadcaster {
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            boolean downloading;
 
             lock.lock();
             try {
@@ -1877,10 +1999,67 @@ public class PeerGroup implements TransactionBroadcaster {
                 txnsInLastSecond = 0;
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
+                downloading = !syncDone;
+            }
+
+            if (updateDownloadPeer(downloading)) {
+                synchronized (this) {
+                    // Give the new download peer time to get going before judging its speed.
+                    samples = null;
+                }
             }
         }
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
+    private final PeerThroughputTracker throughputTracker = new PeerThroughputTracker();
+
+    // Called every second by the chain download speed calculator. Measures the download peer, tells the throughput
+    // listeners and, whilst the chain is being downloaded, moves the download to a peer that looks clearly better.
+    // Returns true if the download peer was changed.
+    private boolean updateDownloadPeer(boolean downloading) {
+        final Peer currentDownloadPeer = getDownloadPeer();
+        throughputTracker.sample(currentDownloadPeer, downloading);
+        if (!downloading)
+            return false;
+        List<Peer> connectedPeers = getConnectedPeers();
+        for (final Peer peer : connectedPeers) {
+            final PeerThroughput throughput = throughputTracker.getThroughput(peer, peer == currentDownloadPeer);
+            for (final ListenerRegistration<PeerThroughputEventListener> registration : peerThroughputEventListeners) {
+                Threading.dispatch(registration.executor, peer, new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onPeerThroughput(peer, throughput);
+                    }
+                });
+            }
+        }
+        if (currentDownloadPeer == null)
+            return false;
+        lock.lock();
+        try {
+            // Blocks requested from the old download peer are still accepted when they arrive, so nothing in flight
+            // is lost by moving.
+            Peer candidate = selectDownloadPeer(connectedPeers);
+            if (downloadPeer != currentDownloadPeer || candidate == null
+                    || !throughputTracker.shouldSwitch(currentDownloadPeer, candidate))
+                return false;
+            log.info("Moving chain download from {} ({}) to {} ({})", currentDownloadPeer,
+                    throughputTracker.getThroughput(currentDownloadPeer, true), candidate,
+                    throughputTracker.getThroughput(candidate, false));
+            startBlockChainDownloadFromPeer(candidate);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how fast the given peer served the block chain whilst it was the download peer, and how it scores as
+     * download peer.
+     */
+    public PeerThroughput getPeerThroughput(Peer peer) {
+        return throughputTracker.getThroughput(peer, peer == getDownloadPeer());
+    }
 
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
@@ -1892,6 +2071,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 chainDownloadSpeedCalculator = new ChainDownloadSpeedCalculator();
                 executor.scheduleAtFixedRate(chainDownloadSpeedCalculator, 1, 1, TimeUnit.SECONDS);
             }
+            // The peer may have been the download peer before.
+            peer.removeBlocksDownloadedEventListener(chainDownloadSpeedCalculator);
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
@@ -2186,13 +2367,16 @@ public class PeerGroup implements TransactionBroadcaster {
 
     /**
      * Given a list of Peers, return a Peer to be used as the download peer. If you don't want PeerGroup to manage
-     * download peer statuses for you, just override this and always return null.
+     * download peer statuses for you, just override this and always return null. Whilst the chain is downloaded, this
+     * is called every second and the download moves to the returned peer if it scores clearly better than the current
+     * download peer, see {@link PeerThroughput#getScore()}.
      */
     @Nullable
     protected Peer selectDownloadPeer(List<Peer> peers) {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Expected to serve the chain fastest, by throughput and ping time measured so far
         //  - Randomly, to try and spread the load.
         if (peers.isEmpty())
             return null;
@@ -2219,8 +2403,19 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        double bestScore = -1;
+        List<Peer> best = new ArrayList<>(candidates2.size());
+        for (Peer peer : candidates2) {
+            double score = throughputTracker.getScore(peer);
+            if (score > bestScore) {
+                bestScore = score;
+                best.clear();
+            }
+            if (score == bestScore)
+                best.add(peer);
+        }
+        int index = (int) (Math.random() * best.size());
+        return best.get(index);
     }
 
     /**
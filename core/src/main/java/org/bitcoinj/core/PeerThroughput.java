@@ -0,0 +1,90 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.Locale;
+
+/**
+ * <p>How fast a peer served the block chain whilst it was the download peer of a {@link PeerGroup}, as returned by
+ * {@link PeerGroup#getPeerThroughput(Peer)} and passed to
+ * {@link org.bitcoinj.core.listeners.PeerThroughputEventListener}s. The peer group moves the chain download to the
+ * connected peer with the highest {@link #getScore()}, see {@link PeerGroup#selectDownloadPeer(java.util.List)}.</p>
+ *
+ * <p>Instances are immutable snapshots.</p>
+ */
+public final class PeerThroughput {
+    private final long bytesPerSecond;
+    private final long pingTime;
+    private final int secondsDownloading;
+    private final int stallSeconds;
+    private final double score;
+    private final boolean downloadPeer;
+
+    PeerThroughput(long bytesPerSecond, long pingTime, int secondsDownloading, int stallSeconds, double score,
+                   boolean downloadPeer) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.pingTime = pingTime;
+        this.secondsDownloading = secondsDownloading;
+        this.stallSeconds = stallSeconds;
+        this.score = score;
+        this.downloadPeer = downloadPeer;
+    }
+
+    /**
+     * Returns a moving average of the block and transaction bytes per second received from the peer whilst it was the
+     * download peer, or -1 if it never was.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /** Returns the ping time of the peer in milliseconds, or {@link Long#MAX_VALUE} if not known, see {@link Peer#getPingTime()}. */
+    public long getPingTime() {
+        return pingTime;
+    }
+
+    /** Returns for how many seconds the peer was the download peer whilst the chain was being downloaded. */
+    public int getSecondsDownloading() {
+        return secondsDownloading;
+    }
+
+    /** Returns in how many of the {@link #getSecondsDownloading()} seconds the peer sent nothing at all. */
+    public int getStallSeconds() {
+        return stallSeconds;
+    }
+
+    /**
+     * Returns how good a download peer the peer is expected to be, higher is better. This is the throughput divided by
+     * one plus the ping time in seconds and by one plus the fraction of seconds it stalled. Peers that were never the
+     * download peer are given twice the best throughput seen from any peer, so that each gets a chance.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /** Returns true if the peer was the download peer when this was measured. */
+    public boolean isDownloadPeer() {
+        return downloadPeer;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s%.2f KB/sec, ping %s, stalled %d of %d sec, score %.1f",
+                downloadPeer ? "download peer, " : "", bytesPerSecond < 0 ? 0 : bytesPerSecond / 1024.0,
+                pingTime == Long.MAX_VALUE ? "unknown" : pingTime + " ms", stallSeconds, secondsDownloading, score);
+    }
+}
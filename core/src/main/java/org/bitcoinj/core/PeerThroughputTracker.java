@@ -0,0 +1,141 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how fast peers serve the block chain, so that {@link PeerGroup} can download from the best one and move
+ * the download when another peer looks clearly better. It is fed the bytes of every downloaded block and sampled once
+ * a second; only the download peer is measured. Peers that never were the download peer are assumed to be twice as
+ * fast as the fastest one seen, so that the download tries each of them once for {@link #MIN_DOWNLOAD_SECONDS}
+ * before it settles on the best. See {@link PeerThroughput#getScore()} for how peers are scored.
+ */
+class PeerThroughputTracker {
+    /** How much higher the score of another peer must be for the download to move to it. */
+    static final double SWITCH_MARGIN = 1.5;
+    /** How many seconds a download peer is measured before the download may move away from it. */
+    static final int MIN_DOWNLOAD_SECONDS = 10;
+
+    // The first seconds after a peer becomes the download peer are not measured, as it takes a few round trips
+    // before blocks flow.
+    private static final int WARMUP_SECONDS = 2;
+    // The weight of the latest one second sample in the moving average of the throughput.
+    private static final double SMOOTHING = 0.2;
+    private static final double UNMEASURED_OPTIMISM = 2;
+
+    private static class Stats {
+        long bytesThisSecond;
+        double bytesPerSecond = -1;
+        int secondsDownloading;
+        int stallSeconds;
+        int secondsSinceSelected;
+    }
+
+    private final Map<Peer, Stats> stats = new HashMap<>();
+    @Nullable private Peer lastDownloadPeer;
+    private double fastestBytesPerSecond;
+
+    /** Records the size of a block, or of the transactions of a filtered block, received from the given peer. */
+    synchronized void addBytes(Peer peer, long bytes) {
+        statsOf(peer).bytesThisSecond += bytes;
+    }
+
+    /**
+     * Takes the sample of the last second, which counts only for the download peer and only whilst the chain is
+     * being downloaded.
+     */
+    synchronized void sample(@Nullable Peer downloadPeer, boolean downloading) {
+        if (downloadPeer != lastDownloadPeer) {
+            lastDownloadPeer = downloadPeer;
+            if (downloadPeer != null)
+                statsOf(downloadPeer).secondsSinceSelected = 0;
+        }
+        if (downloadPeer != null && downloading) {
+            Stats s = statsOf(downloadPeer);
+            if (++s.secondsSinceSelected > WARMUP_SECONDS) {
+                s.secondsDownloading++;
+                if (s.bytesThisSecond == 0)
+                    s.stallSeconds++;
+                if (s.bytesPerSecond < 0)
+                    s.bytesPerSecond = s.bytesThisSecond;
+                else
+                    s.bytesPerSecond = SMOOTHING * s.bytesThisSecond + (1 - SMOOTHING) * s.bytesPerSecond;
+                fastestBytesPerSecond = Math.max(fastestBytesPerSecond, s.bytesPerSecond);
+            }
+        }
+        for (Stats s : stats.values())
+            s.bytesThisSecond = 0;
+    }
+
+    /** Forgets about a peer that disconnected. */
+    synchronized void remove(Peer peer) {
+        stats.remove(peer);
+        if (peer == lastDownloadPeer)
+            lastDownloadPeer = null;
+    }
+
+    /** Returns how good a download peer the given peer is expected to be, higher is better. */
+    synchronized double getScore(Peer peer) {
+        Stats s = stats.get(peer);
+        double bytesPerSecond;
+        if (s != null && s.bytesPerSecond >= 0)
+            bytesPerSecond = s.bytesPerSecond;
+        else if (fastestBytesPerSecond > 0)
+            bytesPerSecond = UNMEASURED_OPTIMISM * fastestBytesPerSecond;
+        else
+            bytesPerSecond = 1; // Nothing measured yet, so only the ping times tell peers apart.
+        double stallFraction = s == null || s.secondsDownloading == 0 ? 0 : (double) s.stallSeconds / s.secondsDownloading;
+        long pingTime = peer.getPingTime();
+        // Peers that never answered a ping are treated as if they took a second.
+        double pingSeconds = pingTime == Long.MAX_VALUE ? 1 : pingTime / 1000.0;
+        return bytesPerSecond / ((1 + pingSeconds) * (1 + stallFraction));
+    }
+
+    /**
+     * Returns true if the chain download should move from the given download peer to the given candidate: the
+     * download peer was measured for long enough and the candidate scores clearly higher.
+     */
+    synchronized boolean shouldSwitch(Peer downloadPeer, Peer candidate) {
+        if (candidate == downloadPeer)
+            return false;
+        Stats s = stats.get(downloadPeer);
+        if (s == null || s.secondsSinceSelected < WARMUP_SECONDS + MIN_DOWNLOAD_SECONDS)
+            return false;
+        return getScore(candidate) > SWITCH_MARGIN * getScore(downloadPeer);
+    }
+
+    /** Returns what was measured for the given peer. */
+    synchronized PeerThroughput getThroughput(Peer peer, boolean isDownloadPeer) {
+        Stats s = stats.get(peer);
+        if (s == null)
+            return new PeerThroughput(-1, peer.getPingTime(), 0, 0, getScore(peer), isDownloadPeer);
+        return new PeerThroughput(s.bytesPerSecond < 0 ? -1 : Math.round(s.bytesPerSecond), peer.getPingTime(),
+                s.secondsDownloading, s.stallSeconds, getScore(peer), isDownloadPeer);
+    }
+
+    private Stats statsOf(Peer peer) {
+        Stats s = stats.get(peer);
+        if (s == null) {
+            s = new Stats();
+            stats.put(peer, s);
+        }
+        return s;
+    }
+}
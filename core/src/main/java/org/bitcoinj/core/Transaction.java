@@ -129,6 +129,11 @@ public class Transaction extends ChildMessage {
     // This is an in memory helper only.
     private Sha256Hash hash;
 
+    // The serialized form, kept once it has been calculated so that hashing, size checks, signing and relaying the
+    // same transaction don't serialize it over and over. Every change to a field that gets serialized, here or in an
+    // input, output or outpoint of this transaction, goes via unCache() which drops it along with the hash.
+    @Nullable private byte[] serialized;
+
     // Data about how confirmed this tx is. Serialized, may be null.
     @Nullable private TransactionConfidence confidence;
 
@@ -193,7 +198,7 @@ public class Transaction extends ChildMessage {
         inputs = new ArrayList<>();
         outputs = new ArrayList<>();
         // We don't initialize appearsIn deliberately as it's only useful for transactions stored in the wallet.
-        length = 8; // 8 for std fields
+        length = 10; // 8 for std fields, 1 each for the empty lists of inputs and outputs
     }
 
     /**
@@ -505,6 +510,55 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        serialized = null;
+        // Once changed the transaction is serialized afresh, which always uses the optimal encoding.
+        optimalEncodingMessageSize = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The result is kept until the transaction is changed, so calling this repeatedly is cheap.</p>
+     */
+    @Override
+    public byte[] unsafeBitcoinSerialize() {
+        if (serialized == null)
+            serialized = super.unsafeBitcoinSerialize();
+        return serialized;
+    }
+
+    /**
+     * <p>Releases memory that this transaction only holds to save work: its serialized form, the bytes it was parsed
+     * from if they were retained, which may be those of a whole block, and spare room in its lists of inputs and
+     * outputs. The transaction itself does not change and its hash is kept.</p>
+     *
+     * <p>The wallet does this to the transactions it stores once they are in the block chain, as those are rarely
+     * serialized again and a wallet can hold very many of them.</p>
+     */
+    public void compact() {
+        serialized = null;
+        releasePayload();
+        inputs.trimToSize();
+        for (TransactionInput input : inputs) {
+            input.releasePayload();
+            input.getOutpoint().releasePayload();
+        }
+        outputs.trimToSize();
+        for (TransactionOutput output : outputs)
+            output.releasePayload();
+    }
+
+    /**
+     * Adjusts the length for a change in the number of inputs or outputs, from the old to the new size of the list,
+     * where the children added or removed together take up the given number of bytes.
+     */
+    private void adjustLengthForList(int oldSize, int newSize, int childrenLength) {
+        if (childrenLength == UNKNOWN_LENGTH) {
+            adjustLength(0, UNKNOWN_LENGTH);
+            return;
+        }
+        int prefixChange = VarInt.sizeOf(newSize) - VarInt.sizeOf(oldSize);
+        adjustLength(0, prefixChange + (newSize > oldSize ? childrenLength : -childrenLength));
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -742,12 +796,13 @@ public class Transaction extends ChildMessage {
      */
     public void clearInputs() {
         unCache();
+        int removedLength = 0;
         for (TransactionInput input : inputs) {
             input.setParent(null);
+            removedLength = addLength(removedLength, input.length);
         }
+        adjustLengthForList(inputs.size(), 0, removedLength);
         inputs.clear();
-        // You wanted to reserialize, right?
-        this.length = this.unsafeBitcoinSerialize().length;
     }
 
     /**
@@ -769,7 +824,7 @@ public class Transaction extends ChildMessage {
         unCache();
         input.setParent(this);
         inputs.add(input);
-        adjustLength(inputs.size(), input.length);
+        adjustLengthForList(inputs.size() - 1, inputs.size(), input.length);
         return input;
     }
 
@@ -837,12 +892,17 @@ public class Transaction extends ChildMessage {
      */
     public void clearOutputs() {
         unCache();
+        int removedLength = 0;
         for (TransactionOutput output : outputs) {
             output.setParent(null);
+            removedLength = addLength(removedLength, output.length);
         }
+        adjustLengthForList(outputs.size(), 0, removedLength);
         outputs.clear();
-        // You wanted to reserialize, right?
-        this.length = this.unsafeBitcoinSerialize().length;
+    }
+
+    private static int addLength(int a, int b) {
+        return a == UNKNOWN_LENGTH || b == UNKNOWN_LENGTH ? UNKNOWN_LENGTH : a + b;
     }
 
     /**
@@ -852,7 +912,7 @@ public class Transaction extends ChildMessage {
         unCache();
         to.setParent(this);
         outputs.add(to);
-        adjustLength(outputs.size(), to.length);
+        adjustLengthForList(outputs.size() - 1, outputs.size(), to.length);
         return to;
     }
 
@@ -1015,7 +1075,8 @@ public class Transaction extends ChildMessage {
         try {
             // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
             // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.bitcoinSerialize());
+            // Parsing doesn't write to the bytes, so the copy can be made from the cached serialization.
+            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.unsafeBitcoinSerialize());
 
             // Clear input scripts in preparation for signing. If we're signing a fresh
             // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
@@ -1094,6 +1155,10 @@ public class Transaction extends ChildMessage {
 
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        if (serialized != null) {
+            stream.write(serialized);
+            return;
+        }
         uint32ToByteStreamLE(version, stream);
         stream.write(new VarInt(inputs.size()).encode());
         for (TransactionInput in : inputs)
@@ -1177,6 +1242,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
@@ -28,8 +28,6 @@ import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
-// TODO: Modify the getDepthInBlocks method to require the chain height to be specified, in preparation for ceasing to touch every tx on every block.
-
 /**
  * <p>A TransactionConfidence object tracks data you can use to make a confidence decision about a transaction.
  * It also contains some pre-canned rules for common scenarios: if you aren't really sure what level of confidence
@@ -54,8 +52,10 @@ import static com.google.common.base.Preconditions.*;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link org.bitcoinj.core.TransactionConfidence#incrementDepthInBlocks()}
- * method to ensure the block depth is up to date.</p>
+ * <p>The depth of a transaction in the chain is kept up to date by the {@link DepthClock} of the wallet holding it,
+ * which ticks once for every new best block, so that the wallet doesn't have to touch every transaction on every
+ * block. Without a clock, it is updated via the
+ * {@link org.bitcoinj.core.TransactionConfidence#incrementDepthInBlocks()} method.</p>
  * To make a copy that won't be changed, use {@link org.bitcoinj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence {
@@ -63,18 +63,22 @@ public class TransactionConfidence {
     /**
      * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use
      * IP address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect
-     * to us, so only peers we explicitly connected to should go here.
+     * to us, so only peers we explicitly connected to should go here. Created when the first peer is marked, as most
+     * confidence objects of a big wallet belong to transactions that are long buried and never see another peer.
      */
-    private CopyOnWriteArrayList<PeerAddress> broadcastBy;
+    @Nullable private volatile CopyOnWriteArrayList<PeerAddress> broadcastBy;
     /** The time the transaction was last announced to us. */
     private Date lastBroadcastedAt;
     /** The Transaction that this confidence object is associated with. */
     private final Sha256Hash hash;
     // Lazily created listeners array.
-    private CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
+    @Nullable private volatile CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
 
-    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
+    // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0. If there is a depth
+    // clock, this is the depth at the time the clock had ticked depthClockTicks times, see getDepthInBlocks().
     private int depth;
+    @Nullable private DepthClock depthClock;
+    private int depthClockTicks;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -144,12 +148,33 @@ public class TransactionConfidence {
     private Source source = Source.UNKNOWN;
 
     public TransactionConfidence(Sha256Hash hash) {
-        // Assume a default number of peers for our set.
-        broadcastBy = new CopyOnWriteArrayList<>();
-        listeners = new CopyOnWriteArrayList<>();
         this.hash = hash;
     }
 
+    private CopyOnWriteArrayList<PeerAddress> getOrCreateBroadcastBy() {
+        CopyOnWriteArrayList<PeerAddress> list = broadcastBy;
+        if (list == null) {
+            synchronized (this) {
+                list = broadcastBy;
+                if (list == null)
+                    broadcastBy = list = new CopyOnWriteArrayList<>();
+            }
+        }
+        return list;
+    }
+
+    private CopyOnWriteArrayList<ListenerRegistration<Listener>> getOrCreateListeners() {
+        CopyOnWriteArrayList<ListenerRegistration<Listener>> list = listeners;
+        if (list == null) {
+            synchronized (this) {
+                list = listeners;
+                if (list == null)
+                    listeners = list = new CopyOnWriteArrayList<>();
+            }
+        }
+        return list;
+    }
+
     /**
      * <p>A confidence listener is informed when the level of {@link TransactionConfidence} is updated by something, like
      * for example a {@link Wallet}. You can add listeners to update your user interface or manage your order tracking
@@ -206,8 +231,9 @@ public class TransactionConfidence {
      */
     public void addEventListener(Executor executor, Listener listener) {
         checkNotNull(listener);
-        listeners.addIfAbsent(new ListenerRegistration<>(listener, executor));
+        getOrCreateListeners().addIfAbsent(new ListenerRegistration<>(listener, executor));
         pinnedConfidenceObjects.add(this);
+        updateWatched(getDepthClock());
     }
 
     /**
@@ -226,9 +252,11 @@ public class TransactionConfidence {
 
     public boolean removeEventListener(Listener listener) {
         checkNotNull(listener);
-        boolean removed = ListenerRegistration.removeFromList(listener, listeners);
-        if (listeners.isEmpty())
+        CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners = this.listeners;
+        boolean removed = listeners != null && ListenerRegistration.removeFromList(listener, listeners);
+        if (listeners == null || listeners.isEmpty())
             pinnedConfidenceObjects.remove(this);
+        updateWatched(getDepthClock());
         return removed;
     }
 
@@ -250,8 +278,8 @@ public class TransactionConfidence {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        storeDepth(1);
     }
 
     /**
@@ -268,6 +296,9 @@ public class TransactionConfidence {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        // The depth only follows the clock whilst building, so freeze it when leaving that state and pick up from
+        // the current tick when entering it.
+        storeDepth(getDepthInBlocks());
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -289,7 +320,7 @@ public class TransactionConfidence {
      */
     public boolean markBroadcastBy(PeerAddress address) {
         lastBroadcastedAt = Utils.now();
-        if (!broadcastBy.addIfAbsent(address))
+        if (!getOrCreateBroadcastBy().addIfAbsent(address))
             return false;  // Duplicate.
         synchronized (this) {
             if (getConfidenceType() == ConfidenceType.UNKNOWN) {
@@ -303,20 +334,25 @@ public class TransactionConfidence {
      * Returns how many peers have been passed to {@link TransactionConfidence#markBroadcastBy}.
      */
     public int numBroadcastPeers() {
-        return broadcastBy.size();
+        CopyOnWriteArrayList<PeerAddress> broadcastBy = this.broadcastBy;
+        return broadcastBy == null ? 0 : broadcastBy.size();
     }
 
     /**
      * Returns a snapshot of {@link PeerAddress}es that announced the transaction.
      */
     public Set<PeerAddress> getBroadcastBy() {
+        CopyOnWriteArrayList<PeerAddress> broadcastBy = this.broadcastBy;
+        if (broadcastBy == null)
+            return Sets.newHashSet();
         ListIterator<PeerAddress> iterator = broadcastBy.listIterator();
         return Sets.newHashSet(iterator);
     }
 
     /** Returns true if the given address has been seen via markBroadcastBy() */
     public boolean wasBroadcastBy(PeerAddress address) {
-        return broadcastBy.contains(address);
+        CopyOnWriteArrayList<PeerAddress> broadcastBy = this.broadcastBy;
+        return broadcastBy != null && broadcastBy.contains(address);
     }
 
     /** Return the time the transaction was last announced to us. */
@@ -369,7 +405,9 @@ public class TransactionConfidence {
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        int newDepth = getDepthInBlocks() + 1;
+        storeDepth(newDepth);
+        return newDepth;
     }
 
     /**
@@ -383,6 +421,8 @@ public class TransactionConfidence {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        if (depthClock != null && confidenceType == ConfidenceType.BUILDING)
+            return depth + depthClock.getTicks() - depthClockTicks;
         return depth;
     }
 
@@ -390,7 +430,93 @@ public class TransactionConfidence {
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        storeDepth(depth);
+    }
+
+    private void storeDepth(int depth) {
         this.depth = depth;
+        this.depthClockTicks = depthClock != null ? depthClock.getTicks() : 0;
+    }
+
+    /**
+     * <p>Counts the blocks added to the best chain, so that the depth of all building transactions whose confidence
+     * uses the clock goes up by one with a single {@link #tick()}. A {@link Wallet} has a clock that it sets on the
+     * confidence of all its transactions.</p>
+     *
+     * <p>The clock also keeps track of which of its confidence objects have event listeners, so that the owner of the
+     * clock can notify just those of a change of depth. The owner's own listener, if any, is not counted.</p>
+     */
+    public static class DepthClock {
+        private volatile int ticks;
+        @Nullable private final Listener ownerListener;
+        private final Set<TransactionConfidence> watched =
+                Collections.synchronizedSet(new HashSet<TransactionConfidence>());
+
+        /**
+         * Creates a clock. Confidence objects whose only listener is the given one are not considered watched.
+         */
+        public DepthClock(@Nullable Listener ownerListener) {
+            this.ownerListener = ownerListener;
+        }
+
+        /** Returns the number of times the clock has ticked. */
+        public int getTicks() {
+            return ticks;
+        }
+
+        /** Increases the depth of all building transactions using this clock by one. */
+        public synchronized void tick() {
+            ticks++;
+        }
+
+        /** Returns a snapshot of the confidence objects using this clock which have event listeners. */
+        public List<TransactionConfidence> getWatched() {
+            synchronized (watched) {
+                return new ArrayList<>(watched);
+            }
+        }
+    }
+
+    /** Returns the clock that updates the depth, or null if it is updated via {@link #incrementDepthInBlocks()}. */
+    @Nullable
+    public synchronized DepthClock getDepthClock() {
+        return depthClock;
+    }
+
+    /**
+     * Sets the clock that updates the depth from now on, keeping the current depth. Setting null goes back to updating
+     * the depth via {@link #incrementDepthInBlocks()}.
+     */
+    public void setDepthClock(@Nullable DepthClock clock) {
+        DepthClock oldClock;
+        synchronized (this) {
+            oldClock = depthClock;
+            if (oldClock == clock)
+                return;
+            int currentDepth = getDepthInBlocks();
+            depthClock = clock;
+            storeDepth(currentDepth);
+        }
+        if (oldClock != null)
+            oldClock.watched.remove(this);
+        updateWatched(clock);
+    }
+
+    private void updateWatched(@Nullable DepthClock clock) {
+        if (clock == null)
+            return;
+        CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners = this.listeners;
+        if (listeners == null) {
+            clock.watched.remove(this);
+            return;
+        }
+        for (ListenerRegistration<Listener> registration : listeners) {
+            if (registration.listener != clock.ownerListener) {
+                clock.watched.add(this);
+                return;
+            }
+        }
+        clock.watched.remove(this);
     }
 
     /**
@@ -399,7 +525,7 @@ public class TransactionConfidence {
      */
     public void clearBroadcastBy() {
         checkState(getConfidenceType() != ConfidenceType.PENDING);
-        broadcastBy.clear();
+        broadcastBy = null;
         lastBroadcastedAt = null;
     }
 
@@ -432,7 +558,9 @@ public class TransactionConfidence {
     /** Returns a copy of this object. Event listeners are not duplicated. */
     public TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(hash);
-        c.broadcastBy.addAll(broadcastBy);
+        CopyOnWriteArrayList<PeerAddress> broadcastBy = this.broadcastBy;
+        if (broadcastBy != null)
+            c.broadcastBy = new CopyOnWriteArrayList<>(broadcastBy);
         c.lastBroadcastedAt = lastBroadcastedAt;
         synchronized (this) {
             c.confidenceType = confidenceType;
@@ -449,13 +577,43 @@ public class TransactionConfidence {
      * explicitly, more precise control is available. Note that this will run the listeners on the user code thread.
      */
     public void queueListeners(final Listener.ChangeReason reason) {
-        for (final ListenerRegistration<Listener> registration : listeners) {
-            registration.executor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
-                }
-            });
+        CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners = this.listeners;
+        if (listeners == null)
+            return;
+        for (final ListenerRegistration<Listener> registration : listeners)
+            Threading.dispatchCoalescing(registration.executor, this, new ListenerTask(registration, reason));
+    }
+
+    /** Runs a listener. Tasks are equal if they are for the same listener and reason, so repeats can be coalesced. */
+    private class ListenerTask implements Runnable {
+        private final ListenerRegistration<Listener> registration;
+        private final Listener.ChangeReason reason;
+
+        ListenerTask(ListenerRegistration<Listener> registration, Listener.ChangeReason reason) {
+            this.registration = registration;
+            this.reason = reason;
+        }
+
+        @Override
+        public void run() {
+            registration.listener.onConfidenceChanged(TransactionConfidence.this, reason);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ListenerTask other = (ListenerTask) o;
+            return getOuter() == other.getOuter() && registration == other.registration && reason == other.reason;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * registration.hashCode() + reason.hashCode();
+        }
+
+        private TransactionConfidence getOuter() {
+            return TransactionConfidence.this;
         }
     }
 
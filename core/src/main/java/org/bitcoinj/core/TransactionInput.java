@@ -85,6 +85,10 @@ public class TransactionInput extends ChildMessage {
         this.sequence = NO_SEQUENCE;
         this.value = value;
         setParent(parentTransaction);
+        // Changes to the outpoint must reach the caches of the transaction. An outpoint shared with another input
+        // stays with that one.
+        if (outpoint.parent == null)
+            outpoint.setParent(this);
         length = 40 + (scriptBytes == null ? 1 : VarInt.sizeOf(scriptBytes.length) + scriptBytes.length);
     }
 
@@ -99,6 +103,7 @@ public class TransactionInput extends ChildMessage {
         } else {
             outpoint = new TransactionOutPoint(params, output);
         }
+        outpoint.setParent(this);
         scriptBytes = EMPTY_ARRAY;
         sequence = NO_SEQUENCE;
         setParent(parentTransaction);
@@ -24,6 +24,7 @@ import org.slf4j.*;
 
 import javax.annotation.*;
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.*;
@@ -44,8 +45,9 @@ public class TransactionOutput extends ChildMessage {
     // this output.
     private byte[] scriptBytes;
 
-    // The script bytes are parsed and turned into a Script on demand.
-    private Script scriptPubKey;
+    // The script bytes are parsed and turned into a Script on demand. The parsed script is several times the size of
+    // the bytes, so like the scriptSig of an input it is only weakly held and parsed again if it has been collected.
+    private WeakReference<Script> scriptPubKey;
 
     // These fields are not Bitcoin serialized. They are used for tracking purposes in our wallet
     // only. If set to true, this output is counted towards our balance. If false and spentBy is null the tx output
@@ -112,10 +114,12 @@ public class TransactionOutput extends ChildMessage {
     }
 
     public Script getScriptPubKey() throws ScriptException {
-        if (scriptPubKey == null) {
-            scriptPubKey = new Script(scriptBytes);
+        Script script = scriptPubKey == null ? null : scriptPubKey.get();
+        if (script == null) {
+            script = new Script(scriptBytes);
+            scriptPubKey = new WeakReference<>(script);
         }
-        return scriptPubKey;
+        return script;
     }
 
     /**
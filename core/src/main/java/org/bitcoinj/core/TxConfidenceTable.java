@@ -21,8 +21,10 @@ import org.bitcoinj.utils.*;
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,8 +37,17 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>The table is split into a number of shards, chosen by the transaction hash, each with its own lock and eviction
+ * order. Lookups don't take any lock at all, and inserts only lock the shard they go into, so the many peer threads
+ * reporting inv announcements don't contend with each other. When watching the entire memory pool of the network,
+ * create it with {@link #MEMPOOL_SIZE} and pass it to {@link Context#Context(NetworkParameters, TxConfidenceTable)}.</p>
  */
 public class TxConfidenceTable {
+    /**
+     * Not taken by the table itself, which locks each of its shards separately. It is kept for subclasses that guard
+     * their own state with it.
+     */
     protected ReentrantLock lock = Threading.lock("txconfidencetable");
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
@@ -46,33 +57,143 @@ public class TxConfidenceTable {
             hash = confidence.getTransactionHash();
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
 
-    // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    /**
+     * A part of the table. Reads go straight to the concurrent map, while inserts, evictions and cleaning up are done
+     * under the lock. The insertion order of the entries of the map is kept in a linked set of the same references,
+     * which is what bounds the size of the shard.
+     */
+    private static class Shard {
+        private final ReentrantLock lock = Threading.lock("txconfidencetable");
+        private final ConcurrentHashMap<Sha256Hash, WeakConfidenceReference> table = new ConcurrentHashMap<>();
+        private final LinkedHashSet<WeakConfidenceReference> insertionOrder = new LinkedHashSet<>();
+        // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is
+        // the only thing that is tracking the confidence data anymore. We check it from time to time and delete table
+        // entries corresponding to expired transactions. In this way memory usage of the system is in line with however
+        // many transactions you actually care to track the confidence of. We can still end up with lots of hashes being
+        // stored if our peers flood us with invs but the capacity caps this.
+        private final ReferenceQueue<TransactionConfidence> referenceQueue = new ReferenceQueue<>();
+        private final int capacity;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
+         * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
+         * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys
+         * that are relevant to any of our wallets.
+         */
+        void clean() {
+            Reference<? extends TransactionConfidence> ref = referenceQueue.poll();
+            if (ref == null)
+                return;
+            lock.lock();
+            try {
+                remove((WeakConfidenceReference) ref);
+                cleanLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Must be called with the lock held. */
+        private void cleanLocked() {
+            Reference<? extends TransactionConfidence> ref;
+            while ((ref = referenceQueue.poll()) != null)
+                remove((WeakConfidenceReference) ref);
+        }
+
+        /** Must be called with the lock held. */
+        private void remove(WeakConfidenceReference ref) {
+            // Remove the map entry of the transaction deleted by the GC, so the other bits of memory can also be
+            // reclaimed, and stop it counting towards the capacity. The hash may have been inserted again since, in
+            // which case the map holds a different reference and is left alone.
+            insertionOrder.remove(ref);
+            table.remove(ref.hash, ref);
+        }
+
+        @Nullable
+        TransactionConfidence get(Sha256Hash hash) {
+            WeakConfidenceReference ref = table.get(hash);
+            return ref != null ? ref.get() : null;
+        }
+
+        /** Must be called with the lock held. */
+        TransactionConfidence getOrCreateLocked(Sha256Hash hash) {
+            TransactionConfidence confidence = get(hash);
+            if (confidence != null)
+                return confidence;
+            cleanLocked();
+            confidence = new TransactionConfidence(hash);
+            WeakConfidenceReference ref = new WeakConfidenceReference(confidence, referenceQueue);
+            WeakConfidenceReference old = table.put(hash, ref);
+            if (old != null)
+                insertionOrder.remove(old);
+            insertionOrder.add(ref);
+            // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+            // of some kind of DoS attack.
+            Iterator<WeakConfidenceReference> eldest = insertionOrder.iterator();
+            while (insertionOrder.size() > capacity) {
+                WeakConfidenceReference evicted = eldest.next();
+                eldest.remove();
+                table.remove(evicted.hash, evicted);
+            }
+            return confidence;
+        }
+
+        TransactionConfidence getOrCreate(Sha256Hash hash) {
+            clean();
+            TransactionConfidence confidence = get(hash);
+            if (confidence != null)
+                return confidence;
+            lock.lock();
+            try {
+                return getOrCreateLocked(hash);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final Shard[] shards;
+    private final int shardShift;
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    /** A size that is large enough to track every transaction in the memory pool of the network. */
+    public static final int MEMPOOL_SIZE = 300000;
+
+    /** The max number of shards a table is split into. */
+    public static final int MAX_SHARDS = 16;
+
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<>();
+        this(size, MAX_SHARDS);
+    }
+
+    /**
+     * Creates a table that will track at most the given number of transactions, split into the given number of
+     * shards. The number of shards is rounded down to a power of two and to at most one shard per transaction. Each
+     * shard evicts its oldest entries on its own, once it holds its share of the size.
+     * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
+     * @param numShards Number of shards, more shards mean less contention between threads.
+     */
+    public TxConfidenceTable(final int size, int numShards) {
+        checkArgument(size > 0, "size must be positive");
+        checkArgument(numShards > 0, "numShards must be positive");
+        numShards = Integer.highestOneBit(Math.min(numShards, size));
+        shards = new Shard[numShards];
+        shardShift = 32 - Integer.numberOfTrailingZeros(numShards);
+        int capacity = (size + numShards - 1) / numShards;
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard(capacity);
     }
 
     /**
@@ -83,50 +204,24 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
-    /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
-     */
-    private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
-        } finally {
-            lock.unlock();
-        }
+    private int shardIndex(Sha256Hash hash) {
+        // The hash code is taken from the hash itself, so it's uniformly distributed. Use the top bits to pick the
+        // shard, leaving the lower bits that the concurrent maps hash on varied within each shard. Note that shifting
+        // an int by 32 is a no-op in Java, hence the special case for a single shard.
+        return shardShift == 32 ? 0 : hash.hashCode() >>> shardShift;
+    }
+
+    private Shard shardFor(Sha256Hash hash) {
+        return shards[shardIndex(hash)];
     }
 
     /**
-     * Returns the number of peers that have seen the given hash recently.
+     * Returns the number of peers that have seen the given hash recently. This doesn't take any lock.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
-            } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+        TransactionConfidence confidence = shardFor(txHash).get(txHash);
+        // Either no such TX is known, or it was seen but nothing seemed to care so we ended up throwing away the data.
+        return confidence != null ? confidence.numBroadcastPeers() : 0;
     }
 
     /**
@@ -136,60 +231,92 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
-        if (fresh)
+        TransactionConfidence confidence = getOrCreate(hash);
+        if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
 
+    /**
+     * Like {@link #seen(Sha256Hash, PeerAddress)}, but for all transaction hashes of an "inv" message at once. Hashes
+     * that are already known are looked up without locking, and the unknown ones are inserted taking the lock of each
+     * shard only once. Listeners are run after all hashes have been marked.
+     *
+     * @return the confidence objects for the given hashes, in the same order
+     */
+    public List<TransactionConfidence> seen(List<Sha256Hash> hashes, PeerAddress byPeer) {
+        TransactionConfidence[] confidences = new TransactionConfidence[hashes.size()];
+        // Indexes of the hashes that are not known yet, grouped by shard.
+        List<List<Integer>> missing = null;
+        for (int i = 0; i < hashes.size(); i++) {
+            Sha256Hash hash = checkNotNull(hashes.get(i));
+            int s = shardIndex(hash);
+            shards[s].clean();
+            confidences[i] = shards[s].get(hash);
+            if (confidences[i] == null) {
+                if (missing == null)
+                    missing = new ArrayList<>(Collections.<List<Integer>>nCopies(shards.length, null));
+                if (missing.get(s) == null)
+                    missing.set(s, new ArrayList<Integer>());
+                missing.get(s).add(i);
+            }
+        }
+        if (missing != null) {
+            for (int s = 0; s < shards.length; s++) {
+                if (missing.get(s) == null)
+                    continue;
+                Shard shard = shards[s];
+                shard.lock.lock();
+                try {
+                    for (int i : missing.get(s))
+                        confidences[i] = shard.getOrCreateLocked(hashes.get(i));
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+        List<TransactionConfidence> fresh = new ArrayList<>();
+        for (TransactionConfidence confidence : confidences)
+            if (confidence.markBroadcastBy(byPeer))
+                fresh.add(confidence);
+        for (TransactionConfidence confidence : fresh)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        return Arrays.asList(confidences);
+    }
+
     /**
      * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
      * is unknown to the system at this time.
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
-        try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
-            TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
-            return newConfidence;
-        } finally {
-            lock.unlock();
-        }
+        return shardFor(hash).getOrCreate(hash);
     }
 
     /**
      * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
-     * is unknown to the system at this time.
+     * is unknown to the system at this time. This doesn't take any lock.
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
-            if (confidence != null)
-                return confidence;
-            else
-                return null;
-        } finally {
-            lock.unlock();
+        return shardFor(hash).get(hash);
+    }
+
+    /**
+     * Returns the number of entries in the table. Entries whose confidence data was thrown away but not yet cleaned up
+     * are included, so this is an upper bound.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.clean();
+            size += shard.table.size();
         }
+        return size;
+    }
+
+    /** Returns the number of shards the table is split into. */
+    public int getNumShards() {
+        return shards.length;
     }
 }
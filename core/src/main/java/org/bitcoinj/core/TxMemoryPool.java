@@ -0,0 +1,681 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A bounded pool of the unconfirmed transactions seen on the network, for watching fee rates and double spends.
+ * Unlike {@link TxConfidenceTable}, which only remembers confidence by hash, the pool keeps the transactions themselves
+ * and indexes them by the outpoints they spend, by fee rate and by their unconfirmed ancestors and descendants, like
+ * the Bitcoin Core memory pool does.</p>
+ *
+ * <p>To fill it, add it to a {@link PeerGroup} as both an {@link OnTransactionBroadcastListener} and a
+ * {@link BlocksDownloadedEventListener}: transactions that peers send are added and the transactions of downloaded
+ * blocks are removed, together with any that conflict with them. With a {@link FullPrunedBlockChain} you can call
+ * {@link #removeForBlock(Block)} yourself as blocks connect.</p>
+ *
+ * <p>The fee of a transaction is only known if the values of all outputs it spends are. They are taken from parents in
+ * the pool, from connected inputs, or from the {@link FullPrunedBlockStore} given to the constructor. A transaction
+ * whose fee is not known counts as paying nothing until its missing parents arrive, so it is evicted first.</p>
+ *
+ * <p>The pool holds at most the given number of bytes of serialized transactions. When it grows beyond that, the
+ * transaction with the lowest fee rate counting its descendants is evicted together with those descendants, just as a
+ * miner would leave them out last. Lookups by hash or outpoint and iterating by fee rate take no lock and can run
+ * while transactions are added or removed; changes take a lock and are applied one at a time.</p>
+ */
+public class TxMemoryPool implements OnTransactionBroadcastListener, BlocksDownloadedEventListener {
+    private static final Logger log = LoggerFactory.getLogger(TxMemoryPool.class);
+
+    /** The default budget, in bytes of serialized transactions. */
+    public static final long DEFAULT_MAX_BYTES = 100 * 1000 * 1000;
+
+    /**
+     * The most transactions a package may have, that is a transaction with its unconfirmed ancestors or with its
+     * unconfirmed descendants. Transactions that would make a bigger package, including that of any of their ancestors,
+     * are not added. This is the Bitcoin Core default, and keeps the work for each change bounded.
+     */
+    public static final int MAX_PACKAGE_COUNT = 25;
+
+    private final NetworkParameters params;
+    private final long maxBytes;
+    @Nullable private final FullPrunedBlockStore store;
+
+    private final ReentrantLock lock = Threading.lock("txmemorypool");
+    private final ConcurrentHashMap<Sha256Hash, Entry> byHash = new ConcurrentHashMap<>();
+    // Outpoints spent by transactions in the pool, to the transaction spending them.
+    private final ConcurrentHashMap<TransactionOutPoint, Entry> bySpentOutPoint = new ConcurrentHashMap<>();
+    // For eviction, the lowest descendant score first.
+    private final ConcurrentSkipListSet<Entry> byDescendantScore = new ConcurrentSkipListSet<>(DESCENDANT_SCORE);
+    // For selection, the highest ancestor score first.
+    private final ConcurrentSkipListSet<Entry> byAncestorScore = new ConcurrentSkipListSet<>(ANCESTOR_SCORE);
+
+    @GuardedBy("lock") private long nextSequence;
+    private volatile long sizeInBytes;
+    private volatile long evictedCount;
+    private volatile long conflictCount;
+
+    private static class Entry {
+        final Transaction tx;
+        final Sha256Hash hash;
+        final int size;
+        // Breaks ties between equal scores, so that no two entries compare equal.
+        final long sequence;
+        // The values of the outputs spent by each input, -1 where not known.
+        final long[] inputValues;
+        int unknownInputs;
+        long fee;
+
+        final Set<Entry> parents = new HashSet<>(4);
+        final Set<Entry> children = new HashSet<>(4);
+
+        // Aggregates including this entry. They and the scores only change while the entry is out of the sorted sets.
+        int ancestorCount, descendantCount;
+        long ancestorSize, descendantSize;
+        long ancestorFee, descendantFee;
+        long ancestorScore, descendantScore;
+
+        Entry(Transaction tx, Sha256Hash hash, long sequence) {
+            this.tx = tx;
+            this.hash = hash;
+            this.size = tx.getMessageSize();
+            this.sequence = sequence;
+            this.inputValues = new long[tx.getInputs().size()];
+        }
+
+        long knownFee() {
+            return unknownInputs == 0 ? fee : 0;
+        }
+    }
+
+    private static final Comparator<Entry> DESCENDANT_SCORE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Long.compare(a.descendantScore, b.descendantScore);
+            // Of equal scores, the newest is evicted first.
+            return result != 0 ? result : Long.compare(b.sequence, a.sequence);
+        }
+    };
+
+    private static final Comparator<Entry> ANCESTOR_SCORE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int result = Long.compare(b.ancestorScore, a.ancestorScore);
+            return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /** Creates a pool of {@link #DEFAULT_MAX_BYTES} that only knows input values from parents and connected inputs. */
+    public TxMemoryPool(NetworkParameters params) {
+        this(params, DEFAULT_MAX_BYTES, null);
+    }
+
+    /**
+     * Creates a pool holding at most the given number of bytes of serialized transactions. If a store is given, the
+     * values of confirmed outputs are looked up in it, so the fees of most transactions are known.
+     */
+    public TxMemoryPool(NetworkParameters params, long maxBytes, @Nullable FullPrunedBlockStore store) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.params = checkNotNull(params);
+        this.maxBytes = maxBytes;
+        this.store = store;
+    }
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        add(tx);
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+        if (filteredBlock != null)
+            removeForFilteredBlock(filteredBlock);
+        else if (block.getTransactions() != null)
+            removeForBlock(block);
+    }
+
+    /**
+     * Adds a transaction to the pool. Coinbase transactions, transactions spending an output that a transaction in the
+     * pool already spends and transactions that would make a package bigger than {@link #MAX_PACKAGE_COUNT} are not
+     * added. Adding may evict transactions, possibly the one just added.
+     *
+     * @return true if the transaction is in the pool afterwards
+     */
+    public boolean add(Transaction tx) {
+        checkNotNull(tx);
+        if (tx.isCoinBase())
+            return false;
+        lock.lock();
+        try {
+            Sha256Hash hash = tx.getHash();
+            if (byHash.containsKey(hash))
+                return true;
+            List<TransactionInput> inputs = tx.getInputs();
+            for (TransactionInput input : inputs) {
+                Entry spender = bySpentOutPoint.get(key(input.getOutpoint()));
+                if (spender != null) {
+                    conflictCount++;
+                    log.debug("{} double spends {}, not adding", hash, spender.hash);
+                    return false;
+                }
+            }
+            Entry entry = new Entry(tx, hash, nextSequence++);
+            for (int i = 0; i < inputs.size(); i++) {
+                TransactionInput input = inputs.get(i);
+                TransactionOutPoint outPoint = input.getOutpoint();
+                Entry parent = byHash.get(outPoint.getHash());
+                long value;
+                if (parent != null) {
+                    List<TransactionOutput> outputs = parent.tx.getOutputs();
+                    if (outPoint.getIndex() >= outputs.size()) {
+                        log.debug("{} spends a nonexistent output of {}, not adding", hash, parent.hash);
+                        return false;
+                    }
+                    value = outputs.get((int) outPoint.getIndex()).getValue().value;
+                    entry.parents.add(parent);
+                } else {
+                    value = lookUpValue(input);
+                }
+                entry.inputValues[i] = value;
+                if (value < 0)
+                    entry.unknownInputs++;
+            }
+            if (entry.unknownInputs == 0 && !computeFee(entry))
+                return false;
+            Set<Entry> children = findSpenders(tx);
+            Set<Entry> ancestors = ancestorsOf(entry.parents);
+            Set<Entry> descendants = descendantsOf(children);
+            if (ancestors.size() >= MAX_PACKAGE_COUNT || descendants.size() >= MAX_PACKAGE_COUNT) {
+                log.debug("{} would have {} ancestors and {} descendants in the pool, not adding", hash,
+                        ancestors.size(), descendants.size());
+                return false;
+            }
+            // The transaction and the descendants it connects join the package of each ancestor.
+            for (Entry ancestor : ancestors) {
+                if (ancestor.descendantCount + 1 + descendants.size() > MAX_PACKAGE_COUNT) {
+                    log.debug("{} would give {} too many descendants in the pool, not adding", hash, ancestor.hash);
+                    return false;
+                }
+            }
+
+            for (Entry parent : entry.parents)
+                parent.children.add(entry);
+            Set<Entry> invalid = new HashSet<>();
+            for (Entry child : children) {
+                entry.children.add(child);
+                child.parents.add(entry);
+                if (!resolveInputs(child, tx))
+                    invalid.add(child);
+            }
+            byHash.put(hash, entry);
+            for (TransactionInput input : inputs)
+                bySpentOutPoint.put(key(input.getOutpoint()), entry);
+            sizeInBytes += entry.size;
+            Set<Entry> affected = new HashSet<>(ancestors);
+            affected.add(entry);
+            affected.addAll(descendants);
+            refresh(affected);
+            for (Entry child : invalid)
+                if (byHash.containsKey(child.hash))
+                    remove(child, true);
+            trim();
+            return byHash.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the transactions of a block that connected to the best chain, keeping their descendants, and removes the
+     * transactions that conflict with them together with their descendants.
+     */
+    public void removeForBlock(Block block) {
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null, "block has no transactions");
+        lock.lock();
+        try {
+            for (Transaction tx : transactions)
+                removeConfirmed(tx);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #removeForBlock(Block)}, for a filtered block. Only the transactions that matched the filter are
+     * known in full, so only conflicts with those are found.
+     */
+    public void removeForFilteredBlock(FilteredBlock block) {
+        lock.lock();
+        try {
+            for (Transaction tx : block.getAssociatedTransactions().values())
+                removeConfirmed(tx);
+            for (Sha256Hash hash : block.getTransactionHashes()) {
+                Entry entry = byHash.get(hash);
+                if (entry != null)
+                    remove(entry, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a transaction and all its descendants from the pool, for example because the wallet knows it is dead.
+     *
+     * @return the transactions removed, none if the transaction is not in the pool
+     */
+    public List<Transaction> remove(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            if (entry == null)
+                return Collections.emptyList();
+            List<Transaction> removed = new ArrayList<>();
+            for (Entry r : remove(entry, true))
+                removed.add(r.tx);
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the transaction is in the pool. */
+    public boolean contains(Sha256Hash hash) {
+        return byHash.containsKey(hash);
+    }
+
+    /** Returns the transaction with the given hash, or null if it is not in the pool. */
+    @Nullable
+    public Transaction get(Sha256Hash hash) {
+        Entry entry = byHash.get(hash);
+        return entry != null ? entry.tx : null;
+    }
+
+    /** Returns the transaction in the pool that spends the given outpoint, or null if there is none. */
+    @Nullable
+    public Transaction getSpendingTransaction(TransactionOutPoint outPoint) {
+        Entry entry = bySpentOutPoint.get(key(outPoint));
+        return entry != null ? entry.tx : null;
+    }
+
+    /**
+     * Returns the transactions in the pool that spend any of the outputs the given transaction spends, other than the
+     * transaction itself. If the given transaction is yours, these are the double spends of it.
+     */
+    public Set<Transaction> getConflicting(Transaction tx) {
+        Set<Transaction> conflicting = new HashSet<>();
+        Sha256Hash hash = tx.getHash();
+        for (TransactionInput input : tx.getInputs()) {
+            Entry entry = bySpentOutPoint.get(key(input.getOutpoint()));
+            if (entry != null && !entry.hash.equals(hash))
+                conflicting.add(entry.tx);
+        }
+        return conflicting;
+    }
+
+    /** Returns the number of transactions in the pool. */
+    public int size() {
+        return byHash.size();
+    }
+
+    /** Returns the number of bytes of serialized transactions in the pool. */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /** Returns the most bytes of serialized transactions the pool holds. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Returns the number of transactions evicted to stay within the byte budget so far. */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /** Returns the number of transactions not added because they double spent a transaction in the pool so far. */
+    public long getConflictCount() {
+        return conflictCount;
+    }
+
+    /** Returns the fee a transaction in the pool pays, or null if it is not in the pool or its fee is not known. */
+    @Nullable
+    public Coin getFee(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null && entry.unknownInputs == 0 ? Coin.valueOf(entry.fee) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee per 1000 bytes a transaction in the pool pays, or null if it is not in the pool or its fee is not
+     * known.
+     */
+    @Nullable
+    public Coin getFeeRate(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null && entry.unknownInputs == 0 ? Coin.valueOf(feeRate(entry.fee, entry.size)) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fee per 1000 bytes a miner gets for including a transaction of the pool, that is the fee rate of the
+     * transaction with its unconfirmed ancestors if that is lower than its own. Returns null if the transaction is not
+     * in the pool.
+     */
+    @Nullable
+    public Coin getAncestorFeeRate(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null ? Coin.valueOf(entry.ancestorScore) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the unconfirmed ancestors of a transaction in the pool, none if it is not in the pool. */
+    public Set<Transaction> getAncestors(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null ? transactionsOf(ancestorsOf(entry.parents)) : Collections.<Transaction>emptySet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the descendants of a transaction in the pool, none if it is not in the pool. */
+    public Set<Transaction> getDescendants(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Entry entry = byHash.get(hash);
+            return entry != null ? transactionsOf(descendantsOf(entry.children)) : Collections.<Transaction>emptySet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns at most the given number of transactions of the pool, those a miner would pick first coming first: by
+     * fee rate counting their unconfirmed ancestors, from highest to lowest. The order of a parent and its child is not
+     * guaranteed. This takes no lock, a transaction added or removed meanwhile may or may not be included.
+     */
+    public List<Transaction> getTransactionsByFeeRate(int maxTransactions) {
+        List<Transaction> transactions = new ArrayList<>(Math.min(maxTransactions, byHash.size()));
+        Iterator<Entry> iterator = byAncestorScore.iterator();
+        while (transactions.size() < maxTransactions && iterator.hasNext())
+            transactions.add(iterator.next().tx);
+        return transactions;
+    }
+
+    /**
+     * Returns the fee per 1000 bytes a transaction needs to be among the given number of bytes of transactions a miner
+     * would pick first, or zero if the pool holds less than that. With the size of a block, it is the fee rate needed
+     * to be confirmed in the next block if no other transactions arrive. This takes no lock.
+     */
+    public Coin getFeeRateForBytes(long bytes) {
+        long total = 0;
+        for (Entry entry : byAncestorScore) {
+            total += entry.size;
+            if (total >= bytes)
+                return Coin.valueOf(entry.ancestorScore);
+        }
+        return Coin.ZERO;
+    }
+
+    @Override
+    public String toString() {
+        return "TxMemoryPool of " + size() + " transactions, " + sizeInBytes + " of " + maxBytes + " bytes";
+    }
+
+    @GuardedBy("lock")
+    private void removeConfirmed(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        Entry entry = byHash.get(hash);
+        if (entry != null) {
+            remove(entry, false);
+        } else if (!tx.isCoinBase()) {
+            for (TransactionInput input : tx.getInputs()) {
+                Entry spender = bySpentOutPoint.get(key(input.getOutpoint()));
+                if (spender != null) {
+                    log.debug("{} conflicts with {} in a block, removing", spender.hash, hash);
+                    remove(spender, true);
+                }
+            }
+            // The outputs of the block transaction are now confirmed, so transactions spending them know their fees.
+            Set<Entry> children = findSpenders(tx);
+            Set<Entry> affected = new HashSet<>();
+            Set<Entry> invalid = new HashSet<>();
+            for (Entry child : children) {
+                if (child.unknownInputs == 0)
+                    continue;
+                affected.add(child);
+                affected.addAll(ancestorsOf(child.parents));
+                affected.addAll(descendantsOf(child.children));
+                if (!resolveInputs(child, tx))
+                    invalid.add(child);
+            }
+            refresh(affected);
+            for (Entry child : invalid)
+                if (byHash.containsKey(child.hash))
+                    remove(child, true);
+        }
+    }
+
+    // Removes an entry, and its descendants if asked, and updates the entries related to them.
+    @GuardedBy("lock")
+    private Set<Entry> remove(Entry entry, boolean withDescendants) {
+        Set<Entry> removed = withDescendants ? descendantsOf(entry.children) : new HashSet<Entry>();
+        removed.add(entry);
+        Set<Entry> affected = new HashSet<>();
+        for (Entry r : removed) {
+            affected.addAll(ancestorsOf(r.parents));
+            if (!withDescendants)
+                affected.addAll(descendantsOf(r.children));
+        }
+        affected.removeAll(removed);
+        for (Entry r : removed) {
+            byDescendantScore.remove(r);
+            byAncestorScore.remove(r);
+            byHash.remove(r.hash);
+            for (TransactionInput input : r.tx.getInputs())
+                bySpentOutPoint.remove(key(input.getOutpoint()), r);
+            sizeInBytes -= r.size;
+            for (Entry parent : r.parents)
+                parent.children.remove(r);
+            for (Entry child : r.children)
+                child.parents.remove(r);
+        }
+        refresh(affected);
+        return removed;
+    }
+
+    // Evicts the packages with the lowest descendant score until the pool is within its budget.
+    @GuardedBy("lock")
+    private void trim() {
+        while (sizeInBytes > maxBytes && !byDescendantScore.isEmpty()) {
+            Entry worst = byDescendantScore.first();
+            int count = remove(worst, true).size();
+            evictedCount += count;
+            log.debug("Evicted {} and {} descendants paying {} sat/kB", worst.hash, count - 1,
+                    worst.descendantScore);
+        }
+    }
+
+    // Recomputes the aggregates and scores of the given entries, taking them out of the sorted sets meanwhile.
+    @GuardedBy("lock")
+    private void refresh(Collection<Entry> entries) {
+        for (Entry entry : entries) {
+            byDescendantScore.remove(entry);
+            byAncestorScore.remove(entry);
+        }
+        for (Entry entry : entries) {
+            long ownRate = feeRate(entry.knownFee(), entry.size);
+            entry.ancestorCount = 1;
+            entry.ancestorSize = entry.size;
+            entry.ancestorFee = entry.knownFee();
+            for (Entry ancestor : ancestorsOf(entry.parents)) {
+                entry.ancestorCount++;
+                entry.ancestorSize += ancestor.size;
+                entry.ancestorFee += ancestor.knownFee();
+            }
+            entry.ancestorScore = Math.min(ownRate, feeRate(entry.ancestorFee, entry.ancestorSize));
+            entry.descendantCount = 1;
+            entry.descendantSize = entry.size;
+            entry.descendantFee = entry.knownFee();
+            for (Entry descendant : descendantsOf(entry.children)) {
+                entry.descendantCount++;
+                entry.descendantSize += descendant.size;
+                entry.descendantFee += descendant.knownFee();
+            }
+            entry.descendantScore = Math.max(ownRate, feeRate(entry.descendantFee, entry.descendantSize));
+        }
+        for (Entry entry : entries) {
+            if (byHash.get(entry.hash) == entry) {
+                byDescendantScore.add(entry);
+                byAncestorScore.add(entry);
+            }
+        }
+    }
+
+    // Fills in the input values of an entry that spend outputs of the given transaction. Returns false if that makes
+    // the fee known and negative.
+    @GuardedBy("lock")
+    private boolean resolveInputs(Entry entry, Transaction parent) {
+        Sha256Hash parentHash = parent.getHash();
+        List<TransactionInput> inputs = entry.tx.getInputs();
+        List<TransactionOutput> outputs = parent.getOutputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionOutPoint outPoint = inputs.get(i).getOutpoint();
+            if (entry.inputValues[i] >= 0 || !outPoint.getHash().equals(parentHash)
+                    || outPoint.getIndex() >= outputs.size())
+                continue;
+            entry.inputValues[i] = outputs.get((int) outPoint.getIndex()).getValue().value;
+            entry.unknownInputs--;
+        }
+        return entry.unknownInputs > 0 || computeFee(entry);
+    }
+
+    private boolean computeFee(Entry entry) {
+        long fee = 0;
+        for (long value : entry.inputValues)
+            fee += value;
+        for (TransactionOutput output : entry.tx.getOutputs())
+            fee -= output.getValue().value;
+        entry.fee = fee;
+        if (fee < 0) {
+            log.debug("{} spends more than its inputs, not keeping it", entry.hash);
+            return false;
+        }
+        return true;
+    }
+
+    private long lookUpValue(TransactionInput input) {
+        Coin value = input.getValue();
+        if (value == null) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null)
+                value = connected.getValue();
+        }
+        if (value == null && store != null) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            try {
+                UTXO utxo = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+                if (utxo != null)
+                    value = utxo.getValue();
+            } catch (BlockStoreException e) {
+                log.warn("Could not look up {}: {}", outPoint, e.toString());
+            }
+        }
+        return value != null ? value.value : -1;
+    }
+
+    // The entries spending outputs of the given transaction.
+    private Set<Entry> findSpenders(Transaction tx) {
+        Set<Entry> spenders = new HashSet<>();
+        Sha256Hash hash = tx.getHash();
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            Entry spender = bySpentOutPoint.get(new TransactionOutPoint(params, i, hash));
+            if (spender != null)
+                spenders.add(spender);
+        }
+        return spenders;
+    }
+
+    // The given parents and all their ancestors.
+    private static Set<Entry> ancestorsOf(Set<Entry> parents) {
+        Set<Entry> ancestors = new HashSet<>(parents);
+        Deque<Entry> toVisit = new ArrayDeque<>(parents);
+        while (!toVisit.isEmpty())
+            for (Entry parent : toVisit.poll().parents)
+                if (ancestors.add(parent))
+                    toVisit.add(parent);
+        return ancestors;
+    }
+
+    // The given children and all their descendants.
+    private static Set<Entry> descendantsOf(Set<Entry> children) {
+        Set<Entry> descendants = new HashSet<>(children);
+        Deque<Entry> toVisit = new ArrayDeque<>(children);
+        while (!toVisit.isEmpty())
+            for (Entry child : toVisit.poll().children)
+                if (descendants.add(child))
+                    toVisit.add(child);
+        return descendants;
+    }
+
+    private static Set<Transaction> transactionsOf(Set<Entry> entries) {
+        Set<Transaction> transactions = new HashSet<>(entries.size());
+        for (Entry entry : entries)
+            transactions.add(entry.tx);
+        return transactions;
+    }
+
+    private static long feeRate(long fee, long size) {
+        return fee * 1000 / size;
+    }
+
+    // A fresh outpoint, so that the maps don't keep the transactions an outpoint may be connected to.
+    private TransactionOutPoint key(TransactionOutPoint outPoint) {
+        return new TransactionOutPoint(params, outPoint.getIndex(), outPoint.getHash());
+    }
+}
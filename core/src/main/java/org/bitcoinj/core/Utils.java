@@ -25,9 +25,13 @@ import com.google.common.io.BaseEncoding;
 import com.google.common.io.Resources;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.UnsignedLongs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -49,6 +53,7 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dbitcoinj.logging=true on your command line.
  */
 public class Utils {
+    private static final Logger log = LoggerFactory.getLogger(Utils.class);
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -500,6 +505,53 @@ public class Utils {
         return System.getProperty("os.name").toLowerCase().contains("win");
     }
 
+    /** Writes the new contents of a file replaced by {@link Utils#replaceFile(File, File, FileWriter)}. */
+    public interface FileWriter {
+        /** Writes the contents to the given stream, flushing any buffering streams wrapped around it. */
+        void writeTo(OutputStream stream) throws IOException;
+    }
+
+    /**
+     * Replaces the destination file with what the writer writes, such that it ends up either with its old contents
+     * or with all of the new ones. The contents are written to the given temporary file, which should be in the same
+     * directory, forced to disk and then renamed to the destination.
+     */
+    public static void replaceFile(File temp, File destFile, FileWriter writer) throws IOException {
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            writer.writeTo(stream);
+            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
+            // to not write through to physical media for at least a few seconds, but this is the best we can do.
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            destFile = canonical;
+        }
+        if (!temp.renameTo(destFile))
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+    }
+
+    /**
+     * Like {@link #replaceFile(File, File, FileWriter)}, using a new temporary file next to the destination whose
+     * name starts with the given prefix. The temporary file is deleted if replacing fails.
+     */
+    public static void replaceFile(File destFile, String tempPrefix, FileWriter writer) throws IOException {
+        File temp = File.createTempFile(tempPrefix, null, destFile.getAbsoluteFile().getParentFile());
+        try {
+            replaceFile(temp, destFile, writer);
+        } finally {
+            if (temp.exists() && !temp.delete())
+                log.warn("Failed to delete {}", temp);
+        }
+    }
+
     /**
      * <p>Given a textual message, returns a byte buffer formatted as follows:</p>
      *
@@ -0,0 +1,34 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core.listeners;
+
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PeerThroughput;
+
+/**
+ * <p>Implementors can listen to how fast the peers of a {@link PeerGroup} serve the block chain.</p>
+ */
+public interface PeerThroughputEventListener {
+    /**
+     * Called once a second for every connected peer whilst the block chain is being downloaded.
+     *
+     * @param peer the peer the measurements are about
+     * @param throughput what was measured for the peer so far, and how it scores as download peer
+     */
+    void onPeerThroughput(Peer peer, PeerThroughput throughput);
+}
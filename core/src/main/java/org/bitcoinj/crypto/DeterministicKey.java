@@ -368,6 +368,17 @@ public class DeterministicKey extends ECKey {
         }
     }
 
+    @Override
+    public BigInteger getPrivKeyForSigning() {
+        if (isEncrypted())
+            throw new KeyIsEncryptedException();
+        // Like sign, derive the private key via the parents.
+        final BigInteger privateKey = findOrDerivePrivateKey();
+        if (privateKey == null)
+            throw new MissingPrivateKeyException();
+        return privateKey;
+    }
+
     @Override
     public DeterministicKey decrypt(KeyCrypter keyCrypter, KeyParameter aesKey) throws KeyCrypterException {
         checkNotNull(keyCrypter);
@@ -0,0 +1,238 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.ECPointMap;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+import org.spongycastle.math.ec.FixedPointUtil;
+import org.spongycastle.math.ec.WNafPreCompInfo;
+import org.spongycastle.math.ec.WNafUtil;
+import org.spongycastle.math.ec.endo.GLVEndomorphism;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.core.ECKey.CURVE;
+
+/**
+ * <p>The pure Java {@link Secp256k1Provider}, built on Spongy Castle. Multiplications of the generator, for signing and
+ * deriving keys, use a comb table of multiples of the generator that is shared by all keys and built the first time it
+ * is needed.</p>
+ *
+ * <p>Verification computes u1·G + u2·Q in one pass over windowed NAFs of the scalars, split in halves with the secp256k1
+ * endomorphism. The odd multiples of the generator and of its image under the endomorphism come from tables of
+ * {@link #GENERATOR_WNAF_WIDTH} that are also built once, so the generator's half needs few additions. The tables of
+ * the public key are small and built per key.</p>
+ *
+ * <p>Spongy Castle caches the windowed NAF table of a point on the point object. Verifying via
+ * {@link ECKey#verify(Sha256Hash, ECKey.ECDSASignature)} uses the point held by the key, so a key that checks many
+ * signatures, like the other side of a payment channel, builds its table once. Batch verification likewise decodes
+ * each distinct public key just once, and all signatures by the same key share its table. Payouts tend to spend many
+ * outputs of the same few addresses, so this saves a good part of the work.</p>
+ */
+public class JavaSecp256k1Provider extends Secp256k1Provider {
+    private static final Logger log = LoggerFactory.getLogger(JavaSecp256k1Provider.class);
+
+    /**
+     * The window width of the comb table for the generator. Increasing the width makes calculations faster, but at a
+     * cost of extra memory usage and with decreasing returns. 12 was picked after consulting with the BC team.
+     */
+    public static final int GENERATOR_TABLE_WIDTH = 12;
+
+    /**
+     * The window width of the windowed NAF tables of the generator used for verification. Each holds
+     * 2<sup>width - 2</sup> odd multiples, for the generator and for its image under the endomorphism.
+     */
+    public static final int GENERATOR_WNAF_WIDTH = 8;
+
+    // Hands out the generator and the curve parameters once the comb table of the generator is built. The table takes
+    // a while to build and a good few hundred kilobytes, so it is built on first use, which never comes if the native
+    // library does all the work. Spongy Castle finds the table via the generator object.
+    private static class Generator {
+        static final ECDomainParameters PARAMS = CURVE;
+        static final ECPoint G = PARAMS.getG();
+
+        static {
+            FixedPointUtil.precompute(G, GENERATOR_TABLE_WIDTH);
+        }
+    }
+
+    // Hands out the windowed NAF tables of the generator and of its image under the endomorphism, for verification.
+    // Like the comb table they are built on first use.
+    private static class GeneratorWNaf {
+        static final GLVEndomorphism GLV = (GLVEndomorphism) CURVE.getCurve().getEndomorphism();
+        static final WNafPreCompInfo G_TABLE;
+        static final WNafPreCompInfo LAMBDA_G_TABLE;
+
+        static {
+            ECPoint g = CURVE.getG();
+            ECPoint lambdaG = WNafUtil.mapPointWithPrecomp(g, GENERATOR_WNAF_WIDTH, true, GLV.getPointMap());
+            G_TABLE = WNafUtil.getWNafPreCompInfo(g);
+            LAMBDA_G_TABLE = WNafUtil.getWNafPreCompInfo(lambdaG);
+        }
+    }
+
+    @Override
+    public ECKey.ECDSASignature sign(Sha256Hash hash, BigInteger privKey) {
+        return sign(newSigner(), hash, privKey);
+    }
+
+    @Override
+    public List<ECKey.ECDSASignature> sign(List<Sha256Hash> hashes, List<BigInteger> privKeys) {
+        checkArgument(hashes.size() == privKeys.size(), "Need a private key for every hash");
+        ECDSASigner signer = newSigner();
+        List<ECKey.ECDSASignature> signatures = new ArrayList<>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++)
+            signatures.add(sign(signer, hashes.get(i), privKeys.get(i)));
+        return signatures;
+    }
+
+    private static ECDSASigner newSigner() {
+        return new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+    }
+
+    private static ECKey.ECDSASignature sign(ECDSASigner signer, Sha256Hash hash, BigInteger privKey) {
+        signer.init(true, new ECPrivateKeyParameters(privKey, Generator.PARAMS));
+        BigInteger[] components = signer.generateSignature(hash.getBytes());
+        return new ECKey.ECDSASignature(components[0], components[1]).toCanonicalised();
+    }
+
+    @Override
+    public boolean verify(byte[] hash, ECKey.ECDSASignature signature, byte[] pub) {
+        return verify(hash, signature, CURVE.getCurve().decodePoint(pub));
+    }
+
+    @Override
+    public boolean[] verify(List<byte[]> hashes, List<ECKey.ECDSASignature> signatures, List<byte[]> pubs) {
+        checkArgument(hashes.size() == signatures.size() && hashes.size() == pubs.size(),
+                "Need a hash and a public key for every signature");
+        Map<ByteBuffer, ECPoint> points = new HashMap<>();
+        boolean[] results = new boolean[signatures.size()];
+        for (int i = 0; i < results.length; i++) {
+            ByteBuffer pub = ByteBuffer.wrap(pubs.get(i));
+            ECPoint point = points.get(pub);
+            if (point == null) {
+                point = CURVE.getCurve().decodePoint(pubs.get(i));
+                points.put(pub, point);
+            }
+            results[i] = verify(hashes.get(i), signatures.get(i), point);
+        }
+        return results;
+    }
+
+    @Override
+    public boolean verify(byte[] hash, ECKey.ECDSASignature signature, LazyECPoint pub) {
+        return verify(hash, signature, pub.get());
+    }
+
+    private static boolean verify(byte[] hash, ECKey.ECDSASignature signature, ECPoint pub) {
+        BigInteger n = CURVE.getN();
+        BigInteger r = signature.r, s = signature.s;
+        if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, hash);
+        if (hash.length * 8 > n.bitLength())
+            e = e.shiftRight(hash.length * 8 - n.bitLength());
+        BigInteger w = s.modInverse(n);
+        BigInteger u1 = e.multiply(w).mod(n);
+        BigInteger u2 = r.multiply(w).mod(n);
+        ECPoint point = sumOfGeneratorAndPointMultiplies(u1, pub, u2).normalize();
+        return !point.isInfinity() && point.getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
+    // Computes k·G + l·point. Both scalars are split in halves of about 128 bits with the endomorphism, and the four
+    // windowed NAFs are added up in one pass, so there are half as many doublings as with a plain multiplication.
+    private static ECPoint sumOfGeneratorAndPointMultiplies(BigInteger k, ECPoint point, BigInteger l) {
+        GLVEndomorphism glv = GeneratorWNaf.GLV;
+        BigInteger[] ks = glv.decomposeScalar(k);
+        BigInteger[] ls = glv.decomposeScalar(l);
+        int width = Math.max(2, Math.min(GENERATOR_WNAF_WIDTH, WNafUtil.getWindowSize(Math.max(ls[0].bitLength(),
+                ls[1].bitLength()))));
+        ECPointMap pointMap = glv.getPointMap();
+        ECPoint lambdaPoint = WNafUtil.mapPointWithPrecomp(point, width, true, pointMap);
+        WNafPreCompInfo[] tables = {
+                GeneratorWNaf.G_TABLE, GeneratorWNaf.LAMBDA_G_TABLE,
+                WNafUtil.getWNafPreCompInfo(point), WNafUtil.getWNafPreCompInfo(lambdaPoint)
+        };
+        BigInteger[] scalars = { ks[0], ks[1], ls[0], ls[1] };
+        int[] widths = { GENERATOR_WNAF_WIDTH, GENERATOR_WNAF_WIDTH, width, width };
+        boolean[] negated = new boolean[scalars.length];
+        byte[][] wnafs = new byte[scalars.length][];
+        int length = 0;
+        for (int i = 0; i < scalars.length; i++) {
+            negated[i] = scalars[i].signum() < 0;
+            wnafs[i] = WNafUtil.generateWindowNaf(widths[i], scalars[i].abs());
+            length = Math.max(length, wnafs[i].length);
+        }
+
+        ECPoint infinity = CURVE.getCurve().getInfinity();
+        ECPoint result = infinity;
+        int zeroes = 0;
+        for (int bit = length - 1; bit >= 0; bit--) {
+            ECPoint sum = infinity;
+            for (int i = 0; i < wnafs.length; i++) {
+                int digit = bit < wnafs[i].length ? wnafs[i][bit] : 0;
+                if (digit != 0) {
+                    ECPoint[] table = (digit < 0) == negated[i] ? tables[i].getPreComp() : tables[i].getPreCompNeg();
+                    sum = sum.add(table[Math.abs(digit) >>> 1]);
+                }
+            }
+            if (sum == infinity) {
+                zeroes++;
+                continue;
+            }
+            if (zeroes > 0) {
+                result = result.timesPow2(zeroes);
+                zeroes = 0;
+            }
+            result = result.twicePlus(sum);
+        }
+        return zeroes > 0 ? result.timesPow2(zeroes) : result;
+    }
+
+    @Override
+    public ECPoint publicPointFromPrivate(BigInteger privKey) {
+        /*
+         * TODO: FixedPointCombMultiplier currently doesn't support scalars longer than the group order,
+         * but that could change in future versions.
+         */
+        if (privKey.bitLength() > CURVE.getN().bitLength()) {
+            privKey = privKey.mod(CURVE.getN());
+        }
+        return new FixedPointCombMultiplier().multiply(Generator.G, privKey);
+    }
+
+    @Override
+    public ECPoint tweakPublicPoint(ECPoint point, BigInteger tweak) {
+        return publicPointFromPrivate(tweak).add(point);
+    }
+}
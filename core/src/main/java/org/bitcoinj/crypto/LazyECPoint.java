@@ -29,6 +29,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 /**
  * A wrapper around ECPoint that delays decoding of the point for as long as possible. This is useful because point
  * encode/decode in Bouncy Castle is quite slow especially on Dalvik, as it often involves decompression/recompression.
+ * The other way around, a point given as an ECPoint is converted to affine coordinates and encoded only once, the
+ * first time its encoding is needed, rather than every time the key is hashed or compared.
  */
 public class LazyECPoint {
     // If curve is set, bits is also set. If curve is unset, point is set and bits is unset. Point can be set along
@@ -42,6 +44,10 @@ public class LazyECPoint {
     @Nullable
     private ECPoint point;
 
+    // The encoding of a point that was given as an ECPoint, effectively final like point.
+    @Nullable
+    private byte[] encoded;
+
     public LazyECPoint(ECCurve curve, byte[] bits) {
         this.curve = curve;
         this.bits = bits;
@@ -66,10 +72,19 @@ public class LazyECPoint {
     }
 
     public byte[] getEncoded() {
+        byte[] encoding = getEncodingInternal();
+        return Arrays.copyOf(encoding, encoding.length);
+    }
+
+    private byte[] getEncodingInternal() {
         if (bits != null)
-            return Arrays.copyOf(bits, bits.length);
-        else
-            return get().getEncoded();
+            return bits;
+        if (encoded == null) {
+            // Encoding needs the affine coordinates, so keep the point in that form for later calculations too.
+            point = point.normalize();
+            encoded = point.getEncoded();
+        }
+        return encoded;
     }
 
     public boolean isInfinity() {
@@ -140,8 +155,8 @@ public class LazyECPoint {
     }
 
     public byte[] getEncoded(boolean compressed) {
-        if (compressed == isCompressed() && bits != null)
-            return Arrays.copyOf(bits, bits.length);
+        if (compressed == isCompressed())
+            return getEncoded();
         else
             return get().getEncoded(compressed);
     }
@@ -195,6 +210,6 @@ public class LazyECPoint {
     }
 
     private byte[] getCanonicalEncoding() {
-        return getEncoded(true);
+        return isCompressed() ? getEncodingInternal() : get().getEncoded(true);
     }
 }
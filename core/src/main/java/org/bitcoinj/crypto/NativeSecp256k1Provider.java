@@ -0,0 +1,114 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoin.NativeSecp256k1;
+import org.bitcoin.NativeSecp256k1Util;
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+import static org.bitcoinj.core.ECKey.CURVE;
+
+/**
+ * <p>A {@link Secp256k1Provider} that calls into libsecp256k1 via {@link NativeSecp256k1}. It can only be used if
+ * {@link Secp256k1Context#isEnabled()}.</p>
+ *
+ * <p>Builds of the library don't all have every function. If a call fails because a function is missing, the
+ * operation and all later ones like it fall back to the pure Java code.</p>
+ */
+public class NativeSecp256k1Provider extends Secp256k1Provider {
+    private static final Logger log = LoggerFactory.getLogger(NativeSecp256k1Provider.class);
+
+    private final JavaSecp256k1Provider fallback = new JavaSecp256k1Provider();
+    private volatile boolean nativePubKeys = true;
+    private volatile boolean nativeTweaks = true;
+
+    public NativeSecp256k1Provider() {
+        checkState(Secp256k1Context.isEnabled(), "libsecp256k1 is not loaded");
+    }
+
+    @Override
+    public ECKey.ECDSASignature sign(Sha256Hash hash, BigInteger privKey) {
+        try {
+            byte[] signature = NativeSecp256k1.sign(hash.getBytes(), Utils.bigIntegerToBytes(privKey, 32));
+            return ECKey.ECDSASignature.decodeFromDER(signature);
+        } catch (NativeSecp256k1Util.AssertFailException e) {
+            log.error("Caught AssertFailException inside secp256k1", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] hash, ECKey.ECDSASignature signature, byte[] pub) {
+        return verify(hash, signature.encodeToDER(), pub);
+    }
+
+    @Override
+    public boolean verify(byte[] hash, byte[] derSignature, byte[] pub) {
+        try {
+            return NativeSecp256k1.verify(hash, derSignature, pub);
+        } catch (NativeSecp256k1Util.AssertFailException e) {
+            log.error("Caught AssertFailException inside secp256k1", e);
+            return false;
+        }
+    }
+
+    @Override
+    public ECPoint publicPointFromPrivate(BigInteger privKey) {
+        if (nativePubKeys) {
+            BigInteger reduced = privKey.mod(CURVE.getN());
+            if (reduced.signum() == 0)
+                return CURVE.getCurve().getInfinity();
+            try {
+                byte[] pub = NativeSecp256k1.computePubkey(Utils.bigIntegerToBytes(reduced, 32));
+                if (pub.length > 0)
+                    return CURVE.getCurve().decodePoint(pub);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+            } catch (UnsatisfiedLinkError e) {
+                log.warn("libsecp256k1 can't compute public keys, falling back to Java: {}", e.toString());
+                nativePubKeys = false;
+            }
+        }
+        return fallback.publicPointFromPrivate(privKey);
+    }
+
+    @Override
+    public ECPoint tweakPublicPoint(ECPoint point, BigInteger tweak) {
+        if (nativeTweaks) {
+            try {
+                byte[] pub = NativeSecp256k1.pubKeyTweakAdd(point.getEncoded(true), Utils.bigIntegerToBytes(tweak, 32));
+                return CURVE.getCurve().decodePoint(pub);
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                // The tweak is out of range or the result is the point at infinity.
+                return CURVE.getCurve().getInfinity();
+            } catch (UnsatisfiedLinkError e) {
+                log.warn("libsecp256k1 can't tweak public keys, falling back to Java: {}", e.toString());
+                nativeTweaks = false;
+            }
+        }
+        return fallback.tweakPublicPoint(point, tweak);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.spongycastle.math.ec.ECPoint;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The elliptic curve operations on secp256k1 that bitcoinj needs: signing, verifying, deriving a public key from a
+ * private key and tweaking a public key for <a href="https://github.com/bitcoin/bips/blob/master/bip-0032.mediawiki">
+ * BIP 32</a> public derivation. {@link ECKey} and {@link HDKeyDerivation} do all of these via the provider returned by
+ * {@link #get()}.</p>
+ *
+ * <p>By default that is the native libsecp256k1 provider if the library could be loaded, and the pure Java provider
+ * otherwise. Either way operations fall back to the pure Java code if the native code can't do them. An app can
+ * install a provider of its own via {@link #set(Secp256k1Provider)}.</p>
+ *
+ * <p>There are batch versions of signing and verifying, for callers that have many signatures to deal with at once,
+ * like the wallet signing a transaction with many inputs. They return the same results as doing the operations one by
+ * one, but providers can share work between them.</p>
+ */
+public abstract class Secp256k1Provider {
+    @Nullable private static volatile Secp256k1Provider instance;
+
+    /** Returns the provider in use, choosing the default one on first use. */
+    public static Secp256k1Provider get() {
+        Secp256k1Provider provider = instance;
+        if (provider == null) {
+            provider = Secp256k1Context.isEnabled() ? new NativeSecp256k1Provider() : new JavaSecp256k1Provider();
+            instance = provider;
+        }
+        return provider;
+    }
+
+    /** Sets the provider to use from now on. Passing null goes back to the default one. */
+    public static void set(@Nullable Secp256k1Provider provider) {
+        instance = provider;
+    }
+
+    /** Signs the given hash with the given private key, returning a canonical signature. */
+    public abstract ECKey.ECDSASignature sign(Sha256Hash hash, BigInteger privKey);
+
+    /** Verifies the signature of the given 32 byte hash against the given encoded public key. */
+    public abstract boolean verify(byte[] hash, ECKey.ECDSASignature signature, byte[] pub);
+
+    /** Verifies the DER encoded signature of the given 32 byte hash against the given encoded public key. */
+    public boolean verify(byte[] hash, byte[] derSignature, byte[] pub) {
+        return verify(hash, ECKey.ECDSASignature.decodeFromDER(derSignature), pub);
+    }
+
+    /**
+     * Verifies the signature of the given 32 byte hash against the given public key. Providers that work on points
+     * can use the decoded point, along with anything they cached on it for earlier signatures by the same key.
+     */
+    public boolean verify(byte[] hash, ECKey.ECDSASignature signature, LazyECPoint pub) {
+        return verify(hash, signature, pub.getEncoded());
+    }
+
+    /** Returns the public key point for the given private key, which is reduced modulo the curve order first. */
+    public abstract ECPoint publicPointFromPrivate(BigInteger privKey);
+
+    /**
+     * Returns the given point plus the generator times the given tweak, which is how BIP 32 derives a child public key
+     * from its parent. Returns the point at infinity if the result is not a valid public key.
+     */
+    public abstract ECPoint tweakPublicPoint(ECPoint point, BigInteger tweak);
+
+    /** Signs each of the given hashes with the private key at the same position in the other list. */
+    public List<ECKey.ECDSASignature> sign(List<Sha256Hash> hashes, List<BigInteger> privKeys) {
+        checkArgument(hashes.size() == privKeys.size(), "Need a private key for every hash");
+        List<ECKey.ECDSASignature> signatures = new ArrayList<>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++)
+            signatures.add(sign(hashes.get(i), privKeys.get(i)));
+        return signatures;
+    }
+
+    /**
+     * Verifies each of the given signatures, of the hash and against the public key at the same position in the other
+     * lists. The result has an element for every signature, true if it was valid.
+     */
+    public boolean[] verify(List<byte[]> hashes, List<ECKey.ECDSASignature> signatures, List<byte[]> pubs) {
+        checkArgument(hashes.size() == signatures.size() && hashes.size() == pubs.size(),
+                "Need a hash and a public key for every signature");
+        boolean[] results = new boolean[signatures.size()];
+        for (int i = 0; i < results.length; i++)
+            results[i] = verify(hashes.get(i), signatures.get(i), pubs.get(i));
+        return results;
+    }
+}
@@ -198,7 +198,8 @@ public class WalletAppKit extends AbstractIdleService {
     }
 
     /**
-     * Sets the peer discovery class to use. If none is provided then DNS is used, which is a reasonable default.
+     * Sets the peer discovery class to use. If none is provided then DNS is used, which is a reasonable default. The
+     * answers of the DNS seeds are then cached in a file next to the wallet.
      */
     public WalletAppKit setDiscovery(@Nullable PeerDiscovery discovery) {
         this.discovery = discovery;
@@ -316,7 +317,8 @@ public class WalletAppKit extends AbstractIdleService {
                 vPeerGroup.setMaxConnections(peerAddresses.length);
                 peerAddresses = null;
             } else if (!params.getId().equals(NetworkParameters.ID_REGTEST)) {
-                vPeerGroup.addPeerDiscovery(discovery != null ? discovery : new DnsDiscovery(params));
+                vPeerGroup.addPeerDiscovery(discovery != null ? discovery
+                        : new DnsDiscovery(params, new DnsSeedCache(new File(directory, filePrefix + ".dnsseeds"))));
             }
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
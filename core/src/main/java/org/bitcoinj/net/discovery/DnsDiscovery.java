@@ -18,8 +18,11 @@
 package org.bitcoinj.net.discovery;
 
 import org.bitcoinj.core.*;
-import org.bitcoinj.utils.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -31,11 +34,27 @@ import java.util.concurrent.*;
  * However, if all hosts passed fail to resolve a PeerDiscoveryException will be thrown during getPeers().
  * </p>
  *
- * <p>DNS seeds do not attempt to enumerate every peer on the network. {@link DnsDiscovery#getPeers(long, java.util.concurrent.TimeUnit)}
- * will return up to 30 random peers from the set of those returned within the timeout period. If you want more peers
- * to connect to, you need to discover them via other means (like addr broadcasts).</p>
+ * <p>DNS seeds do not attempt to enumerate every peer on the network. The seeds are looked up concurrently and
+ * {@link DnsDiscovery#getPeers(long, long, java.util.concurrent.TimeUnit)} returns up to
+ * {@link #DEFAULT_MAX_ADDRESSES} random peers, spread evenly over the seeds that answered. Once at least
+ * {@link #MIN_ANSWERS} seeds answered with enough peers, the others are not waited for. If you want more peers to
+ * connect to, you need to discover them via other means (like addr broadcasts).</p>
+ *
+ * <p>The seeds are looked up with a {@link DnsResolver}, by default {@link SystemDnsResolver}. Given a
+ * {@link DnsSeedCache}, answers are remembered for as long as their time to live allows, so that a restart can return
+ * peers without waiting for any seed.</p>
  */
 public class DnsDiscovery extends MultiplexingDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(DnsDiscovery.class);
+
+    /**
+     * The most addresses returned by default, see {@link #setMaxAddresses(int)}. This is as many as a
+     * {@link PeerGroup} asks for by default.
+     */
+    public static final int DEFAULT_MAX_ADDRESSES = 100;
+
+    @Nullable private final DnsSeedCache cache;
+
     /**
      * Supports finding peers through DNS A records. Community run DNS entry points will be used.
      *
@@ -45,6 +64,17 @@ public class DnsDiscovery extends MultiplexingDiscovery {
         this(netParams.getDnsSeeds(), netParams);
     }
 
+    /**
+     * Supports finding peers through DNS A records. Community run DNS entry points will be used, and their answers
+     * remembered in the given cache.
+     *
+     * @param netParams Network parameters to be used for port information.
+     * @param cache Where answers are remembered and saved after each lookup.
+     */
+    public DnsDiscovery(NetworkParameters netParams, DnsSeedCache cache) {
+        this(netParams.getDnsSeeds(), netParams, new SystemDnsResolver(), cache);
+    }
+
     /**
      * Supports finding peers through DNS A records.
      *
@@ -52,50 +82,95 @@ public class DnsDiscovery extends MultiplexingDiscovery {
      * @param params Network parameters to be used for port information.
      */
     public DnsDiscovery(String[] dnsSeeds, NetworkParameters params) {
-        super(params, buildDiscoveries(params, dnsSeeds));
+        this(dnsSeeds, params, new SystemDnsResolver(), null);
+    }
+
+    /**
+     * Supports finding peers through DNS A records.
+     *
+     * @param dnsSeeds Host names to be examined for seed addresses.
+     * @param params Network parameters to be used for port information.
+     * @param resolver Used to look up the seeds.
+     * @param cache Where answers are remembered and saved after each lookup, or null to look up the seeds every time.
+     */
+    public DnsDiscovery(String[] dnsSeeds, NetworkParameters params, DnsResolver resolver, @Nullable DnsSeedCache cache) {
+        super(params, buildDiscoveries(params, dnsSeeds, resolver, cache));
+        this.cache = cache;
+        setMaxAddresses(DEFAULT_MAX_ADDRESSES);
     }
 
-    private static List<PeerDiscovery> buildDiscoveries(NetworkParameters params, String[] seeds) {
+    private static List<PeerDiscovery> buildDiscoveries(NetworkParameters params, String[] seeds,
+                                                        DnsResolver resolver, @Nullable DnsSeedCache cache) {
         List<PeerDiscovery> discoveries = new ArrayList<>();
         if (seeds != null)
             for (String seed : seeds)
-                discoveries.add(new DnsSeedDiscovery(params, seed));
+                discoveries.add(new DnsSeedDiscovery(params, seed, resolver, cache));
         return discoveries;
     }
 
     @Override
-    protected ExecutorService createExecutor() {
-        // Attempted workaround for reported bugs on Linux in which gethostbyname does not appear to be properly
-        // thread safe and can cause segfaults on some libc versions.
-        if (System.getProperty("os.name").toLowerCase().contains("linux"))
-            return Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("DNS seed lookups"));
-        else
-            return Executors.newFixedThreadPool(seeds.size(), new DaemonThreadFactory("DNS seed lookups"));
+    public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        try {
+            return super.getPeers(services, timeoutValue, timeoutUnit);
+        } finally {
+            saveCache();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        saveCache();
+    }
+
+    private void saveCache() {
+        if (cache == null)
+            return;
+        try {
+            cache.save();
+        } catch (IOException e) {
+            log.warn("Failed to save the DNS seed cache", e);
+        }
     }
 
     /** Implements discovery from a single DNS host. */
     public static class DnsSeedDiscovery implements PeerDiscovery {
         private final String hostname;
         private final NetworkParameters params;
+        private final DnsResolver resolver;
+        @Nullable private final DnsSeedCache cache;
 
         public DnsSeedDiscovery(NetworkParameters params, String hostname) {
+            this(params, hostname, new SystemDnsResolver(), null);
+        }
+
+        public DnsSeedDiscovery(NetworkParameters params, String hostname, DnsResolver resolver,
+                                @Nullable DnsSeedCache cache) {
             this.hostname = hostname;
             this.params = params;
+            this.resolver = resolver;
+            this.cache = cache;
         }
 
         @Override
         public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
             if (services != 0)
                 throw new PeerDiscoveryException("DNS seeds cannot filter by services: " + services);
-            try {
-                InetAddress[] response = InetAddress.getAllByName(hostname);
-                InetSocketAddress[] result = new InetSocketAddress[response.length];
-                for (int i = 0; i < response.length; i++)
-                    result[i] = new InetSocketAddress(response[i], params.getPort());
-                return result;
-            } catch (UnknownHostException e) {
-                throw new PeerDiscoveryException(e);
+            List<InetAddress> response = cache != null ? cache.get(hostname) : null;
+            if (response == null) {
+                try {
+                    DnsResolver.Answer answer = resolver.resolve(hostname);
+                    if (cache != null)
+                        cache.put(hostname, answer);
+                    response = answer.addresses;
+                } catch (IOException e) {
+                    throw new PeerDiscoveryException(e);
+                }
             }
+            InetSocketAddress[] result = new InetSocketAddress[response.size()];
+            for (int i = 0; i < response.size(); i++)
+                result[i] = new InetSocketAddress(response.get(i), params.getPort());
+            return result;
         }
 
         @Override
@@ -107,4 +182,29 @@ public class DnsDiscovery extends MultiplexingDiscovery {
             return hostname;
         }
     }
+
+    /**
+     * Resolves host names with {@link InetAddress#getAllByName(String)}, so answers are subject to the name service
+     * caching of the JVM. As the time to live of the records is not known, answers are given the one passed to the
+     * constructor.
+     */
+    public static class SystemDnsResolver implements DnsResolver {
+        /** The time to live given to answers by default, in seconds. */
+        public static final long DEFAULT_TTL_SECONDS = 60 * 60;
+
+        private final long ttlSeconds;
+
+        public SystemDnsResolver() {
+            this(DEFAULT_TTL_SECONDS);
+        }
+
+        public SystemDnsResolver(long ttlSeconds) {
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        @Override
+        public Answer resolve(String hostname) throws UnknownHostException {
+            return new Answer(Arrays.asList(InetAddress.getAllByName(hostname)), ttlSeconds);
+        }
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Looks up the addresses of a DNS seed for {@link DnsDiscovery}. Implement this to query name servers directly,
+ * for example to learn the real time to live of the records, or to answer from a fixed table in tests.</p>
+ *
+ * <p>Implementations must be thread safe, as the seeds are looked up concurrently.</p>
+ */
+public interface DnsResolver {
+    /**
+     * Returns the addresses the given host name resolves to. May block, and should give up after a reasonable time.
+     *
+     * @throws IOException if the name could not be resolved
+     */
+    Answer resolve(String hostname) throws IOException;
+
+    /** The addresses a host name resolves to, and for how long they may be cached. */
+    class Answer {
+        public final List<InetAddress> addresses;
+        public final long ttlSeconds;
+
+        public Answer(List<InetAddress> addresses, long ttlSeconds) {
+            checkArgument(ttlSeconds >= 0, "Negative time to live: %s", ttlSeconds);
+            this.addresses = ImmutableList.copyOf(addresses);
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return addresses.size() + " addresses, TTL " + ttlSeconds + "s";
+        }
+    }
+}
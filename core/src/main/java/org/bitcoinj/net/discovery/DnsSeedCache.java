@@ -0,0 +1,203 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Remembers what DNS seeds resolved to across restarts, for as long as the time to live of the answers allows, so
+ * that {@link DnsDiscovery} can return peers straight away at startup instead of waiting for the seeds. The answers
+ * are kept in memory and saved to the file given to the constructor by {@link #save()}. Expired answers are never
+ * returned and are forgotten when saving.</p>
+ */
+public class DnsSeedCache {
+    private static final Logger log = LoggerFactory.getLogger(DnsSeedCache.class);
+
+    private static final int FILE_MAGIC = 0x646e7363;
+    private static final int FILE_VERSION = 1;
+
+    @Nullable private final File file;
+    private final ReentrantLock lock = Threading.lock("dnsseedcache");
+    @GuardedBy("lock") private final Map<String, Entry> entries = new HashMap<>();
+    @GuardedBy("lock") private boolean changed;
+
+    private static class Entry {
+        final List<InetAddress> addresses;
+        // In seconds.
+        final long expiryTime;
+
+        Entry(List<InetAddress> addresses, long expiryTime) {
+            this.addresses = addresses;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * Creates a cache kept in the given file, loading the answers in it if it exists. A file that can't be read is
+     * logged and ignored. If file is null, the cache is only kept in memory.
+     */
+    public DnsSeedCache(@Nullable File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                load(file);
+            } catch (IOException e) {
+                log.warn("Could not read DNS seed answers from {}, starting afresh: {}", file, e.toString());
+                lock.lock();
+                try {
+                    entries.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /** Returns the addresses the given seed resolved to, or null if it was not resolved or the answer expired. */
+    @Nullable
+    public List<InetAddress> get(String hostname) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(hostname);
+            if (entry == null || entry.expiryTime <= Utils.currentTimeSeconds())
+                return null;
+            return entry.addresses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Remembers what the given seed resolved to. Answers without addresses or with a time to live of zero are not. */
+    public void put(String hostname, DnsResolver.Answer answer) {
+        if (answer.addresses.isEmpty() || answer.ttlSeconds == 0)
+            return;
+        lock.lock();
+        try {
+            entries.put(hostname, new Entry(answer.addresses, Utils.currentTimeSeconds() + answer.ttlSeconds));
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of seeds with an answer that has not expired. */
+    public int size() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeSeconds();
+            int size = 0;
+            for (Entry entry : entries.values())
+                if (entry.expiryTime > now)
+                    size++;
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the answers that have not expired to the file, if anything changed since it was loaded or last saved,
+     * first to a temporary file in the same directory and then renaming it. Does nothing if the cache has no file.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!changed)
+                return;
+            long now = Utils.currentTimeSeconds();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();)
+                if (it.next().expiryTime <= now)
+                    it.remove();
+            Utils.replaceFile(file, "dnsseeds", new Utils.FileWriter() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(FILE_VERSION);
+                    out.writeInt(entries.size());
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(entry.getValue().expiryTime);
+                        out.writeInt(entry.getValue().addresses.size());
+                        for (InetAddress address : entry.getValue().addresses) {
+                            byte[] addressBytes = address.getAddress();
+                            out.writeByte(addressBytes.length);
+                            out.write(addressBytes);
+                        }
+                    }
+                    out.flush();
+                }
+            });
+            changed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DnsSeedCache of " + size() + " seeds" + (file != null ? " in " + file : "");
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        lock.lock();
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a DNS seed cache file");
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown version " + version + " of " + file);
+            long now = Utils.currentTimeSeconds();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String hostname = in.readUTF();
+                long expiryTime = in.readLong();
+                int numAddresses = in.readInt();
+                if (numAddresses < 0)
+                    throw new IOException("Negative number of addresses in " + file);
+                ImmutableList.Builder<InetAddress> addresses = ImmutableList.builder();
+                for (int j = 0; j < numAddresses; j++) {
+                    byte[] addressBytes = new byte[in.readUnsignedByte()];
+                    in.readFully(addressBytes);
+                    addresses.add(InetAddress.getByAddress(addressBytes));
+                }
+                if (expiryTime > now)
+                    entries.put(hostname, new Entry(addresses.build(), expiryTime));
+            }
+            log.info("Loaded the answers of {} DNS seeds from {}", entries.size(), file);
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated", e);
+        } finally {
+            lock.unlock();
+            in.close();
+        }
+    }
+}
@@ -31,7 +31,9 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -39,7 +41,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 /**
  * MultiplexingDiscovery queries multiple PeerDiscovery objects, shuffles their responses and then returns the results,
  * thus selecting randomly between them and reducing the influence of any particular seed. Any that don't respond
- * within the timeout are ignored. Backends are queried in parallel. Backends may block.
+ * within the timeout are ignored. Backends are queried in parallel. Backends may block. If a maximum number of
+ * addresses is set, the answers are taken from the backends in turn, so that none provides much more than its share,
+ * and once {@link #MIN_ANSWERS} backends answered with enough addresses the others are not waited for.
  */
 public class MultiplexingDiscovery implements PeerDiscovery {
     private static final Logger log = LoggerFactory.getLogger(MultiplexingDiscovery.class);
@@ -47,6 +51,10 @@ public class MultiplexingDiscovery implements PeerDiscovery {
     protected final List<PeerDiscovery> seeds;
     protected final NetworkParameters netParams;
     private volatile ExecutorService vThreadPool;
+    private volatile int vMaxAddresses = Integer.MAX_VALUE;
+
+    /** The fewest backends that must have answered before {@link #getPeers(long, long, TimeUnit)} returns early. */
+    public static final int MIN_ANSWERS = 3;
 
     /**
      * Builds a suitable set of peer discoveries. Will query them in parallel before producing a merged response.
@@ -81,46 +89,79 @@ public class MultiplexingDiscovery implements PeerDiscovery {
         this.seeds = seeds;
     }
 
+    /**
+     * Sets the most addresses {@link #getPeers(long, long, TimeUnit)} returns. Once that many arrived from at least
+     * {@link #MIN_ANSWERS} backends, it returns without waiting for the backends that did not answer yet. The addresses
+     * are spread evenly over the backends that answered. By default all backends are waited for, up to the timeout.
+     */
+    public void setMaxAddresses(int maxAddresses) {
+        checkArgument(maxAddresses > 0);
+        this.vMaxAddresses = maxAddresses;
+    }
+
+    /** Returns the most addresses {@link #getPeers(long, long, TimeUnit)} returns, see {@link #setMaxAddresses(int)}. */
+    public int getMaxAddresses() {
+        return vMaxAddresses;
+    }
+
     @Override
     public InetSocketAddress[] getPeers(final long services, final long timeoutValue, final TimeUnit timeoutUnit) throws PeerDiscoveryException {
         vThreadPool = createExecutor();
         try {
-            List<Callable<InetSocketAddress[]>> tasks = Lists.newArrayList();
+            int maxAddresses = vMaxAddresses;
+            long deadline = System.nanoTime() + timeoutUnit.toNanos(timeoutValue);
+            // Take the answers in the order they arrive, so that slow backends don't hold up the fast ones.
+            CompletionService<InetSocketAddress[]> completionService = new ExecutorCompletionService<>(vThreadPool);
+            Map<Future<InetSocketAddress[]>, PeerDiscovery> pending = new HashMap<>();
             for (final PeerDiscovery seed : seeds) {
-                tasks.add(new Callable<InetSocketAddress[]>() {
+                pending.put(completionService.submit(new Callable<InetSocketAddress[]>() {
                     @Override
                     public InetSocketAddress[] call() throws Exception {
                         return seed.getPeers(services, timeoutValue,  timeoutUnit);
                     }
-                });
+                }), seed);
             }
-            final List<Future<InetSocketAddress[]>> futures = vThreadPool.invokeAll(tasks, timeoutValue, timeoutUnit);
-            ArrayList<InetSocketAddress> addrs = Lists.newArrayList();
-            for (int i = 0; i < futures.size(); i++) {
-                Future<InetSocketAddress[]> future = futures.get(i);
-                if (future.isCancelled()) {
-                    log.warn("Seed {}: timed out", seeds.get(i));
-                    continue;  // Timed out.
-                }
-                final InetSocketAddress[] inetAddresses;
+            // The answers of the backends that answered, each shuffled.
+            List<List<InetSocketAddress>> answers = new ArrayList<>();
+            int count = 0;
+            while (!pending.isEmpty() && (count < maxAddresses || answers.size() < MIN_ANSWERS)) {
+                Future<InetSocketAddress[]> future = completionService.poll(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+                if (future == null)
+                    break;  // Timed out.
+                PeerDiscovery seed = pending.remove(future);
                 try {
-                    inetAddresses = future.get();
+                    List<InetSocketAddress> answer = Lists.newArrayList(future.get());
+                    if (answer.isEmpty())
+                        continue;
+                    Collections.shuffle(answer);
+                    answers.add(answer);
+                    count += answer.size();
                 } catch (ExecutionException e) {
-                    log.warn("Seed {}: failed to look up: {}", seeds.get(i), e.getMessage());
-                    continue;
+                    log.warn("Seed {}: failed to look up: {}", seed, e.getMessage());
                 }
-                Collections.addAll(addrs, inetAddresses);
             }
-            if (addrs.size() == 0)
+            for (PeerDiscovery seed : pending.values()) {
+                if (count < maxAddresses || answers.size() < MIN_ANSWERS)
+                    log.warn("Seed {}: timed out", seed);
+                else
+                    log.info("Seed {}: not waited for, have {} addresses from {} seeds", seed, count, answers.size());
+            }
+            if (count == 0)
                 throw new PeerDiscoveryException("No peer discovery returned any results in "
                         + timeoutUnit.toMillis(timeoutValue) + "ms. Check internet connection?");
+            // Take an address from each answer in turn, so that every backend provides about the same number.
+            ArrayList<InetSocketAddress> addrs = Lists.newArrayList();
+            for (int i = 0; addrs.size() < Math.min(count, maxAddresses); i++)
+                for (List<InetSocketAddress> answer : answers)
+                    if (i < answer.size() && addrs.size() < maxAddresses)
+                        addrs.add(answer.get(i));
             Collections.shuffle(addrs);
-            vThreadPool.shutdownNow();
             return addrs.toArray(new InetSocketAddress[addrs.size()]);
         } catch (InterruptedException e) {
             throw new PeerDiscoveryException(e);
         } finally {
-            vThreadPool.shutdown();
+            vThreadPool.shutdownNow();
         }
     }
 
@@ -0,0 +1,438 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, with how well connecting to them went, so that a
+ * {@link PeerGroup} can connect to known good peers straight away instead of waiting for DNS seeds. Give it to
+ * {@link PeerGroup#setAddressDatabase(PeerAddressDatabase)}: the peer group then adds the addresses it discovers and
+ * those peers gossip in address messages, and records connection successes and failures, the services peers offer
+ * and their ping times.</p>
+ *
+ * <p>Candidates to connect to are picked by score. Addresses that connected recently score highest, each failure in a
+ * row halves the score, and a long ping time lowers it. To avoid ending up connected to a single network, which an
+ * attacker could control, candidates are spread over network groups (a /16 for IPv4, a /32 for IPv6) and a group
+ * holds at most {@link #MAX_ADDRESSES_PER_GROUP} addresses.</p>
+ *
+ * <p>It can also be used as a plain {@link PeerDiscovery}. The addresses are kept in memory and saved to the file
+ * given to the constructor by {@link #save()}. Addresses that have failed too often, or that were never connected to
+ * and not seen for a month, are forgotten when saving.</p>
+ */
+public class PeerAddressDatabase implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressDatabase.class);
+
+    /** The most addresses the database holds. */
+    public static final int MAX_ADDRESSES = 20000;
+    /** The most addresses the database holds in one network group. */
+    public static final int MAX_ADDRESSES_PER_GROUP = 64;
+    /** The most addresses returned by {@link #getPeers(long, long, TimeUnit)}. */
+    public static final int MAX_CANDIDATES = 100;
+
+    private static final int FILE_MAGIC = 0x61646472;
+    private static final int FILE_VERSION = 1;
+    private static final long DAY_SECONDS = 24 * 60 * 60;
+    private static final int MAX_FAILURES = 10;
+
+    @Nullable private final File file;
+    private final ReentrantLock lock = Threading.lock("peeraddressdatabase");
+    @GuardedBy("lock") private final Map<InetSocketAddress, Record> records = new HashMap<>();
+    // The records of each network group, so that a full group is made room in without looking at the others.
+    @GuardedBy("lock") private final Map<Long, List<Record>> groups = new HashMap<>();
+    @GuardedBy("lock") private boolean changed;
+
+    private static class Record {
+        final InetSocketAddress address;
+        final long group;
+        long services;
+        // Times in seconds, zero if never.
+        long lastSeen;
+        long lastSuccess;
+        long lastAttempt;
+        // Failures since the last success.
+        int failures;
+        int successes;
+        // Smoothed ping time, -1 if not known.
+        int latencyMillis = -1;
+
+        Record(InetSocketAddress address) {
+            this.address = address;
+            this.group = groupOf(address.getAddress());
+        }
+    }
+
+    /**
+     * Creates a database kept in the given file, loading the addresses in it if it exists. A file that can't be read is
+     * logged and ignored, as the database is only a cache. If file is null, the database is only kept in memory.
+     */
+    public PeerAddressDatabase(@Nullable File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try {
+                load(file);
+            } catch (IOException e) {
+                log.warn("Could not read peer addresses from {}, starting afresh: {}", file, e.toString());
+                lock.lock();
+                try {
+                    records.clear();
+                    groups.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an address seen in discovery or gossip, or updates when it was last seen. Addresses that are not IP
+     * addresses, and new addresses when the database or their network group is full, are ignored.
+     *
+     * @param services the services the address is said to offer, zero if not known
+     * @param timeSeconds when the address was last seen
+     * @return true if the address is in the database afterwards
+     */
+    public boolean add(InetSocketAddress address, long services, long timeSeconds) {
+        if (address.isUnresolved())
+            return false;
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record == null) {
+                record = new Record(address);
+                if (records.size() >= MAX_ADDRESSES
+                        || (groupSize(record.group) >= MAX_ADDRESSES_PER_GROUP && !evictWorstOfGroup(record.group)))
+                    return false;
+                addRecord(record);
+            }
+            record.lastSeen = Math.max(record.lastSeen, Math.min(timeSeconds, Utils.currentTimeSeconds()));
+            if (services != 0 && record.successes == 0)
+                record.services = services;
+            changed = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds addresses seen in discovery or in an address message. */
+    public void addAll(Collection<PeerAddress> addresses) {
+        long now = Utils.currentTimeSeconds();
+        for (PeerAddress address : addresses) {
+            if (address.getAddr() == null)
+                continue;
+            // Addresses from discovery carry no time, those from gossip may claim any.
+            long time = address.getTime() > 0 ? address.getTime() : now;
+            add(new InetSocketAddress(address.getAddr(), address.getPort()), address.getServices().longValue(), time);
+        }
+    }
+
+    /** Records a successful connection, with the services the peer announced in its version message. */
+    public void recordSuccess(InetSocketAddress address, long services) {
+        lock.lock();
+        try {
+            if (!add(address, services, Utils.currentTimeSeconds()))
+                return;
+            Record record = records.get(address);
+            long now = Utils.currentTimeSeconds();
+            record.lastSuccess = now;
+            record.lastAttempt = now;
+            record.failures = 0;
+            record.successes++;
+            record.services = services;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a failure to connect. */
+    public void recordFailure(InetSocketAddress address) {
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record == null)
+                return;
+            record.lastAttempt = Utils.currentTimeSeconds();
+            record.failures++;
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records the ping time of a connected peer, as given by {@link org.bitcoinj.core.Peer#getPingTime()}. */
+    public void recordPingTime(InetSocketAddress address, long pingMillis) {
+        if (pingMillis < 0 || pingMillis == Long.MAX_VALUE)
+            return;
+        int millis = (int) Math.min(pingMillis, Integer.MAX_VALUE);
+        lock.lock();
+        try {
+            Record record = records.get(address);
+            if (record == null)
+                return;
+            record.latencyMillis = record.latencyMillis < 0 ? millis : (3 * record.latencyMillis + millis) / 4;
+            changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns at most the given number of addresses to connect to, best first, spread over network groups: the best of
+     * every group comes before the second best of any. Addresses known not to offer the required services are left
+     * out.
+     */
+    public List<InetSocketAddress> getCandidates(int maxCandidates, long requiredServices) {
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeSeconds();
+            List<Record> eligible = new ArrayList<>(records.size());
+            final Map<Record, Double> scores = new HashMap<>();
+            for (Record record : records.values()) {
+                if (record.services != 0 && (record.services & requiredServices) != requiredServices)
+                    continue;
+                eligible.add(record);
+                scores.put(record, score(record, now));
+            }
+            Collections.sort(eligible, new Comparator<Record>() {
+                @Override
+                public int compare(Record a, Record b) {
+                    return Double.compare(scores.get(b), scores.get(a));
+                }
+            });
+            List<InetSocketAddress> candidates = new ArrayList<>(Math.min(maxCandidates, eligible.size()));
+            Map<Long, Integer> taken = new HashMap<>();
+            for (int round = 0; candidates.size() < maxCandidates && !eligible.isEmpty(); round++) {
+                Iterator<Record> iterator = eligible.iterator();
+                while (iterator.hasNext() && candidates.size() < maxCandidates) {
+                    Record record = iterator.next();
+                    Integer count = taken.get(record.group);
+                    if ((count == null ? 0 : count) != round)
+                        continue;
+                    candidates.add(record.address);
+                    taken.put(record.group, round + 1);
+                    iterator.remove();
+                }
+            }
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public InetSocketAddress[] getPeers(long services, long timeoutValue, TimeUnit timeoutUnit) {
+        List<InetSocketAddress> candidates = getCandidates(MAX_CANDIDATES, services);
+        return candidates.toArray(new InetSocketAddress[candidates.size()]);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    /** Returns the number of addresses in the database. */
+    public int size() {
+        lock.lock();
+        try {
+            return records.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the database to its file if anything changed since it was loaded or last saved, first to a temporary
+     * file in the same directory and then renaming it. Does nothing if the database has no file.
+     */
+    public void save() throws IOException {
+        if (file == null)
+            return;
+        lock.lock();
+        try {
+            if (!changed)
+                return;
+            forgetTerrible();
+            Utils.replaceFile(file, "peers", new Utils.FileWriter() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(FILE_VERSION);
+                    out.writeInt(records.size());
+                    for (Record record : records.values()) {
+                        byte[] addressBytes = record.address.getAddress().getAddress();
+                        out.writeByte(addressBytes.length);
+                        out.write(addressBytes);
+                        out.writeShort(record.address.getPort());
+                        out.writeLong(record.services);
+                        out.writeLong(record.lastSeen);
+                        out.writeLong(record.lastSuccess);
+                        out.writeLong(record.lastAttempt);
+                        out.writeInt(record.failures);
+                        out.writeInt(record.successes);
+                        out.writeInt(record.latencyMillis);
+                    }
+                    out.flush();
+                }
+            });
+            changed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PeerAddressDatabase of " + size() + " addresses" + (file != null ? " in " + file : "");
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        lock.lock();
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a peer address file");
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown version " + version + " of " + file);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] addressBytes = new byte[in.readUnsignedByte()];
+                in.readFully(addressBytes);
+                Record record = new Record(new InetSocketAddress(InetAddress.getByAddress(addressBytes),
+                        in.readUnsignedShort()));
+                record.services = in.readLong();
+                record.lastSeen = in.readLong();
+                record.lastSuccess = in.readLong();
+                record.lastAttempt = in.readLong();
+                record.failures = in.readInt();
+                record.successes = in.readInt();
+                record.latencyMillis = in.readInt();
+                if (records.size() >= MAX_ADDRESSES || groupSize(record.group) >= MAX_ADDRESSES_PER_GROUP
+                        || records.containsKey(record.address))
+                    continue;
+                addRecord(record);
+            }
+            log.info("Loaded {} peer addresses from {}", records.size(), file);
+        } catch (EOFException e) {
+            throw new IOException(file + " is truncated", e);
+        } finally {
+            lock.unlock();
+            in.close();
+        }
+    }
+
+    // Forgets addresses that failed too often and have not worked for a week, or that never worked and were not seen
+    // for a month.
+    @GuardedBy("lock")
+    private void forgetTerrible() {
+        long now = Utils.currentTimeSeconds();
+        Iterator<Record> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            boolean failing = record.failures >= MAX_FAILURES && now - record.lastSuccess > 7 * DAY_SECONDS;
+            boolean stale = record.successes == 0 && now - record.lastSeen > 30 * DAY_SECONDS;
+            if (failing || stale) {
+                iterator.remove();
+                removedFromGroup(record);
+            }
+        }
+    }
+
+    // Makes room in a full group by evicting its worst address, unless that worked at some point.
+    @GuardedBy("lock")
+    private boolean evictWorstOfGroup(long group) {
+        long now = Utils.currentTimeSeconds();
+        Record worst = null;
+        double worstScore = Double.MAX_VALUE;
+        for (Record record : groups.get(group)) {
+            double score = score(record, now);
+            if (score < worstScore) {
+                worst = record;
+                worstScore = score;
+            }
+        }
+        if (worst == null || worst.successes > 0)
+            return false;
+        records.remove(worst.address);
+        removedFromGroup(worst);
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private int groupSize(long group) {
+        List<Record> members = groups.get(group);
+        return members != null ? members.size() : 0;
+    }
+
+    @GuardedBy("lock")
+    private void addRecord(Record record) {
+        records.put(record.address, record);
+        List<Record> members = groups.get(record.group);
+        if (members == null) {
+            members = new ArrayList<>();
+            groups.put(record.group, members);
+        }
+        members.add(record);
+    }
+
+    @GuardedBy("lock")
+    private void removedFromGroup(Record record) {
+        List<Record> members = groups.get(record.group);
+        members.remove(record);
+        if (members.isEmpty())
+            groups.remove(record.group);
+    }
+
+    private static double score(Record record, long now) {
+        double score = 1;
+        if (record.lastSuccess > 0) {
+            // Worked before, likely to work again. This counts less every week.
+            score += 4 * Math.pow(0.5, (double) (now - record.lastSuccess) / (7 * DAY_SECONDS));
+        } else if (record.lastSeen > 0) {
+            // Freshly gossiped addresses are more likely to be up.
+            score += 0.5 * Math.pow(0.5, (double) (now - record.lastSeen) / DAY_SECONDS);
+        }
+        score *= Math.pow(0.5, Math.min(record.failures, MAX_FAILURES));
+        if (record.latencyMillis >= 0)
+            score /= 1 + record.latencyMillis / 1000.0;
+        return score;
+    }
+
+    // The network group of an address: its first two bytes for IPv4, the first four for IPv6.
+    private static long groupOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4)
+            return (4L << 32) | ((bytes[0] & 0xffL) << 8) | (bytes[1] & 0xffL);
+        return (6L << 32) | ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8)
+                | (bytes[3] & 0xffL);
+    }
+}
@@ -25,7 +25,6 @@ import java.util.concurrent.TimeUnit;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
-import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Utils;
@@ -33,6 +32,7 @@ import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.HeaderIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -91,20 +91,17 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain. Unless the store is a HeaderIndex, which keeps the recent
+        // blocks by height, this walks back through the whole interval. That only occurs every two weeks after the
+        // initial block chain download, but adds up during it.
         final Stopwatch watch = Stopwatch.createStarted();
-        Sha256Hash hash = prev.getHash();
-        StoredBlock cursor = null;
         final int interval = this.getInterval();
-        for (int i = 0; i < interval; i++) {
-            cursor = blockStore.get(hash);
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
-            }
-            hash = cursor.getHeader().getPrevBlockHash();
+        final StoredBlock cursor = HeaderIndex.getAncestor(blockStore, storedPrev, storedPrev.getHeight() - interval + 1);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the last transition point from " +
+                    prev.getHash());
         }
         checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
                 "Didn't arrive at a transition point.");
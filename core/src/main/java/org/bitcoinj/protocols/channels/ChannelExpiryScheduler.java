@@ -0,0 +1,75 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.protocols.channels;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.bitcoinj.utils.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires channels at their expiry time. Channels are kept in a {@link TimingWheel} that a daemon thread advances once
+ * a second, and all channels that expired during a tick are handed to {@link #expire(List)} together.
+ */
+abstract class ChannelExpiryScheduler<T> {
+    private static final Logger log = LoggerFactory.getLogger(ChannelExpiryScheduler.class);
+
+    static final long TICK_MILLIS = 1000;
+    // With a second per tick, the wheels turn in about a minute, an hour, three days and half a year.
+    static final int WHEEL_SIZE = 64;
+
+    private final TimingWheel<T> wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, System.currentTimeMillis());
+    private final ScheduledExecutorService executor;
+
+    ChannelExpiryScheduler(String name) {
+        executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Expires the given channel at the given time, in seconds. */
+    void schedule(T channel, long expirySeconds) {
+        // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+        wheel.schedule(channel, expirySeconds * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis()));
+    }
+
+    /** Expires all channels whose time has come. Called by the thread once a second. */
+    void tick() {
+        List<T> expired = wheel.advance(System.currentTimeMillis());
+        if (expired.isEmpty())
+            return;
+        try {
+            expire(expired);
+        } catch (Exception e) {
+            // Something went wrong closing the channels - we catch here or else we stop the thread.
+            log.error("Auto-closing channels failed", e);
+        }
+    }
+
+    /** Closes the given channels, which have expired. */
+    protected abstract void expire(List<T> channels);
+}
@@ -24,34 +24,49 @@ import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.HashMultimap;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * This class maintains a set of {@link StoredClientChannel}s, automatically (re)broadcasting the contract transaction
- * and broadcasting the refund transaction over the given {@link TransactionBroadcaster}.
+ * <p>This class maintains a set of {@link StoredClientChannel}s, automatically (re)broadcasting the contract transaction
+ * and broadcasting the refund transaction over the given {@link TransactionBroadcaster}.</p>
+ *
+ * <p>Channels are indexed both by contract hash and by server id, and the balance of each server is kept up to date as
+ * channels are added, updated and removed, so none of the lookups scan all channels or take a lock that is shared by
+ * all of them.</p>
  */
 public class StoredPaymentChannelClientStates implements WalletExtension {
     private static final Logger log = LoggerFactory.getLogger(StoredPaymentChannelClientStates.class);
     static final String EXTENSION_ID = StoredPaymentChannelClientStates.class.getName();
     static final int MAX_SECONDS_TO_WAIT_FOR_BROADCASTER_TO_BE_SET = 10;
 
-    @GuardedBy("lock") @VisibleForTesting final HashMultimap<Sha256Hash, StoredClientChannel> mapChannels = HashMultimap.create();
-    @VisibleForTesting final Timer channelTimeoutHandler = new Timer(true);
+    // All channels by contract hash.
+    @VisibleForTesting final ConcurrentMap<Sha256Hash, StoredClientChannel> mapChannels = new ConcurrentHashMap<>();
+    // The channels of each server by server id.
+    private final ConcurrentMap<Sha256Hash, ServerChannels> serverChannels = new ConcurrentHashMap<>();
+
+    private final ChannelExpiryScheduler<StoredClientChannel> expiryScheduler =
+            new ChannelExpiryScheduler<StoredClientChannel>("StoredPaymentChannelClientStates expiry") {
+                @Override
+                protected void expire(List<StoredClientChannel> channels) {
+                    broadcastExpiredChannels(channels);
+                }
+            };
 
     private Wallet containingWallet;
     private final SettableFuture<TransactionBroadcaster> announcePeerGroupFuture = SettableFuture.create();
@@ -95,20 +110,8 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     /** Returns the outstanding amount of money sent back to us for all channels to this server added together. */
     public Coin getBalanceForServer(Sha256Hash id) {
-        Coin balance = Coin.ZERO;
-        lock.lock();
-        try {
-            Set<StoredClientChannel> setChannels = mapChannels.get(id);
-            for (StoredClientChannel channel : setChannels) {
-                synchronized (channel) {
-                    if (channel.close != null) continue;
-                    balance = balance.add(channel.valueToMe);
-                }
-            }
-            return balance;
-        } finally {
-            lock.unlock();
-        }
+        ServerChannels server = serverChannels.get(id);
+        return server != null ? Coin.valueOf(server.balance.get()) : Coin.ZERO;
     }
 
     /**
@@ -116,21 +119,15 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      * channels found.
      */
     public long getSecondsUntilExpiry(Sha256Hash id) {
-        lock.lock();
-        try {
-            final Set<StoredClientChannel> setChannels = mapChannels.get(id);
-            final long nowSeconds = Utils.currentTimeSeconds();
-            int earliestTime = Integer.MAX_VALUE;
-            for (StoredClientChannel channel : setChannels) {
-                synchronized (channel) {
-                    if (channel.expiryTimeSeconds() > nowSeconds)
-                        earliestTime = Math.min(earliestTime, (int) channel.expiryTimeSeconds());
-                }
+        final long nowSeconds = Utils.currentTimeSeconds();
+        int earliestTime = Integer.MAX_VALUE;
+        for (StoredClientChannel channel : channelsForServer(id)) {
+            synchronized (channel) {
+                if (channel.expiryTimeSeconds() > nowSeconds)
+                    earliestTime = Math.min(earliestTime, (int) channel.expiryTimeSeconds());
             }
-            return earliestTime == Integer.MAX_VALUE ? 0 : earliestTime - nowSeconds;
-        } finally {
-            lock.unlock();
         }
+        return earliestTime == Integer.MAX_VALUE ? 0 : earliestTime - nowSeconds;
     }
 
     /**
@@ -138,27 +135,21 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      */
     @Nullable
     StoredClientChannel getUsableChannelForServerID(Sha256Hash id) {
-        lock.lock();
-        try {
-            Set<StoredClientChannel> setChannels = mapChannels.get(id);
-            for (StoredClientChannel channel : setChannels) {
-                synchronized (channel) {
-                    // Check if the channel is usable (has money, inactive) and if so, activate it.
-                    log.info("Considering channel {} contract {}", channel.hashCode(), channel.contract.getHash());
-                    if (channel.close != null || channel.valueToMe.equals(Coin.ZERO)) {
-                        log.info("  ... but is closed or empty");
-                        continue;
-                    }
-                    if (!channel.active) {
-                        log.info("  ... activating");
-                        channel.active = true;
-                        return channel;
-                    }
-                    log.info("  ... but is already active");
+        for (StoredClientChannel channel : channelsForServer(id)) {
+            synchronized (channel) {
+                // Check if the channel is usable (has money, inactive) and if so, activate it.
+                log.info("Considering channel {} contract {}", channel.hashCode(), channel.contract.getHash());
+                if (channel.close != null || channel.valueToMe.equals(Coin.ZERO)) {
+                    log.info("  ... but is closed or empty");
+                    continue;
+                }
+                if (!channel.active) {
+                    log.info("  ... activating");
+                    channel.active = true;
+                    return channel;
                 }
+                log.info("  ... but is already active");
             }
-        } finally {
-            lock.unlock();
         }
         return null;
     }
@@ -168,29 +159,18 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      */
     @Nullable
     public StoredClientChannel getChannel(Sha256Hash id, Sha256Hash contractHash) {
-        lock.lock();
-        try {
-            Set<StoredClientChannel> setChannels = mapChannels.get(id);
-            for (StoredClientChannel channel : setChannels) {
-                if (channel.contract.getHash().equals(contractHash))
-                    return channel;
-            }
-            return null;
-        } finally {
-            lock.unlock();
-        }
+        StoredClientChannel channel = mapChannels.get(contractHash);
+        return channel != null && channel.id.equals(id) ? channel : null;
     }
 
     /**
      * Get a copy of all {@link StoredClientChannel}s
      */
     public Multimap<Sha256Hash, StoredClientChannel> getChannelMap() {
-        lock.lock();
-        try {
-            return ImmutableMultimap.copyOf(mapChannels);
-        } finally {
-            lock.unlock();
-        }
+        ImmutableMultimap.Builder<Sha256Hash, StoredClientChannel> builder = ImmutableMultimap.builder();
+        for (StoredClientChannel channel : mapChannels.values())
+            builder.put(channel.id, channel);
+        return builder.build();
     }
 
     /**
@@ -199,6 +179,9 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      */
     void updatedChannel(final StoredClientChannel channel) {
         log.info("Stored client channel {} was updated", channel.hashCode());
+        ServerChannels server = serverChannels.get(channel.id);
+        if (server != null)
+            server.update(channel);
         containingWallet.addOrUpdateExtension(this);
     }
 
@@ -212,32 +195,43 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     // Adds this channel and optionally notifies the wallet of an update to this extension (used during deserialize)
     private void putChannel(final StoredClientChannel channel, boolean updateWallet) {
-        lock.lock();
-        try {
-            mapChannels.put(channel.id, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        TransactionBroadcaster announcePeerGroup = getAnnouncePeerGroup();
-                        removeChannel(channel);
-                        announcePeerGroup.broadcastTransaction(channel.contract);
-                        announcePeerGroup.broadcastTransaction(channel.refund);
-                    } catch (Exception e) {
-                        // Something went wrong closing the channel - we catch
-                        // here or else we take down the whole Timer.
-                        log.error("Auto-closing channel failed", e);
-                    }
-                }
-                // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            }, new Date(channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis())));
-        } finally {
-            lock.unlock();
+        if (mapChannels.putIfAbsent(channel.contract.getHash(), channel) != null)
+            return;
+        ServerChannels server = serverChannels.get(channel.id);
+        if (server == null) {
+            ServerChannels newServer = new ServerChannels();
+            server = serverChannels.putIfAbsent(channel.id, newServer);
+            if (server == null)
+                server = newServer;
         }
+        server.add(channel);
+        expiryScheduler.schedule(channel, channel.expiryTimeSeconds());
         if (updateWallet)
             updatedChannel(channel);
     }
 
+    // Removes the channels that expired during a tick of the scheduler, saves the wallet once for all of them, and
+    // then broadcasts their contract and refund transactions.
+    private void broadcastExpiredChannels(List<StoredClientChannel> channels) {
+        TransactionBroadcaster announcePeerGroup = getAnnouncePeerGroup();
+        int removed = 0;
+        for (StoredClientChannel channel : channels) {
+            if (forgetChannel(channel))
+                removed++;
+        }
+        if (removed > 0)
+            containingWallet.addOrUpdateExtension(this);
+        log.info("Broadcasting contract and refund transactions of {} expired channels", channels.size());
+        for (StoredClientChannel channel : channels) {
+            try {
+                announcePeerGroup.broadcastTransaction(channel.contract);
+                announcePeerGroup.broadcastTransaction(channel.refund);
+            } catch (Exception e) {
+                log.error("Auto-closing channel failed", e);
+            }
+        }
+    }
+
     /**
      * If the peer group has not been set for MAX_SECONDS_TO_WAIT_FOR_BROADCASTER_TO_BE_SET seconds, then
      * the programmer probably forgot to set it and we should throw exception.
@@ -265,15 +259,25 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      * exist in memory.</p>
      */
     void removeChannel(StoredClientChannel channel) {
-        lock.lock();
-        try {
-            mapChannels.remove(channel.id, channel);
-        } finally {
-            lock.unlock();
-        }
+        forgetChannel(channel);
         updatedChannel(channel);
     }
 
+    // Removes the channel from the indexes and returns whether it was there.
+    private boolean forgetChannel(StoredClientChannel channel) {
+        if (!mapChannels.remove(channel.contract.getHash(), channel))
+            return false;
+        ServerChannels server = serverChannels.get(channel.id);
+        if (server != null)
+            server.remove(channel);
+        return true;
+    }
+
+    private Collection<StoredClientChannel> channelsForServer(Sha256Hash id) {
+        ServerChannels server = serverChannels.get(id);
+        return server != null ? server.channels.keySet() : Collections.<StoredClientChannel>emptySet();
+    }
+
     @Override
     public String getWalletExtensionID() {
         return EXTENSION_ID;
@@ -375,6 +379,46 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
     private @Nullable NetworkParameters getNetworkParameters() {
         return this.containingWallet != null ? this.containingWallet.getNetworkParameters() : null;
     }
+
+    /**
+     * The channels to a server, with the balance of the ones that are still open. Entries are never removed for a
+     * server id, so that there is no race between removing the last channel of a server and adding a new one.
+     */
+    private static class ServerChannels {
+        // The channels and how much each of them adds to the balance.
+        final ConcurrentMap<StoredClientChannel, Long> channels = new ConcurrentHashMap<>();
+        final AtomicLong balance = new AtomicLong();
+
+        void add(StoredClientChannel channel) {
+            synchronized (channel) {
+                long value = openValue(channel);
+                if (channels.putIfAbsent(channel, value) == null)
+                    balance.addAndGet(value);
+            }
+        }
+
+        // Counts the channel's latest value, or nothing once it is closed.
+        void update(StoredClientChannel channel) {
+            synchronized (channel) {
+                long value = openValue(channel);
+                Long counted = channels.replace(channel, value);
+                if (counted != null)
+                    balance.addAndGet(value - counted);
+            }
+        }
+
+        void remove(StoredClientChannel channel) {
+            synchronized (channel) {
+                Long counted = channels.remove(channel);
+                if (counted != null)
+                    balance.addAndGet(-counted);
+            }
+        }
+
+        private static long openValue(StoredClientChannel channel) {
+            return channel.close == null ? channel.valueToMe.value : 0;
+        }
+    }
 }
 
 /**
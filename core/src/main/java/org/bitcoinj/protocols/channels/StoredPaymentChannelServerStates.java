@@ -29,17 +29,26 @@ import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
- * unlock.
+ * <p>Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
+ * unlock.</p>
+ *
+ * <p>By default every payment saves the wallet, which serializes every channel. A server that takes many payments
+ * should give it a {@link StoredServerChannelLog} instead: payments are then appended to the log, and the channels
+ * are only saved into the wallet on checkpoints, see {@link #checkpoint()}. The wallet should be auto saved, so that
+ * a checkpoint reaches the disk before the log is cut short.</p>
  */
 public class StoredPaymentChannelServerStates implements WalletExtension {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StoredPaymentChannelServerStates.class);
@@ -47,11 +56,20 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
     static final int MAX_SECONDS_TO_WAIT_FOR_BROADCASTER_TO_BE_SET = 10;
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<>();
+    @VisibleForTesting final ConcurrentMap<Sha256Hash, StoredServerChannel> mapChannels = new ConcurrentHashMap<>();
     private Wallet wallet;
     private final SettableFuture<TransactionBroadcaster> broadcasterFuture = SettableFuture.create();
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryScheduler<StoredServerChannel> expiryScheduler =
+            new ChannelExpiryScheduler<StoredServerChannel>("StoredPaymentChannelServerStates expiry") {
+                @Override
+                protected void expire(List<StoredServerChannel> channels) {
+                    closeExpiredChannels(channels);
+                }
+            };
+
+    @Nullable private final StoredServerChannelLog channelLog;
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
 
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
@@ -71,6 +89,19 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
     public StoredPaymentChannelServerStates(@Nullable Wallet wallet, TransactionBroadcaster broadcaster) {
         setTransactionBroadcaster(broadcaster);
         this.wallet = wallet;
+        this.channelLog = null;
+    }
+
+    /**
+     * Creates a new PaymentChannelServerStateManager that records payments in the given log, and associates it with
+     * the given {@link Wallet} and {@link TransactionBroadcaster} which are used to complete and announce payment
+     * transactions. The payments in the log are applied to the channels when they are loaded from the wallet.
+     */
+    public StoredPaymentChannelServerStates(@Nullable Wallet wallet, TransactionBroadcaster broadcaster,
+                                            StoredServerChannelLog channelLog) {
+        setTransactionBroadcaster(broadcaster);
+        this.wallet = wallet;
+        this.channelLog = checkNotNull(channelLog);
     }
 
     /**
@@ -80,6 +111,19 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      */
     public StoredPaymentChannelServerStates(@Nullable Wallet wallet) {
         this.wallet = wallet;
+        this.channelLog = null;
+    }
+
+    /**
+     * Creates a new PaymentChannelServerStateManager that records payments in the given log, and associates it with
+     * the given {@link Wallet}. The payments in the log are applied to the channels when they are loaded from the
+     * wallet.
+     *
+     * Use this constructor if you use WalletAppKit, it will provide the broadcaster for you (no need to call the setter)
+     */
+    public StoredPaymentChannelServerStates(@Nullable Wallet wallet, StoredServerChannelLog channelLog) {
+        this.wallet = wallet;
+        this.channelLog = checkNotNull(channelLog);
     }
 
     /**
@@ -107,13 +151,34 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
-        lock.lock();
-        try {
-            if (mapChannels.remove(channel.contract.getHash()) == null)
-                return;
-        } finally {
-            lock.unlock();
+        if (mapChannels.remove(channel.contract.getHash()) == null)
+            return;
+        closeRemovedChannel(channel);
+        checkpoint();
+    }
+
+    // Closes the channels that expired during a tick of the scheduler, with a single checkpoint for all of them.
+    private void closeExpiredChannels(List<StoredServerChannel> channels) {
+        int closed = 0;
+        for (StoredServerChannel channel : channels) {
+            // Channels that were closed before they expired are gone already.
+            if (!mapChannels.remove(channel.contract.getHash(), channel))
+                continue;
+            log.info("Auto-closing channel: {}", channel);
+            try {
+                closeRemovedChannel(channel);
+                closed++;
+            } catch (Exception e) {
+                log.error("Auto-closing channel failed", e);
+            }
         }
+        if (closed > 0) {
+            log.info("Auto-closed {} expired channels", closed);
+            checkpoint();
+        }
+    }
+
+    private void closeRemovedChannel(StoredServerChannel channel) {
         synchronized (channel) {
             channel.closeConnectedHandler();
             try {
@@ -126,7 +191,6 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             }
             channel.state = null;
         }
-        updatedChannel(channel);
     }
 
     /**
@@ -151,33 +215,63 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
      */
     public StoredServerChannel getChannel(Sha256Hash id) {
-        lock.lock();
-        try {
-            return mapChannels.get(id);
-        } finally {
-            lock.unlock();
-        }
+        return mapChannels.get(id);
     }
 
     /**
      * Get a copy of all {@link StoredServerChannel}s
      */
     public Map<Sha256Hash, StoredServerChannel> getChannelMap() {
-        lock.lock();
-        try {
-            return ImmutableMap.copyOf(mapChannels);
-        } finally {
-            lock.unlock();
-        }
+        return ImmutableMap.copyOf(mapChannels);
     }
 
     /**
      * Notifies the set of stored states that a channel has been updated. Use to notify the wallet of an update to this
-     * wallet extension.
+     * wallet extension, or, if there is a log, to record the latest payment of the channel in it.
      */
     public void updatedChannel(final StoredServerChannel channel) {
-        log.info("Stored server channel {} was updated", channel.hashCode());
+        log.debug("Stored server channel {} was updated", channel.hashCode());
+        if (channelLog == null) {
+            wallet.addOrUpdateExtension(this);
+            return;
+        }
+        Coin value;
+        byte[] signature;
+        synchronized (channel) {
+            value = channel.bestValueToMe;
+            signature = channel.bestValueSignature;
+        }
+        try {
+            channelLog.append(channel.contract.getHash(), value, signature);
+        } catch (IOException e) {
+            log.error("Failed to log a payment, saving the wallet instead", e);
+            wallet.addOrUpdateExtension(this);
+            return;
+        }
+        // Payments that arrive during a checkpoint are logged without waiting for it.
+        if (channelLog.needsCheckpoint() && checkpointing.compareAndSet(false, true)) {
+            try {
+                checkpoint();
+            } finally {
+                checkpointing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Saves all channels into the wallet and, if there is a {@link StoredServerChannelLog}, rewrites it with just the
+     * latest payment of each channel. This happens when channels are opened or closed and when the log has grown by
+     * {@link StoredServerChannelLog#getCheckpointBytes()}.
+     */
+    public void checkpoint() {
         wallet.addOrUpdateExtension(this);
+        if (channelLog != null) {
+            try {
+                channelLog.checkpoint(getChannelMap().values());
+            } catch (IOException e) {
+                log.error("Failed to checkpoint the payment channel log", e);
+            }
+        }
     }
 
     /**
@@ -188,30 +282,16 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
-        lock.lock();
-        try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    try {
-                        closeChannel(channel);
-                    } catch (Exception e) {
-                        // Something went wrong closing the channel - we catch
-                        // here or else we take down the whole Timer.
-                        log.error("Auto-closing channel failed", e);
-                    }
-                }
-            }, autocloseTime);
-        } finally {
-            lock.unlock();
-        }
-        updatedChannel(channel);
+        addChannel(channel);
+        checkpoint();
+    }
+
+    private void addChannel(StoredServerChannel channel) {
+        checkArgument(mapChannels.putIfAbsent(channel.contract.getHash(), checkNotNull(channel)) == null);
+        long autocloseTimeSecs = channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET;
+        log.debug("Scheduling channel {} for automatic closure at {}", channel.contract.getHash(),
+                Utils.dateTimeFormat(autocloseTimeSecs * 1000));
+        expiryScheduler.schedule(channel, autocloseTimeSecs);
     }
 
     @Override
@@ -286,8 +366,10 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
                         clientKey,
                         Coin.valueOf(storedState.getBestValueToMe()),
                         storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
-                putChannel(channel);
+                addChannel(channel);
             }
+            if (channelLog != null)
+                applyLoggedPayments(channelLog.takeRecoveredPayments());
         } finally {
             lock.unlock();
         }
@@ -307,6 +389,20 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         }
     }
 
+    // Payments only ever raise the value of a channel, so a logged one is newer if it is higher.
+    @GuardedBy("lock")
+    private void applyLoggedPayments(Map<Sha256Hash, StoredServerChannelLog.Payment> payments) {
+        int applied = 0;
+        for (Map.Entry<Sha256Hash, StoredServerChannelLog.Payment> entry : payments.entrySet()) {
+            StoredServerChannel channel = mapChannels.get(entry.getKey());
+            if (channel != null && entry.getValue().value.compareTo(channel.bestValueToMe) > 0) {
+                channel.updateValueToMe(entry.getValue().value, entry.getValue().signature);
+                applied++;
+            }
+        }
+        log.info("Applied {} logged payments to {} channels", applied, mapChannels.size());
+    }
+
     private @Nullable NetworkParameters getNetworkParameters() {
         return wallet != null ? wallet.getNetworkParameters() : null;
     }
@@ -0,0 +1,464 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.protocols.channels;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append only log of the payments received on {@link StoredServerChannel}s, so that a
+ * {@link StoredPaymentChannelServerStates} can persist each payment by writing a small record instead of serializing
+ * every channel into the wallet. Give it to
+ * {@link StoredPaymentChannelServerStates#StoredPaymentChannelServerStates(org.bitcoinj.wallet.Wallet, StoredServerChannelLog)}
+ * before the wallet is loaded: the payments in the log are applied to the channels read from the wallet, and the
+ * wallet is only saved on checkpoints, when channels are opened or closed and when the log grew by
+ * {@link #getCheckpointBytes()}. A checkpoint also rewrites the log with just the latest payment of each channel.</p>
+ *
+ * <p>Records are synced to disk by a background thread. Payments that arrive whilst a sync is in progress are written
+ * and synced together by the next one, so concurrent channels share the cost of a sync. See {@link Durability} for
+ * when a payment counts as stored.</p>
+ */
+public class StoredServerChannelLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(StoredServerChannelLog.class);
+
+    /** When a payment counts as stored. */
+    public enum Durability {
+        /**
+         * Recording a payment returns once it is synced to disk, so the payment is not acknowledged before. Payments
+         * recorded concurrently share a sync.
+         */
+        SYNC,
+        /**
+         * Recording a payment returns straight away, and payments are synced together after the sync interval. A
+         * crash of the machine may lose the payments of the last interval.
+         */
+        DELAYED
+    }
+
+    /** The default for how long payments are collected before they are synced, when {@link Durability#DELAYED}. */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+    /** The default for how much the log grows before a checkpoint. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x7363686c;
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_SIGNATURE_SIZE = 1024;
+
+    /** The latest payment recorded for a channel. */
+    static class Payment {
+        final Coin value;
+        @Nullable final byte[] signature;
+
+        Payment(Coin value, @Nullable byte[] signature) {
+            this.value = value;
+            this.signature = signature;
+        }
+    }
+
+    private final File file;
+    private final Durability durability;
+    private final long syncIntervalMillis;
+    private final long checkpointBytes;
+    private final Thread syncThread;
+
+    // Held whilst writing to the file, so that checkpoints don't replace it under the sync thread.
+    private final ReentrantLock fileLock = Threading.lock("storedserverchannellog-file");
+    @GuardedBy("fileLock") private FileChannel fileChannel;
+
+    private final ReentrantLock lock = Threading.lock("storedserverchannellog");
+    private final Condition recordsPending = lock.newCondition();
+    private final Condition recordsSynced = lock.newCondition();
+    @GuardedBy("lock") private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // Records are numbered in the order they were appended.
+    @GuardedBy("lock") private long appended;
+    @GuardedBy("lock") private long synced;
+    @GuardedBy("lock") private long bytesSinceCheckpoint;
+    @GuardedBy("lock") @Nullable private IOException failure;
+    @GuardedBy("lock") private boolean closed;
+    @GuardedBy("lock") private Map<Sha256Hash, Payment> recovered;
+
+    /** Opens or creates the log in the given file, syncing every payment before it is acknowledged. */
+    public StoredServerChannelLog(File file) throws IOException {
+        this(file, Durability.SYNC, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Opens or creates the log in the given file. Records that were not completely written before a crash are dropped.
+     *
+     * @param durability when a payment counts as stored
+     * @param syncIntervalMillis how long payments are collected before they are synced, when
+     *                           {@link Durability#DELAYED}
+     * @param checkpointBytes how much the log grows before the channels are checkpointed into the wallet
+     * @throws IOException if the file can't be read or written, or is not a log
+     */
+    public StoredServerChannelLog(File file, Durability durability, long syncIntervalMillis, long checkpointBytes)
+            throws IOException {
+        checkArgument(syncIntervalMillis >= 0 && checkpointBytes > 0);
+        this.file = file;
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.checkpointBytes = checkpointBytes;
+        long validLength = file.exists() ? recover() : 0;
+        if (recovered == null)
+            recovered = Collections.emptyMap();
+        fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        if (validLength < HEADER_SIZE) {
+            fileChannel.truncate(0);
+            writeFully(fileChannel, header());
+            fileChannel.force(true);
+        } else {
+            if (fileChannel.size() > validLength)
+                log.warn("Dropping {} bytes of incomplete records at the end of {}", fileChannel.size() - validLength, file);
+            fileChannel.truncate(validLength);
+            fileChannel.position(validLength);
+        }
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "Payment channel log sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /** Returns when a payment counts as stored. */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /** Returns how much the log grows before the channels are checkpointed into the wallet. */
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    /**
+     * Records the latest payment on a channel. With {@link Durability#SYNC} this waits until the payment is synced to
+     * disk.
+     *
+     * @throws IOException if writing the log failed, now or earlier
+     */
+    void append(Sha256Hash channelId, Coin value, @Nullable byte[] signature) throws IOException {
+        byte[] record = record(channelId, value, signature);
+        lock.lock();
+        try {
+            checkState(!closed, "Log is closed");
+            if (failure != null)
+                throw failure;
+            pending.write(record, 0, record.length);
+            bytesSinceCheckpoint += record.length;
+            long number = ++appended;
+            recordsPending.signal();
+            if (durability == Durability.SYNC) {
+                while (synced < number && failure == null)
+                    recordsSynced.awaitUninterruptibly();
+                if (synced < number)
+                    throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the log grew so much since the last checkpoint that it is time for the next one. */
+    boolean needsCheckpoint() {
+        lock.lock();
+        try {
+            return bytesSinceCheckpoint >= checkpointBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the latest payment of each channel that was in the log when it was opened, then forgets them. Where a
+     * channel was paid more than once, the highest value wins.
+     */
+    Map<Sha256Hash, Payment> takeRecoveredPayments() {
+        lock.lock();
+        try {
+            Map<Sha256Hash, Payment> result = recovered;
+            recovered = Collections.emptyMap();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the log with one record per given channel, holding its current payment. Records appended but not yet
+     * synced are kept, so nothing recorded concurrently is lost.
+     */
+    void checkpoint(Collection<StoredServerChannel> channels) throws IOException {
+        // The file is locked before the channels are read, so that no payment is synced to the old file after its
+        // channel was read: anything synced before is in the snapshot, anything appended after is synced to the new
+        // file.
+        fileLock.lock();
+        try {
+            ByteArrayOutputStream unsynced;
+            long number;
+            lock.lock();
+            try {
+                if (failure != null)
+                    throw failure;
+                unsynced = pending;
+                pending = new ByteArrayOutputStream();
+                number = appended;
+                bytesSinceCheckpoint = 0;
+            } finally {
+                lock.unlock();
+            }
+            final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            snapshot.write(header());
+            for (StoredServerChannel channel : channels) {
+                synchronized (channel) {
+                    snapshot.write(record(channel.contract.getHash(), channel.bestValueToMe,
+                            channel.bestValueSignature));
+                }
+            }
+            unsynced.writeTo(snapshot);
+            try {
+                // Windows can't delete the old file while it is open.
+                if (Utils.isWindows())
+                    fileChannel.close();
+                Utils.replaceFile(file, "channels", new Utils.FileWriter() {
+                    @Override
+                    public void writeTo(OutputStream stream) throws IOException {
+                        snapshot.writeTo(stream);
+                    }
+                });
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            }
+            fileChannel.close();
+            fileChannel = new RandomAccessFile(file, "rw").getChannel();
+            fileChannel.position(fileChannel.size());
+            markSynced(number);
+            log.info("Checkpointed {} payment channels into {}", channels.size(), file);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /** Syncs the payments recorded so far, stops the sync thread and closes the file. */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            recordsPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fileLock.lock();
+        try {
+            fileChannel.close();
+        } finally {
+            fileLock.unlock();
+        }
+        lock.lock();
+        try {
+            if (failure != null)
+                throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StoredServerChannelLog " + durability + " in " + file;
+    }
+
+    private void syncLoop() {
+        while (true) {
+            boolean delay;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && !closed)
+                    recordsPending.awaitUninterruptibly();
+                if (pending.size() == 0)
+                    return;
+                delay = durability == Durability.DELAYED && !closed;
+            } finally {
+                lock.unlock();
+            }
+            // Give more payments the chance to share the sync.
+            if (delay)
+                Uninterruptibles.sleepUninterruptibly(syncIntervalMillis, TimeUnit.MILLISECONDS);
+            if (!syncPending())
+                return;
+        }
+    }
+
+    // Writes and syncs everything pending, returning false if that failed.
+    private boolean syncPending() {
+        fileLock.lock();
+        try {
+            ByteArrayOutputStream records;
+            long number;
+            lock.lock();
+            try {
+                records = pending;
+                pending = new ByteArrayOutputStream();
+                number = appended;
+            } finally {
+                lock.unlock();
+            }
+            if (records.size() > 0) {
+                writeFully(fileChannel, records.toByteArray());
+                fileChannel.force(false);
+            }
+            markSynced(number);
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to write payment channel log " + file, e);
+            failed(e);
+            return false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void markSynced(long number) {
+        lock.lock();
+        try {
+            synced = Math.max(synced, number);
+            recordsSynced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void failed(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            recordsSynced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads the records in the file, returning the length of the part that is valid.
+    private long recover() throws IOException {
+        Map<Sha256Hash, Payment> payments = new HashMap<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException(file + " is not a payment channel log");
+            int version = in.readInt();
+            if (version != FILE_VERSION)
+                throw new IOException("Unknown version " + version + " of " + file);
+            validLength = HEADER_SIZE;
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 32 + 8 + 2 || length > 32 + 8 + 2 + MAX_SIGNATURE_SIZE)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte[] hash = new byte[32];
+                record.readFully(hash);
+                Coin value = Coin.valueOf(record.readLong());
+                int signatureLength = record.readUnsignedShort();
+                byte[] signature = null;
+                if (signatureLength > 0) {
+                    signature = new byte[signatureLength];
+                    record.readFully(signature);
+                }
+                Sha256Hash channelId = Sha256Hash.wrap(hash);
+                Payment previous = payments.get(channelId);
+                if (previous == null || value.compareTo(previous.value) >= 0)
+                    payments.put(channelId, new Payment(value, signature));
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // The rest of the file is an incomplete record, or the file is too short to be a log at all.
+        } finally {
+            in.close();
+        }
+        lock.lock();
+        try {
+            recovered = payments;
+        } finally {
+            lock.unlock();
+        }
+        log.info("Recovered the payments of {} channels from {}", payments.size(), file);
+        return validLength;
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(FILE_MAGIC).putInt(FILE_VERSION).array();
+    }
+
+    private static byte[] record(Sha256Hash channelId, Coin value, @Nullable byte[] signature) {
+        int signatureLength = signature != null ? signature.length : 0;
+        checkArgument(signatureLength <= MAX_SIGNATURE_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(32 + 8 + 2 + signatureLength);
+        payload.put(channelId.getBytes()).putLong(value.value).putShort((short) signatureLength);
+        if (signature != null)
+            payload.put(signature);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        return ByteBuffer.allocate(8 + payload.capacity()).putInt(payload.capacity()).putInt((int) crc.getValue())
+                .put(payload.array()).array();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
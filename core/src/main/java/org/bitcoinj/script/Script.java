@@ -160,13 +160,26 @@ public class Script {
         return Collections.unmodifiableList(chunks);
     }
 
-    private static final ScriptChunk[] STANDARD_TRANSACTION_SCRIPT_CHUNKS = {
+    // The opcodes of the common output script templates, at the places they take in them: pay to address, pay to script
+    // hash and pay to pubkey with a compressed or uncompressed key. Every script of those forms shares these chunks.
+    private static final ScriptChunk[] TEMPLATE_OPCODE_CHUNKS = {
         new ScriptChunk(ScriptOpCodes.OP_DUP, null, 0),
         new ScriptChunk(ScriptOpCodes.OP_HASH160, null, 1),
         new ScriptChunk(ScriptOpCodes.OP_EQUALVERIFY, null, 23),
         new ScriptChunk(ScriptOpCodes.OP_CHECKSIG, null, 24),
+        new ScriptChunk(ScriptOpCodes.OP_HASH160, null, 0),
+        new ScriptChunk(ScriptOpCodes.OP_EQUAL, null, 22),
+        new ScriptChunk(ScriptOpCodes.OP_CHECKSIG, null, 34),
+        new ScriptChunk(ScriptOpCodes.OP_CHECKSIG, null, 66),
     };
 
+    private static ScriptChunk opCodeChunk(int opcode, int startLocationInProgram) {
+        for (ScriptChunk chunk : TEMPLATE_OPCODE_CHUNKS)
+            if (chunk.opcode == opcode && chunk.getStartLocationInProgram() == startLocationInProgram)
+                return chunk;
+        return new ScriptChunk(opcode, null, startLocationInProgram);
+    }
+
     /**
      * <p>To run a script, first we parse it which breaks it up into chunks representing pushes of data or logical
      * opcodes. Then we can run the parsed chunks.</p>
@@ -177,7 +190,8 @@ public class Script {
      * Bitcoin Core does something similar.</p>
      */
     private void parse(byte[] program) throws ScriptException {
-        chunks = new ArrayList<>(5);   // Common size.
+        ArrayList<ScriptChunk> chunks = new ArrayList<>(5);   // Common size.
+        this.chunks = chunks;
         ByteArrayInputStream bis = new ByteArrayInputStream(program);
         int initialSize = bis.available();
         while (bis.available() > 0) {
@@ -204,7 +218,8 @@ public class Script {
 
             ScriptChunk chunk;
             if (dataToRead == -1) {
-                chunk = new ScriptChunk(opcode, null, startLocationInProgram);
+                // Save some memory by sharing the chunk objects of the common templates.
+                chunk = opCodeChunk(opcode, startLocationInProgram);
             } else {
                 if (dataToRead > bis.available())
                     throw new ScriptException("Push of data element that is larger than remaining data");
@@ -212,12 +227,9 @@ public class Script {
                 checkState(dataToRead == 0 || bis.read(data, 0, (int)dataToRead) == dataToRead);
                 chunk = new ScriptChunk(opcode, data, startLocationInProgram);
             }
-            // Save some memory by eliminating redundant copies of the same chunk objects.
-            for (ScriptChunk c : STANDARD_TRANSACTION_SCRIPT_CHUNKS) {
-                if (c.equals(chunk)) chunk = c;
-            }
             chunks.add(chunk);
         }
+        chunks.trimToSize();
     }
 
     /**
@@ -636,6 +648,9 @@ public class Script {
         } else if (isSentToAddress() || isSentToRawPubKey()) {
             // pay-to-address and pay-to-pubkey require single sig
             return 1;
+        } else if (isSentToCLTVPaymentChannel()) {
+            // the sender and the recipient sign together, or the sender alone after expiry
+            return 2;
         } else if (isPayToScriptHash()) {
             throw new IllegalStateException("For P2SH number of signatures depends on redeem script");
         } else {
@@ -644,14 +659,20 @@ public class Script {
     }
 
     /**
-     * Returns number of bytes required to spend this script. It accepts optional ECKey and redeemScript that may
-     * be required for certain types of script to estimate target size.
+     * Returns number of bytes required to spend this script, which is an upper bound on the size of the scriptSig not
+     * counting its length prefix. It accepts optional ECKey and redeemScript that may be required for certain types of
+     * script to estimate target size.
      */
     public int getNumberOfBytesRequiredToSpend(@Nullable ECKey pubKey, @Nullable Script redeemScript) {
         if (isPayToScriptHash()) {
-            // scriptSig: <sig> [sig] [sig...] <redeemscript>
+            // scriptSig: <scriptSig spending the redeemscript> <redeemscript>
             checkArgument(redeemScript != null, "P2SH script requires redeemScript to be spent");
-            return redeemScript.getNumberOfSignaturesRequiredToSpend() * SIG_SIZE + redeemScript.getProgram().length;
+            int redeemScriptLength = redeemScript.getProgram().length;
+            return redeemScript.getNumberOfBytesRequiredToSpend(pubKey, null) + pushDataSize(redeemScriptLength)
+                    + redeemScriptLength;
+        } else if (isSentToCLTVPaymentChannel()) {
+            // scriptSig: <sig> <sig> OP_1, which is bigger than the refund after expiry: <sig> OP_0
+            return 2 * SIG_SIZE + 1;
         } else if (isSentToMultiSig()) {
             // scriptSig: OP_0 <sig> [sig] [sig...]
             return getNumberOfSignaturesRequiredToSpend() * SIG_SIZE + 1;
@@ -667,6 +688,18 @@ public class Script {
         }
     }
 
+    // Number of bytes taken by the opcode that pushes data of the given length.
+    private static int pushDataSize(int length) {
+        if (length < OP_PUSHDATA1)
+            return 1;
+        else if (length <= 0xff)
+            return 2;
+        else if (length <= 0xffff)
+            return 3;
+        else
+            return 5;
+    }
+
     /**
      * <p>Whether or not this is a scriptPubKey representing a pay-to-script-hash output. In such outputs, the logic that
      * controls reclamation is not actually in the output at all. Instead there's just a hash, and it's up to the
@@ -1584,7 +1617,7 @@ public class Script {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
         // the tx half broken (also it's not so thread safe to work on it directly.
         try {
-            txContainingThis = txContainingThis.getParams().getDefaultSerializer().makeTransaction(txContainingThis.bitcoinSerialize());
+            txContainingThis = txContainingThis.getParams().getDefaultSerializer().makeTransaction(txContainingThis.unsafeBitcoinSerialize());
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
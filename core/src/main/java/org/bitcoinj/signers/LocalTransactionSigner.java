@@ -16,9 +16,17 @@
 
 package org.bitcoinj.signers;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.google.common.base.Stopwatch;
+
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.crypto.DeterministicKey;
@@ -41,6 +49,9 @@ import org.slf4j.LoggerFactory;
  * signers to use correct signing key for P2SH inputs, because all the keys involved in a single P2SH address have
  * the same derivation path.</p>
  * <p>This signer always uses {@link org.bitcoinj.core.Transaction.SigHash#ALL} signing mode.</p>
+ * <p>Given an executor via {@link #setExecutor(java.util.concurrent.ExecutorService)}, this signer works out the
+ * signature hashes and signatures of the inputs in parallel, which makes a big difference for transactions with many
+ * inputs. The signed transaction is the same either way. The time signing took is logged for every transaction.</p>
  */
 public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final Logger log = LoggerFactory.getLogger(LocalTransactionSigner.class);
@@ -52,6 +63,9 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
     private static final EnumSet<VerifyFlag> MINIMUM_VERIFY_FLAGS = EnumSet.of(VerifyFlag.P2SH,
         VerifyFlag.NULLDUMMY);
 
+    /** The number of inputs each job signs when signing in parallel. */
+    private static final int INPUTS_PER_JOB = 32;
+
     @Override
     public boolean isReady() {
         return true;
@@ -59,8 +73,12 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
 
     @Override
     public boolean signInputs(ProposedTransaction propTx, KeyBag keyBag) {
+        Stopwatch watch = Stopwatch.createStarted();
         Transaction tx = propTx.partialTx;
         int numInputs = tx.getInputs().size();
+        List<Integer> indexes = new ArrayList<>();
+        List<byte[]> scripts = new ArrayList<>();
+        List<BigInteger> privKeys = new ArrayList<>();
         for (int i = 0; i < numInputs; i++) {
             TransactionInput txIn = tx.getInput(i);
             if (txIn.getConnectedOutput() == null) {
@@ -99,31 +117,69 @@ public class LocalTransactionSigner extends StatelessTransactionSigner {
                 continue;
             }
 
-            Script inputScript = txIn.getScriptSig();
             // script here would be either a standard CHECKSIG program for pay-to-address or pay-to-pubkey inputs or
             // a CHECKMULTISIG program for P2SH inputs
-            byte[] script = redeemData.redeemScript.getProgram();
             try {
-                TransactionSignature signature = tx.calculateSignature(i, key, script, Transaction.SigHash.ALL, false);
-
-                // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
-                // have calculated the signature using the local key and now need to insert it in the correct place
-                // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
-                // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
-                // position relative to other signers.  Since we don't have that information at this point, and since
-                // we always run first, we have to depend on the other signers rearranging the signatures as needed.
-                // Therefore, always place as first signature.
-                int sigIndex = 0;
-                inputScript = scriptPubKey.getScriptSigWithSignature(inputScript, signature.encodeToBitcoin(), sigIndex);
-                txIn.setScriptSig(inputScript);
+                privKeys.add(key.getPrivKeyForSigning());
+                scripts.add(redeemData.redeemScript.getProgram());
+                indexes.add(i);
             } catch (ECKey.KeyIsEncryptedException e) {
                 throw e;
             } catch (ECKey.MissingPrivateKeyException e) {
                 log.warn("No private key in keypair for input {}", i);
             }
+        }
+        if (indexes.isEmpty())
+            return true;
+
+        List<ECKey.ECDSASignature> signatures = sign(tx, indexes, scripts, privKeys);
+        for (int n = 0; n < indexes.size(); n++) {
+            int i = indexes.get(n);
+            TransactionInput txIn = tx.getInput(i);
+            Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
+            TransactionSignature signature = new TransactionSignature(signatures.get(n), Transaction.SigHash.ALL, false);
 
+            // at this point we have incomplete inputScript with OP_0 in place of one or more signatures. We already
+            // have calculated the signature using the local key and now need to insert it in the correct place
+            // within inputScript. For pay-to-address and pay-to-key script there is only one signature and it always
+            // goes first in an inputScript (sigIndex = 0). In P2SH input scripts we need to figure out our relative
+            // position relative to other signers.  Since we don't have that information at this point, and since
+            // we always run first, we have to depend on the other signers rearranging the signatures as needed.
+            // Therefore, always place as first signature.
+            int sigIndex = 0;
+            Script inputScript = scriptPubKey.getScriptSigWithSignature(txIn.getScriptSig(), signature.encodeToBitcoin(), sigIndex);
+            txIn.setScriptSig(inputScript);
         }
+        log.debug("Signed {} of {} inputs in {}", indexes.size(), numInputs, watch);
         return true;
     }
 
+    // Works out the signature hashes of the given inputs and signs them. The signature hash of an input doesn't depend
+    // on the scripts of the other inputs, so the inputs can be signed in any order, in batches, and in parallel if
+    // there is an executor. RFC 6979 signatures are deterministic, so the result is the same either way.
+    private List<ECKey.ECDSASignature> sign(final Transaction tx, final List<Integer> indexes, final List<byte[]> scripts,
+                                            final List<BigInteger> privKeys) {
+        int jobSize = getExecutor() == null ? indexes.size() : INPUTS_PER_JOB;
+        List<Callable<List<ECKey.ECDSASignature>>> jobs = new ArrayList<>();
+        for (int start = 0; start < indexes.size(); start += jobSize) {
+            final int from = start;
+            final int to = Math.min(start + jobSize, indexes.size());
+            jobs.add(new Callable<List<ECKey.ECDSASignature>>() {
+                @Override
+                public List<ECKey.ECDSASignature> call() {
+                    List<Sha256Hash> hashes = new ArrayList<>(to - from);
+                    for (int n = from; n < to; n++)
+                        hashes.add(tx.hashForSignature(indexes.get(n), scripts.get(n), Transaction.SigHash.ALL, false));
+                    return ECKey.sign(hashes, privKeys.subList(from, to));
+                }
+            });
+        }
+        // Serialize the transaction on this thread first, so that the jobs only ever read it.
+        tx.unsafeBitcoinSerialize();
+        List<ECKey.ECDSASignature> signatures = new ArrayList<>(indexes.size());
+        for (List<ECKey.ECDSASignature> batch : runAll(jobs))
+            signatures.addAll(batch);
+        return signatures;
+    }
+
 }
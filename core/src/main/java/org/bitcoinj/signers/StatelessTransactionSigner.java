@@ -16,10 +16,66 @@
 
 package org.bitcoinj.signers;
 
+import com.google.common.base.Throwables;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
- * A signer that doesn't have any state to be serialized.
+ * <p>A signer that doesn't have any state to be serialized.</p>
+ *
+ * <p>Such a signer may be given an executor via {@link #setExecutor(ExecutorService)}, to do the work for different
+ * inputs in parallel. Subclasses that can make use of it hand their work to {@link #runAll(List)}, which gives the
+ * same results in the same order whether or not there is an executor, so the signed transaction doesn't depend on it.
+ * The executor is not part of the serialized state.</p>
  */
 public abstract class StatelessTransactionSigner implements TransactionSigner {
+    @Nullable private volatile ExecutorService executor;
+
+    /**
+     * Sets the executor on which to do the work of signing in parallel, or null to do all of it on the thread that
+     * calls {@link #signInputs(ProposedTransaction, org.bitcoinj.wallet.KeyBag)}, which is the default.
+     */
+    public void setExecutor(@Nullable ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Returns the executor on which signing is done in parallel, or null if it's done on the calling thread. */
+    @Nullable
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Runs the given jobs on the executor, or one after the other on the calling thread if there is none, and returns
+     * their results in the order of the jobs. If a job throws, so does this method, after all jobs have finished.
+     */
+    protected <T> List<T> runAll(List<? extends Callable<T>> jobs) {
+        ExecutorService executor = this.executor;
+        List<T> results = new ArrayList<>(jobs.size());
+        try {
+            if (executor == null || jobs.size() < 2) {
+                for (Callable<T> job : jobs)
+                    results.add(job.call());
+            } else {
+                for (Future<T> future : executor.invokeAll(jobs))
+                    results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        return results;
+    }
     @Override
     public void deserialize(byte[] data) {
     }
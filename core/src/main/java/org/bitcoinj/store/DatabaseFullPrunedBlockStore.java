@@ -18,6 +18,7 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.base.Functions;
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
@@ -32,6 +33,9 @@ import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
  * certain table structures for the block store.</p>
@@ -86,12 +90,13 @@ import java.util.*;
  * </p>
  *
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore, AddressBalanceProvider {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
+    private static final String BULK_LOAD_SETTING                               = "bulkload";
 
     // Drop table SQL.
     private static final String DROP_SETTINGS_TABLE                             = "DROP TABLE settings";
@@ -103,6 +108,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_SETTINGS_SQL                             = "SELECT value FROM settings WHERE name = ?";
     private static final String INSERT_SETTINGS_SQL                             = "INSERT INTO settings(name, value) VALUES(?, ?)";
     private static final String UPDATE_SETTINGS_SQL                             = "UPDATE settings SET value = ? WHERE name = ?";
+    private static final String DELETE_SETTINGS_SQL                             = "DELETE FROM settings WHERE name = ?";
 
     private static final String SELECT_HEADERS_SQL                              = "SELECT chainwork, height, header, wasundoable FROM headers WHERE hash = ?";
     private static final String INSERT_HEADERS_SQL                              = "INSERT INTO headers(hash, chainwork, height, header, wasundoable) VALUES(?, ?, ?, ?, ?)";
@@ -113,8 +119,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableblocks SET txoutchanges=?, transactions=? WHERE hash = ?";
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
 
+    // Drop the blocks stored after the chain head was last written SQL.
+    private static final String DELETE_HEADERS_ABOVE_HEIGHT_SQL                 = "DELETE FROM headers WHERE height > ?";
+    private static final String DELETE_UNDOABLEBLOCKS_ABOVE_HEIGHT_SQL          = "DELETE FROM undoableblocks WHERE height > ?";
+
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
+    private static final String SELECT_OPENOUTPUTS_INDEXES_SQL                  = "SELECT index FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
 
@@ -129,6 +140,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
 
+    // Queries for many addresses at once, the %s is replaced by a parameter for each address.
+    private static final String SELECT_ADDRESSES_TRANSACTION_OUTPUTS_SQL        = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs WHERE toaddress IN (%s)";
+    private static final String SELECT_ADDRESSES_BALANCES_SQL                   = "SELECT toaddress, SUM(value) FROM openoutputs WHERE toaddress IN (%s) GROUP BY toaddress";
+
     // Tables exist SQL.
     private static final String SELECT_CHECK_TABLES_EXIST_SQL                   = "SELECT * FROM settings WHERE 1 = 2";
 
@@ -148,6 +163,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // The most changes to the open outputs kept in memory during a batch write before they are sent to the database.
+    private static final int MAX_PENDING_OPEN_OUTPUT_CHANGES = 50000;
+
+    /** The most addresses looked up with one query by {@link #getOpenTransactionOutputs(List)}. */
+    public static final int MAX_ADDRESSES_PER_QUERY = 512;
+
+    private final ThreadLocal<Map<String, PreparedStatement>> preparedStatements = new ThreadLocal<>();
+    private final ThreadLocal<OpenOutputChanges> openOutputChanges = new ThreadLocal<>();
+
+    // Marks an output as removed in OpenOutputChanges.
+    static final UTXO REMOVED = new UTXO(Sha256Hash.ZERO_HASH, 0, Coin.ZERO, 0, false, new Script(new byte[0]));
+
+    // While bulk loading, the changes to the open outputs of committed batch writes which are not written yet.
+    @Nullable private OpenOutputChanges bulkChanges;
+    private int bulkBatchWrites;
+    private int bulkLoadBatchWritesPerWrite;
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -188,6 +220,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 checkCompatibility();
             }
             initFromDatabase();
+            if (getSetting(BULK_LOAD_SETTING) != null)
+                resumeInterruptedBulkLoad();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -259,6 +293,24 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs for many addresses at once. It has a %s in place of the list of
+     * parameters, one for each address.
+     * @return The SQL prepared statement format.
+     */
+    protected String getAddressesTransactionOutputsSelectSQL() {
+        return SELECT_ADDRESSES_TRANSACTION_OUTPUTS_SQL;
+    }
+
+    /**
+     * Get the SQL to select the balances of many addresses at once, as pairs of address and balance. It has a %s in
+     * place of the list of parameters, one for each address.
+     * @return The SQL prepared statement format.
+     */
+    protected String getAddressesBalancesSelectSQL() {
+        return SELECT_ADDRESSES_BALANCES_SQL;
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      * @return The SQL drop statements.
@@ -272,6 +324,40 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return sqlStatements;
     }
 
+    /**
+     * Get the SQL statements that drop the indexes which are not needed while bulk loading, because they are only used
+     * by queries by address. They are created again with {@link #getCreateIndexesAfterBulkLoadSQL()}.
+     * @return The SQL drop statements.
+     */
+    protected List<String> getDropIndexesSQL() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Get the SQL statements that create the indexes dropped by {@link #getDropIndexesSQL()} when bulk loading ends.
+     * @return The SQL create statements.
+     */
+    protected List<String> getCreateIndexesAfterBulkLoadSQL() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Get the SQL statements that create the tables used while bulk loading, if any.
+     * @return The SQL create statements.
+     */
+    protected List<String> getCreateBulkLoadTablesSQL() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Get the SQL statements that drop the tables created by {@link #getCreateBulkLoadTablesSQL()}. They must not fail
+     * if the tables don't exist.
+     * @return The SQL drop statements.
+     */
+    protected List<String> getDropBulkLoadTablesSQL() {
+        return Collections.emptyList();
+    }
+
     /**
      * Get the SQL to select a setting value.
      * @return The SQL select statement.
@@ -288,6 +374,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return INSERT_SETTINGS_SQL;
     }
 
+    /**
+     * Get the SQL to delete a settings record.
+     * @return The SQL delete statement.
+     */
+    protected String getDeleteSettingsSQL() {
+        return DELETE_SETTINGS_SQL;
+    }
+
     /**
      * Get the SQL to update a setting value.
      * @return The SQL update statement.
@@ -352,6 +446,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to delete the headers above a given height.
+     * @return The SQL delete statement.
+     */
+    protected String getDeleteHeadersAboveHeightSQL() {
+        return DELETE_HEADERS_ABOVE_HEIGHT_SQL;
+    }
+
+    /**
+     * Get the SQL to delete the undoable blocks above a given height.
+     * @return The SQL delete statement.
+     */
+    protected String getDeleteUndoableBlocksAboveHeightSQL() {
+        return DELETE_UNDOABLEBLOCKS_ABOVE_HEIGHT_SQL;
+    }
+
     /**
      * Get the SQL to select a openoutputs record.
      * @return The SQL select statement.
@@ -368,6 +478,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_COUNT_SQL;
     }
 
+    /**
+     * Get the SQL to select the indexes of the openoutputs of a transaction.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsIndexesSQL() {
+        return SELECT_OPENOUTPUTS_INDEXES_SQL;
+    }
+
     /**
      * Get the SQL to insert a openoutputs record.
      * @return The SQL insert statement.
@@ -451,6 +569,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public synchronized void close() {
+        if (bulkChanges != null) {
+            try {
+                endBulkLoad();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -465,6 +590,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        preparedStatements.remove();
+        openOutputChanges.remove();
     }
 
     /**
@@ -858,6 +985,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
+        // While bulk loading the chain head is written along with the open outputs, see writeBulkLoadChainHeads().
+        if (isBulkLoading())
+            return;
         maybeConnect();
         try {
             PreparedStatement s = conn.get()
@@ -881,6 +1011,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
+        if (isBulkLoading()) {
+            if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            return;
+        }
         maybeConnect();
         try {
             PreparedStatement s = conn.get()
@@ -911,17 +1046,78 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * Returns a prepared statement for the given SQL on the connection of the current thread. Statements are prepared
+     * once per connection and then reused, so callers must not close them.
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Connection connection = conn.get();
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null) {
+            statements = new HashMap<>();
+            preparedStatements.set(statements);
+        }
+        PreparedStatement s = statements.get(sql);
+        if (s == null || s.isClosed() || s.getConnection() != connection) {
+            s = connection.prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closePreparedStatements() {
+        Map<String, PreparedStatement> statements = preparedStatements.get();
+        if (statements == null)
+            return;
+        for (PreparedStatement s : statements.values()) {
+            try {
+                s.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close PreparedStatement", e);
+            }
+        }
+        preparedStatements.remove();
+    }
+
+    /**
+     * Returns the output as changed by the changes not written to the database yet: first those of the current batch
+     * write, then those staged for bulk loading. Returns null if they don't change it, and {@link #REMOVED} if it is
+     * removed.
+     */
+    @Nullable
+    private UTXO getChangedOutput(@Nullable OpenOutputChanges changes, StoredTransactionOutPoint outPoint) {
+        UTXO out = changes == null ? null : changes.outputs.get(outPoint);
+        if (out == null) {
+            synchronized (this) {
+                if (bulkChanges != null)
+                    out = bulkChanges.outputs.get(outPoint);
+            }
+        }
+        return out;
+    }
+
+    // Whether the database has no open outputs of the given transaction, as far as the unwritten changes know.
+    private boolean isHashAbsent(@Nullable OpenOutputChanges changes, Sha256Hash hash) {
+        if (changes != null && changes.absentHashes.contains(hash))
+            return true;
+        synchronized (this) {
+            return bulkChanges != null && bulkChanges.absentHashes.contains(hash);
+        }
+    }
+
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        UTXO changed = getChangedOutput(openOutputChanges.get(), new StoredTransactionOutPoint(hash, index));
+        if (changed != null)
+            return changed == REMOVED ? null : changed;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -942,66 +1138,202 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Within a batch write the output is only inserted when the batch is committed, together with all other changes
+     * to the open outputs, see {@link #beginDatabaseBatchWrite()}.</p>
+     */
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OpenOutputChanges changes = openOutputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            // An output added twice keeps the first, as the insert would.
+            UTXO changed = getChangedOutput(changes, outPoint);
+            if (changed == null || changed == REMOVED)
+                changes.outputs.put(outPoint, out);
+            maybeFlushOpenOutputChanges(changes);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
         }
     }
 
+    private static void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Within a batch write the output is only deleted when the batch is committed, together with all other changes
+     * to the open outputs. If the store didn't have the output the commit fails, see
+     * {@link #beginDatabaseBatchWrite()}.</p>
+     */
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+        OpenOutputChanges changes = openOutputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            UTXO changed = getChangedOutput(changes, outPoint);
+            if (changed == REMOVED || (changed == null && isHashAbsent(changes, outPoint.getHash())))
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            if (changed == null)
+                changes.mustExist.add(outPoint);
+            changes.outputs.put(outPoint, REMOVED);
+            maybeFlushOpenOutputChanges(changes);
+            return;
+        }
+        int deleted;
+        try {
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            setDeleteOpenoutputsParameters(s, out.getHash(), out.getIndex());
+            deleted = s.executeUpdate();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+        if (deleted == 0)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+    }
+
+    private static void setDeleteOpenoutputsParameters(PreparedStatement s, Sha256Hash hash, long index)
+            throws SQLException {
+        s.setBytes(1, hash.getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) index);
+    }
+
+    /**
+     * Changes to the open outputs which are not in the database yet. For each changed output it holds the output if
+     * it is to be there and {@link #REMOVED} if it is to be gone, so that reads see the changes. They are written by
+     * {@link #writeOpenOutputChanges(OpenOutputChanges)}.
+     */
+    static class OpenOutputChanges {
+        final Map<StoredTransactionOutPoint, UTXO> outputs = new LinkedHashMap<>();
+        // Outputs removed that were not added before, so the database must have them.
+        final Set<StoredTransactionOutPoint> mustExist = new HashSet<>();
+        // Transactions the database has no open outputs of, as found by hasUnspentOutputs(). Outputs of these don't
+        // need deleting before they are inserted. The chain checks this for every transaction of a block before
+        // adding its outputs, so new outputs are inserted without any delete.
+        final Set<Sha256Hash> absentHashes = new HashSet<>();
+
+        /** Applies the given later changes on top of these. */
+        void addAll(OpenOutputChanges later) {
+            for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : later.outputs.entrySet()) {
+                if (later.mustExist.contains(entry.getKey()))
+                    mustExist.add(entry.getKey());
+                outputs.put(entry.getKey(), entry.getValue());
+            }
+            absentHashes.addAll(later.absentHashes);
+        }
+
+        void clear() {
+            outputs.clear();
+            mustExist.clear();
+            absentHashes.clear();
+        }
+    }
+
+    private void maybeFlushOpenOutputChanges(OpenOutputChanges changes) throws BlockStoreException {
+        if (changes.outputs.size() >= MAX_PENDING_OPEN_OUTPUT_CHANGES)
+            flushOpenOutputChanges();
+    }
+
+    /**
+     * Sends the changes to the open outputs made in the current batch write to the database, if there are any. This
+     * has to be done before any query that they could affect. While bulk loading the changes are kept until the batch
+     * write is committed, as they can only be written after those staged before them.
+     */
+    protected void flushOpenOutputChanges() throws BlockStoreException {
+        OpenOutputChanges changes = openOutputChanges.get();
+        if (changes == null || changes.outputs.isEmpty() || isBulkLoading())
+            return;
+        maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            writeOpenOutputChanges(changes);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            changes.clear();
+        }
+    }
+
+    /**
+     * Writes the given changes to the open outputs to the database, with the connection of the current thread. This
+     * sends one JDBC batch of deletes and one of inserts. Throws if an output that must exist was not there.
+     */
+    protected void writeOpenOutputChanges(OpenOutputChanges changes) throws SQLException, BlockStoreException {
+        // Changed outputs the database may have are deleted first, so that inserting doesn't depend on whether
+        // they were there.
+        List<StoredTransactionOutPoint> outPoints = new ArrayList<>(changes.outputs.size());
+        for (StoredTransactionOutPoint outPoint : changes.outputs.keySet())
+            if (!changes.absentHashes.contains(outPoint.getHash()))
+                outPoints.add(outPoint);
+        if (!outPoints.isEmpty()) {
+            PreparedStatement delete = getPreparedStatement(getDeleteOpenoutputsSQL());
+            for (StoredTransactionOutPoint outPoint : outPoints) {
+                setDeleteOpenoutputsParameters(delete, outPoint.getHash(), outPoint.getIndex());
+                delete.addBatch();
+            }
+            int[] deleted = delete.executeBatch();
+            for (int i = 0; i < deleted.length; i++) {
+                // Drivers may not report counts for batches, in which case the check can't be done.
+                if (deleted[i] == 0 && changes.mustExist.contains(outPoints.get(i)))
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            }
         }
+        PreparedStatement insert = getPreparedStatement(getInsertOpenoutputsSQL());
+        boolean inserting = false;
+        for (UTXO out : changes.outputs.values()) {
+            if (out != REMOVED) {
+                setInsertOpenoutputsParameters(insert, out);
+                insert.addBatch();
+                inserting = true;
+            }
+        }
+        if (inserting)
+            insert.executeBatch();
     }
 
+    /**
+     * Writes the changes to the open outputs staged while bulk loading, with the connection of the current thread and
+     * within its transaction. By default this is done like for a batch write, see
+     * {@link #writeOpenOutputChanges(OpenOutputChanges)}. Database specific stores may use faster ways to load many
+     * rows.
+     */
+    protected void writeBulkLoadChanges(OpenOutputChanges changes) throws SQLException, BlockStoreException {
+        writeOpenOutputChanges(changes);
+    }
+
+    /**
+     * <p>Starts a database transaction, if one isn't going on already.</p>
+     *
+     * <p>Until the transaction is committed, changes to the open outputs are kept in memory and then written with
+     * JDBC batches. Connecting a block changes thousands of outputs, which would otherwise take as many round trips to
+     * the database. Reads through this store see the changes. Any problem writing them, like a removed output the
+     * database didn't have, comes up when committing.</p>
+     */
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1012,26 +1344,63 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (openOutputChanges.get() == null)
+            openOutputChanges.set(new OpenOutputChanges());
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>While bulk loading the changes to the open outputs are staged instead, and only written once every so many
+     * batch writes, see {@link #beginBulkLoad(int)}.</p>
+     */
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        OpenOutputChanges changes = openOutputChanges.get();
+        openOutputChanges.remove();
         try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
+            synchronized (this) {
+                if (bulkChanges == null) {
+                    if (changes != null)
+                        writeOpenOutputChanges(changes);
+                    commit();
+                } else if (bulkBatchWrites + 1 >= bulkLoadBatchWritesPerWrite) {
+                    // The staged changes are only dropped once written, so they survive if this batch write fails.
+                    OpenOutputChanges all = new OpenOutputChanges();
+                    all.addAll(bulkChanges);
+                    if (changes != null)
+                        all.addAll(changes);
+                    writeBulkLoadChanges(all);
+                    writeBulkLoadChainHeads();
+                    commit();
+                    bulkChanges.clear();
+                    bulkBatchWrites = 0;
+                } else {
+                    commit();
+                    if (changes != null)
+                        bulkChanges.addAll(changes);
+                    bulkBatchWrites++;
+                }
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    private void commit() throws SQLException {
+        conn.get().commit();
+        conn.get().setAutoCommit(true);
+    }
+
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        openOutputChanges.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1044,28 +1413,240 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * <p>Starts bulk loading, for catching up with the chain from far behind. Changes to the open outputs are staged
+     * in memory and written once every given number of batch writes, which is usually the number of blocks. Database
+     * specific stores may write them in bulk, and drop the indexes that are only needed for queries by address,
+     * see {@link #getDropIndexesSQL()}. Call {@link #endBulkLoad()} when close to the tip of the chain.</p>
+     *
+     * <p>Until then the chain heads are only written along with the open outputs, and queries by address only see the
+     * outputs as of the last write. If the store isn't closed properly while bulk loading, it continues from the last
+     * write when it is opened next, dropping the blocks stored after it.</p>
+     */
+    public void beginBulkLoad(int batchWritesPerWrite) throws BlockStoreException {
+        checkArgument(batchWritesPerWrite > 0);
+        maybeConnect();
+        synchronized (this) {
+            checkState(openOutputChanges.get() == null, "Can't start bulk loading within a batch write");
+            bulkLoadBatchWritesPerWrite = batchWritesPerWrite;
+            if (bulkChanges != null)
+                return;
+            try {
+                executeStatements(getDropIndexesSQL());
+                executeStatements(getCreateBulkLoadTablesSQL());
+                putSetting(BULK_LOAD_SETTING, new byte[] { 1 });
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            bulkChanges = new OpenOutputChanges();
+            bulkBatchWrites = 0;
+        }
+    }
+
+    /**
+     * Ends bulk loading, writing the staged changes to the open outputs and building the indexes that were dropped.
+     * Does nothing if the store isn't bulk loading.
+     */
+    public void endBulkLoad() throws BlockStoreException {
+        maybeConnect();
+        synchronized (this) {
+            if (bulkChanges == null)
+                return;
+            checkState(openOutputChanges.get() == null, "Can't end bulk loading within a batch write");
+            Connection connection = conn.get();
+            try {
+                connection.setAutoCommit(false);
+                writeBulkLoadChanges(bulkChanges);
+                writeBulkLoadChainHeads();
+                executeStatements(getDropBulkLoadTablesSQL());
+                executeStatements(getCreateIndexesAfterBulkLoadSQL());
+                deleteSetting(BULK_LOAD_SETTING);
+                connection.commit();
+                bulkChanges = null;
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                try {
+                    if (bulkChanges != null)
+                        connection.rollback();
+                    connection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    log.warn("Failed to end bulk loading transaction", e);
+                }
+            }
+        }
+    }
+
+    // Writes the chain heads held back while bulk loading, in the transaction that writes the staged open outputs, and
+    // removes the undoable blocks that have fallen too far behind them.
+    private void writeBulkLoadChainHeads() throws SQLException, BlockStoreException {
+        updateSetting(CHAIN_HEAD_SETTING, chainHeadHash.getBytes());
+        updateSetting(VERIFIED_CHAIN_HEAD_SETTING, verifiedChainHeadHash.getBytes());
+        removeUndoableBlocksWhereHeightIsLessThan(verifiedChainHeadBlock.getHeight() - fullStoreDepth);
+    }
+
+    // Bulk loading was interrupted. The chain heads were written along with the open outputs, so the store is consistent
+    // as of then, except for the blocks stored since. Drops those, and ends bulk loading, so the chain continues from
+    // the last write.
+    private void resumeInterruptedBulkLoad() throws SQLException, BlockStoreException {
+        int height = verifiedChainHeadBlock.getHeight();
+        log.warn("Bulk loading was interrupted, continuing from block {} at height {}", verifiedChainHeadHash, height);
+        Connection connection = conn.get();
+        connection.setAutoCommit(false);
+        boolean committed = false;
+        try {
+            deleteAboveHeight(getDeleteHeadersAboveHeightSQL(), height);
+            deleteAboveHeight(getDeleteUndoableBlocksAboveHeightSQL(), height);
+            executeStatements(getDropBulkLoadTablesSQL());
+            executeStatements(getCreateIndexesAfterBulkLoadSQL());
+            deleteSetting(BULK_LOAD_SETTING);
+            connection.commit();
+            committed = true;
+        } finally {
+            if (!committed)
+                connection.rollback();
+            connection.setAutoCommit(true);
+        }
+        if (chainHeadBlock.getHeight() > height)
+            setChainHead(verifiedChainHeadBlock);
+    }
+
+    private void deleteAboveHeight(String sql, int height) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(sql);
+        try {
+            s.setInt(1, height);
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    /** Returns whether the store is bulk loading, see {@link #beginBulkLoad(int)}. */
+    public synchronized boolean isBulkLoading() {
+        return bulkChanges != null;
+    }
+
+    private void executeStatements(List<String> statements) throws SQLException {
+        if (statements.isEmpty())
+            return;
+        Statement s = conn.get().createStatement();
+        try {
+            for (String sql : statements) {
+                if (log.isDebugEnabled())
+                    log.debug("DatabaseFullPrunedBlockStore : [SQL= {}]", sql);
+                s.executeUpdate(sql);
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    @Nullable
+    private byte[] getSetting(String name) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(getSelectSettingsSQL());
+        try {
+            s.setString(1, name);
+            ResultSet results = s.executeQuery();
+            return results.next() ? results.getBytes(1) : null;
+        } finally {
+            s.close();
+        }
+    }
+
+    private void putSetting(String name, byte[] value) throws SQLException {
+        deleteSetting(name);
+        PreparedStatement s = conn.get().prepareStatement(getInsertSettingsSQL());
+        try {
+            s.setString(1, name);
+            s.setBytes(2, value);
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    private void updateSetting(String name, byte[] value) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(getUpdateSettingsSLQ());
+        try {
+            s.setString(2, name);
+            s.setBytes(1, value);
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
+    private void deleteSetting(String name) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(getDeleteSettingsSQL());
+        try {
+            s.setString(1, name);
+            s.executeUpdate();
+        } finally {
+            s.close();
+        }
+    }
+
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OpenOutputChanges changes = openOutputChanges.get();
+        boolean changed = false;
+        for (int index = 0; index < numOutputs; index++) {
+            UTXO out = getChangedOutput(changes, new StoredTransactionOutPoint(hash, index));
+            if (out != null && out != REMOVED)
+                return true;
+            changed |= out != null;
+        }
+        if (changed) {
+            // Some outputs are removed, only the database can tell if there are others.
+            for (long index : getOpenOutputIndexes(hash))
+                if (getChangedOutput(changes, new StoredTransactionOutPoint(hash, index)) == null)
+                    return true;
+            return false;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
+            if (count == 0 && changes != null)
+                changes.absentHashes.add(hash);
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
+            closeResultSet(results);
+        }
+    }
+
+    // Returns the indexes of the open outputs of the given transaction that are in the database.
+    private List<Long> getOpenOutputIndexes(Sha256Hash hash) throws BlockStoreException {
+        ResultSet results = null;
+        try {
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsIndexesSQL());
+            s.setBytes(1, hash.getBytes());
+            results = s.executeQuery();
+            List<Long> indexes = new ArrayList<>();
+            while (results.next())
+                indexes.add(results.getInt(1) & 0xFFFFFFFFL);
+            return indexes;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            closeResultSet(results);
+        }
+    }
+
+    private static void closeResultSet(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
             }
         }
     }
@@ -1105,7 +1686,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        OpenOutputChanges changes = openOutputChanges.get();
+        if (changes != null)
+            changes.clear();
+        synchronized (this) {
+            bulkChanges = null;
+        }
+        closePreparedStatements();
         try {
+            executeStatements(getDropBulkLoadTablesSQL());
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
                 s.execute(sql);
@@ -1132,6 +1721,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushOpenOutputChanges();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1155,32 +1745,41 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The addresses are looked up with the index on them, up to {@link #MAX_ADDRESSES_PER_QUERY} per query.
+     * While bulk loading only the outputs written so far are found, see {@link #beginBulkLoad(int)}.</p>
+     */
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        PreparedStatement s = null;
         List<UTXO> outputs = new ArrayList<>();
         try {
             maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (Address address : addresses) {
-                s.setString(1, address.toString());
-                ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+            flushOpenOutputChanges();
+            for (List<String> chunk : toAddressChunks(addresses)) {
+                ResultSet rs = null;
+                try {
+                    rs = executeAddressesQuery(getAddressesTransactionOutputsSelectSQL(), chunk);
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        Coin amount = Coin.valueOf(rs.getLong(2));
+                        byte[] scriptBytes = rs.getBytes(3);
+                        int height = rs.getInt(4);
+                        int index = rs.getInt(5);
+                        boolean coinbase = rs.getBoolean(6);
+                        String toAddress = rs.getString(7);
+                        UTXO output = new UTXO(hash,
+                                index,
+                                amount,
+                                height,
+                                coinbase,
+                                new Script(scriptBytes),
+                                toAddress);
+                        outputs.add(output);
+                    }
+                } finally {
+                    closeResultSet(rs);
                 }
             }
             return outputs;
@@ -1188,16 +1787,72 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             throw new UTXOProviderException(ex);
         } catch (BlockStoreException bse) {
             throw new UTXOProviderException(bse);
-        } finally {
-            if (s != null)
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The balances are summed by the database with the index on the addresses, for up to
+     * {@link #MAX_ADDRESSES_PER_QUERY} addresses per query.</p>
+     */
+    @Override
+    public Map<Address, Coin> getBalances(List<Address> addresses) throws UTXOProviderException {
+        Map<String, Address> byString = new HashMap<>(addresses.size());
+        Map<Address, Coin> balances = new HashMap<>(addresses.size());
+        for (Address address : addresses) {
+            byString.put(address.toString(), address);
+            balances.put(address, Coin.ZERO);
+        }
+        try {
+            maybeConnect();
+            flushOpenOutputChanges();
+            for (List<String> chunk : toAddressChunks(addresses)) {
+                ResultSet rs = null;
                 try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
+                    rs = executeAddressesQuery(getAddressesBalancesSelectSQL(), chunk);
+                    while (rs.next())
+                        balances.put(byString.get(rs.getString(1)), Coin.valueOf(rs.getLong(2)));
+                } finally {
+                    closeResultSet(rs);
                 }
+            }
+            return balances;
+        } catch (SQLException ex) {
+            throw new UTXOProviderException(ex);
+        } catch (BlockStoreException bse) {
+            throw new UTXOProviderException(bse);
         }
     }
 
+    // Splits the distinct addresses into lists of at most MAX_ADDRESSES_PER_QUERY. The last is padded with repeats of
+    // its last address to a power of two, so that few statements with different numbers of parameters are prepared.
+    private static List<List<String>> toAddressChunks(List<Address> addresses) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(Lists.transform(addresses, Functions.toStringFunction())));
+        List<List<String>> chunks = new ArrayList<>();
+        for (int from = 0; from < distinct.size(); from += MAX_ADDRESSES_PER_QUERY) {
+            List<String> chunk = new ArrayList<>(distinct.subList(from, Math.min(from + MAX_ADDRESSES_PER_QUERY,
+                    distinct.size())));
+            int size = Integer.highestOneBit(chunk.size());
+            if (size < chunk.size())
+                size <<= 1;
+            while (chunk.size() < size)
+                chunk.add(chunk.get(chunk.size() - 1));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private ResultSet executeAddressesQuery(String format, List<String> addresses) throws SQLException {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < addresses.size(); i++)
+            parameters.append(i == 0 ? "?" : ", ?");
+        PreparedStatement s = getPreparedStatement(String.format(format, parameters));
+        for (int i = 0; i < addresses.size(); i++)
+            s.setString(i + 1, addresses.get(i));
+        return s.executeQuery();
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
@@ -1205,6 +1860,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
         maybeConnect();
+        flushOpenOutputChanges();
         Statement s = conn.get().createStatement();
         long size = 0;
         long totalSize = 0;
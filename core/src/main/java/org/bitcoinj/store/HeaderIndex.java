@@ -0,0 +1,219 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps the most recent blocks of the best chain in memory, in front of a {@link BlockStore}. Header validation
+ * keeps looking at the blocks just below the chain head: the median timestamp of the last 11 blocks, the block at the
+ * start of the difficulty interval and the versions of the last {@link NetworkParameters#getMajorityWindow()} blocks.
+ * With this index in front of the store, those lookups don't hit the store, which can be slow.</p>
+ *
+ * <p>The index holds a sliding window of best chain blocks by height, which moves along with the chain head and
+ * follows re-orgs. Blocks are found either by hash, via {@link #get(Sha256Hash)}, or by height, via
+ * {@link #getAncestor(StoredBlock, int)}. The latter only walks the store from a side chain block until it reaches
+ * the best chain, from where it jumps to the requested height.</p>
+ *
+ * <p>The index is a {@link BlockStore} itself, so that it can be passed to code that walks the chain, like
+ * {@link NetworkParameters#checkDifficultyTransitions}. Writes go straight to the underlying store. This class is NOT
+ * thread safe, the block chain only uses it whilst holding its lock.</p>
+ */
+public class HeaderIndex implements BlockStore {
+    private final BlockStore store;
+    // Best chain blocks by height, modulo the capacity. Filled from lowestHeight up to and including tipHeight.
+    private final StoredBlock[] window;
+    private final HashMap<Sha256Hash, StoredBlock> byHash = new HashMap<>();
+    private int lowestHeight;
+    private int tipHeight = -1;
+
+    /** Creates an index in front of the given store, holding up to the given number of best chain blocks. */
+    public HeaderIndex(BlockStore store, int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.store = store;
+        this.window = new StoredBlock[capacity];
+    }
+
+    /**
+     * Returns the block with the given hash, from the index if it is one of the recent best chain blocks and from the
+     * underlying store otherwise.
+     */
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = byHash.get(hash);
+        return block != null ? block : store.get(hash);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or null if the underlying store doesn't go back
+     * that far, for instance because it started from a checkpoint.
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height) {
+            if (isOnBestChain(cursor))
+                return getOnBestChain(height);
+            cursor = get(cursor.getHeader().getPrevBlockHash());
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, using the index if the given store is one and
+     * walking back block by block otherwise.
+     */
+    @Nullable
+    public static StoredBlock getAncestor(BlockStore store, StoredBlock block, int height) throws BlockStoreException {
+        if (store instanceof HeaderIndex)
+            return ((HeaderIndex) store).getAncestor(block, height);
+        checkArgument(height >= 0 && height <= block.getHeight(), "Bad height: %s", height);
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height)
+            cursor = cursor.getPrev(store);
+        return cursor;
+    }
+
+    /**
+     * Moves the window to the given new chain head, without touching the underlying store. On a re-org, the blocks
+     * of the old chain above the split point are dropped and the ones of the new chain are fetched from the store.
+     */
+    public void chainHeadChanged(StoredBlock chainHead) throws BlockStoreException {
+        if (tipHeight >= 0) {
+            StoredBlock tip = window[slot(tipHeight)];
+            if (tip.getHeader().getHash().equals(chainHead.getHeader().getHash()))
+                return;
+            if (chainHead.getHeight() == tipHeight + 1
+                    && chainHead.getHeader().getPrevBlockHash().equals(tip.getHeader().getHash())) {
+                // The common case, a new block on top of the chain.
+                append(chainHead);
+                return;
+            }
+        }
+        // Walk back from the new head until we meet the indexed chain, then replace everything above that point.
+        LinkedList<StoredBlock> branch = new LinkedList<>();
+        StoredBlock cursor = chainHead;
+        while (cursor != null && branch.size() < window.length && !isOnBestChain(cursor)) {
+            branch.addFirst(cursor);
+            if (tipHeight < 0 || cursor.getHeight() <= lowestHeight)
+                break; // Nothing to meet below this block, the window is rebuilt from the branch alone.
+            cursor = store.get(cursor.getHeader().getPrevBlockHash());
+        }
+        if (cursor != null && isOnBestChain(cursor))
+            truncate(cursor.getHeight());
+        else
+            truncate(-1);
+        for (StoredBlock block : branch)
+            append(block);
+    }
+
+    /** Returns the number of best chain blocks currently held in memory. */
+    public int size() {
+        return tipHeight < 0 ? 0 : tipHeight - lowestHeight + 1;
+    }
+
+    /** Returns the maximum number of best chain blocks held in memory. */
+    public int getCapacity() {
+        return window.length;
+    }
+
+    private int slot(int height) {
+        return height % window.length;
+    }
+
+    private boolean isOnBestChain(StoredBlock block) {
+        int height = block.getHeight();
+        if (tipHeight < 0 || height < lowestHeight || height > tipHeight)
+            return false;
+        return window[slot(height)].getHeader().getHash().equals(block.getHeader().getHash());
+    }
+
+    // Returns the best chain block at the given height, extending the window downwards from the store if there's room.
+    @Nullable
+    private StoredBlock getOnBestChain(int height) throws BlockStoreException {
+        if (height >= lowestHeight)
+            return window[slot(height)];
+        StoredBlock cursor = window[slot(lowestHeight)];
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = store.get(cursor.getHeader().getPrevBlockHash());
+            if (cursor != null && size() < window.length) {
+                lowestHeight--;
+                window[slot(lowestHeight)] = cursor;
+                byHash.put(cursor.getHeader().getHash(), cursor);
+            }
+        }
+        return cursor;
+    }
+
+    private void append(StoredBlock block) {
+        if (tipHeight < 0) {
+            lowestHeight = block.getHeight();
+        } else if (size() == window.length) {
+            byHash.remove(window[slot(lowestHeight)].getHeader().getHash());
+            lowestHeight++;
+        }
+        tipHeight = block.getHeight();
+        window[slot(tipHeight)] = block;
+        byHash.put(block.getHeader().getHash(), block);
+    }
+
+    // Drops all blocks above the given height.
+    private void truncate(int height) {
+        while (tipHeight >= 0 && tipHeight > height) {
+            int slot = slot(tipHeight);
+            byHash.remove(window[slot].getHeader().getHash());
+            window[slot] = null;
+            tipHeight = tipHeight == lowestHeight ? -1 : tipHeight - 1;
+        }
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+        chainHeadChanged(chainHead);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+}
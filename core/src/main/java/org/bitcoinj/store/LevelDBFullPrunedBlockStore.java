@@ -16,10 +16,13 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -29,7 +32,9 @@ import java.io.*;
 import java.nio.ByteBuffer;
 
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressBalanceProvider;
 import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Sha256Hash;
@@ -49,6 +54,8 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -60,7 +67,7 @@ import com.google.common.collect.Lists;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, AddressBalanceProvider {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -297,11 +304,52 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             } else {
                 initFromDb();
             }
+            if (batchGet(getKey(KeyType.ADDRESS_BALANCES_CREATED)) == null)
+                createAddressBalances();
         } catch (BlockStoreException e) {
             throw new RuntimeException("Can not init/load db", e);
         }
     }
 
+    // Stores created before balances were kept get them from the address index once.
+    private void createAddressBalances() throws BlockStoreException {
+        log.info("Calculating address balances");
+        Map<ByteBuffer, Long> balances = new HashMap<>();
+        DBIterator iterator = db.iterator();
+        try {
+            byte[] prefix = getKey(KeyType.ADDRESS_HASHINDEX);
+            for (iterator.seek(prefix); iterator.hasNext(); iterator.next()) {
+                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                if (bbKey.get() != prefix[0])
+                    break;
+                byte[] hash160 = new byte[20];
+                bbKey.get(hash160);
+                byte[] hashBytes = new byte[32];
+                bbKey.get(hashBytes);
+                byte[] out = db.get(getTxKey(KeyType.OPENOUT_ALL, Sha256Hash.wrap(hashBytes), bbKey.getInt()));
+                if (out == null)
+                    continue;
+                long value = new UTXO(new ByteArrayInputStream(out)).getValue().value;
+                Long balance = balances.get(ByteBuffer.wrap(hash160));
+                balances.put(ByteBuffer.wrap(hash160), balance == null ? value : balance + value);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException("problem reading utxo", e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+        beginDatabaseBatchWrite();
+        for (Map.Entry<ByteBuffer, Long> entry : balances.entrySet())
+            batchPut(getBalanceKey(entry.getKey().array()), Longs.toByteArray(entry.getValue()));
+        batchPut(getKey(KeyType.ADDRESS_BALANCES_CREATED), bytes("done"));
+        commitDatabaseBatchWrite();
+        log.info("Calculated balances of {} addresses", balances.size());
+    }
+
     private void initFromDb() throws BlockStoreException {
         Sha256Hash hash = Sha256Hash.wrap(batchGet(getKey(KeyType.CHAIN_HEAD_SETTING)));
         this.chainHeadBlock = get(hash);
@@ -418,58 +466,58 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         return params;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The addresses are looked up in order on one snapshot of the database, with one iterator over the index of
+     * outputs by address, so the result is consistent and the iterator mostly moves forward.</p>
+     */
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
         // Run this on a snapshot of database so internally consistent result
         // This is critical or if one address paid another could get incorrect
         // results
-
+        List<byte[]> hash160s = getSortedHash160s(addresses);
         List<UTXO> results = new LinkedList<>();
-        for (Address a : addresses) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(a.getHash160());
-
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
-
-            // Scanning over iterator very fast
-
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, a.getHash160())) {
-                    break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (byte[] hash160 : hash160s) {
+                ByteBuffer bb = ByteBuffer.allocate(21);
+                bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+                bb.put(hash160);
+
+                // Scanning over iterator very fast
+                for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
+                    ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                    bbKey.get(); // remove the address_hashindex byte.
+                    byte[] addressKey = new byte[20];
+                    bbKey.get(addressKey);
+                    if (!Arrays.equals(addressKey, hash160)) {
+                        break;
+                    }
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    byte[] inbytes = db.get(getTxKey(KeyType.OPENOUT_ALL, Sha256Hash.wrap(hashBytes), index), ro);
+                    if (inbytes != null) {
+                        UTXO txout = new UTXO(new ByteArrayInputStream(inbytes));
+                        Script sc = txout.getScript();
+                        Address address = sc.getToAddress(params, true);
+                        UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
+                                txout.isCoinbase(), txout.getScript(), address.toString());
+                        results.add(output);
+                    }
                 }
             }
+        } catch (IOException e) {
+            throw new UTXOProviderException("block store execption", e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
                 sn.close();
-                sn = null;
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
@@ -477,6 +525,44 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         return results;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The balance of each address is kept up to date with its outputs, so this reads one key per address.</p>
+     */
+    @Override
+    public Map<Address, Coin> getBalances(List<Address> addresses) throws UTXOProviderException {
+        Map<Address, Coin> balances = new HashMap<>();
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        try {
+            for (Address address : addresses) {
+                byte[] balance = db.get(getBalanceKey(address.getHash160()), ro);
+                balances.put(address, balance != null ? Coin.valueOf(Longs.fromByteArray(balance)) : Coin.ZERO);
+            }
+        } finally {
+            try {
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot?", e);
+            }
+        }
+        return balances;
+    }
+
+    // The distinct hash160s of the addresses, in the order of the keys of the database.
+    private static List<byte[]> getSortedHash160s(List<Address> addresses) {
+        Set<ByteBuffer> distinct = new LinkedHashSet<>();
+        for (Address address : addresses)
+            distinct.add(ByteBuffer.wrap(address.getHash160()));
+        List<byte[]> hash160s = new ArrayList<>(distinct.size());
+        for (ByteBuffer hash160 : distinct)
+            hash160s.add(hash160.array());
+        Collections.sort(hash160s, UnsignedBytes.lexicographicalComparator());
+        return hash160s;
+    }
+
     @Override
     public int getChainHeadHeight() throws UTXOProviderException {
         try {
@@ -559,7 +645,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX, ADDRESS_BALANCE, ADDRESS_BALANCES_CREATED
     }
 
     // These helpers just get the key for an input
@@ -766,6 +852,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("addUnspentTransactionOutput");
 
+        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+        // Outputs are only added again for duplicate transactions, which have the same value and address. The bloom
+        // filter tells if that's possible without reading.
+        boolean existed = bloom.wasAdded(out.getHash()) && batchGet(key) != null;
         // Add to bloom filter - is very fast to add.
         bloom.add(out.getHash());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -775,7 +865,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("problem serialising utxo", e);
         }
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
         batchPut(key, bos.toByteArray());
 
         if (autoCommit) {
@@ -810,10 +899,30 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bb.putInt((int) out.getIndex());
         byte[] value = new byte[0];
         batchPut(bb.array(), value);
+        if (!existed)
+            addToBalance(a.getHash160(), out.getValue().value);
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
 
+    private byte[] getBalanceKey(byte[] hash160) {
+        byte[] key = new byte[21];
+        key[0] = (byte) KeyType.ADDRESS_BALANCE.ordinal();
+        System.arraycopy(hash160, 0, key, 1, 20);
+        return key;
+    }
+
+    // Changes the balance of an address, in the same batch as the outputs.
+    private void addToBalance(byte[] hash160, long delta) {
+        byte[] key = getBalanceKey(hash160);
+        byte[] balance = batchGet(key);
+        long newBalance = (balance == null ? 0 : Longs.fromByteArray(balance)) + delta;
+        if (newBalance == 0)
+            batchDelete(key);
+        else
+            batchPut(key, Longs.toByteArray(newBalance));
+    }
+
     private void batchPut(byte[] key, byte[] value) {
         if (autoCommit) {
             db.put(key, value);
@@ -909,6 +1018,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
         batchDelete(bb.array());
+        // Outputs without an address were not added to a balance.
+        if (out.getAddress() != null && !out.getAddress().equals(""))
+            addToBalance(hashBytes, -out.getValue().value);
 
         if (instrument)
             endMethod("removeUnspentTransactionOutput");
@@ -17,67 +17,12 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import javax.annotation.Nullable;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint {
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(UTXO out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hashCode(getIndex(), getHash());
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash + ":" + index;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() && Objects.equal(getHash(), other.getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
  * This class is not thread-safe.
@@ -232,7 +177,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.bitcoinj.core.UTXO}s in memory.
  * Used primarily for unit testing.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, AddressBalanceProvider {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -242,6 +187,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
     private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    // The committed unspent outputs and their total value for each address, for getOpenTransactionOutputs() and
+    // getBalances(). Changes made within a batch write are applied when it is committed.
+    private Map<String, Map<StoredTransactionOutPoint, UTXO>> outputsByAddress = new HashMap<>();
+    private Map<String, Coin> balances = new HashMap<>();
+    private final ThreadLocal<List<AddressIndexChange>> addressIndexChanges = new ThreadLocal<>();
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -346,6 +296,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         blockMap = null;
         fullBlockMap = null;
         transactionOutputMap = null;
+        outputsByAddress = null;
+        balances = null;
     }
     
     @Override
@@ -359,6 +311,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        changeAddressIndex(new AddressIndexChange(out, true));
     }
 
     @Override
@@ -366,6 +319,47 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         if (transactionOutputMap.remove(new StoredTransactionOutPoint(out)) == null)
             throw new BlockStoreException("Tried to remove a UTXO from MemoryFullPrunedBlockStore that it didn't have!");
+        changeAddressIndex(new AddressIndexChange(out, false));
+    }
+
+    private static class AddressIndexChange {
+        final UTXO out;
+        final boolean added;
+
+        AddressIndexChange(UTXO out, boolean added) {
+            this.out = out;
+            this.added = added;
+        }
+    }
+
+    private void changeAddressIndex(AddressIndexChange change) {
+        List<AddressIndexChange> changes = addressIndexChanges.get();
+        if (changes != null)
+            changes.add(change);
+        else
+            applyAddressIndexChange(change);
+    }
+
+    private void applyAddressIndexChange(AddressIndexChange change) {
+        String address = change.out.getAddress();
+        if (address == null || address.isEmpty())
+            return;
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(change.out);
+        Map<StoredTransactionOutPoint, UTXO> outputs = outputsByAddress.get(address);
+        Coin balance = balances.get(address);
+        if (change.added) {
+            if (outputs == null)
+                outputsByAddress.put(address, outputs = new HashMap<>());
+            if (outputs.put(outPoint, change.out) == null)
+                balances.put(address, balance == null ? change.out.getValue() : balance.add(change.out.getValue()));
+        } else if (outputs != null && outputs.remove(outPoint) != null) {
+            if (outputs.isEmpty()) {
+                outputsByAddress.remove(address);
+                balances.remove(address);
+            } else {
+                balances.put(address, balance.subtract(change.out.getValue()));
+            }
+        }
     }
 
     @Override
@@ -373,6 +367,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
         transactionOutputMap.beginDatabaseBatchWrite();
+        addressIndexChanges.set(new ArrayList<AddressIndexChange>());
     }
 
     @Override
@@ -380,6 +375,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         blockMap.commitDatabaseBatchWrite();
         fullBlockMap.CommitTransaction();
         transactionOutputMap.commitDatabaseBatchWrite();
+        List<AddressIndexChange> changes = addressIndexChanges.get();
+        addressIndexChanges.remove();
+        if (changes != null)
+            for (AddressIndexChange change : changes)
+                applyAddressIndexChange(change);
     }
 
     @Override
@@ -387,6 +387,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         blockMap.abortDatabaseBatchWrite();
         fullBlockMap.AbortTransaction();
         transactionOutputMap.abortDatabaseBatchWrite();
+        addressIndexChanges.remove();
     }
 
     @Override
@@ -412,18 +413,23 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
-        // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
         List<UTXO> foundOutputs = new ArrayList<>();
-        List<UTXO> outputsList = transactionOutputMap.values();
-        for (UTXO output : outputsList) {
-            for (Address address : addresses) {
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
-            }
+        for (Address address : new LinkedHashSet<>(addresses)) {
+            Map<StoredTransactionOutPoint, UTXO> outputs = outputsByAddress.get(address.toString());
+            if (outputs != null)
+                foundOutputs.addAll(outputs.values());
         }
         return foundOutputs;
     }
+
+    @Override
+    public synchronized Map<Address, Coin> getBalances(List<Address> addresses) throws UTXOProviderException {
+        Map<Address, Coin> found = new HashMap<>();
+        for (Address address : addresses) {
+            Coin balance = balances.get(address.toString());
+            found.put(address, balance != null ? balance : Coin.ZERO);
+        }
+        return found;
+    }
 }
@@ -77,10 +77,12 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
+    private static final String SELECT_OPENOUTPUTS_INDEXES_SQL                  = "SELECT `index` FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_ADDRESSES_TRANSACTION_OUTPUTS_SQL        = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs WHERE toaddress IN (%s)";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -108,6 +110,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsIndexesSQL() {
+        return SELECT_OPENOUTPUTS_INDEXES_SQL;
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
@@ -123,6 +130,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected String getAddressesTransactionOutputsSelectSQL() {
+        return SELECT_ADDRESSES_TRANSACTION_OUTPUTS_SQL;
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
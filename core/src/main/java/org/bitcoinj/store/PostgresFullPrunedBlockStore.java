@@ -19,18 +19,23 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>A full pruned block store using the Postgres database engine. As an added bonus an address index is calculated,
@@ -89,6 +94,38 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     private static final String SELECT_UNDOABLEBLOCKS_EXISTS_SQL        = "select 1 from undoableblocks where hash = ?";
 
+    // Bulk loading SQL. Changes to the open outputs are copied into unlogged tables, then merged in one go.
+    private static final String DROP_OUTPUTS_ADDRESS_MULTI_INDEX        = "DROP INDEX IF EXISTS openoutputs_hash_index_num_height_toaddress_idx";
+    private static final String DROP_OUTPUTS_TOADDRESS_INDEX            = "DROP INDEX IF EXISTS openoutputs_toaddress_idx";
+    private static final String DROP_OUTPUTS_ADDRESSTARGETABLE_INDEX    = "DROP INDEX IF EXISTS openoutputs_addresstargetable_idx";
+
+    private static final String CREATE_OPEN_OUTPUT_STAGING_TABLE = "CREATE UNLOGGED TABLE IF NOT EXISTS openoutputs_staging (\n" +
+            "    hash bytea NOT NULL,\n" +
+            "    index integer NOT NULL,\n" +
+            "    height integer NOT NULL,\n" +
+            "    value bigint NOT NULL,\n" +
+            "    scriptbytes bytea NOT NULL,\n" +
+            "    toaddress character varying(35),\n" +
+            "    addresstargetable smallint,\n" +
+            "    coinbase boolean\n" +
+            ")\n";
+    private static final String CREATE_SPENT_OUTPUT_STAGING_TABLE = "CREATE UNLOGGED TABLE IF NOT EXISTS openoutputs_spent_staging (\n" +
+            "    hash bytea NOT NULL,\n" +
+            "    index integer NOT NULL,\n" +
+            "    mustexist boolean NOT NULL\n" +
+            ")\n";
+    private static final String DROP_OPEN_OUTPUT_STAGING_TABLE          = "DROP TABLE IF EXISTS openoutputs_staging";
+    private static final String DROP_SPENT_OUTPUT_STAGING_TABLE         = "DROP TABLE IF EXISTS openoutputs_spent_staging";
+
+    private static final String COPY_OPEN_OUTPUT_STAGING_SQL            = "COPY openoutputs_staging (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) FROM STDIN";
+    private static final String COPY_SPENT_OUTPUT_STAGING_SQL           = "COPY openoutputs_spent_staging (hash, index, mustexist) FROM STDIN";
+    private static final String SELECT_MISSING_SPENT_OUTPUTS_SQL        = "SELECT COUNT(*) FROM openoutputs_spent_staging s WHERE s.mustexist AND NOT EXISTS " +
+            "(SELECT 1 FROM openoutputs o WHERE o.hash = s.hash AND o.index = s.index)";
+    private static final String MERGE_SPENT_OUTPUTS_SQL                 = "DELETE FROM openoutputs o USING openoutputs_spent_staging s WHERE o.hash = s.hash AND o.index = s.index";
+    private static final String MERGE_OPEN_OUTPUTS_SQL                  = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) " +
+            "SELECT hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase FROM openoutputs_staging";
+    private static final String TRUNCATE_STAGING_TABLES_SQL             = "TRUNCATE openoutputs_staging, openoutputs_spent_staging";
+
     /**
      * Creates a new PostgresFullPrunedBlockStore.
      *
@@ -152,6 +189,95 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return sqlStatements;
     }
 
+    @Override
+    protected List<String> getDropIndexesSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(DROP_OUTPUTS_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(DROP_OUTPUTS_ADDRESSTARGETABLE_INDEX);
+        sqlStatements.add(DROP_OUTPUTS_TOADDRESS_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getCreateIndexesAfterBulkLoadSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESS_MULTI_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_ADDRESSTARGETABLE_INDEX);
+        sqlStatements.add(CREATE_OUTPUTS_TOADDRESS_INDEX);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getCreateBulkLoadTablesSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(CREATE_OPEN_OUTPUT_STAGING_TABLE);
+        sqlStatements.add(CREATE_SPENT_OUTPUT_STAGING_TABLE);
+        return sqlStatements;
+    }
+
+    @Override
+    protected List<String> getDropBulkLoadTablesSQL() {
+        List<String> sqlStatements = new ArrayList<>();
+        sqlStatements.add(DROP_OPEN_OUTPUT_STAGING_TABLE);
+        sqlStatements.add(DROP_SPENT_OUTPUT_STAGING_TABLE);
+        return sqlStatements;
+    }
+
+    /**
+     * Copies the staged changes into unlogged tables with {@code COPY}, which streams the rows instead of sending a
+     * statement for each, then deletes the spent outputs and inserts the new ones with one statement each.
+     */
+    @Override
+    protected void writeBulkLoadChanges(OpenOutputChanges changes) throws SQLException, BlockStoreException {
+        StringBuilder spent = new StringBuilder();
+        StringBuilder unspent = new StringBuilder();
+        for (Map.Entry<StoredTransactionOutPoint, UTXO> entry : changes.outputs.entrySet()) {
+            StoredTransactionOutPoint outPoint = entry.getKey();
+            if (!changes.absentHashes.contains(outPoint.getHash())) {
+                appendBytes(spent, outPoint.getHash().getBytes()).append('\t');
+                spent.append((int) outPoint.getIndex()).append('\t');
+                spent.append(changes.mustExist.contains(outPoint) ? 't' : 'f').append('\n');
+            }
+            UTXO out = entry.getValue();
+            if (out != REMOVED) {
+                appendBytes(unspent, out.getHash().getBytes()).append('\t');
+                unspent.append((int) out.getIndex()).append('\t');
+                unspent.append(out.getHeight()).append('\t');
+                unspent.append(out.getValue().value).append('\t');
+                appendBytes(unspent, out.getScript().getProgram()).append('\t');
+                // Addresses are Base58, which needs no escaping.
+                unspent.append(out.getAddress() == null ? "\\N" : out.getAddress()).append('\t');
+                unspent.append(out.getScript().getScriptType().ordinal()).append('\t');
+                unspent.append(out.isCoinbase() ? 't' : 'f').append('\n');
+            }
+        }
+        CopyManager copyManager = ((PGConnection) conn.get()).getCopyAPI();
+        try {
+            copyManager.copyIn(COPY_SPENT_OUTPUT_STAGING_SQL, new StringReader(spent.toString()));
+            copyManager.copyIn(COPY_OPEN_OUTPUT_STAGING_SQL, new StringReader(unspent.toString()));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        Statement s = conn.get().createStatement();
+        try {
+            ResultSet results = s.executeQuery(SELECT_MISSING_SPENT_OUTPUTS_SQL);
+            results.next();
+            if (results.getLong(1) != 0)
+                throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            results.close();
+            s.executeUpdate(MERGE_SPENT_OUTPUTS_SQL);
+            s.executeUpdate(MERGE_OPEN_OUTPUTS_SQL);
+            s.executeUpdate(TRUNCATE_STAGING_TABLES_SQL);
+        } finally {
+            s.close();
+        }
+    }
+
+    // Appends bytes as a bytea in the text format of COPY, where the backslash itself has to be escaped.
+    private static StringBuilder appendBytes(StringBuilder builder, byte[] bytes) {
+        return builder.append("\\\\x").append(Utils.HEX.encode(bytes));
+    }
+
     @Override
     protected List<String> getCreateSchemeSQL() {
         List<String> sqlStatements = new ArrayList<>();
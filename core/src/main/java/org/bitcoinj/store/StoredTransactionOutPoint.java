@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.base.Objects;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.UTXO;
+
+/**
+ * Used as a key for memory map (to avoid having to think about NetworkParameters,
+ * which is required for {@link TransactionOutPoint}).
+ */
+public class StoredTransactionOutPoint {
+
+    /** Hash of the transaction to which we refer. */
+    private final Sha256Hash hash;
+    /** Which output of that transaction we are talking about. */
+    private final long index;
+    
+    public StoredTransactionOutPoint(Sha256Hash hash, long index) {
+        this.hash = hash;
+        this.index = index;
+    }
+    
+    public StoredTransactionOutPoint(UTXO out) {
+        this.hash = out.getHash();
+        this.index = out.getIndex();
+    }
+    
+    /**
+     * The hash of the transaction to which we refer
+     */
+    public Sha256Hash getHash() {
+        return hash;
+    }
+    
+    /**
+     * The index of the output in transaction to which we refer
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(getIndex(), getHash());
+    }
+    
+    @Override
+    public String toString() {
+        return "Stored transaction out point: " + hash + ":" + index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
+        return getIndex() == other.getIndex() && Objects.equal(getHash(), other.getHash());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An executor for event listeners that runs them on a pool of threads, whilst still running the events of any one
+ * source in the order they were submitted. The source is given as a key, for example the wallet, the peer or the
+ * transaction confidence that the event is about. Events of different keys may run concurrently and in any order
+ * relative to each other, so a slow listener only holds up the events of its own source. Tasks submitted through the
+ * plain {@link #execute(Runnable)} all share a single key, and thus keep the ordering of a single user thread.</p>
+ *
+ * <p>Repeated events can be coalesced with {@link #executeCoalescing(Object, Runnable)}: if the most recently submitted
+ * task of the key hasn't started yet and is equal to the new one, the new one is dropped. This suits events like
+ * confidence changes, whose listeners look at the current state of an object rather than at the event itself.</p>
+ *
+ * <p>The executor keeps counters of the pending and executed tasks, and of how long tasks waited in the queue and
+ * how long their handlers ran, which can be used to find slow event listeners.</p>
+ *
+ * <p>Install it as the default for event listeners using {@link Threading#useKeyedUserThreads(int)}. Internally,
+ * bitcoinj dispatches its events via {@link Threading#dispatch(Executor, Object, Runnable)}, which passes the
+ * source along if the listener executor is a keyed one.</p>
+ */
+public class KeyedEventExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(KeyedEventExecutor.class);
+
+    /** The number of pending tasks at which a warning is logged, see {@link Threading.UserThread#WARNING_THRESHOLD}. */
+    public static int WARNING_THRESHOLD = 10000;
+    // How many tasks of one key are run in a row before the thread moves on, so that a busy key can't starve others.
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private final Object defaultKey = new Object();
+    private final ExecutorService pool;
+    private final ReentrantLock lock = Threading.lock("keyedeventexecutor");
+    // Keys that have pending tasks, each of which is either running or scheduled on the pool.
+    private final HashMap<Object, Lane> lanes = new HashMap<>();
+
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final AtomicLong executedTasks = new AtomicLong();
+    private final AtomicLong coalescedTasks = new AtomicLong();
+    private final AtomicLong totalQueueDelayNanos = new AtomicLong();
+    private final AtomicLong maxQueueDelayNanos = new AtomicLong();
+    private final AtomicLong totalHandlerNanos = new AtomicLong();
+    private final AtomicLong maxHandlerNanos = new AtomicLong();
+
+    private static class Task {
+        final Runnable runnable;
+        final boolean coalescing;
+        final long submittedAt;
+
+        Task(Runnable runnable, boolean coalescing) {
+            this.runnable = runnable;
+            this.coalescing = coalescing;
+            this.submittedAt = System.nanoTime();
+        }
+    }
+
+    private class Lane implements Runnable {
+        final Object key;
+        final ArrayDeque<Task> tasks = new ArrayDeque<>();
+
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                Task task;
+                lock.lock();
+                try {
+                    task = tasks.poll();
+                    if (task == null) {
+                        lanes.remove(key);
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                runTask(task);
+            }
+            // Give the other keys a turn. The lane stays registered, so new tasks of this key queue up behind.
+            pool.execute(this);
+        }
+    }
+
+    /** Creates an executor with the given number of daemon threads. */
+    public KeyedEventExecutor(int numThreads) {
+        checkArgument(numThreads > 0, "numThreads must be positive");
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "bitcoinj user thread " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Runs the given task, in order with the other tasks submitted without a key. */
+    @Override
+    public void execute(@Nonnull Runnable command) {
+        execute(defaultKey, command);
+    }
+
+    /** Runs the given task after all tasks previously submitted with the given key. */
+    public void execute(Object key, Runnable command) {
+        submit(key, new Task(checkNotNull(command), false));
+    }
+
+    /**
+     * Like {@link #execute(Object, Runnable)}, but drops the task if the last task submitted with the given key hasn't
+     * started yet, was also submitted via this method and equals the given task.
+     */
+    public void executeCoalescing(Object key, Runnable command) {
+        submit(key, new Task(checkNotNull(command), true));
+    }
+
+    private void submit(Object key, Task task) {
+        checkNotNull(key);
+        Lane newLane = null;
+        lock.lock();
+        try {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                newLane = lane = new Lane(key);
+                lanes.put(key, lane);
+            } else if (task.coalescing) {
+                Task last = lane.tasks.peekLast();
+                if (last != null && last.coalescing && last.runnable.equals(task.runnable)) {
+                    coalescedTasks.incrementAndGet();
+                    return;
+                }
+            }
+            lane.tasks.addLast(task);
+        } finally {
+            lock.unlock();
+        }
+        int pending = pendingTasks.incrementAndGet();
+        if (pending == WARNING_THRESHOLD)
+            log.warn("Event executor has {} pending tasks, memory exhaustion may occur. Check for deadlocked or slow " +
+                    "event handlers, or adjust KeyedEventExecutor.WARNING_THRESHOLD.", pending);
+        if (newLane != null)
+            pool.execute(newLane);
+    }
+
+    private void runTask(Task task) {
+        long start = System.nanoTime();
+        pendingTasks.decrementAndGet();
+        record(start - task.submittedAt, totalQueueDelayNanos, maxQueueDelayNanos);
+        try {
+            task.runnable.run();
+        } catch (Throwable throwable) {
+            log.warn("Exception in user thread", throwable);
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                handler.uncaughtException(Thread.currentThread(), throwable);
+        } finally {
+            record(System.nanoTime() - start, totalHandlerNanos, maxHandlerNanos);
+            executedTasks.incrementAndGet();
+        }
+    }
+
+    private static void record(long nanos, AtomicLong total, AtomicLong max) {
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) ;
+    }
+
+    /**
+     * Waits until all tasks submitted before this call, of any key, have been run. Like
+     * {@link Threading#waitForUserCode()} this is mostly useful in unit tests.
+     */
+    public void waitForPendingTasks() {
+        List<Object> keys;
+        lock.lock();
+        try {
+            keys = new ArrayList<>(lanes.keySet());
+        } finally {
+            lock.unlock();
+        }
+        final CountDownLatch latch = new CountDownLatch(keys.size());
+        for (Object key : keys) {
+            execute(key, new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        Uninterruptibles.awaitUninterruptibly(latch);
+    }
+
+    /** Returns the number of tasks that have been submitted but haven't started yet. */
+    public int getPendingTasks() {
+        return pendingTasks.get();
+    }
+
+    /** Returns the number of keys that currently have tasks pending or running. */
+    public int getActiveKeys() {
+        lock.lock();
+        try {
+            return lanes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of tasks that have been run. */
+    public long getExecutedTasks() {
+        return executedTasks.get();
+    }
+
+    /** Returns the number of tasks that were dropped because they were coalesced with a pending equal task. */
+    public long getCoalescedTasks() {
+        return coalescedTasks.get();
+    }
+
+    /** Returns the average time tasks waited between being submitted and being started, in the given unit. */
+    public long getAverageQueueDelay(TimeUnit unit) {
+        long executed = executedTasks.get();
+        return executed == 0 ? 0 : unit.convert(totalQueueDelayNanos.get() / executed, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time a task waited between being submitted and being started, in the given unit. */
+    public long getMaxQueueDelay(TimeUnit unit) {
+        return unit.convert(maxQueueDelayNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the average time the handlers took to run, in the given unit. */
+    public long getAverageHandlerTime(TimeUnit unit) {
+        long executed = executedTasks.get();
+        return executed == 0 ? 0 : unit.convert(totalHandlerNanos.get() / executed, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the longest time a handler took to run, in the given unit. */
+    public long getMaxHandlerTime(TimeUnit unit) {
+        return unit.convert(maxHandlerNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyedEventExecutor: %d pending, %d executed, %d coalesced, average handler %d us, " +
+                "max handler %d ms, max queue delay %d ms", getPendingTasks(), getExecutedTasks(),
+                getCoalescedTasks(), getAverageHandlerTime(TimeUnit.MICROSECONDS),
+                getMaxHandlerTime(TimeUnit.MILLISECONDS), getMaxQueueDelay(TimeUnit.MILLISECONDS));
+    }
+}
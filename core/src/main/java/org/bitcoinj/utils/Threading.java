@@ -65,6 +65,10 @@ public class Threading {
      * on it. You can then either block on that future, compose it, add listeners to it and so on.
      */
     public static void waitForUserCode() {
+        if (USER_THREAD instanceof KeyedEventExecutor) {
+            ((KeyedEventExecutor) USER_THREAD).waitForPendingTasks();
+            return;
+        }
         final CountDownLatch latch = new CountDownLatch(1);
         USER_THREAD.execute(new Runnable() {
             @Override public void run() {
@@ -74,6 +78,42 @@ public class Threading {
         Uninterruptibles.awaitUninterruptibly(latch);
     }
 
+    /**
+     * Replaces {@link #USER_THREAD} with a {@link KeyedEventExecutor} running on the given number of threads, so that
+     * the events of different wallets, peers, transactions and so on can be dispatched concurrently, whilst the events
+     * of each one stay in order. Like the other policy changes, this has to be done before any bitcoinj objects are
+     * created: listeners that are already registered keep the executor they were registered with.
+     *
+     * @return the new executor, which can be used to monitor its queue depth and handler latency
+     */
+    public static KeyedEventExecutor useKeyedUserThreads(int numThreads) {
+        KeyedEventExecutor executor = new KeyedEventExecutor(numThreads);
+        USER_THREAD = executor;
+        return executor;
+    }
+
+    /**
+     * Runs the given event task on the given executor. If it is a {@link KeyedEventExecutor}, the task is ordered only
+     * with the other tasks of the given key, which should be the object the event originates from.
+     */
+    public static void dispatch(Executor executor, Object key, Runnable task) {
+        if (executor instanceof KeyedEventExecutor)
+            ((KeyedEventExecutor) executor).execute(key, task);
+        else
+            executor.execute(task);
+    }
+
+    /**
+     * Like {@link #dispatch(Executor, Object, Runnable)}, but allows a {@link KeyedEventExecutor} to drop the task if
+     * an equal one is still pending for the same key. Use this for events whose listeners only look at current state.
+     */
+    public static void dispatchCoalescing(Executor executor, Object key, Runnable task) {
+        if (executor instanceof KeyedEventExecutor)
+            ((KeyedEventExecutor) executor).executeCoalescing(key, task);
+        else
+            executor.execute(task);
+    }
+
     /**
      * An exception handler that will be invoked for any exceptions that occur in the user thread, and
      * any unhandled exceptions that are caught whilst the framework is processing network traffic or doing other
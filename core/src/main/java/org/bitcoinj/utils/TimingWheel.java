@@ -0,0 +1,190 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A hierarchical timing wheel: holds a large number of items that each expire at a given time, and hands out all
+ * items that have expired whenever it is advanced to a new time.</p>
+ *
+ * <p>The first wheel has a slot per tick. Items that expire further ahead than a turn of it go into a second wheel
+ * whose slots are a turn of the first wheel each, and so on, so scheduling is constant time however far ahead an item
+ * expires. When a slot of a coarser wheel comes due, its items move down to finer wheels. A queue of the slots that
+ * hold items means advancing does not visit empty slots, however large the jump is, so the wheel can follow a clock
+ * that is set forward by days in tests.</p>
+ *
+ * <p>Items expire on the first tick at or after their expiry time, and never before. The time is up to the caller,
+ * which makes the wheel independent of the clock; it never goes backwards. This class is thread safe.</p>
+ */
+public class TimingWheel<T> {
+    private final ReentrantLock lock = Threading.lock("TimingWheel");
+
+    private final long tickMillis;
+    private final int wheelSize;
+    @GuardedBy("lock") private final Wheel wheel;
+    // Slots holding items, by the time they come due.
+    @GuardedBy("lock") private final PriorityQueue<Slot> slots = new PriorityQueue<>();
+    // Items that were already expired when they were scheduled.
+    @GuardedBy("lock") private List<T> expired = new ArrayList<>();
+    @GuardedBy("lock") private int size;
+
+    /**
+     * @param tickMillis the resolution of expiry times, in milliseconds
+     * @param wheelSize the number of slots of each wheel
+     * @param startMillis the time to start from, in milliseconds
+     */
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        checkArgument(tickMillis > 0, "tick must be positive");
+        checkArgument(wheelSize > 1, "wheel needs at least two slots");
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.wheel = new Wheel(tickMillis, startMillis);
+    }
+
+    /** Returns the resolution of expiry times, in milliseconds. */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Adds an item that expires at the given time, in milliseconds. Items that have already expired are returned by
+     * the next {@link #advance(long)}.
+     */
+    public void schedule(T item, long expiryMillis) {
+        // Round up to a tick, so that the item never expires early.
+        long expiry = (expiryMillis + tickMillis - 1) / tickMillis * tickMillis;
+        lock.lock();
+        try {
+            if (!wheel.add(new Entry<>(item, expiry)))
+                expired.add(item);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Moves the wheel to the given time, in milliseconds, and returns all items that expired on the way. */
+    public List<T> advance(long nowMillis) {
+        lock.lock();
+        try {
+            List<T> result = expired;
+            expired = new ArrayList<>();
+            Slot slot;
+            while ((slot = slots.peek()) != null && slot.expiry <= nowMillis) {
+                slots.poll();
+                wheel.advance(slot.expiry);
+                List<Entry<T>> entries = slot.entries;
+                slot.entries = new ArrayList<>();
+                slot.expiry = -1;
+                for (Entry<T> entry : entries) {
+                    // Entries of a coarser wheel move down, the others have expired.
+                    if (!wheel.add(entry))
+                        result.add(entry.item);
+                }
+            }
+            wheel.advance(nowMillis);
+            size -= result.size();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of items that have not been returned by {@link #advance(long)} yet. */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long expiry;
+
+        Entry(T item, long expiry) {
+            this.item = item;
+            this.expiry = expiry;
+        }
+    }
+
+    private class Slot implements Comparable<Slot> {
+        List<Entry<T>> entries = new ArrayList<>();
+        // The time this slot comes due, or -1 whilst it is empty.
+        long expiry = -1;
+
+        @Override
+        public int compareTo(Slot other) {
+            return Long.compare(expiry, other.expiry);
+        }
+    }
+
+    private class Wheel {
+        final long tick;
+        final long span;
+        final Slot[] wheelSlots;
+        long currentTime;
+        Wheel overflow;
+
+        @SuppressWarnings("unchecked")
+        Wheel(long tick, long startMillis) {
+            this.tick = tick;
+            this.span = tick * wheelSize;
+            this.wheelSlots = (Slot[]) new TimingWheel.Slot[wheelSize];
+            for (int i = 0; i < wheelSize; i++)
+                wheelSlots[i] = new Slot();
+            this.currentTime = startMillis - startMillis % tick;
+        }
+
+        // Returns false if the entry has expired.
+        boolean add(Entry<T> entry) {
+            if (entry.expiry < currentTime + tick)
+                return false;
+            if (entry.expiry < currentTime + span) {
+                long tickNumber = entry.expiry / tick;
+                Slot slot = wheelSlots[(int) (tickNumber % wheelSize)];
+                slot.entries.add(entry);
+                long slotExpiry = tickNumber * tick;
+                if (slot.expiry != slotExpiry) {
+                    slot.expiry = slotExpiry;
+                    slots.add(slot);
+                }
+                return true;
+            }
+            if (overflow == null)
+                overflow = new Wheel(span, currentTime);
+            return overflow.add(entry);
+        }
+
+        void advance(long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - time % tick;
+                if (overflow != null)
+                    overflow.advance(currentTime);
+            }
+        }
+    }
+}
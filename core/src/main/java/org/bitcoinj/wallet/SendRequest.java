@@ -28,6 +28,7 @@ import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FeeEstimator;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutput;
@@ -88,6 +89,9 @@ public class SendRequest {
      * including the first. This is useful as as miners usually sort pending transactions by their fee per unit size
      * when choosing which transactions to add to a block. Note that, to keep this equivalent to Bitcoin Core
      * definition, a kilobyte is defined as 1000 bytes, not 1024.</p>
+     *
+     * <p>Rather than a fixed fee, you can pay what the network currently asks for with
+     * {@link #useFeeEstimate(FeeEstimator, int)}.</p>
      */
     public Coin feePerKb = Context.get().getFeePerKb();
 
@@ -250,6 +254,17 @@ public class SendRequest {
         return this;
     }
 
+    /**
+     * Sets {@link #feePerKb} to the fee rate the given estimator expects to be confirmed within the given number of
+     * blocks. If it doesn't have enough data yet, the fee rate is left as it is.
+     */
+    public SendRequest useFeeEstimate(FeeEstimator estimator, int targetBlocks) {
+        Coin estimate = estimator.estimateFeePerKb(targetBlocks);
+        if (estimate != null)
+            this.feePerKb = estimate;
+        return this;
+    }
+
     @Override
     public String toString() {
         // print only the user-settable fields
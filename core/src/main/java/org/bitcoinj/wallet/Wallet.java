@@ -66,6 +66,7 @@ import org.bitcoinj.wallet.Protos.Wallet.*;
 import org.bitcoinj.wallet.WalletTransaction.*;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
 import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.TransactionDepthsChangedEventListener;
 import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
@@ -163,6 +164,10 @@ public class Wallet extends BaseTaggableObject
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
 
+    // The transactions in the wallet that spend each outpoint, whichever pool they are in. Used to find double spends
+    // without looking at every input of every transaction. There is more than one only if they double spend each other.
+    private final HashMap<TransactionOutPoint, List<Transaction>> spendsByOutpoint = new HashMap<>();
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -203,6 +208,8 @@ public class Wallet extends BaseTaggableObject
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionConfidenceEventListener>> transactionConfidenceListeners
         = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ListenerRegistration<TransactionDepthsChangedEventListener>> depthsChangedListeners
+        = new CopyOnWriteArrayList<>();
 
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
@@ -224,6 +231,16 @@ public class Wallet extends BaseTaggableObject
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
+    // Ticks once for every new best block, which moves up the depth of all building transactions at once.
+    private TransactionConfidence.DepthClock depthClock;
+    // If set, confidence listeners are only told about the depth of a transaction when it reaches one of these.
+    @Nullable private int[] depthNotificationThresholds;
+    // Building transactions by the clock tick at which their depth would have been zero, so that the ones reaching a
+    // given depth can be found without looking at all of them. Updated whenever the depth of a transaction is set.
+    private HashMap<Integer, Set<Transaction>> depthIndex;
+    private HashMap<Transaction, Integer> depthIndexOrigins;
+    // Transactions with an origin up to this one have had their seen peers erased, see clearBroadcastByBelowHorizon().
+    private int broadcastByClearedOrigin;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
@@ -334,6 +351,8 @@ public class Wallet extends BaseTaggableObject
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<>();
+        depthIndex = new HashMap<>();
+        depthIndexOrigins = new HashMap<>();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -356,6 +375,8 @@ public class Wallet extends BaseTaggableObject
                 }
             }
         };
+        depthClock = new TransactionConfidence.DepthClock(txConfidenceListener);
+        broadcastByClearedOrigin = depthClock.getTicks() - context.getEventHorizon() - 1;
         acceptRiskyTransactions = false;
     }
 
@@ -388,6 +409,25 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * <p>Lets the signers of this wallet that support it, like the implicitly added {@link LocalTransactionSigner}, sign
+     * the inputs of a transaction in parallel on the given executor. This speeds up signing transactions with many
+     * inputs, and doesn't change the signed transactions. Passing null goes back to signing on the calling thread.</p>
+     *
+     * <p>This applies to the signers added so far, see {@link StatelessTransactionSigner#setExecutor(ExecutorService)}.
+     * The executor is not saved with the wallet.</p>
+     */
+    public void setSigningExecutor(@Nullable ExecutorService executor) {
+        lock.lock();
+        try {
+            for (TransactionSigner signer : signers)
+                if (signer instanceof StatelessTransactionSigner)
+                    ((StatelessTransactionSigner) signer).setExecutor(executor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public List<TransactionSigner> getTransactionSigners() {
         lock.lock();
         try {
@@ -1291,36 +1331,19 @@ public class Wallet extends BaseTaggableObject
 
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
         lock.lock();
         try {
-            stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
-            // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
-            // to not write through to physical media for at least a few seconds, but this is the best we can do.
-            stream.flush();
-            stream.getFD().sync();
-            stream.close();
-            stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                if (canonical.exists() && !canonical.delete())
-                    throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
-            }
+            Utils.replaceFile(temp, destFile, new Utils.FileWriter() {
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    saveToFileStream(stream);
+                }
+            });
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
             lock.unlock();
-            if (stream != null) {
-                stream.close();
-            }
             if (temp.exists()) {
                 log.warn("Temp file still exists after failed save.");
             }
@@ -1812,20 +1835,19 @@ public class Wallet extends BaseTaggableObject
     private Set<Transaction> findDoubleSpendsAgainst(Transaction tx, Map<Sha256Hash, Transaction> candidates) {
         checkState(lock.isHeldByCurrentThread());
         if (tx.isCoinBase()) return Sets.newHashSet();
-        // Compile a set of outpoints that are spent by tx.
-        HashSet<TransactionOutPoint> outpoints = new HashSet<>();
-        for (TransactionInput input : tx.getInputs()) {
-            outpoints.add(input.getOutpoint());
-        }
-        // Now for each pending transaction, see if it shares any outpoints with this tx.
+        // Look up the wallet transactions spending the same outpoints as tx, then keep the ones in the candidates. The
+        // candidates are one of our pools, so a transaction moving between pools needs no change to the index.
         Set<Transaction> doubleSpendTxns = Sets.newHashSet();
-        for (Transaction p : candidates.values()) {
-            for (TransactionInput input : p.getInputs()) {
-                // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
-                // level - outpoints from two different inputs that point to the same output compare the same.
-                TransactionOutPoint outpoint = input.getOutpoint();
-                if (outpoints.contains(outpoint)) {
-                    // It does, it's a double spend against the candidates, which makes it relevant.
+        for (TransactionInput input : tx.getInputs()) {
+            // This relies on the fact that TransactionOutPoint equality is defined at the protocol not object
+            // level - outpoints from two different inputs that point to the same output compare the same.
+            List<Transaction> spends = spendsByOutpoint.get(input.getOutpoint());
+            if (spends == null)
+                continue;
+            for (Transaction spend : spends) {
+                Transaction p = candidates.get(spend.getHash());
+                if (p != null) {
+                    // It's a double spend against the candidates, which makes it relevant.
                     doubleSpendTxns.add(p);
                 }
             }
@@ -1833,6 +1855,32 @@ public class Wallet extends BaseTaggableObject
         return doubleSpendTxns;
     }
 
+    // Records the outpoints spent by a transaction that was added to the wallet.
+    private void addToSpendsIndex(Transaction tx) {
+        if (tx.isCoinBase())
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            List<Transaction> spends = spendsByOutpoint.get(outpoint);
+            if (spends == null) {
+                spends = new ArrayList<>(1);
+                spendsByOutpoint.put(outpoint, spends);
+            }
+            if (!spends.contains(tx))
+                spends.add(tx);
+        }
+    }
+
+    // Forgets the outpoints spent by a transaction that was removed from the wallet.
+    private void removeFromSpendsIndex(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outpoint = input.getOutpoint();
+            List<Transaction> spends = spendsByOutpoint.get(outpoint);
+            if (spends != null && spends.remove(tx) && spends.isEmpty())
+                spendsByOutpoint.remove(outpoint);
+        }
+    }
+
     /**
      * Adds to txSet all the txns in txPool spending outputs of txns in txSet,
      * and all txns spending the outputs of those txns, recursively.
@@ -1971,6 +2019,7 @@ public class Wallet extends BaseTaggableObject
             // confidence object about the block and sets its depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
             if (bestChain) {
+                indexDepth(tx);
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
@@ -2113,15 +2162,28 @@ public class Wallet extends BaseTaggableObject
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // increment the tx confidence depth twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
+            // Tick the clock of all BUILDING transactions, so that they update their depth. Transactions that were
+            // already processed in receive() due to appearing in this block keep their depth, otherwise they'd
+            // result in miscounting.
+            List<Transaction> justReceived = new ArrayList<>(ignoreNextNewBlock.size());
+            List<Integer> justReceivedDepths = new ArrayList<>(ignoreNextNewBlock.size());
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx != null) {
+                    justReceived.add(tx);
+                    justReceivedDepths.add(tx.getConfidence().getDepthInBlocks());
+                }
+            }
+            depthClock.tick();
+            for (int i = 0; i < justReceived.size(); i++) {
+                justReceived.get(i).getConfidence().setDepthInBlocks(justReceivedDepths.get(i));
+                indexDepth(justReceived.get(i));
+            }
+
+            if (depthNotificationThresholds == null) {
+                for (Transaction tx : transactions.values()) {
+                    if (ignoreNextNewBlock.contains(tx.getHash()))
+                        continue;
                     TransactionConfidence confidence = tx.getConfidence();
                     if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
                         // Erase the set of seen peers once the tx is so deep that it seems unlikely to ever go
@@ -2131,13 +2193,18 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.getDepthInBlocks() > context.getEventHorizon())
                             confidence.clearBroadcastBy();
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
+            } else {
+                queueDepthChangesAtThresholds();
             }
+            clearBroadcastByBelowHorizon(depthNotificationThresholds != null);
+            ignoreNextNewBlock.clear();
 
+            queueOnTransactionDepthsChanged();
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
 
@@ -2153,6 +2220,131 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Only tells the confidence listeners about the transactions that reached one of the depth notification thresholds
+     * with the latest tick, plus the listeners attached to individual transactions by the API user. Also erases the
+     * seen peers of transactions that just got buried below the event horizon.
+     */
+    private void queueDepthChangesAtThresholds() {
+        checkState(lock.isHeldByCurrentThread());
+        int ticks = depthClock.getTicks();
+        for (int threshold : depthNotificationThresholds) {
+            for (Transaction tx : getTransactionsAtOrigin(ticks - threshold)) {
+                if (!ignoreNextNewBlock.contains(tx.getHash()))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+        }
+        if (insideReorg)
+            return;
+        for (TransactionConfidence confidence : depthClock.getWatched()) {
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING ||
+                    ignoreNextNewBlock.contains(confidence.getTransactionHash()))
+                continue;
+            Transaction tx = transactions.get(confidence.getTransactionHash());
+            if (tx == null || !confidenceChanged.containsKey(tx))
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.DEPTH);
+        }
+    }
+
+    /**
+     * Erases the seen peers of the transactions that got buried below the event horizon since the last time, including
+     * ones that jumped past it. With the per block loop of {@link #notifyNewBestBlock(StoredBlock)} only those that
+     * did not come by a new block are left.
+     */
+    private void clearBroadcastByBelowHorizon(boolean viaIndex) {
+        int horizonOrigin = depthClock.getTicks() - context.getEventHorizon() - 1;
+        if (viaIndex) {
+            for (int origin = broadcastByClearedOrigin + 1; origin <= horizonOrigin; origin++)
+                for (Transaction tx : getTransactionsAtOrigin(origin))
+                    tx.getConfidence().clearBroadcastBy();
+        }
+        broadcastByClearedOrigin = Math.max(broadcastByClearedOrigin, horizonOrigin);
+    }
+
+    /**
+     * Moves the transaction to its place in the depth index, or removes it if it is not building. Transactions that are
+     * already below the event horizon have their seen peers erased right away.
+     */
+    private void indexDepth(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        unindexDepth(tx);
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence.getDepthClock() != depthClock)
+            return;
+        int origin = depthClock.getTicks() - confidence.getDepthInBlocks();
+        Set<Transaction> txns = depthIndex.get(origin);
+        if (txns == null) {
+            txns = new HashSet<>(2);
+            depthIndex.put(origin, txns);
+        }
+        txns.add(tx);
+        depthIndexOrigins.put(tx, origin);
+        if (origin <= broadcastByClearedOrigin)
+            confidence.clearBroadcastBy();
+    }
+
+    private void unindexDepth(Transaction tx) {
+        Integer origin = depthIndexOrigins.remove(tx);
+        if (origin == null)
+            return;
+        Set<Transaction> txns = depthIndex.get(origin);
+        if (txns != null && txns.remove(tx) && txns.isEmpty())
+            depthIndex.remove(origin);
+    }
+
+    /** Returns the building transactions whose depth would have been zero at the given tick, using the depth index. */
+    private List<Transaction> getTransactionsAtOrigin(int origin) {
+        Set<Transaction> txns = depthIndex.get(origin);
+        if (txns == null)
+            return Collections.emptyList();
+        int depth = depthClock.getTicks() - origin;
+        List<Transaction> result = new ArrayList<>(txns.size());
+        for (Transaction tx : txns) {
+            TransactionConfidence confidence = tx.getConfidence();
+            // Entries can be stale if the confidence was changed by somebody else.
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() == depth
+                    && confidence.getDepthClock() == depthClock)
+                result.add(tx);
+        }
+        return result;
+    }
+
+    /**
+     * <p>Sets the depths at which the confidence listeners of a transaction are told about its depth, for example
+     * 1, 6 and 100. Without thresholds, which is the default, every new block results in a confidence change event
+     * for every building transaction, which gets expensive for wallets with many transactions. With thresholds, only
+     * the transactions reaching one of them cause an event on the {@link TransactionConfidenceEventListener}s of the
+     * wallet, and listeners can use a {@link TransactionDepthsChangedEventListener} to learn about every block.
+     * Listeners attached to individual transactions, and thus also the futures returned by
+     * {@link TransactionConfidence#getDepthFuture(int)}, are still called on every block.</p>
+     *
+     * <p>In either mode, the depth itself is always up to date: it's updated for all transactions at once.</p>
+     *
+     * @param thresholds the depths to notify at, or null to notify on every block
+     */
+    public void setDepthNotificationThresholds(@Nullable int... thresholds) {
+        lock.lock();
+        try {
+            if (thresholds != null)
+                for (int threshold : thresholds)
+                    checkArgument(threshold > 0, "threshold must be positive: %s", threshold);
+            depthNotificationThresholds = thresholds != null ? thresholds.clone() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the depths set via {@link #setDepthNotificationThresholds(int...)}, or null if there are none. */
+    @Nullable
+    public int[] getDepthNotificationThresholds() {
+        lock.lock();
+        try {
+            return depthNotificationThresholds != null ? depthNotificationThresholds.clone() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -2663,6 +2855,32 @@ public class Wallet extends BaseTaggableObject
             removeTransactionConfidenceEventListener(listener);
     }
 
+    /**
+     * Adds an event listener object called once for every new best block, when the depths of the transactions changed.
+     * Runs the listener methods in the user thread.
+     */
+    public void addTransactionDepthsChangedEventListener(TransactionDepthsChangedEventListener listener) {
+        addTransactionDepthsChangedEventListener(Threading.USER_THREAD, listener);
+    }
+
+    /**
+     * Adds an event listener object called once for every new best block, when the depths of the transactions changed.
+     * The listener is executed by the given executor.
+     */
+    public void addTransactionDepthsChangedEventListener(Executor executor,
+                                                         TransactionDepthsChangedEventListener listener) {
+        // This is thread safe, so we don't need to take the lock.
+        depthsChangedListeners.add(new ListenerRegistration<>(listener, executor));
+    }
+
+    /**
+     * Removes the given event listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeTransactionDepthsChangedEventListener(TransactionDepthsChangedEventListener listener) {
+        return ListenerRegistration.removeFromList(listener, depthsChangedListeners);
+    }
+
     /**
      * Removes the given event listener object. Returns true if the listener was removed, false if that listener
      * was never added.
@@ -2719,18 +2937,49 @@ public class Wallet extends BaseTaggableObject
         return ListenerRegistration.removeFromList(listener, transactionConfidenceListeners);
     }
 
+    /**
+     * Runs a confidence listener. Tasks are equal if they are for the same listener and transaction, so repeats can be
+     * coalesced.
+     */
+    private class ConfidenceChangedTask implements Runnable {
+        private final ListenerRegistration<TransactionConfidenceEventListener> registration;
+        private final Transaction tx;
+
+        ConfidenceChangedTask(ListenerRegistration<TransactionConfidenceEventListener> registration, Transaction tx) {
+            this.registration = registration;
+            this.tx = tx;
+        }
+
+        @Override
+        public void run() {
+            registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ConfidenceChangedTask other = (ConfidenceChangedTask) o;
+            return getWallet() == other.getWallet() && registration == other.registration && tx == other.tx;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * registration.hashCode() + tx.hashCode();
+        }
+
+        private Wallet getWallet() {
+            return Wallet.this;
+        }
+    }
+
     private void queueOnTransactionConfidenceChanged(final Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<TransactionConfidenceEventListener> registration : transactionConfidenceListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
             } else {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onTransactionConfidenceChanged(Wallet.this, tx);
-                    }
-                });
+                Threading.dispatchCoalescing(registration.executor, this, new ConfidenceChangedTask(registration, tx));
             }
         }
     }
@@ -2742,7 +2991,7 @@ public class Wallet extends BaseTaggableObject
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletChangeEventListener> registration : changeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onWalletChanged(Wallet.this);
@@ -2754,7 +3003,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsReceived(final Transaction tx, final Coin balance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsReceivedEventListener> registration : coinsReceivedListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsReceived(Wallet.this, tx, balance, newBalance);
@@ -2766,7 +3015,7 @@ public class Wallet extends BaseTaggableObject
     protected void queueOnCoinsSent(final Transaction tx, final Coin prevBalance, final Coin newBalance) {
         checkState(lock.isHeldByCurrentThread());
         for (final ListenerRegistration<WalletCoinsSentEventListener> registration : coinsSentListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onCoinsSent(Wallet.this, tx, prevBalance, newBalance);
@@ -2775,11 +3024,25 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    private void queueOnTransactionDepthsChanged() {
+        checkState(lock.isHeldByCurrentThread());
+        if (insideReorg) return;
+        final int height = lastBlockSeenHeight;
+        for (final ListenerRegistration<TransactionDepthsChangedEventListener> registration : depthsChangedListeners) {
+            Threading.dispatch(registration.executor, this, new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onTransactionDepthsChanged(Wallet.this, height);
+                }
+            });
+        }
+    }
+
     protected void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
         for (final ListenerRegistration<WalletReorganizeEventListener> registration : reorganizeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onReorganize(Wallet.this);
@@ -2790,7 +3053,7 @@ public class Wallet extends BaseTaggableObject
 
     protected void queueOnScriptsChanged(final List<Script> scripts, final boolean isAddingScripts) {
         for (final ListenerRegistration<ScriptsChangeEventListener> registration : scriptChangeListeners) {
-            registration.executor.execute(new Runnable() {
+            Threading.dispatch(registration.executor, this, new Runnable() {
                 @Override
                 public void run() {
                     registration.listener.onScriptsChanged(Wallet.this, scripts, isAddingScripts);
@@ -2863,11 +3126,13 @@ public class Wallet extends BaseTaggableObject
     }
 
     /**
-     * Adds the given transaction to the given pools and registers a confidence change listener on it.
+     * Adds the given transaction to the given pools and registers a confidence change listener on it. Transactions
+     * that are not pending are compacted, see {@link Transaction#compact()}.
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        addToSpendsIndex(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2893,6 +3158,11 @@ public class Wallet extends BaseTaggableObject
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
+        tx.getConfidence().setDepthClock(depthClock);
+        indexDepth(tx);
+        // Pending transactions may yet be broadcast, so keep their serialized form until they make it into a block.
+        if (pool != Pool.PENDING)
+            tx.compact();
     }
 
     /**
@@ -3013,6 +3283,9 @@ public class Wallet extends BaseTaggableObject
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        spendsByOutpoint.clear();
+        depthIndex.clear();
+        depthIndexOrigins.clear();
     }
 
     /**
@@ -3071,6 +3344,8 @@ public class Wallet extends BaseTaggableObject
 
                         i.remove();
                         transactions.remove(tx.getHash());
+                        removeFromSpendsIndex(tx);
+                        unindexDepth(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -4003,7 +4278,7 @@ public class Wallet extends BaseTaggableObject
                 signTransaction(req);
 
             // Check size.
-            final int size = req.tx.unsafeBitcoinSerialize().length;
+            final int size = req.tx.getMessageSize();
             if (size > Transaction.MAX_STANDARD_TX_SIZE)
                 throw new ExceededMaxTransactionSize();
 
@@ -4042,7 +4317,10 @@ public class Wallet extends BaseTaggableObject
 
             KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
 
+            // Check all the inputs before changing any of them, so that the checks share one serialization of the
+            // transaction. Signature hashes ignore the scriptSigs of the other inputs, so the order doesn't matter.
             int numInputs = tx.getInputs().size();
+            List<TransactionInput> unsigned = new ArrayList<>(numInputs);
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
                 if (txIn.getConnectedOutput() == null) {
@@ -4061,7 +4339,10 @@ public class Wallet extends BaseTaggableObject
                     log.debug("Input contained an incorrect signature", e);
                     // Expected.
                 }
+                unsigned.add(txIn);
+            }
 
+            for (TransactionInput txIn : unsigned) {
                 Script scriptPubKey = txIn.getConnectedOutput().getScriptPubKey();
                 RedeemData redeemData = txIn.getConnectedRedeemData(maybeDecryptingKeyBag);
                 checkNotNull(redeemData, "Transaction exists in wallet that we cannot redeem: %s", txIn.getOutpoint().getHash());
@@ -4084,8 +4365,8 @@ public class Wallet extends BaseTaggableObject
     /** Reduce the value of the first output of a transaction to pay the given feePerKb as appropriate for its size. */
     private boolean adjustOutputDownwardsForFee(Transaction tx, CoinSelection coinSelection, Coin feePerKb,
             boolean ensureMinRequiredFee) {
-        final int size = tx.unsafeBitcoinSerialize().length + estimateBytesForSigning(coinSelection);
-        Coin fee = feePerKb.multiply(size).divide(1000);
+        final int size = tx.getMessageSize() + estimateBytesForSigning(coinSelection);
+        Coin fee = feeForSize(feePerKb, size);
         if (ensureMinRequiredFee && fee.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
             fee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
         TransactionOutput output = tx.getOutput(0);
@@ -4526,6 +4807,7 @@ public class Wallet extends BaseTaggableObject
             maybeQueueOnWalletChanged();
             checkBalanceFuturesLocked(balance);
             informConfidenceListenersIfNotReorganizing();
+            queueOnTransactionDepthsChanged();
             saveLater();
         } finally {
             lock.unlock();
@@ -4540,6 +4822,7 @@ public class Wallet extends BaseTaggableObject
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                indexDepth(tx);
             }
         }
     }
@@ -4829,14 +5112,14 @@ public class Wallet extends BaseTaggableObject
         TransactionOutput selection2Change = null;
         CoinSelection selection1 = null;
         TransactionOutput selection1Change = null;
-        // We keep track of the last size of the transaction we calculated but only if the act of adding inputs and
-        // change resulted in the size crossing a 1000 byte boundary. Otherwise it stays at zero.
-        int lastCalculatedSize = 0;
+        // The size of the transaction we calculate the fee for. It starts out as the size without any coins of ours,
+        // which is a lower bound, and goes up to the estimated size of the signed transaction as coins are selected.
+        int lastCalculatedSize = req.tx.getMessageSize();
         Coin valueNeeded, valueMissing = null;
+        CoinSelection selection = null;
+        int bytesForSigning = 0;
         while (true) {
-            resetTxInputs(req, originalInputs);
-
-            Coin fees = req.feePerKb.multiply(lastCalculatedSize).divide(1000);
+            Coin fees = feeForSize(req.feePerKb, lastCalculatedSize);
             if (needAtLeastReferenceFee && fees.compareTo(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) < 0)
                 fees = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
 
@@ -4845,16 +5128,30 @@ public class Wallet extends BaseTaggableObject
                 valueNeeded = valueNeeded.add(additionalValueForNextCategory);
             Coin additionalValueSelected = additionalValueForNextCategory;
 
-            // Of the coins we could spend, pick some that we actually will spend.
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
-            // Can we afford this?
-            if (selection.valueGathered.compareTo(valueNeeded) < 0) {
-                valueMissing = valueNeeded.subtract(selection.valueGathered);
-                break;
+            // Selectors take coins until they have enough, so if the coins we have cover the higher fee or the value
+            // for the next category as well, asking again would just give us the same coins. Usually they do, and the
+            // selector only runs once.
+            if (selection == null || selection.valueGathered.compareTo(valueNeeded) < 0) {
+                resetTxInputs(req, originalInputs);
+                // Of the coins we could spend, pick some that we actually will spend.
+                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+                // selector is allowed to modify candidates list.
+                selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+                // Can we afford this?
+                if (selection.valueGathered.compareTo(valueNeeded) < 0) {
+                    valueMissing = valueNeeded.subtract(selection.valueGathered);
+                    break;
+                }
+                checkState(selection.gathered.size() > 0 || originalInputs.size() > 0);
+
+                // Now add unsigned inputs for the selected coins.
+                for (TransactionOutput output : selection.gathered) {
+                    TransactionInput input = req.tx.addInput(output);
+                    // If the scriptBytes don't default to none, our size calculations will be thrown off.
+                    checkState(input.getScriptBytes().length == 0);
+                }
+                bytesForSigning = estimateBytesForSigning(selection);
             }
-            checkState(selection.gathered.size() > 0 || originalInputs.size() > 0);
 
             // We keep track of an upper bound on transaction size to calculate fees that need to be added.
             // Note that the difference between the upper bound and lower bound is usually small enough that it
@@ -4896,7 +5193,7 @@ public class Wallet extends BaseTaggableObject
                     additionalValueForNextCategory = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.add(
                                                      changeOutput.getMinNonDustValue().add(Coin.SATOSHI));
                 } else {
-                    size += changeOutput.unsafeBitcoinSerialize().length + VarInt.sizeOf(req.tx.getOutputs().size()) - VarInt.sizeOf(req.tx.getOutputs().size() - 1);
+                    size += changeOutput.getMessageSize() + VarInt.sizeOf(req.tx.getOutputs().size() + 1) - VarInt.sizeOf(req.tx.getOutputs().size());
                     // This solution is either category 1 or 2
                     if (!eitherCategory2Or3) // must be category 1
                         additionalValueForNextCategory = null;
@@ -4909,17 +5206,10 @@ public class Wallet extends BaseTaggableObject
                 }
             }
 
-            // Now add unsigned inputs for the selected coins.
-            for (TransactionOutput output : selection.gathered) {
-                TransactionInput input = req.tx.addInput(output);
-                // If the scriptBytes don't default to none, our size calculations will be thrown off.
-                checkState(input.getScriptBytes().length == 0);
-            }
-
-            // Estimate transaction size and loop again if we need more fee per kb. The serialized tx doesn't
-            // include things we haven't added yet like input signatures/scripts or the change output.
-            size += req.tx.unsafeBitcoinSerialize().length;
-            size += estimateBytesForSigning(selection);
+            // Estimate transaction size and loop again if we need more fee per kb. The transaction doesn't include
+            // things we haven't added yet like input signatures/scripts or the change output.
+            size += req.tx.getMessageSize();
+            size += bytesForSigning;
             if (size > lastCalculatedSize && req.feePerKb.signum() > 0) {
                 lastCalculatedSize = size;
                 // We need more fees anyway, just try again with the same additional value
@@ -4990,6 +5280,14 @@ public class Wallet extends BaseTaggableObject
         return result;
     }
 
+    /**
+     * The fee for a transaction of the given size at the given fee rate. The fee is pro rata by the byte rather than
+     * by started kilobyte, so a rate of 1000 satoshis per kilobyte is one satoshi per byte.
+     */
+    private static Coin feeForSize(Coin feePerKb, int size) {
+        return feePerKb.multiply(size).divide(1000);
+    }
+
     private void resetTxInputs(SendRequest req, List<TransactionInput> originalInputs) {
         req.tx.clearInputs();
         for (TransactionInput input : originalInputs)
@@ -5010,7 +5308,9 @@ public class Wallet extends BaseTaggableObject
                     redeemScript = findRedeemDataFromScriptHash(script.getPubKeyHash()).redeemScript;
                     checkNotNull(redeemScript, "Coin selection includes unspendable outputs");
                 }
-                size += script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+                int scriptSigLength = script.getNumberOfBytesRequiredToSpend(key, redeemScript);
+                // The unsigned input already counts one byte for the length of its empty scriptSig.
+                size += scriptSigLength + VarInt.sizeOf(scriptSigLength) - 1;
             } catch (ScriptException e) {
                 // If this happens it means an output script in a wallet tx could not be understood. That should never
                 // happen, if it does it means the wallet has got into an inconsistent state.
@@ -0,0 +1,35 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet.listeners;
+
+import org.bitcoinj.wallet.Wallet;
+
+/**
+ * <p>Implementors are called once for every new best block, when the depth of all building transactions in the wallet
+ * went up.</p>
+ */
+public interface TransactionDepthsChangedEventListener {
+    /**
+     * <p>Called once the wallet has processed a new best block, which buried all of its building transactions one block
+     * deeper. This replaces a {@link org.bitcoinj.core.listeners.TransactionConfidenceEventListener} call for every
+     * transaction when the wallet has depth notification thresholds set, see
+     * {@link Wallet#setDepthNotificationThresholds(int...)}. The depths can be read from the confidence objects.</p>
+     *
+     * <p>It is safe to use methods of wallet whilst inside this callback.</p>
+     */
+    void onTransactionDepthsChanged(Wallet wallet, int bestChainHeight);
+}
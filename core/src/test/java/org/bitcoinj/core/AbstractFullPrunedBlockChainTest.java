@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
@@ -37,6 +38,7 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -285,6 +287,69 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testGetBalances() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        Address address1 = key1.toAddress(PARAMS), address2 = key2.toAddress(PARAMS);
+        Address unused = new ECKey().toAddress(PARAMS);
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addOutput(Coin.COIN, address1);
+        t1.addSignedInput(new TransactionOutPoint(PARAMS, 0, coinbase.getHash()),
+                new Script(coinbase.getOutput(0).getScriptBytes()), outKey);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(t1);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        AddressBalanceProvider balanceProvider = (AddressBalanceProvider) store;
+        Map<Address, Coin> balances = balanceProvider.getBalances(Lists.newArrayList(address1, address2, unused));
+        assertEquals(ImmutableMap.of(address1, Coin.COIN, address2, Coin.ZERO, unused, Coin.ZERO), balances);
+        assertEquals(balances, AddressBalanceProvider.Helper.getBalances(new UTXOProvider() {
+            @Override
+            public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+                return store.getOpenTransactionOutputs(addresses);
+            }
+
+            @Override
+            public int getChainHeadHeight() throws UTXOProviderException {
+                return store.getChainHeadHeight();
+            }
+
+            @Override
+            public NetworkParameters getParams() {
+                return store.getParams();
+            }
+        }, Lists.newArrayList(address1, address2, unused)));
+
+        // Split the coin between both addresses.
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(Coin.CENT.multiply(40), address1);
+        t2.addOutput(Coin.CENT.multiply(60), address2);
+        t2.addSignedInput(t1.getOutput(0), key1);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(t2);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        balances = balanceProvider.getBalances(Lists.newArrayList(address1, address2, unused, address1));
+        assertEquals(ImmutableMap.of(address1, Coin.CENT.multiply(40), address2, Coin.CENT.multiply(60), unused,
+                Coin.ZERO), balances);
+        assertEquals(2, store.getOpenTransactionOutputs(Lists.newArrayList(address1, address2, address1)).size());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
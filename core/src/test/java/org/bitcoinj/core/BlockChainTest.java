@@ -35,8 +35,11 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
@@ -149,6 +152,51 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectOutOfOrder() throws Exception {
+        List<Block> blocks = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 8; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        // Deliver everything but the first block backwards, plus a fork off the fourth block.
+        Block fork = blocks.get(3).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(fork));
+        for (int i = 7; i >= 1; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(8, chain.getOrphanCount());
+        assertTrue(chain.getOrphanBytes() > 0);
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(7).getHash()));
+        // The first block connects all of them.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(blocks.get(7).cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(8, chain.getConnectedOrphans());
+        assertTrue(chain.getMaxOrphanConnectLatency(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void orphanMemoryIsCapped() throws Exception {
+        Block b1 = PARAMS.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        chain.setMaxOrphanBytes(b3.getOptimalEncodingMessageSize() + b4.getOptimalEncodingMessageSize());
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        // The oldest orphan was dropped to make room.
+        assertEquals(2, chain.getOrphanCount());
+        assertEquals(1, chain.getEvictedOrphans());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
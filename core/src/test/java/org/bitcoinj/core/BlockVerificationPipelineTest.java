@@ -0,0 +1,105 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockVerificationPipelineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final Address to = new ECKey().toAddress(PARAMS);
+    private BlockChain chain;
+    private BlockVerificationPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        chain = new BlockChain(PARAMS, new Wallet(PARAMS), new MemoryBlockStore(PARAMS));
+        pipeline = new BlockVerificationPipeline(chain, 4, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipeline.shutdown();
+    }
+
+    private List<Block> createBlocks(Block prev, int numBlocks) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void connectsInOrder() throws Exception {
+        List<ListenableFuture<Boolean>> results = new ArrayList<>();
+        for (Block block : createBlocks(PARAMS.getGenesisBlock(), 9))
+            results.add(pipeline.add(block));
+        for (ListenableFuture<Boolean> result : results)
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+        assertEquals(9, chain.getBestChainHeight());
+        assertEquals(9, pipeline.getVerifiedBlocks());
+        assertEquals(9, pipeline.getConnectedBlocks());
+        assertEquals(0, pipeline.getRejectedBlocks());
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void rejectsInvalidBlocks() throws Exception {
+        List<Block> blocks = createBlocks(PARAMS.getGenesisBlock(), 3);
+        Block bad = blocks.get(1);
+        // Claim the difficulty of the main net, which the block doesn't meet.
+        bad.setDifficultyTarget(0x1d00ffffL);
+        ListenableFuture<Boolean> first = pipeline.add(blocks.get(0));
+        ListenableFuture<Boolean> second = pipeline.add(bad);
+        ListenableFuture<Boolean> third = pipeline.add(blocks.get(2));
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        try {
+            second.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        // The block after the invalid one doesn't connect.
+        assertFalse(third.get(10, TimeUnit.SECONDS));
+        assertEquals(1, chain.getBestChainHeight());
+        assertEquals(1, pipeline.getRejectedBlocks());
+    }
+
+    @Test
+    public void filteredBlocks() throws Exception {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(to);
+        FilteredBlock filtered = new BloomFilter(1, 0.000001, 1).applyAndUpdate(block);
+        assertTrue(pipeline.add(filtered).get(10, TimeUnit.SECONDS));
+        assertEquals(1, chain.getBestChainHeight());
+    }
+}
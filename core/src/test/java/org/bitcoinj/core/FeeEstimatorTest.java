@@ -0,0 +1,228 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class FeeEstimatorTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int SIZE = 250;
+    private static final Coin HIGH_FEE = valueOf(50000 * SIZE / 1000);
+    private static final Coin LOW_FEE = valueOf(2000 * SIZE / 1000);
+
+    private Random random;
+    private FeeEstimator estimator;
+    private int height;
+    // Transactions to confirm, by the height of the block to confirm them in.
+    private Map<Integer, List<Sha256Hash>> toConfirm;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS));
+        random = new Random(1);
+        estimator = new FeeEstimator(null);
+        height = 100;
+        toConfirm = new HashMap<>();
+        estimator.notifyNewBestBlock(storedBlock(height));
+    }
+
+    @Test
+    public void noEstimateWithoutData() throws Exception {
+        for (int target = 1; target <= FeeEstimator.MAX_TARGET; target++)
+            assertNull(estimator.estimateFeePerKb(target));
+        mine(10);
+        assertNull(estimator.estimateFeePerKb(1));
+    }
+
+    @Test
+    public void estimatesFromConfirmationTimes() throws Exception {
+        simulate(100);
+
+        // High fee transactions confirm in the next block, low fee ones after ten blocks.
+        Coin next = estimator.estimateFeePerKb(1);
+        assertTrue(next.isLessThan(valueOf(50000)) || next.equals(valueOf(50000)));
+        assertTrue(next.isGreaterThan(valueOf(50000 * 10 / 11)));
+        assertEquals(next, estimator.estimateFeePerKb(9));
+        Coin later = estimator.estimateFeePerKb(10);
+        assertTrue(later.isLessThan(valueOf(2000)) || later.equals(valueOf(2000)));
+        assertTrue(later.isGreaterThan(valueOf(2000 * 10 / 11)));
+        assertEquals(later, estimator.estimateFeePerKb(FeeEstimator.MAX_TARGET));
+    }
+
+    @Test
+    public void transactionsThatNeverConfirmFail() throws Exception {
+        simulate(100);
+        // From now on, only high fee transactions confirm.
+        for (int i = 0; i < 200; i++) {
+            addTransactions(10, HIGH_FEE, 1);
+            addTransactions(10, LOW_FEE, Integer.MAX_VALUE);
+            mine(1);
+        }
+        assertEquals(estimator.estimateFeePerKb(1), estimator.estimateFeePerKb(FeeEstimator.MAX_TARGET));
+        // They are forgotten after waiting for the longest target.
+        assertEquals(10 * (FeeEstimator.MAX_TARGET - 1), estimator.getTrackedCount());
+    }
+
+    @Test
+    public void fedByListeners() throws Exception {
+        Address address = new ECKey().toAddress(PARAMS);
+        Transaction funding = new Transaction(PARAMS);
+        funding.addInput(new TransactionInput(PARAMS, funding, new byte[0]));
+        funding.addOutput(COIN, address);
+        funding.addOutput(COIN, address);
+        Transaction known = new Transaction(PARAMS);
+        known.addInput(funding.getOutput(0));
+        known.addOutput(COIN.subtract(CENT), address);
+        // The fee of this one is only known to the pool.
+        Transaction parent = new Transaction(PARAMS);
+        parent.addInput(funding.getOutput(1));
+        parent.addOutput(COIN.subtract(CENT), address);
+        Transaction child = new Transaction(PARAMS);
+        child.addInput(parent.getOutput(0));
+        child.addOutput(COIN.subtract(CENT).subtract(CENT), address);
+        child = PARAMS.getDefaultSerializer().makeTransaction(child.bitcoinSerialize());
+        Transaction unknown = PARAMS.getDefaultSerializer().makeTransaction(known.bitcoinSerialize());
+        TxMemoryPool pool = new TxMemoryPool(PARAMS);
+        pool.add(parent);
+        pool.add(child);
+
+        estimator = new FeeEstimator(pool);
+        estimator.notifyNewBestBlock(storedBlock(height));
+        estimator.onTransaction(null, known);
+        estimator.onTransaction(null, child);
+        assertEquals(2, estimator.getTrackedCount());
+        FeeEstimator withoutPool = new FeeEstimator(null);
+        withoutPool.notifyNewBestBlock(storedBlock(height));
+        withoutPool.onTransaction(null, unknown);
+        withoutPool.onTransaction(null, child);
+        assertEquals(0, withoutPool.getTrackedCount());
+
+        StoredBlock block = storedBlock(++height);
+        estimator.receiveFromBlock(known, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertFalse(estimator.notifyTransactionIsInBlock(child.getHash(), block,
+                AbstractBlockChain.NewBlockType.SIDE_CHAIN, 1));
+        estimator.notifyNewBestBlock(block);
+        assertEquals(1, estimator.getTrackedCount());
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        simulate(100);
+        File file = File.createTempFile("feeestimator", null);
+        file.deleteOnExit();
+        estimator.saveToFile(file);
+        FeeEstimator loaded = FeeEstimator.loadFromFile(file, null);
+        assertEquals(height, loaded.getHeight());
+        for (int target = 1; target <= FeeEstimator.MAX_TARGET; target++)
+            assertEquals(estimator.estimateFeePerKb(target), loaded.estimateFeePerKb(target));
+
+        // Saved after every block.
+        estimator.autosaveTo(file);
+        mine(1);
+        assertEquals(height, FeeEstimator.loadFromFile(file, null).getHeight());
+    }
+
+    @Test(expected = IOException.class)
+    public void loadOtherFile() throws Exception {
+        File file = File.createTempFile("feeestimator", null);
+        file.deleteOnExit();
+        new Wallet(PARAMS).saveToFile(file);
+        FeeEstimator.loadFromFile(file, null);
+    }
+
+    @Test(expected = IOException.class)
+    public void loadTruncatedFile() throws Exception {
+        simulate(10);
+        File file = File.createTempFile("feeestimator", null);
+        file.deleteOnExit();
+        estimator.saveToFile(file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 8));
+        FeeEstimator.loadFromFile(file, null);
+    }
+
+    @Test
+    public void sendRequestUsesEstimate() throws Exception {
+        Address address = new ECKey().toAddress(PARAMS);
+        SendRequest request = SendRequest.to(address, COIN);
+        Coin defaultFee = request.feePerKb;
+        assertSame(request, request.useFeeEstimate(estimator, 1));
+        assertEquals(defaultFee, request.feePerKb);
+
+        simulate(100);
+        request.useFeeEstimate(estimator, 1);
+        assertEquals(estimator.estimateFeePerKb(1), request.feePerKb);
+        request.useFeeEstimate(estimator, 20);
+        assertEquals(estimator.estimateFeePerKb(20), request.feePerKb);
+    }
+
+    // Every block, ten high fee transactions arrive that confirm in the next block and ten low fee transactions that
+    // confirm after ten blocks.
+    private void simulate(int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            addTransactions(10, HIGH_FEE, 1);
+            addTransactions(10, LOW_FEE, 10);
+            mine(1);
+        }
+    }
+
+    private void addTransactions(int count, Coin fee, int blocksToConfirm) {
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            Sha256Hash hash = Sha256Hash.wrap(bytes);
+            estimator.addTransaction(hash, fee, SIZE);
+            if (blocksToConfirm < Integer.MAX_VALUE) {
+                int confirmHeight = height + blocksToConfirm;
+                if (!toConfirm.containsKey(confirmHeight))
+                    toConfirm.put(confirmHeight, new ArrayList<Sha256Hash>());
+                toConfirm.get(confirmHeight).add(hash);
+            }
+        }
+    }
+
+    private void mine(int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            StoredBlock block = storedBlock(++height);
+            List<Sha256Hash> hashes = toConfirm.remove(height);
+            if (hashes != null)
+                for (int j = 0; j < hashes.size(); j++)
+                    estimator.notifyTransactionIsInBlock(hashes.get(j), block,
+                            AbstractBlockChain.NewBlockType.BEST_CHAIN, j);
+            estimator.notifyNewBestBlock(block);
+        }
+    }
+
+    private StoredBlock storedBlock(int height) {
+        return new StoredBlock(PARAMS.getGenesisBlock().cloneAsHeader(), BigInteger.ONE, height);
+    }
+}
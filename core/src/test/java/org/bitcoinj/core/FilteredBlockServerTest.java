@@ -0,0 +1,125 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilteredBlockServerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private ECKey key1, key2;
+    private Transaction tx1, tx2;
+    private Block block;
+    private FilteredBlockServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        key1 = new ECKey();
+        key2 = new ECKey();
+        tx1 = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, key1);
+        tx2 = FakeTxBuilder.createFakeTx(PARAMS, Coin.FIFTY_COINS, key2.toAddress(PARAMS));
+        block = FakeTxBuilder.makeSolvedTestBlock(PARAMS.getGenesisBlock(), new ECKey().toAddress(PARAMS), tx1, tx2);
+        server = new FilteredBlockServer(2);
+    }
+
+    @Test
+    public void merkleLevelsMatchLeaves() throws Exception {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < 11; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+        List<Sha256Hash[]> levels = PartialMerkleTree.buildMerkleLevels(hashes);
+        assertEquals(5, levels.size());
+        assertEquals(1, levels.get(levels.size() - 1).length);
+        byte[] includeBits = new byte[2];
+        Utils.setBitLE(includeBits, 3);
+        Utils.setBitLE(includeBits, 10);
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLevels(PARAMS, includeBits, levels);
+        List<Sha256Hash> matched = new ArrayList<>();
+        assertEquals(levels.get(levels.size() - 1)[0], pmt.getTxnHashAndMerkleRoot(matched));
+        assertEquals(2, matched.size());
+        assertEquals(hashes.get(3), matched.get(0));
+        assertEquals(hashes.get(10), matched.get(1));
+    }
+
+    @Test
+    public void serveMatchesBloomFilter() throws Exception {
+        server.addBlock(block);
+        BloomFilter filter = new BloomFilter(4, 0.000001, 1);
+        filter.insert(key1);
+        BloomFilter filter2 = new BloomFilter(4, 0.000001, 1);
+        filter2.insert(key1);
+
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addFilteredBlock(block.getHash());
+        List<Message> result = server.serve(filter, getdata);
+        assertEquals(2, result.size());
+        FilteredBlock served = (FilteredBlock) result.get(0);
+        assertEquals(tx1, result.get(1));
+
+        FilteredBlock expected = filter2.applyAndUpdate(block);
+        assertEquals(expected.getPartialMerkleTree(), served.getPartialMerkleTree());
+        assertEquals(block.getHash(), served.getHash());
+        assertEquals(expected.getTransactionHashes(), served.getTransactionHashes());
+        // Round trip over the wire.
+        assertEquals(served.getTransactionHashes(),
+                new FilteredBlock(PARAMS, served.bitcoinSerialize()).getTransactionHashes());
+    }
+
+    @Test
+    public void batchWithMissingBlocks() throws Exception {
+        server.addBlock(block);
+        BloomFilter filter = new BloomFilter(4, 0.000001, 1);
+        filter.insert(key2);
+        Sha256Hash unknown = Sha256Hash.of(new byte[] { 1 });
+
+        GetDataMessage getdata = new GetDataMessage(PARAMS);
+        getdata.addFilteredBlock(block.getHash());
+        getdata.addTransaction(tx1.getHash());
+        getdata.addFilteredBlock(unknown);
+        getdata.addFilteredBlock(block.getHash());
+        List<Message> result = server.serve(filter, getdata);
+        assertEquals(5, result.size());
+        assertTrue(result.get(0) instanceof FilteredBlock);
+        assertEquals(tx2, result.get(1));
+        assertTrue(result.get(2) instanceof FilteredBlock);
+        assertEquals(tx2, result.get(3));
+        NotFoundMessage notFound = (NotFoundMessage) result.get(4);
+        assertEquals(1, notFound.getItems().size());
+        assertEquals(unknown, notFound.getItems().get(0).hash);
+    }
+
+    @Test
+    public void cacheIsBounded() throws Exception {
+        Block block2 = block.createNextBlock(new ECKey().toAddress(PARAMS));
+        Block block3 = block2.createNextBlock(new ECKey().toAddress(PARAMS));
+        server.addBlock(block);
+        server.addBlock(block2);
+        server.addBlock(block3);
+        assertEquals(2, server.getCachedBlockCount());
+        assertNull(server.getBlock(block.getHash()));
+        assertNotNull(server.getBlock(block3.getHash()));
+    }
+}
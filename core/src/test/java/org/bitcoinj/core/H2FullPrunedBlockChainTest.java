@@ -16,13 +16,17 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
 
+import static org.junit.Assert.*;
+
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
  */
@@ -52,4 +56,136 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void batchWriteSeesItsOwnChanges() throws Exception {
+        store = createStore(PARAMS, 10);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        UTXO out0 = createUTXO(hash, 0), out1 = createUTXO(hash, 1);
+        store.addUnspentTransactionOutput(out0);
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out1);
+        assertEquals(out1.getValue(), store.getTransactionOutput(hash, 1).getValue());
+        store.removeUnspentTransactionOutput(out0);
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        try {
+            store.removeUnspentTransactionOutput(out0);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Removed and added again within the batch.
+        store.removeUnspentTransactionOutput(out1);
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.addUnspentTransactionOutput(out1);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertNotNull(store.getTransactionOutput(hash, 1));
+
+        // Nothing is written if the batch is aborted.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out1);
+        store.abortDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(hash, 1));
+        store.close();
+    }
+
+    @Test
+    public void removingMissingOutputFails() throws Exception {
+        store = createStore(PARAMS, 10);
+        UTXO out = createUTXO(Sha256Hash.of(new byte[] { 2 }), 0);
+        try {
+            store.removeUnspentTransactionOutput(out);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Within a batch write the database is only told when the batch is committed.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+        }
+        store.close();
+    }
+
+    @Test
+    public void bulkLoadWritesEveryFewBatchWrites() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        this.store = store;
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 3 });
+        UTXO out0 = createUTXO(hash, 0), out1 = createUTXO(hash, 1);
+        store.addUnspentTransactionOutput(out0);
+        store.beginBulkLoad(2);
+        assertTrue(store.isBulkLoading());
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out1);
+        store.removeUnspentTransactionOutput(out0);
+        store.commitDatabaseBatchWrite();
+        // Staged, but reads see it.
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertNotNull(store.getTransactionOutput(hash, 1));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out1);
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.commitDatabaseBatchWrite();
+        // Written with the second batch write.
+        assertNull(store.getTransactionOutput(hash, 1));
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out0);
+        store.commitDatabaseBatchWrite();
+        store.endBulkLoad();
+        assertFalse(store.isBulkLoading());
+        assertNotNull(store.getTransactionOutput(hash, 0));
+        store.close();
+    }
+
+    @Test
+    public void interruptedBulkLoadContinuesFromLastWrite() throws Exception {
+        H2FullPrunedBlockStore crashed = (H2FullPrunedBlockStore) createStore(PARAMS, 10);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 4 });
+        crashed.addUnspentTransactionOutput(createUTXO(hash, 0));
+        crashed.beginBulkLoad(2);
+        StoredBlock[] blocks = new StoredBlock[3];
+        StoredBlock prev = crashed.getChainHead();
+        for (int i = 0; i < blocks.length; i++) {
+            Block block = prev.getHeader().createNextBlock(new ECKey().toAddress(PARAMS));
+            blocks[i] = prev.build(block);
+            crashed.beginDatabaseBatchWrite();
+            crashed.addUnspentTransactionOutput(createUTXO(hash, i + 1));
+            crashed.put(blocks[i], new StoredUndoableBlock(block.getHash(), block.getTransactions()));
+            crashed.setVerifiedChainHead(blocks[i]);
+            crashed.commitDatabaseBatchWrite();
+            prev = blocks[i];
+        }
+
+        // Opened again while the other store is still bulk loading, as if it had not been closed. The second batch
+        // write was the last one written, the third block is dropped.
+        store = new H2FullPrunedBlockStore(PARAMS, "test", "sa", "sa", 10);
+        H2FullPrunedBlockStore reopened = (H2FullPrunedBlockStore) store;
+        assertFalse(reopened.isBulkLoading());
+        assertEquals(blocks[1], reopened.getChainHead());
+        assertEquals(blocks[1], reopened.getVerifiedChainHead());
+        assertNull(reopened.get(blocks[2].getHeader().getHash()));
+        assertNull(reopened.getUndoBlock(blocks[2].getHeader().getHash()));
+        assertNotNull(reopened.getTransactionOutput(hash, 2));
+        assertNull(reopened.getTransactionOutput(hash, 3));
+        reopened.close();
+        crashed.close();
+    }
+
+    private static UTXO createUTXO(Sha256Hash hash, long index) {
+        return new UTXO(hash, index, Coin.valueOf(index + 1), 1, false,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)), "");
+    }
 }
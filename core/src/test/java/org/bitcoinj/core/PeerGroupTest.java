@@ -179,6 +179,32 @@ public class PeerGroupTest extends TestWithPeerGroup {
         };
     }
 
+    @Test
+    public void connectsToAddressDatabase() throws Exception {
+        PeerAddressDatabase addressDatabase = new PeerAddressDatabase(null);
+        addressDatabase.add(new InetSocketAddress("127.0.0.1", 2000), 0, Utils.currentTimeSeconds());
+        // There is no discovery, the database is the only source of peers.
+        peerGroup.setAddressDatabase(addressDatabase);
+        peerGroup.setMaxConnections(1);
+        peerGroup.start();
+
+        InboundMessageQueuer p1 = handleConnectToPeer(0);
+        p1.peer = peerGroup.getConnectedPeers().get(0);
+        assertNextMessageIs(p1, GetAddrMessage.class);
+        // The services the peer offers are known now.
+        assertTrue(addressDatabase.getCandidates(10, VersionMessage.NODE_GETUTXOS).isEmpty());
+
+        // Addresses the peer sends are remembered.
+        PeerAddress gossiped = new PeerAddress(PARAMS, InetAddresses.forString("10.0.0.1"), 8333);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(1);
+        gossiped.bitcoinSerialize(bytes);
+        inbound(p1, new AddressMessage(PARAMS, bytes.toByteArray()));
+        pingAndWait(p1);
+        assertEquals(2, addressDatabase.size());
+        peerGroup.stop();
+    }
+
     @Test
     public void multiplePeerDiscovery() throws InterruptedException {
         peerGroup.setMaxPeersToDiscoverCount(98);
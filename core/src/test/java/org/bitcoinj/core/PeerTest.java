@@ -256,6 +256,32 @@ public class PeerTest extends TestWithNetworkConnections {
         assertNull(outbound(writeTarget));
     }
 
+    // Check that blocks asked for before the download moved to another peer are still used.
+    @Test
+    public void blocksInFlightAfterLosingDownload() throws Exception {
+        connect();
+
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(2, getdata.getItems().size());
+
+        peer.setDownloadData(false);
+        inbound(writeTarget, b2);
+        inbound(writeTarget, b3);
+        // Blocks that were not asked for are not.
+        inbound(writeTarget, b4);
+        assertNull(outbound(writeTarget));
+        assertEquals(b3.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     @Test
     public void invDownloadTx() throws Exception {
         connect();
@@ -0,0 +1,186 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerThroughputTrackerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private PeerThroughputTracker tracker;
+    private int nextPort = 2000;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS));
+        tracker = new PeerThroughputTracker();
+    }
+
+    @Test
+    public void settlesOnFastestPeer() throws Exception {
+        SimulatedPeer slow = new SimulatedPeer(50000, 100);
+        SimulatedPeer medium = new SimulatedPeer(100000, 100);
+        SimulatedPeer similar = new SimulatedPeer(250000, 100);
+        SimulatedPeer fast = new SimulatedPeer(300000, 100);
+        List<SimulatedPeer> peers = Arrays.asList(slow, medium, similar, fast);
+
+        // Every peer that looks like it could be faster is tried once, then the download stays put.
+        List<SimulatedPeer> downloadPeers = simulate(peers, slow, 200);
+        assertEquals(Arrays.asList(slow, medium, similar, fast), distinct(downloadPeers));
+        assertEquals(fast, downloadPeers.get(downloadPeers.size() - 1));
+        assertEquals(300000, tracker.getThroughput(fast, true).getBytesPerSecond());
+        assertEquals(50000, tracker.getThroughput(slow, false).getBytesPerSecond());
+    }
+
+    @Test
+    public void movesAwayFromPeerThatSlowsDown() throws Exception {
+        SimulatedPeer medium = new SimulatedPeer(100000, 100);
+        SimulatedPeer fast = new SimulatedPeer(300000, 100);
+        List<SimulatedPeer> peers = Arrays.asList(medium, fast);
+        List<SimulatedPeer> downloadPeers = simulate(peers, medium, 60);
+        assertEquals(fast, downloadPeers.get(downloadPeers.size() - 1));
+
+        fast.bytesPerSecond = 30000;
+        downloadPeers = simulate(peers, fast, 60);
+        assertEquals(Arrays.asList(fast, medium), distinct(downloadPeers));
+        assertTrue(tracker.getThroughput(fast, false).getBytesPerSecond() < 100000);
+    }
+
+    @Test
+    public void waitsBeforeMoving() throws Exception {
+        SimulatedPeer slow = new SimulatedPeer(10000, 100);
+        SimulatedPeer other = new SimulatedPeer(10000, 100);
+        for (int i = 0; i < PeerThroughputTracker.MIN_DOWNLOAD_SECONDS + 1; i++) {
+            tracker.addBytes(slow, slow.bytesPerSecond);
+            tracker.sample(slow, true);
+            assertFalse(tracker.shouldSwitch(slow, other));
+        }
+        tracker.addBytes(slow, slow.bytesPerSecond);
+        tracker.sample(slow, true);
+        assertTrue(tracker.shouldSwitch(slow, other));
+        assertFalse(tracker.shouldSwitch(slow, slow));
+
+        // Nothing is measured whilst the chain is not being downloaded.
+        PeerThroughput before = tracker.getThroughput(slow, true);
+        tracker.addBytes(slow, 1000000);
+        tracker.sample(slow, false);
+        PeerThroughput after = tracker.getThroughput(slow, true);
+        assertEquals(before.getBytesPerSecond(), after.getBytesPerSecond());
+        assertEquals(before.getSecondsDownloading(), after.getSecondsDownloading());
+    }
+
+    @Test
+    public void stallingPenalized() throws Exception {
+        // Both send the same number of bytes on average, but one of them in bursts with nothing in between.
+        SimulatedPeer bursty = new SimulatedPeer(0, 100);
+        SimulatedPeer steady = new SimulatedPeer(150000, 100);
+        for (int second = 1; second <= 30; second++) {
+            if (second % 3 == 0)
+                tracker.addBytes(bursty, 450000);
+            tracker.sample(bursty, true);
+        }
+        simulate(Arrays.asList(steady), steady, 30);
+
+        PeerThroughput throughput = tracker.getThroughput(bursty, false);
+        assertEquals(28, throughput.getSecondsDownloading());
+        assertEquals(18, throughput.getStallSeconds());
+        assertEquals(0, tracker.getThroughput(steady, true).getStallSeconds());
+        assertTrue(tracker.getScore(steady) > tracker.getScore(bursty));
+    }
+
+    @Test
+    public void pingPenalized() throws Exception {
+        SimulatedPeer near = new SimulatedPeer(100000, 50);
+        SimulatedPeer far = new SimulatedPeer(100000, 800);
+        SimulatedPeer unknown = new SimulatedPeer(100000, Long.MAX_VALUE);
+        // Before anything was measured only the ping times tell peers apart.
+        assertTrue(tracker.getScore(near) > tracker.getScore(far));
+        assertTrue(tracker.getScore(far) > tracker.getScore(unknown));
+
+        simulate(Arrays.asList(near), near, 20);
+        simulate(Arrays.asList(far), far, 20);
+        assertEquals(tracker.getThroughput(near, false).getBytesPerSecond(),
+                tracker.getThroughput(far, false).getBytesPerSecond());
+        assertTrue(tracker.getScore(near) > tracker.getScore(far));
+    }
+
+    @Test
+    public void forgetsDisconnectedPeers() throws Exception {
+        SimulatedPeer peer = new SimulatedPeer(100000, 100);
+        simulate(Arrays.asList(peer), peer, 20);
+        assertEquals(100000, tracker.getThroughput(peer, true).getBytesPerSecond());
+        tracker.remove(peer);
+        assertEquals(-1, tracker.getThroughput(peer, false).getBytesPerSecond());
+    }
+
+    /**
+     * Runs the chain download for the given number of seconds, starting from the given peer and moving it the way
+     * {@link PeerGroup} does. Returns the download peer of every second.
+     */
+    private List<SimulatedPeer> simulate(List<SimulatedPeer> peers, SimulatedPeer downloadPeer, int seconds) {
+        List<SimulatedPeer> downloadPeers = new ArrayList<>();
+        for (int i = 0; i < seconds; i++) {
+            downloadPeers.add(downloadPeer);
+            tracker.addBytes(downloadPeer, downloadPeer.bytesPerSecond);
+            tracker.sample(downloadPeer, true);
+            SimulatedPeer best = null;
+            for (SimulatedPeer peer : peers)
+                if (best == null || tracker.getScore(peer) > tracker.getScore(best))
+                    best = peer;
+            if (tracker.shouldSwitch(downloadPeer, best))
+                downloadPeer = best;
+        }
+        return downloadPeers;
+    }
+
+    private static List<SimulatedPeer> distinct(List<SimulatedPeer> downloadPeers) {
+        List<SimulatedPeer> result = new ArrayList<>();
+        for (SimulatedPeer peer : downloadPeers)
+            if (result.isEmpty() || result.get(result.size() - 1) != peer)
+                result.add(peer);
+        return result;
+    }
+
+    private class SimulatedPeer extends Peer {
+        long bytesPerSecond;
+        final long pingTime;
+
+        SimulatedPeer(long bytesPerSecond, long pingTime) throws Exception {
+            super(PARAMS, new VersionMessage(PARAMS, 1), null,
+                    new PeerAddress(PARAMS, new InetSocketAddress(InetAddress.getLoopbackAddress(), nextPort++)));
+            this.bytesPerSecond = bytesPerSecond;
+            this.pingTime = pingTime;
+        }
+
+        @Override
+        public long getPingTime() {
+            return pingTime;
+        }
+    }
+}
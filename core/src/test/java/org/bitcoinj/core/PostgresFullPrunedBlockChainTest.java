@@ -16,13 +16,20 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.PostgresFullPrunedBlockStore;
+import org.bitcoinj.utils.BlockFileLoader;
 import org.junit.After;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
 /**
  * A Postgres implementation of the {@link AbstractFullPrunedBlockChainTest}
  */
@@ -71,4 +78,23 @@ public class PostgresFullPrunedBlockChainTest extends AbstractFullPrunedBlockCha
             useSchema = oldSchema;
         }
     }
+
+    @Test
+    public void testFirst100kBlocksWithBulkLoad() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context context = new Context(params);
+        File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(blockFile));
+
+        PostgresFullPrunedBlockStore store = (PostgresFullPrunedBlockStore) createStore(params, 10);
+        this.store = store;
+        resetStore(store);
+        store.beginBulkLoad(1000);
+        chain = new FullPrunedBlockChain(context, store);
+        for (Block block : loader)
+            chain.add(block);
+        store.endBulkLoad();
+        assertFalse(store.isBulkLoading());
+        assertEquals(store.getChainHead().getHeight(), store.getChainHeadHeight());
+    }
 }
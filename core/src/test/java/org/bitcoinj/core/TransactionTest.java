@@ -142,11 +142,12 @@ public class TransactionTest {
 
         // optimal encoding size should equal the length we just calculated
         assertEquals(tx.getOptimalEncodingMessageSize(), length);
+        assertEquals(tx.unsafeBitcoinSerialize().length, length);
     }
 
     private int getCombinedLength(List<? extends Message> list) {
         int sumOfAllMsgSizes = 0;
-        for (Message m: list) { sumOfAllMsgSizes += m.getMessageSize() + 1; }
+        for (Message m: list) { sumOfAllMsgSizes += m.getMessageSize(); }
         return sumOfAllMsgSizes;
     }
 
@@ -381,6 +382,73 @@ public class TransactionTest {
         assertTrue(tx.isOptInFullRBF());
     }
 
+    @Test
+    public void cachesFollowEveryChange() {
+        Transaction tx = new Transaction(PARAMS);
+        checkCaches(tx);
+        TransactionInput input = tx.addInput(this.tx.getOutput(0));
+        TransactionOutput output = tx.addOutput(Coin.COIN, ADDRESS);
+        checkCaches(tx);
+        tx.setVersion(2);
+        assertEquals(2, checkCaches(tx).getVersion());
+        input.setSequenceNumber(5);
+        assertEquals(5, checkCaches(tx).getInput(0).getSequenceNumber());
+        tx.setLockTime(1000);
+        assertEquals(1000, checkCaches(tx).getLockTime());
+        input.setScriptSig(new ScriptBuilder().data(new byte[3]).build());
+        assertArrayEquals(input.getScriptBytes(), checkCaches(tx).getInput(0).getScriptBytes());
+        input.getOutpoint().setIndex(7);
+        assertEquals(7, checkCaches(tx).getInput(0).getOutpoint().getIndex());
+        output.setValue(Coin.FIFTY_COINS);
+        assertEquals(Coin.FIFTY_COINS, checkCaches(tx).getOutput(0).getValue());
+        // Enough outputs for the count to need a longer encoding.
+        for (int i = 0; i < 300; i++)
+            tx.addOutput(Coin.valueOf(i + 1), ADDRESS);
+        assertEquals(301, checkCaches(tx).getOutputs().size());
+        tx.shuffleOutputs();
+        Transaction copy = checkCaches(tx);
+        for (int i = 0; i < tx.getOutputs().size(); i++)
+            assertEquals(tx.getOutput(i).getValue(), copy.getOutput(i).getValue());
+        tx.clearOutputs();
+        assertEquals(0, checkCaches(tx).getOutputs().size());
+        tx.clearInputs();
+        assertEquals(0, checkCaches(tx).getInputs().size());
+    }
+
+    // Checks that the serialization, hash and size of the transaction are up to date, and returns a copy of the
+    // transaction parsed from the serialization.
+    private static Transaction checkCaches(Transaction tx) {
+        byte[] bytes = tx.unsafeBitcoinSerialize();
+        assertSame(bytes, tx.unsafeBitcoinSerialize());
+        assertEquals(bytes.length, tx.getMessageSize());
+        assertEquals(bytes.length, tx.getOptimalEncodingMessageSize());
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes)), tx.getHash());
+        return new Transaction(PARAMS, bytes);
+    }
+
+    @Test
+    public void compactKeepsTransaction() {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(ADDRESS);
+        block.addTransaction(tx);
+        // Retaining the payload makes every transaction of the block hold on to the bytes of the whole block.
+        Block parsed = PARAMS.getSerializer(true).makeBlock(block.bitcoinSerialize());
+        Transaction tx = parsed.getTransactions().get(1);
+        assertNotNull(tx.payload);
+        Sha256Hash hash = tx.getHash();
+        byte[] bytes = tx.bitcoinSerialize();
+        tx.compact();
+        assertNull(tx.payload);
+        assertNull(tx.getInput(0).payload);
+        assertNull(tx.getInput(0).getOutpoint().payload);
+        assertNull(tx.getOutput(0).payload);
+        assertEquals(hash, tx.getHash());
+        assertArrayEquals(bytes, tx.bitcoinSerialize());
+        assertEquals(bytes.length, tx.getMessageSize());
+        // The transaction can still be changed.
+        tx.addOutput(Coin.COIN, ADDRESS);
+        assertEquals(tx.getOutputs().size(), checkCaches(tx).getOutputs().size());
+    }
+
     /**
      * Ensure that hashForSignature() doesn't modify a transaction's data, which could wreak multithreading havoc.
      */
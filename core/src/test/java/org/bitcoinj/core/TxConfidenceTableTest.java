@@ -22,6 +22,7 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +100,102 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void batchedSeen() throws Exception {
+        Sha256Hash other = Sha256Hash.of(new byte[] { 1 });
+        final List<TransactionConfidence> changed = new ArrayList<>();
+        tx1.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                changed.add(confidence);
+            }
+        });
+        List<TransactionConfidence> confidences = table.seen(Arrays.asList(tx1.getHash(), other), address1);
+        assertEquals(2, confidences.size());
+        assertSame(tx1.getConfidence(), confidences.get(0));
+        assertEquals(other, confidences.get(1).getTransactionHash());
+        assertEquals(1, changed.size());
+        assertEquals(1, table.numBroadcastPeers(other));
+
+        // Seeing the same inv again from the same peer changes nothing, from another peer it does.
+        table.seen(Arrays.asList(tx1.getHash(), other), address1);
+        assertEquals(1, changed.size());
+        confidences = table.seen(Arrays.asList(other, tx1.getHash()), address2);
+        assertEquals(2, changed.size());
+        assertEquals(2, confidences.get(0).numBroadcastPeers());
+        assertEquals(2, table.numBroadcastPeers(tx1.getHash()));
+    }
+
+    @Test
+    public void shardsEvictOldest() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(64, 4);
+        assertEquals(4, table.getNumShards());
+        List<TransactionConfidence> pinned = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            pinned.add(table.getOrCreate(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) })));
+        assertTrue(table.size() <= 64);
+        // The most recent entries survive, the first ones have been evicted.
+        assertSame(pinned.get(999), table.get(pinned.get(999).getTransactionHash()));
+        assertNull(table.get(pinned.get(0).getTransactionHash()));
+    }
+
+    @Test
+    public void collectedEntriesDontCountTowardsSize() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(10, 1);
+        TransactionConfidence pinned = table.getOrCreate(tx1.getHash());
+        for (int i = 0; i < 9; i++)
+            table.getOrCreate(Sha256Hash.of(new byte[] { (byte) i }));
+        // Nothing holds on to the other confidences, so the GC takes them away.
+        for (int i = 0; i < 100 && table.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, table.size());
+        // The shard has room again, so the oldest entry isn't evicted to make room for new ones.
+        List<TransactionConfidence> more = new ArrayList<>();
+        for (int i = 0; i < 9; i++)
+            more.add(table.getOrCreate(Sha256Hash.of(new byte[] { (byte) i, 1 })));
+        assertSame(pinned, table.get(tx1.getHash()));
+        assertEquals(10, table.size());
+    }
+
+    @Test
+    public void tinyTable() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(1);
+        assertEquals(1, table.getNumShards());
+        TransactionConfidence confidence = table.getOrCreate(tx1.getHash());
+        assertSame(confidence, table.getOrCreate(tx1.getHash()));
+        table.getOrCreate(Sha256Hash.of(new byte[] { 1 }));
+        assertEquals(1, table.size());
+        assertNull(table.get(tx1.getHash()));
+    }
+
+    @Test
+    public void broadcastPeersWithoutListeners() throws Exception {
+        TransactionConfidence confidence = new TransactionConfidence(tx1.getHash());
+        assertEquals(0, confidence.numBroadcastPeers());
+        assertFalse(confidence.wasBroadcastBy(address1));
+        assertTrue(confidence.getBroadcastBy().isEmpty());
+        assertEquals(0, confidence.duplicate().numBroadcastPeers());
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        assertFalse(confidence.removeEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+            }
+        }));
+
+        assertTrue(confidence.markBroadcastBy(address1));
+        assertFalse(confidence.markBroadcastBy(address1));
+        assertTrue(confidence.markBroadcastBy(address2));
+        TransactionConfidence copy = confidence.duplicate();
+        assertEquals(2, copy.numBroadcastPeers());
+        assertTrue(copy.wasBroadcastBy(address2));
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        confidence.clearBroadcastBy();
+        assertEquals(0, confidence.numBroadcastPeers());
+        assertEquals(2, copy.numBroadcastPeers());
+        assertTrue(confidence.markBroadcastBy(address3));
+        assertEquals(1, confidence.numBroadcastPeers());
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class TxMemoryPoolTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private Address address;
+    private Transaction funding;
+    private TxMemoryPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS));
+        address = new ECKey().toAddress(PARAMS);
+        // A confirmed transaction, not in the pool, whose outputs the transactions of the tests spend.
+        funding = new Transaction(PARAMS);
+        funding.addInput(new TransactionInput(PARAMS, funding, new byte[0]));
+        for (int i = 0; i < 10; i++)
+            funding.addOutput(COIN, address);
+        pool = new TxMemoryPool(PARAMS);
+    }
+
+    @Test
+    public void addAndLookUp() throws Exception {
+        Transaction parent = spend(valueOf(10000), funding.getOutput(0));
+        Transaction child = spend(valueOf(20000), parent.getOutput(0));
+        assertTrue(pool.add(parent));
+        assertTrue(pool.add(child));
+        assertTrue(pool.add(child));
+
+        assertEquals(2, pool.size());
+        assertEquals(parent.getMessageSize() + child.getMessageSize(), pool.getSizeInBytes());
+        assertEquals(child, pool.get(child.getHash()));
+        assertEquals(valueOf(10000), pool.getFee(parent.getHash()));
+        assertEquals(valueOf(20000 * 1000 / child.getMessageSize()), pool.getFeeRate(child.getHash()));
+        assertEquals(parent, pool.getSpendingTransaction(funding.getOutput(0).getOutPointFor()));
+        assertEquals(child, pool.getSpendingTransaction(parent.getOutput(0).getOutPointFor()));
+        assertNull(pool.getSpendingTransaction(funding.getOutput(1).getOutPointFor()));
+        assertEquals(ImmutableSet.of(parent), pool.getAncestors(child.getHash()));
+        assertEquals(ImmutableSet.of(child), pool.getDescendants(parent.getHash()));
+        assertTrue(pool.getAncestors(parent.getHash()).isEmpty());
+
+        // The child pays for its parent, which a miner can only include together with it.
+        long packageRate = 30000 * 1000 / (parent.getMessageSize() + child.getMessageSize());
+        assertEquals(valueOf(packageRate), pool.getAncestorFeeRate(child.getHash()));
+    }
+
+    @Test
+    public void coinbaseNotAdded() throws Exception {
+        Transaction coinbase = PARAMS.getGenesisBlock().getTransactions().get(0);
+        assertFalse(pool.add(coinbase));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void doubleSpendNotAdded() throws Exception {
+        Transaction tx1 = spend(valueOf(10000), funding.getOutput(0));
+        Transaction tx2 = spend(valueOf(50000), funding.getOutput(0), funding.getOutput(1));
+        assertTrue(pool.add(tx1));
+        assertFalse(pool.add(tx2));
+
+        assertFalse(pool.contains(tx2.getHash()));
+        assertEquals(ImmutableSet.of(tx1), pool.getConflicting(tx2));
+        assertTrue(pool.getConflicting(tx1).isEmpty());
+        assertEquals(1, pool.getConflictCount());
+    }
+
+    @Test
+    public void feeKnownWhenParentArrives() throws Exception {
+        Transaction parent = spend(valueOf(10000), funding.getOutput(0));
+        Transaction child = spend(valueOf(20000), parent.getOutput(0));
+        // As received from a peer, the child doesn't know the value of what it spends.
+        child = PARAMS.getDefaultSerializer().makeTransaction(child.bitcoinSerialize());
+        assertTrue(pool.add(child));
+        assertNull(pool.getFee(child.getHash()));
+        assertEquals(ZERO, pool.getAncestorFeeRate(child.getHash()));
+
+        assertTrue(pool.add(parent));
+        assertEquals(valueOf(20000), pool.getFee(child.getHash()));
+        assertEquals(ImmutableSet.of(parent), pool.getAncestors(child.getHash()));
+        assertEquals(Arrays.asList(child, parent), pool.getTransactionsByFeeRate(10));
+    }
+
+    @Test
+    public void feeKnownWhenParentConfirms() throws Exception {
+        Transaction parent = spend(valueOf(10000), funding.getOutput(0));
+        Transaction child = spend(valueOf(20000), parent.getOutput(0));
+        child = PARAMS.getDefaultSerializer().makeTransaction(child.bitcoinSerialize());
+        assertTrue(pool.add(child));
+
+        pool.removeForBlock(block(parent));
+        assertEquals(valueOf(20000), pool.getFee(child.getHash()));
+    }
+
+    @Test
+    public void transactionsByFeeRate() throws Exception {
+        Transaction low = spend(valueOf(1000), funding.getOutput(0));
+        Transaction high = spend(valueOf(100000), funding.getOutput(1));
+        Transaction middle = spend(valueOf(10000), funding.getOutput(2));
+        assertTrue(pool.add(low));
+        assertTrue(pool.add(high));
+        assertTrue(pool.add(middle));
+
+        assertEquals(Arrays.asList(high, middle, low), pool.getTransactionsByFeeRate(10));
+        assertEquals(Arrays.asList(high, middle), pool.getTransactionsByFeeRate(2));
+        assertEquals(pool.getFeeRate(high.getHash()), pool.getFeeRateForBytes(1));
+        assertEquals(pool.getFeeRate(middle.getHash()), pool.getFeeRateForBytes(high.getMessageSize() + 1));
+        assertEquals(ZERO, pool.getFeeRateForBytes(pool.getSizeInBytes() + 1));
+    }
+
+    @Test
+    public void evictsLowestFeeRateWithDescendants() throws Exception {
+        Transaction parent = spend(valueOf(500), funding.getOutput(0));
+        Transaction child = spend(valueOf(1000), parent.getOutput(0));
+        Transaction other = spend(valueOf(10000), funding.getOutput(1));
+        Transaction high = spend(valueOf(100000), funding.getOutput(2));
+        pool = new TxMemoryPool(PARAMS, parent.getMessageSize() + child.getMessageSize() + other.getMessageSize(),
+                null);
+        assertTrue(pool.add(parent));
+        assertTrue(pool.add(child));
+        assertTrue(pool.add(other));
+
+        assertTrue(pool.add(high));
+        assertFalse(pool.contains(parent.getHash()));
+        assertFalse(pool.contains(child.getHash()));
+        assertTrue(pool.contains(other.getHash()));
+        assertEquals(2, pool.getEvictedCount());
+        assertNull(pool.getSpendingTransaction(funding.getOutput(0).getOutPointFor()));
+        assertTrue(pool.getSizeInBytes() <= pool.getMaxBytes());
+
+        // Once full, a transaction paying less than all others doesn't stay.
+        assertTrue(pool.add(spend(valueOf(100), funding.getOutput(3))));
+        assertFalse(pool.add(spend(valueOf(50), funding.getOutput(4))));
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void childPaysForParentWhenEvicting() throws Exception {
+        Transaction parent = spend(valueOf(1000), funding.getOutput(0));
+        Transaction child = spend(valueOf(100000), parent.getOutput(0));
+        Transaction other = spend(valueOf(10000), funding.getOutput(1));
+        pool = new TxMemoryPool(PARAMS, parent.getMessageSize() + child.getMessageSize() + other.getMessageSize() - 1,
+                null);
+        assertTrue(pool.add(other));
+        assertTrue(pool.add(parent));
+        assertTrue(pool.add(child));
+
+        assertFalse(pool.contains(other.getHash()));
+        assertTrue(pool.contains(parent.getHash()));
+        assertEquals(1, pool.getEvictedCount());
+    }
+
+    @Test
+    public void removeForBlock() throws Exception {
+        Transaction parent = spend(valueOf(1000), funding.getOutput(0));
+        Transaction child = spend(valueOf(1000), parent.getOutput(0));
+        Transaction doubleSpent = spend(valueOf(1000), funding.getOutput(1));
+        Transaction doubleSpentChild = spend(valueOf(1000), doubleSpent.getOutput(0));
+        Transaction unrelated = spend(valueOf(1000), funding.getOutput(2));
+        for (Transaction tx : Arrays.asList(parent, child, doubleSpent, doubleSpentChild, unrelated))
+            assertTrue(pool.add(tx));
+
+        Transaction doubleSpend = spend(valueOf(5000), funding.getOutput(1));
+        pool.removeForBlock(block(parent, doubleSpend));
+
+        assertEquals(ImmutableSet.of(child, unrelated), ImmutableSet.copyOf(pool.getTransactionsByFeeRate(10)));
+        assertEquals(child.getMessageSize() + unrelated.getMessageSize(), pool.getSizeInBytes());
+        assertTrue(pool.getAncestors(child.getHash()).isEmpty());
+        assertEquals(valueOf(1000 * 1000 / child.getMessageSize()), pool.getAncestorFeeRate(child.getHash()));
+        assertNull(pool.getSpendingTransaction(funding.getOutput(1).getOutPointFor()));
+        // The outputs they spent are free for other transactions now.
+        assertTrue(pool.add(spend(valueOf(1000), doubleSpend.getOutput(0))));
+    }
+
+    @Test
+    public void removeWithDescendants() throws Exception {
+        Transaction parent = spend(valueOf(1000), funding.getOutput(0));
+        Transaction child = spend(valueOf(1000), parent.getOutput(0));
+        assertTrue(pool.add(parent));
+        assertTrue(pool.add(child));
+
+        assertEquals(ImmutableSet.of(parent, child), ImmutableSet.copyOf(pool.remove(parent.getHash())));
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.getSizeInBytes());
+        assertTrue(pool.remove(parent.getHash()).isEmpty());
+    }
+
+    @Test
+    public void packageLimit() throws Exception {
+        Transaction tx = spend(valueOf(1000), funding.getOutput(0));
+        assertTrue(pool.add(tx));
+        for (int i = 1; i < TxMemoryPool.MAX_PACKAGE_COUNT; i++) {
+            tx = spend(valueOf(1000), tx.getOutput(0));
+            assertTrue(pool.add(tx));
+        }
+        assertFalse(pool.add(spend(valueOf(1000), tx.getOutput(0))));
+        assertEquals(TxMemoryPool.MAX_PACKAGE_COUNT, pool.size());
+    }
+
+    @Test
+    public void descendantLimit() throws Exception {
+        Transaction parent = new Transaction(PARAMS);
+        parent.addInput(funding.getOutput(0));
+        for (int i = 0; i < TxMemoryPool.MAX_PACKAGE_COUNT; i++)
+            parent.addOutput(CENT, address);
+        assertTrue(pool.add(parent));
+        // Each child is a package of two, but together they and the parent make a package of the limit.
+        for (int i = 1; i < TxMemoryPool.MAX_PACKAGE_COUNT; i++)
+            assertTrue(pool.add(spend(valueOf(1000), parent.getOutput(i - 1))));
+        Transaction tooMany = spend(valueOf(1000), parent.getOutput(TxMemoryPool.MAX_PACKAGE_COUNT - 1));
+        assertFalse(pool.add(tooMany));
+        assertFalse(pool.contains(tooMany.getHash()));
+        assertEquals(TxMemoryPool.MAX_PACKAGE_COUNT, pool.size());
+    }
+
+    @Test
+    public void spendingMoreThanInputsNotAdded() throws Exception {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(funding.getOutput(0));
+        tx.addOutput(COIN.add(SATOSHI), address);
+        assertFalse(pool.add(tx));
+    }
+
+    private Transaction spend(Coin fee, TransactionOutput... outputs) {
+        Transaction tx = new Transaction(PARAMS);
+        Coin value = fee.negate();
+        for (TransactionOutput output : outputs) {
+            tx.addInput(output);
+            value = value.add(output.getValue());
+        }
+        tx.addOutput(value, address);
+        return tx;
+    }
+
+    private Block block(Transaction... transactions) {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(address);
+        for (Transaction tx : transactions)
+            block.addTransaction(tx);
+        return block;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.Test;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class LazyECPointTest {
+    @Test
+    public void pointAndEncodingAgree() {
+        BigInteger priv = new ECKey().getPrivKey();
+        // Sums of points are in projective coordinates, and have to be made affine to be encoded.
+        ECPoint projective = ECKey.publicPointFromPrivate(priv).add(ECKey.CURVE.getG());
+        ECPoint affine = projective.normalize();
+        for (boolean compressed : new boolean[] { true, false }) {
+            ECPoint point = ECKey.CURVE.getCurve().createPoint(affine.getAffineXCoord().toBigInteger(),
+                    affine.getAffineYCoord().toBigInteger(), compressed);
+            LazyECPoint fromPoint = new LazyECPoint(compressed ? ECKey.compressPoint(projective) : projective);
+            LazyECPoint fromBytes = new LazyECPoint(ECKey.CURVE.getCurve(), point.getEncoded());
+            assertArrayEquals(point.getEncoded(), fromPoint.getEncoded());
+            assertArrayEquals(fromBytes.getEncoded(), fromPoint.getEncoded());
+            assertArrayEquals(point.getEncoded(!compressed), fromPoint.getEncoded(!compressed));
+            assertEquals(fromBytes, fromPoint);
+            assertEquals(fromBytes.hashCode(), fromPoint.hashCode());
+            assertTrue(fromPoint.get().isNormalized());
+            assertEquals(point, fromPoint.get());
+            // Callers get their own copy of the encoding.
+            fromPoint.getEncoded()[1] ^= 1;
+            assertArrayEquals(point.getEncoded(), fromPoint.getEncoded());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.crypto;
+
+import org.bitcoin.Secp256k1Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Secp256k1ProviderTest {
+    private final JavaSecp256k1Provider provider = new JavaSecp256k1Provider();
+
+    @After
+    public void tearDown() {
+        Secp256k1Provider.set(null);
+    }
+
+    @Test
+    public void defaultProvider() {
+        Secp256k1Provider provider = Secp256k1Provider.get();
+        assertEquals(Secp256k1Context.isEnabled(), provider instanceof NativeSecp256k1Provider);
+        assertSame(provider, Secp256k1Provider.get());
+        Secp256k1Provider.set(this.provider);
+        assertSame(this.provider, Secp256k1Provider.get());
+    }
+
+    @Test
+    public void signAndVerify() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        ECKey.ECDSASignature signature = provider.sign(hash, key.getPrivKey());
+        assertTrue(signature.isCanonical());
+        // Signatures are deterministic, per RFC 6979.
+        assertEquals(signature, key.sign(hash));
+        assertTrue(provider.verify(hash.getBytes(), signature, key.getPubKey()));
+        assertTrue(provider.verify(hash.getBytes(), signature.encodeToDER(), key.getPubKey()));
+        assertFalse(provider.verify(Sha256Hash.ZERO_HASH.getBytes(), signature, key.getPubKey()));
+        assertFalse(provider.verify(hash.getBytes(), signature, new ECKey().getPubKey()));
+    }
+
+    @Test
+    public void verifyMatchesECDSASigner() {
+        Random random = new Random(1);
+        BigInteger n = ECKey.CURVE.getN();
+        for (int i = 0; i < 50; i++) {
+            ECKey key = new ECKey();
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            ECKey.ECDSASignature signature = key.sign(Sha256Hash.wrap(hash));
+            // Valid, tampered with and out of range signatures.
+            ECKey.ECDSASignature[] signatures = {
+                    signature,
+                    new ECKey.ECDSASignature(signature.r, n.subtract(signature.s)),
+                    new ECKey.ECDSASignature(signature.r.add(BigInteger.ONE), signature.s),
+                    new ECKey.ECDSASignature(signature.r.add(n), signature.s),
+                    new ECKey.ECDSASignature(signature.r, BigInteger.ZERO)
+            };
+            ECDSASigner signer = new ECDSASigner();
+            signer.init(false, new ECPublicKeyParameters(key.getPubKeyPoint(), ECKey.CURVE));
+            for (ECKey.ECDSASignature sig : signatures)
+                assertEquals(signer.verifySignature(hash, sig.r, sig.s), provider.verify(hash, sig, key.getPubKey()));
+        }
+    }
+
+    @Test
+    public void batchesMatchSingleOperations() {
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            keys.add(new ECKey());
+        List<Sha256Hash> hashes = new ArrayList<>();
+        List<BigInteger> privKeys = new ArrayList<>();
+        List<byte[]> pubs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // Several signatures by the same key, as when spending many outputs of one address.
+            ECKey key = keys.get(i % keys.size());
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+            privKeys.add(key.getPrivKey());
+            pubs.add(key.getPubKey());
+        }
+        List<ECKey.ECDSASignature> signatures = provider.sign(hashes, privKeys);
+        assertEquals(10, signatures.size());
+        List<byte[]> hashBytes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(provider.sign(hashes.get(i), privKeys.get(i)), signatures.get(i));
+            hashBytes.add(hashes.get(i).getBytes());
+        }
+        // Swap two signatures, so that they don't match their hashes.
+        signatures.add(0, signatures.remove(1));
+        boolean[] results = provider.verify(hashBytes, signatures, pubs);
+        assertFalse(results[0]);
+        assertFalse(results[1]);
+        for (int i = 2; i < 10; i++)
+            assertTrue(results[i]);
+    }
+
+    @Test
+    public void publicDerivation() {
+        ECKey parent = new ECKey();
+        BigInteger tweak = new ECKey().getPrivKey();
+        ECPoint child = provider.tweakPublicPoint(parent.getPubKeyPoint(), tweak);
+        BigInteger childPriv = parent.getPrivKey().add(tweak).mod(ECKey.CURVE.getN());
+        assertEquals(provider.publicPointFromPrivate(childPriv), child);
+        // A tweak that cancels out the parent key gives the point at infinity.
+        BigInteger negated = ECKey.CURVE.getN().subtract(parent.getPrivKey());
+        assertTrue(provider.tweakPublicPoint(parent.getPubKeyPoint(), negated).isInfinity());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.StubDnsResolver;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DnsDiscoveryTest {
+    // The addresses made by addresses(seed, count), counted by seed.
+    private static int[] countPerSeed(InetSocketAddress[] peers, int seeds) {
+        int[] counts = new int[seeds];
+        for (InetSocketAddress peer : peers)
+            counts[peer.getAddress().getAddress()[1]]++;
+        return counts;
+    }
+
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private StubDnsResolver resolver;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS));
+        Utils.setMockClock();
+        resolver = new StubDnsResolver();
+        cacheFile = File.createTempFile("dnsseeds", null);
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+    }
+
+    @Test
+    public void seedsLookedUpConcurrently() throws Exception {
+        String[] seeds = { "seed1", "seed2", "seed3" };
+        List<CountDownLatch> latches = new ArrayList<>();
+        for (int i = 0; i < seeds.length; i++) {
+            resolver.setAnswer(seeds[i], 60, addresses(i, 5));
+            latches.add(resolver.block(seeds[i]));
+        }
+        final DnsDiscovery discovery = new DnsDiscovery(seeds, PARAMS, resolver, null);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<InetSocketAddress[]> future = executor.submit(new Callable<InetSocketAddress[]>() {
+            @Override
+            public InetSocketAddress[] call() throws Exception {
+                return discovery.getPeers(0, 10, TimeUnit.SECONDS);
+            }
+        });
+        // No lookup finishes before it is released, so all of them must be in progress at the same time.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resolver.getLookupsInProgress() < seeds.length && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(seeds.length, resolver.getLookupsInProgress());
+        assertFalse(future.isDone());
+        for (CountDownLatch latch : latches)
+            latch.countDown();
+        assertEquals(15, future.get().length);
+        executor.shutdown();
+    }
+
+    @Test
+    public void returnsFirstAnswersWithoutWaitingForSlowSeeds() throws Exception {
+        String[] seeds = { "fast1", "fast2", "fast3", "slow" };
+        for (int i = 0; i < 3; i++)
+            resolver.setAnswer(seeds[i], 60, addresses(i, 40));
+        resolver.setAnswer("slow", 60, addresses(3, 10));
+        CountDownLatch slow = resolver.block("slow");
+        DnsDiscovery discovery = new DnsDiscovery(seeds, PARAMS, resolver, null);
+        long start = System.currentTimeMillis();
+        InetSocketAddress[] peers = discovery.getPeers(0, 10, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        slow.countDown();
+        assertEquals(DnsDiscovery.DEFAULT_MAX_ADDRESSES, peers.length);
+        // Each seed that answered provides its share.
+        int[] perSeed = countPerSeed(peers, seeds.length);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(perSeed[i] >= 33 && perSeed[i] <= 34);
+        }
+        assertEquals(0, perSeed[3]);
+        for (InetSocketAddress peer : peers)
+            assertEquals(PARAMS.getPort(), peer.getPort());
+
+        // Without a maximum, the slow seed is waited for.
+        discovery.setMaxAddresses(Integer.MAX_VALUE);
+        assertEquals(3 * 40 + 10, discovery.getPeers(0, 10, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void oneSeedIsNotEnough() throws Exception {
+        resolver.setAnswer("big", 60, addresses(0, 2 * DnsDiscovery.DEFAULT_MAX_ADDRESSES));
+        resolver.setAnswer("slow", 60, addresses(1, 10));
+        CountDownLatch slow = resolver.block("slow");
+        DnsDiscovery discovery = new DnsDiscovery(new String[] { "big", "slow" }, PARAMS, resolver, null);
+        // One seed answering with plenty of addresses doesn't end the wait.
+        long start = System.currentTimeMillis();
+        assertEquals(DnsDiscovery.DEFAULT_MAX_ADDRESSES, discovery.getPeers(0, 500, TimeUnit.MILLISECONDS).length);
+        assertTrue(System.currentTimeMillis() - start >= 450);
+        slow.countDown();
+
+        // Once the other seed answers too, all of its addresses are taken and the big seed fills the rest.
+        int[] perSeed = countPerSeed(discovery.getPeers(0, 10, TimeUnit.SECONDS), 2);
+        assertEquals(DnsDiscovery.DEFAULT_MAX_ADDRESSES - 10, perSeed[0]);
+        assertEquals(10, perSeed[1]);
+    }
+
+    @Test
+    public void failedSeedsIgnored() throws Exception {
+        resolver.setAnswer("working", 60, addresses(1, 3));
+        DnsDiscovery discovery = new DnsDiscovery(new String[] { "working", "failing" }, PARAMS, resolver, null);
+        assertEquals(3, discovery.getPeers(0, 10, TimeUnit.SECONDS).length);
+
+        discovery = new DnsDiscovery(new String[] { "failing" }, PARAMS, resolver, null);
+        try {
+            discovery.getPeers(0, 10, TimeUnit.SECONDS);
+            fail();
+        } catch (PeerDiscoveryException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void cachedAnswersUsedUntilExpired() throws Exception {
+        String[] seeds = { "seed1", "seed2" };
+        resolver.setAnswer("seed1", 600, addresses(1, 4));
+        resolver.setAnswer("seed2", 1200, addresses(2, 4));
+        DnsDiscovery discovery = new DnsDiscovery(seeds, PARAMS, resolver, new DnsSeedCache(cacheFile));
+        Set<InetSocketAddress> first = new HashSet<>(Arrays.asList(discovery.getPeers(0, 10, TimeUnit.SECONDS)));
+        assertEquals(8, first.size());
+        assertEquals(2, resolver.getLookups());
+        assertTrue(cacheFile.exists());
+
+        // After a restart, the seeds are not asked again and don't even need to work.
+        StubDnsResolver offline = new StubDnsResolver();
+        discovery = new DnsDiscovery(seeds, PARAMS, offline, new DnsSeedCache(cacheFile));
+        assertEquals(first, new HashSet<>(Arrays.asList(discovery.getPeers(0, 10, TimeUnit.SECONDS))));
+        assertEquals(0, offline.getLookups());
+
+        // Answers expire by their own time to live.
+        Utils.rollMockClock(601);
+        DnsSeedCache cache = new DnsSeedCache(cacheFile);
+        assertEquals(1, cache.size());
+        discovery = new DnsDiscovery(seeds, PARAMS, offline, cache);
+        assertEquals(4, discovery.getPeers(0, 10, TimeUnit.SECONDS).length);
+        assertEquals(1, offline.getLookups());
+        Utils.rollMockClock(600);
+        try {
+            discovery.getPeers(0, 10, TimeUnit.SECONDS);
+            fail();
+        } catch (PeerDiscoveryException e) {
+            // Expected.
+        }
+        assertEquals(0, new DnsSeedCache(cacheFile).size());
+    }
+
+    @Test
+    public void uncacheableAnswersNotCached() throws Exception {
+        DnsSeedCache cache = new DnsSeedCache(null);
+        resolver.setAnswer("zero", 0, addresses(1, 4));
+        resolver.setAnswer("empty", 60);
+        new DnsDiscovery(new String[] { "zero", "empty" }, PARAMS, resolver, cache).getPeers(0, 10, TimeUnit.SECONDS);
+        assertEquals(0, cache.size());
+        assertNull(cache.get("zero"));
+    }
+
+    @Test
+    public void corruptCacheIgnored() throws Exception {
+        resolver.setAnswer("seed", 60, addresses(1, 2));
+        new DnsDiscovery(new String[] { "seed" }, PARAMS, resolver, new DnsSeedCache(cacheFile))
+                .getPeers(0, 10, TimeUnit.SECONDS);
+        byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+        // Cut off the last address.
+        Files.write(cacheFile.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        DnsSeedCache cache = new DnsSeedCache(cacheFile);
+        assertEquals(0, cache.size());
+        new DnsDiscovery(new String[] { "seed" }, PARAMS, resolver, cache).getPeers(0, 10, TimeUnit.SECONDS);
+        assertEquals(1, new DnsSeedCache(cacheFile).size());
+    }
+
+    private static InetAddress[] addresses(int seed, int count) throws Exception {
+        InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++)
+            addresses[i] = InetAddress.getByAddress(new byte[] { 10, (byte) seed, 0, (byte) (i + 1) });
+        return addresses;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net.discovery;
+
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressDatabaseTest {
+    private static final long DAY = 24 * 60 * 60;
+
+    private File file;
+    private PeerAddressDatabase database;
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Utils.setMockClock();
+        now = Utils.currentTimeSeconds();
+        file = File.createTempFile("peers", null);
+        file.delete();
+        file.deleteOnExit();
+        database = new PeerAddressDatabase(file);
+    }
+
+    @Test
+    public void addAndDeduplicate() throws Exception {
+        assertTrue(database.add(address("10.0.0.1"), 0, now));
+        assertTrue(database.add(address("10.0.0.1"), 0, now));
+        assertTrue(database.add(address("10.1.0.1"), 0, now));
+        assertFalse(database.add(InetSocketAddress.createUnresolved("example.com", 8333), 0, now));
+        assertEquals(2, database.size());
+
+        database.addAll(Arrays.asList(new PeerAddress(UnitTestParams.get(), address("10.2.0.1")),
+                new PeerAddress(UnitTestParams.get(), address("10.0.0.1"))));
+        assertEquals(3, database.size());
+    }
+
+    @Test
+    public void candidatesByScore() throws Exception {
+        InetSocketAddress seen = address("10.0.0.1");
+        InetSocketAddress worked = address("10.1.0.1");
+        InetSocketAddress failed = address("10.2.0.1");
+        InetSocketAddress slow = address("10.3.0.1");
+        InetSocketAddress stale = address("10.4.0.1");
+        database.add(seen, 0, now);
+        database.add(stale, 0, now - 10 * DAY);
+        database.recordSuccess(worked, VersionMessage.NODE_NETWORK);
+        database.recordSuccess(slow, VersionMessage.NODE_NETWORK);
+        database.recordPingTime(slow, 500);
+        database.add(failed, 0, now);
+        database.recordFailure(failed);
+
+        assertEquals(Arrays.asList(worked, slow, seen, stale, failed), database.getCandidates(10, 0));
+        assertEquals(Arrays.asList(worked, slow), database.getCandidates(2, 0));
+        assertEquals(5, database.getPeers(0, 0, TimeUnit.SECONDS).length);
+
+        // A failure of a peer that worked before halves its score, the next success forgets about it.
+        database.recordFailure(worked);
+        database.recordFailure(worked);
+        assertEquals(slow, database.getCandidates(1, 0).get(0));
+        database.recordSuccess(worked, VersionMessage.NODE_NETWORK);
+        assertEquals(worked, database.getCandidates(1, 0).get(0));
+    }
+
+    @Test
+    public void candidatesSpreadOverGroups() throws Exception {
+        InetSocketAddress a1 = address("10.0.0.1");
+        InetSocketAddress a2 = address("10.0.0.2");
+        InetSocketAddress a3 = address("10.0.1.3");
+        InetSocketAddress b1 = address("10.1.0.1");
+        InetSocketAddress c1 = address("2001:db8::1");
+        InetSocketAddress c2 = address("2001:db8:1::1");
+        List<InetSocketAddress> worked = Arrays.asList(a1, c1, a2, c2, a3);
+        for (int i = 0; i < worked.size(); i++) {
+            database.recordSuccess(worked.get(i), VersionMessage.NODE_NETWORK);
+            database.recordPingTime(worked.get(i), 10 * (i + 1));
+        }
+        database.add(b1, 0, now);
+
+        List<InetSocketAddress> candidates = database.getCandidates(10, 0);
+        assertEquals(6, candidates.size());
+        // The best of each group first.
+        assertEquals(a1, candidates.get(0));
+        assertEquals(c1, candidates.get(1));
+        assertEquals(b1, candidates.get(2));
+        assertEquals(Arrays.asList(a2, c2, a3), candidates.subList(3, 6));
+    }
+
+    @Test
+    public void requiredServices() throws Exception {
+        InetSocketAddress full = address("10.0.0.1");
+        InetSocketAddress utxos = address("10.1.0.1");
+        InetSocketAddress unknown = address("10.2.0.1");
+        database.recordSuccess(full, VersionMessage.NODE_NETWORK | VersionMessage.NODE_GETUTXOS);
+        database.recordSuccess(utxos, VersionMessage.NODE_GETUTXOS);
+        database.add(unknown, 0, now);
+
+        assertEquals(Arrays.asList(full, unknown), database.getCandidates(10, VersionMessage.NODE_NETWORK));
+        assertEquals(3, database.getCandidates(10, 0).size());
+    }
+
+    @Test
+    public void fullGroupEvictsNeverConnected() throws Exception {
+        for (int i = 0; i < PeerAddressDatabase.MAX_ADDRESSES_PER_GROUP; i++)
+            database.recordSuccess(address("10.0.0." + i), VersionMessage.NODE_NETWORK);
+        assertFalse(database.add(address("10.0.1.1"), 0, now));
+        assertEquals(PeerAddressDatabase.MAX_ADDRESSES_PER_GROUP, database.size());
+        assertTrue(database.add(address("10.1.0.1"), 0, now));
+
+        database = new PeerAddressDatabase(null);
+        for (int i = 0; i < PeerAddressDatabase.MAX_ADDRESSES_PER_GROUP; i++)
+            database.add(address("10.0.0." + i), 0, now - i);
+        assertTrue(database.add(address("10.0.1.1"), 0, now));
+        assertEquals(PeerAddressDatabase.MAX_ADDRESSES_PER_GROUP, database.size());
+        // The one seen longest ago made room.
+        assertFalse(database.getCandidates(100, 0)
+                .contains(address("10.0.0." + (PeerAddressDatabase.MAX_ADDRESSES_PER_GROUP - 1))));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        InetSocketAddress worked = address("10.1.0.1");
+        InetSocketAddress seen = address("2001:db8::1");
+        InetSocketAddress failed = address("10.2.0.1");
+        database.recordSuccess(worked, VersionMessage.NODE_NETWORK);
+        database.recordPingTime(worked, 100);
+        database.add(seen, VersionMessage.NODE_NETWORK, now);
+        database.add(failed, VersionMessage.NODE_GETUTXOS, now);
+        database.recordFailure(failed);
+        database.save();
+        assertTrue(file.exists());
+
+        PeerAddressDatabase loaded = new PeerAddressDatabase(file);
+        assertEquals(3, loaded.size());
+        assertEquals(database.getCandidates(10, 0), loaded.getCandidates(10, 0));
+        assertEquals(Arrays.asList(worked, seen), loaded.getCandidates(10, VersionMessage.NODE_NETWORK));
+    }
+
+    @Test
+    public void forgetsTerribleWhenSaving() throws Exception {
+        InetSocketAddress failing = address("10.0.0.1");
+        InetSocketAddress stale = address("10.1.0.1");
+        InetSocketAddress good = address("10.2.0.1");
+        database.recordSuccess(failing, VersionMessage.NODE_NETWORK);
+        database.add(stale, 0, now);
+        Utils.rollMockClockMillis(31 * DAY * 1000);
+        database.recordSuccess(good, VersionMessage.NODE_NETWORK);
+        for (int i = 0; i < 10; i++)
+            database.recordFailure(failing);
+        database.save();
+
+        assertEquals(1, database.size());
+        assertEquals(Arrays.asList(good), new PeerAddressDatabase(file).getCandidates(10, 0));
+    }
+
+    @Test
+    public void corruptFileIgnored() throws Exception {
+        database.recordSuccess(address("10.0.0.1"), VersionMessage.NODE_NETWORK);
+        database.save();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(1, new PeerAddressDatabase(file).size());
+
+        // A file with the wrong magic isn't a peer database.
+        bytes[0] ^= 1;
+        Files.write(file.toPath(), bytes);
+        assertEquals(0, new PeerAddressDatabase(file).size());
+
+        // A truncated one too.
+        bytes[0] ^= 1;
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertEquals(0, new PeerAddressDatabase(file).size());
+    }
+
+    private static InetSocketAddress address(String host) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName(host), 8333);
+    }
+}
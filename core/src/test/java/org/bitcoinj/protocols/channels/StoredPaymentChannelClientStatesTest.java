@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.protocols.channels;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StoredPaymentChannelClientStatesTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Sha256Hash SERVER_A = Sha256Hash.of(new byte[] { 1 });
+    private static final Sha256Hash SERVER_B = Sha256Hash.of(new byte[] { 2 });
+
+    private Wallet wallet;
+    private BlockingQueue<Transaction> broadcasts;
+    private StoredPaymentChannelClientStates states;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        Utils.setMockClock();
+        wallet = new Wallet(PARAMS);
+        broadcasts = new LinkedBlockingQueue<>();
+        states = new StoredPaymentChannelClientStates(wallet, new TransactionBroadcaster() {
+            @Override
+            public TransactionBroadcast broadcastTransaction(Transaction tx) {
+                SettableFuture<Transaction> future = SettableFuture.create();
+                future.set(tx);
+                broadcasts.add(tx);
+                return TransactionBroadcast.createMockBroadcast(tx, future);
+            }
+        });
+        wallet.addExtension(states);
+    }
+
+    @Test
+    public void balancesKeptPerServer() throws Exception {
+        StoredClientChannel a1 = makeChannel(SERVER_A, Coin.valueOf(100), 24 * 60 * 60);
+        StoredClientChannel a2 = makeChannel(SERVER_A, Coin.valueOf(200), 24 * 60 * 60);
+        StoredClientChannel b1 = makeChannel(SERVER_B, Coin.valueOf(50), 24 * 60 * 60);
+        states.putChannel(a1);
+        states.putChannel(a2);
+        states.putChannel(b1);
+        assertEquals(Coin.valueOf(300), states.getBalanceForServer(SERVER_A));
+        assertEquals(Coin.valueOf(50), states.getBalanceForServer(SERVER_B));
+        assertEquals(Coin.ZERO, states.getBalanceForServer(Sha256Hash.ZERO_HASH));
+        assertSame(a2, states.getChannel(SERVER_A, a2.contract.getHash()));
+        assertNull(states.getChannel(SERVER_B, a2.contract.getHash()));
+        assertEquals(2, states.getChannelMap().get(SERVER_A).size());
+
+        // A payment lowers the value left.
+        a1.valueToMe = Coin.valueOf(60);
+        states.updatedChannel(a1);
+        assertEquals(Coin.valueOf(260), states.getBalanceForServer(SERVER_A));
+
+        // Closed channels don't count.
+        a2.close = new Transaction(PARAMS);
+        states.updatedChannel(a2);
+        assertEquals(Coin.valueOf(60), states.getBalanceForServer(SERVER_A));
+
+        states.removeChannel(a1);
+        assertEquals(Coin.ZERO, states.getBalanceForServer(SERVER_A));
+        assertNull(states.getChannel(SERVER_A, a1.contract.getHash()));
+        // Updates to a channel that is gone change nothing.
+        a1.valueToMe = Coin.valueOf(10);
+        states.updatedChannel(a1);
+        assertEquals(Coin.ZERO, states.getBalanceForServer(SERVER_A));
+        assertEquals(Coin.valueOf(50), states.getBalanceForServer(SERVER_B));
+    }
+
+    @Test
+    public void expiredChannelsBroadcastTogether() throws Exception {
+        StoredClientChannel later = makeChannel(SERVER_B, Coin.valueOf(100), 24 * 60 * 60);
+        states.putChannel(later);
+        // Channels expire 5 minutes after their expiry time, so these are due at the next tick.
+        Set<Transaction> expiring = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            StoredClientChannel channel = makeChannel(SERVER_A, Coin.valueOf(100), -10 * 60 - i);
+            states.putChannel(channel);
+            expiring.add(channel.contract);
+            expiring.add(channel.refund);
+        }
+        assertEquals(Coin.valueOf(300), states.getBalanceForServer(SERVER_A));
+
+        Set<Transaction> broadcast = new HashSet<>();
+        for (int i = 0; i < expiring.size(); i++) {
+            Transaction tx = broadcasts.poll(10, TimeUnit.SECONDS);
+            assertNotNull(tx);
+            broadcast.add(tx);
+        }
+        assertEquals(expiring, broadcast);
+        assertEquals(1, states.mapChannels.size());
+        assertEquals(Coin.ZERO, states.getBalanceForServer(SERVER_A));
+        assertEquals(0, states.getSecondsUntilExpiry(SERVER_A));
+        assertEquals(Coin.valueOf(100), states.getBalanceForServer(SERVER_B));
+        assertTrue(broadcasts.isEmpty());
+    }
+
+    private StoredClientChannel makeChannel(Sha256Hash serverId, Coin value, long expiresInSeconds) {
+        Transaction contract = new Transaction(PARAMS);
+        contract.addOutput(Coin.COIN, new ECKey());
+        Transaction refund = new Transaction(PARAMS);
+        refund.addOutput(Coin.COIN, new ECKey());
+        return new StoredClientChannel(2, serverId, contract, refund, new ECKey(), new ECKey(), value, Coin.ZERO,
+                Utils.currentTimeSeconds() + expiresInSeconds, false);
+    }
+}
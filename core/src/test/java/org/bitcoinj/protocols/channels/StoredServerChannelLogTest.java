@@ -0,0 +1,273 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.protocols.channels;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.protocols.channels.StoredServerChannelLog.Durability;
+import org.bitcoinj.protocols.channels.StoredServerChannelLog.Payment;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class StoredServerChannelLogTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File file;
+    private StoredServerChannelLog channelLog;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        file = File.createTempFile("channels", null);
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (channelLog != null)
+            channelLog.close();
+    }
+
+    @Test
+    public void appendAndRecover() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash b = Sha256Hash.of(new byte[] { 2 });
+        channelLog = new StoredServerChannelLog(file);
+        assertTrue(channelLog.takeRecoveredPayments().isEmpty());
+        channelLog.append(a, Coin.valueOf(100), new byte[] { 1 });
+        channelLog.append(b, Coin.valueOf(50), null);
+        channelLog.append(a, Coin.valueOf(200), new byte[] { 2 });
+        channelLog.close();
+
+        channelLog = new StoredServerChannelLog(file);
+        Map<Sha256Hash, Payment> payments = channelLog.takeRecoveredPayments();
+        assertEquals(2, payments.size());
+        assertEquals(Coin.valueOf(200), payments.get(a).value);
+        assertArrayEquals(new byte[] { 2 }, payments.get(a).signature);
+        assertEquals(Coin.valueOf(50), payments.get(b).value);
+        assertNull(payments.get(b).signature);
+        assertTrue(channelLog.takeRecoveredPayments().isEmpty());
+    }
+
+    @Test
+    public void incompleteRecordDropped() throws Exception {
+        Sha256Hash a = Sha256Hash.of(new byte[] { 1 });
+        channelLog = new StoredServerChannelLog(file);
+        channelLog.append(a, Coin.valueOf(100), new byte[] { 1 });
+        channelLog.append(a, Coin.valueOf(200), new byte[] { 2 });
+        channelLog.close();
+        // A crash whilst the last record was being written.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        channelLog = new StoredServerChannelLog(file);
+        assertEquals(Coin.valueOf(100), channelLog.takeRecoveredPayments().get(a).value);
+        channelLog.append(a, Coin.valueOf(300), new byte[] { 3 });
+        channelLog.close();
+        channelLog = new StoredServerChannelLog(file);
+        assertEquals(Coin.valueOf(300), channelLog.takeRecoveredPayments().get(a).value);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void refusesOtherFiles() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(1234567890L);
+        raf.close();
+        new StoredServerChannelLog(file);
+    }
+
+    @Test
+    public void concurrentPaymentsAllSynced() throws Exception {
+        for (Durability durability : Durability.values()) {
+            file.delete();
+            channelLog = new StoredServerChannelLog(file, durability, 10, StoredServerChannelLog.DEFAULT_CHECKPOINT_BYTES);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final Sha256Hash channelId = Sha256Hash.of(new byte[] { (byte) t });
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 1; i <= 100; i++)
+                            channelLog.append(channelId, Coin.valueOf(i), new byte[] { (byte) i });
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+            executor.shutdown();
+            channelLog.close();
+
+            channelLog = new StoredServerChannelLog(file);
+            Map<Sha256Hash, Payment> payments = channelLog.takeRecoveredPayments();
+            assertEquals(8, payments.size());
+            for (Payment payment : payments.values())
+                assertEquals(Coin.valueOf(100), payment.value);
+            channelLog.close();
+        }
+        channelLog = null;
+    }
+
+    @Test
+    public void checkpointKeepsLatestPayments() throws Exception {
+        StoredServerChannel channel = makeChannel(Coin.valueOf(10));
+        channelLog = new StoredServerChannelLog(file, Durability.SYNC, 0, 1000);
+        for (int i = 1; i <= 20; i++)
+            channelLog.append(channel.contract.getHash(), Coin.valueOf(i), new byte[] { (byte) i });
+        assertTrue(channelLog.needsCheckpoint());
+        long sizeBefore = file.length();
+        channel.updateValueToMe(Coin.valueOf(20), new byte[] { 20 });
+        channelLog.checkpoint(Arrays.asList(channel));
+        assertFalse(channelLog.needsCheckpoint());
+        assertTrue(file.length() < sizeBefore / 10);
+        channelLog.append(channel.contract.getHash(), Coin.valueOf(21), new byte[] { 21 });
+        channelLog.close();
+
+        channelLog = new StoredServerChannelLog(file);
+        Map<Sha256Hash, Payment> payments = channelLog.takeRecoveredPayments();
+        assertEquals(1, payments.size());
+        assertEquals(Coin.valueOf(21), payments.get(channel.contract.getHash()).value);
+    }
+
+    @Test
+    public void paymentsAppendedDuringCheckpointsKept() throws Exception {
+        channelLog = new StoredServerChannelLog(file, Durability.SYNC, 0, StoredServerChannelLog.DEFAULT_CHECKPOINT_BYTES);
+        final List<StoredServerChannel> channels = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+            channels.add(makeChannel(Coin.ZERO));
+        ExecutorService executor = Executors.newFixedThreadPool(channels.size());
+        List<Future<?>> futures = new ArrayList<>();
+        for (final StoredServerChannel channel : channels) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Like StoredPaymentChannelServerStates, the channel is updated before its payment is logged.
+                    for (int i = 1; i <= 200; i++) {
+                        channel.updateValueToMe(Coin.valueOf(i), new byte[] { (byte) i });
+                        channelLog.append(channel.contract.getHash(), Coin.valueOf(i), new byte[] { (byte) i });
+                    }
+                    return null;
+                }
+            }));
+        }
+        // Checkpoint over and over while the payments are being synced.
+        boolean done = false;
+        while (!done) {
+            channelLog.checkpoint(channels);
+            done = true;
+            for (Future<?> future : futures)
+                done &= future.isDone();
+        }
+        for (Future<?> future : futures)
+            future.get();
+        executor.shutdown();
+        channelLog.close();
+
+        // Every payment was acknowledged, so the last one of each channel must have survived the checkpoints.
+        channelLog = new StoredServerChannelLog(file);
+        Map<Sha256Hash, Payment> payments = channelLog.takeRecoveredPayments();
+        assertEquals(channels.size(), payments.size());
+        for (StoredServerChannel channel : channels)
+            assertEquals(Coin.valueOf(200), payments.get(channel.contract.getHash()).value);
+    }
+
+    @Test
+    public void paymentsLoggedInsteadOfSavingWallet() throws Exception {
+        CountingWallet wallet = new CountingWallet();
+        channelLog = new StoredServerChannelLog(file, Durability.SYNC, 0, 2000);
+        StoredPaymentChannelServerStates states = new StoredPaymentChannelServerStates(wallet, channelLog);
+        wallet.addExtension(states);
+        StoredServerChannel channel = makeChannel(Coin.ZERO);
+        states.putChannel(channel);
+        assertEquals(1, wallet.saves);
+        // What a crash right after opening the channel leaves in the wallet file.
+        byte[] saved = states.serializeWalletExtension();
+
+        for (int i = 1; i <= 10; i++) {
+            channel.updateValueToMe(Coin.valueOf(i * 1000), new byte[] { (byte) i });
+            states.updatedChannel(channel);
+        }
+        assertEquals(1, wallet.saves);
+        channelLog.close();
+
+        // After a restart, the payments in the log are applied to the channel from the wallet.
+        channelLog = new StoredServerChannelLog(file);
+        StoredPaymentChannelServerStates restored = new StoredPaymentChannelServerStates(null, channelLog);
+        restored.deserializeWalletExtension(new CountingWallet(), saved);
+        StoredServerChannel restoredChannel = restored.getChannel(channel.contract.getHash());
+        assertEquals(Coin.valueOf(10000), restoredChannel.bestValueToMe);
+        assertArrayEquals(new byte[] { 10 }, restoredChannel.bestValueSignature);
+    }
+
+    @Test
+    public void checkpointWhenLogGrows() throws Exception {
+        CountingWallet wallet = new CountingWallet();
+        channelLog = new StoredServerChannelLog(file, Durability.DELAYED, 1, 2000);
+        StoredPaymentChannelServerStates states = new StoredPaymentChannelServerStates(wallet, channelLog);
+        wallet.addExtension(states);
+        StoredServerChannel channel = makeChannel(Coin.ZERO);
+        states.putChannel(channel);
+        for (int i = 1; i <= 100; i++) {
+            channel.updateValueToMe(Coin.valueOf(i), new byte[] { (byte) i });
+            states.updatedChannel(channel);
+        }
+        // Records are 8 + 32 + 8 + 2 + 1 bytes, so the log reaches 2000 bytes every 40 payments.
+        assertEquals(3, wallet.saves);
+    }
+
+    private static StoredServerChannel makeChannel(Coin value) {
+        Transaction contract = new Transaction(PARAMS);
+        contract.addOutput(Coin.COIN, new ECKey());
+        return new StoredServerChannel(null, 2, contract, null, Utils.currentTimeSeconds() + 24 * 60 * 60,
+                new ECKey(), new ECKey(), value, null);
+    }
+
+    private static class CountingWallet extends Wallet {
+        int saves;
+
+        CountingWallet() {
+            super(PARAMS);
+        }
+
+        @Override
+        public void addOrUpdateExtension(WalletExtension extension) {
+            saves++;
+            super.addOrUpdateExtension(extension);
+        }
+    }
+}
@@ -84,6 +84,50 @@ public class ScriptTest {
         assertEquals("mkFQohBpy2HDXrCwyMrYL5RtfrmeiuuPY2", toAddr.toString());
     }
 
+    @Test
+    public void numberOfBytesRequiredToSpend() throws Exception {
+        // The longest canonical signature, with an r that needs a leading zero byte.
+        TransactionSignature sig = new TransactionSignature(ECKey.CURVE.getN().subtract(BigInteger.ONE),
+                ECKey.HALF_CURVE_ORDER);
+        ECKey key = new ECKey();
+        Script p2pkh = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        assertBytesRequiredToSpend(p2pkh, key, null, ScriptBuilder.createInputScript(sig, key));
+        Script p2pk = ScriptBuilder.createOutputScript(key);
+        assertBytesRequiredToSpend(p2pk, null, null, ScriptBuilder.createInputScript(sig));
+
+        for (int n = 1; n <= 3; n++) {
+            List<ECKey> keys = new ArrayList<>();
+            List<TransactionSignature> sigs = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                keys.add(new ECKey());
+                sigs.add(sig);
+            }
+            Script multisig = ScriptBuilder.createMultiSigOutputScript(n, keys);
+            assertBytesRequiredToSpend(multisig, null, null, ScriptBuilder.createMultiSigInputScript(sigs));
+            Script redeemScript = ScriptBuilder.createRedeemScript(n, keys);
+            assertBytesRequiredToSpend(ScriptBuilder.createP2SHOutputScript(redeemScript), null, redeemScript,
+                    ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript));
+        }
+
+        Script channel = ScriptBuilder.createCLTVPaymentChannelOutput(BigInteger.valueOf(1500000000), key, new ECKey());
+        assertEquals(2, channel.getNumberOfSignaturesRequiredToSpend());
+        assertBytesRequiredToSpend(channel, null, null, ScriptBuilder.createCLTVPaymentChannelInput(sig, sig));
+        // The refund after expiry takes fewer bytes than spending the channel.
+        assertTrue(channel.getNumberOfBytesRequiredToSpend(null, null) >
+                ScriptBuilder.createCLTVPaymentChannelRefund(sig).getProgram().length);
+        assertBytesRequiredToSpend(ScriptBuilder.createP2SHOutputScript(channel), null, channel,
+                ScriptBuilder.createCLTVPaymentChannelP2SHInput(sig.encodeToBitcoin(), sig.encodeToBitcoin(), channel));
+    }
+
+    // The estimate must cover the scriptSig, by no more than the slack in the size allowed for each signature.
+    private static void assertBytesRequiredToSpend(Script scriptPubKey, ECKey key, Script redeemScript,
+                                                   Script scriptSig) {
+        int estimate = scriptPubKey.getNumberOfBytesRequiredToSpend(key, redeemScript);
+        int actual = scriptSig.getProgram().length;
+        assertTrue(estimate + " < " + actual, estimate >= actual);
+        assertTrue(estimate + " > " + actual + " plus slack", estimate <= actual + 3 * (Script.SIG_SIZE - 73));
+    }
+
     @Test
     public void testMultiSig() throws Exception {
         List<ECKey> keys = Lists.newArrayList(new ECKey(), new ECKey(), new ECKey());
@@ -116,6 +160,29 @@ public class ScriptTest {
         assertTrue(ScriptBuilder.createOutputScript(p2shAddress).isPayToScriptHash());
     }
 
+    @Test
+    public void templateOpCodesAreShared() throws Exception {
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        List<Script[]> pairs = ImmutableList.of(
+                new Script[] { ScriptBuilder.createOutputScript(key1.toAddress(PARAMS)),
+                        ScriptBuilder.createOutputScript(key2.toAddress(PARAMS)) },
+                new Script[] { ScriptBuilder.createP2SHOutputScript(new byte[20]),
+                        ScriptBuilder.createP2SHOutputScript(key1.getPubKeyHash()) },
+                new Script[] { ScriptBuilder.createOutputScript(key1), ScriptBuilder.createOutputScript(key2) },
+                new Script[] { ScriptBuilder.createOutputScript(key1.decompress()),
+                        ScriptBuilder.createOutputScript(key2.decompress()) });
+        for (Script[] pair : pairs) {
+            List<ScriptChunk> chunks1 = new Script(pair[0].getProgram()).getChunks();
+            List<ScriptChunk> chunks2 = new Script(pair[1].getProgram()).getChunks();
+            for (int i = 0; i < chunks1.size(); i++) {
+                if (chunks1.get(i).isOpCode())
+                    assertSame(chunks1.get(i), chunks2.get(i));
+                else
+                    assertNotSame(chunks1.get(i), chunks2.get(i));
+            }
+        }
+    }
+
     @Test
     public void testIp() throws Exception {
         byte[] bytes = HEX.decode("41043e96222332ea7848323c08116dddafbfa917b8e37f0bdf63841628267148588a09a43540942d58d49717ad3fabfe14978cf4f0a8b84d2435dad16e9aa4d7f935ac");
@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final Address to = new ECKey().toAddress(PARAMS);
+    private CountingStore store;
+    private HeaderIndex index;
+    private List<StoredBlock> chain;
+
+    private static class CountingStore extends MemoryBlockStore {
+        int gets;
+
+        CountingStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        store = new CountingStore(PARAMS);
+        index = new HeaderIndex(store, 10);
+        chain = new ArrayList<>();
+        chain.add(store.getChainHead());
+        index.chainHeadChanged(store.getChainHead());
+        chain.addAll(extend(store.getChainHead(), 30));
+    }
+
+    // Adds the given number of blocks on top of the given one, making the last one the chain head.
+    private List<StoredBlock> extend(StoredBlock prev, int numBlocks) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < numBlocks; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            index.put(prev);
+            index.setChainHead(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void recentBlocksComeFromMemory() throws Exception {
+        assertEquals(10, index.size());
+        StoredBlock head = chain.get(30);
+        store.gets = 0;
+        for (int height = 21; height <= 30; height++) {
+            assertEquals(chain.get(height), index.getAncestor(head, height));
+            assertEquals(chain.get(height), index.get(chain.get(height).getHeader().getHash()));
+        }
+        assertEquals(0, store.gets);
+        // Older blocks are still found, via the store.
+        assertEquals(chain.get(5), index.getAncestor(head, 5));
+        assertTrue(store.gets > 0);
+        assertEquals(chain.get(0), index.getAncestor(head, 0));
+    }
+
+    @Test
+    public void windowFillsDownwards() throws Exception {
+        HeaderIndex fresh = new HeaderIndex(store, 10);
+        fresh.chainHeadChanged(chain.get(30));
+        assertEquals(1, fresh.size());
+        assertEquals(chain.get(25), fresh.getAncestor(chain.get(30), 25));
+        assertEquals(6, fresh.size());
+        store.gets = 0;
+        assertEquals(chain.get(27), fresh.getAncestor(chain.get(30), 27));
+        assertEquals(0, store.gets);
+    }
+
+    @Test
+    public void followsReorgs() throws Exception {
+        StoredBlock oldHead = chain.get(30);
+        List<StoredBlock> fork = extend(chain.get(25), 7);
+        StoredBlock newHead = fork.get(6);
+        assertEquals(32, newHead.getHeight());
+        assertEquals(fork.get(0), index.getAncestor(newHead, 26));
+        assertEquals(chain.get(25), index.getAncestor(newHead, 25));
+        // The old chain is still found via the store, as a side chain.
+        assertEquals(chain.get(26), index.getAncestor(oldHead, 26));
+        assertEquals(chain.get(24), index.getAncestor(oldHead, 24));
+        assertEquals(chain.get(26), index.get(chain.get(26).getHeader().getHash()));
+    }
+
+    @Test
+    public void rollsBack() throws Exception {
+        index.chainHeadChanged(chain.get(27));
+        assertEquals(7, index.size());
+        assertEquals(chain.get(27), index.getAncestor(chain.get(30), 27));
+        assertEquals(chain.get(22), index.getAncestor(chain.get(27), 22));
+    }
+
+    @Test
+    public void ancestorWithoutIndex() throws Exception {
+        assertEquals(chain.get(12), HeaderIndex.getAncestor(store, chain.get(30), 12));
+        assertEquals(chain.get(12), HeaderIndex.getAncestor(index, chain.get(30), 12));
+    }
+}
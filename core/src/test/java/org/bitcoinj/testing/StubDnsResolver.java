@@ -0,0 +1,79 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.testing;
+
+import org.bitcoinj.net.discovery.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link DnsResolver} that answers from a table, for testing DNS discovery without a network. Lookups of host names
+ * not in the table fail, and lookups of blocked host names wait until they are released.
+ */
+public class StubDnsResolver implements DnsResolver {
+    private final Map<String, Answer> answers = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> blocked = new ConcurrentHashMap<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger lookupsInProgress = new AtomicInteger();
+
+    /** Makes the given host name resolve to the given addresses. */
+    public void setAnswer(String hostname, long ttlSeconds, InetAddress... addresses) {
+        answers.put(hostname, new Answer(Arrays.asList(addresses), ttlSeconds));
+    }
+
+    /** Makes lookups of the given host name wait until the returned latch is counted down. */
+    public CountDownLatch block(String hostname) {
+        CountDownLatch latch = new CountDownLatch(1);
+        blocked.put(hostname, latch);
+        return latch;
+    }
+
+    /** Returns how many lookups were started. */
+    public int getLookups() {
+        return lookups.get();
+    }
+
+    /** Returns how many lookups are waiting to be released. */
+    public int getLookupsInProgress() {
+        return lookupsInProgress.get();
+    }
+
+    @Override
+    public Answer resolve(String hostname) throws UnknownHostException {
+        lookups.incrementAndGet();
+        lookupsInProgress.incrementAndGet();
+        try {
+            CountDownLatch latch = blocked.get(hostname);
+            if (latch != null)
+                latch.await();
+            Answer answer = answers.get(hostname);
+            if (answer == null)
+                throw new UnknownHostException(hostname);
+            return answer;
+        } catch (InterruptedException e) {
+            throw new UnknownHostException("Interrupted whilst looking up " + hostname);
+        } finally {
+            lookupsInProgress.decrementAndGet();
+        }
+    }
+}
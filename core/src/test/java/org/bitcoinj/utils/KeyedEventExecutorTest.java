@@ -0,0 +1,162 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeyedEventExecutorTest {
+    private KeyedEventExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new KeyedEventExecutor(4);
+    }
+
+    @Test
+    public void keepsOrderPerKey() throws Exception {
+        final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            executor.execute("a", new Runnable() {
+                @Override
+                public void run() {
+                    a.add(n);
+                }
+            });
+            executor.execute("b", new Runnable() {
+                @Override
+                public void run() {
+                    b.add(n);
+                }
+            });
+        }
+        executor.waitForPendingTasks();
+        assertEquals(1000, a.size());
+        assertEquals(1000, b.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) a.get(i));
+            assertEquals(i, (int) b.get(i));
+        }
+        assertTrue(executor.getExecutedTasks() >= 2000);
+        assertEquals(0, executor.getPendingTasks());
+    }
+
+    @Test
+    public void slowKeyDoesNotBlockOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute("slow", new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+        executor.execute("fast", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        executor.waitForPendingTasks();
+        assertTrue(executor.getMaxHandlerTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    private static class EqualTask implements Runnable {
+        private final List<String> log;
+        private final String name;
+
+        EqualTask(List<String> log, String name) {
+            this.log = log;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            log.add(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EqualTask && ((EqualTask) o).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    @Test
+    public void coalescesRepeatedTasks() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        executor.execute("key", new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+        executor.executeCoalescing("key", new EqualTask(log, "x"));
+        executor.executeCoalescing("key", new EqualTask(log, "x"));
+        executor.executeCoalescing("key", new EqualTask(log, "y"));
+        executor.executeCoalescing("key", new EqualTask(log, "x"));
+        // Tasks submitted without coalescing are never dropped.
+        executor.execute("key", new EqualTask(log, "x"));
+        executor.executeCoalescing("key", new EqualTask(log, "x"));
+        release.countDown();
+        executor.waitForPendingTasks();
+        assertEquals(1, executor.getCoalescedTasks());
+        assertEquals(5, log.size());
+        assertEquals("x", log.get(0));
+        assertEquals("y", log.get(1));
+    }
+
+    @Test
+    public void installAsUserThread() throws Exception {
+        Executor old = Threading.USER_THREAD;
+        try {
+            KeyedEventExecutor installed = Threading.useKeyedUserThreads(2);
+            assertSame(installed, Threading.USER_THREAD);
+            final boolean[] ran = new boolean[1];
+            Threading.dispatch(Threading.USER_THREAD, this, new Runnable() {
+                @Override
+                public void run() {
+                    ran[0] = true;
+                }
+            });
+            Threading.waitForUserCode();
+            assertTrue(ran[0]);
+            assertTrue(installed.getExecutedTasks() >= 1);
+        } finally {
+            Threading.USER_THREAD = old;
+        }
+    }
+}
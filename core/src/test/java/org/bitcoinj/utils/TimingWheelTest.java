@@ -0,0 +1,103 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    private static final long START = 1000000;
+
+    @Test
+    public void expiresOnTheTickAfterExpiryTime() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 8, START);
+        wheel.schedule("a", START + 1500);
+        wheel.schedule("b", START + 2000);
+        assertEquals(2, wheel.size());
+        assertTrue(wheel.advance(START + 1999).isEmpty());
+        assertEquals(Arrays.asList("a", "b"), sorted(wheel.advance(START + 2000)));
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(START + 10000).isEmpty());
+    }
+
+    @Test
+    public void alreadyExpiredReturnedByNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 8, START);
+        wheel.advance(START + 5000);
+        wheel.schedule("past", START);
+        wheel.schedule("now", START + 5000);
+        assertEquals(Arrays.asList("now", "past"), sorted(wheel.advance(START + 5000)));
+    }
+
+    @Test
+    public void farExpiriesMoveDownTheWheels() {
+        // 4 slots of 10ms make wheels of 40ms, 160ms, 640ms and so on.
+        TimingWheel<Long> wheel = new TimingWheel<>(10, 4, 0);
+        List<Long> expiries = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long expiry = 10 * (1 + random.nextInt(10000));
+            expiries.add(expiry);
+            wheel.schedule(expiry, expiry);
+        }
+        // Advancing a tick at a time, every item comes out exactly on its tick.
+        int count = 0;
+        for (long now = 0; now <= 100000; now += 10) {
+            for (long expiry : wheel.advance(now)) {
+                assertEquals(now, expiry);
+                count++;
+            }
+        }
+        assertEquals(expiries.size(), count);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void largeJumpReturnsEverythingInOneBatch() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(1000, 64, START);
+        for (int i = 0; i < 500; i++)
+            wheel.schedule(i, START + i * 24L * 60 * 60 * 1000);
+        // Set forward by a year, like a mock clock in tests.
+        List<Integer> expired = wheel.advance(START + 365L * 24 * 60 * 60 * 1000);
+        assertEquals(366, expired.size());
+        assertEquals(366, new HashSet<>(expired).size());
+        assertEquals(134, wheel.size());
+        assertEquals(1, wheel.advance(START + 366L * 24 * 60 * 60 * 1000).size());
+    }
+
+    @Test
+    public void timeNeverGoesBackwards() {
+        TimingWheel<String> wheel = new TimingWheel<>(1000, 8, START);
+        wheel.schedule("a", START + 3000);
+        assertTrue(wheel.advance(START - 60000).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(START + 3000));
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(List<T> list) {
+        List<T> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -50,6 +50,7 @@ import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
 import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.TransactionDepthsChangedEventListener;
 import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
@@ -69,11 +70,15 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -1130,6 +1135,25 @@ public class WalletTest extends TestWithWallet {
         assertDead(t1b);
     }
 
+    @Test
+    public void doubleSpendsFoundAcrossPools() throws Exception {
+        FakeTxBuilder.DoubleSpends doubleSpends = FakeTxBuilder.createFakeDoubleSpendTxns(PARAMS, myAddress);
+        // doubleSpends.t2 doesn't involve our keys, it's only relevant because it double spends doubleSpends.t1.
+        assertFalse(wallet.isTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t1, null);
+        assertTrue(wallet.isTransactionRelevant(doubleSpends.t2));
+
+        // Once doubleSpends.t1 moved from the pending to the unspent pool, doubleSpends.t2 is still found against it.
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, doubleSpends.t1);
+        assertUnspent(doubleSpends.t1);
+        assertTrue(wallet.isTransactionRelevant(doubleSpends.t2));
+        wallet.receivePending(doubleSpends.t2, null);
+        assertDead(doubleSpends.t2);
+
+        wallet.reset();
+        assertFalse(wallet.isTransactionRelevant(doubleSpends.t2));
+    }
+
     @Test
     public void doubleSpendForBuildingTx() throws Exception {
         CoinSelector originalCoinSelector = wallet.getCoinSelector();
@@ -2374,6 +2398,76 @@ public class WalletTest extends TestWithWallet {
         assertEquals(2, request11.tx.getOutputs().size());
     }
 
+    @Test
+    public void depthNotificationThresholds() throws Exception {
+        wallet.setDepthNotificationThresholds(2, 4);
+        final List<Integer> walletEvents = new ArrayList<>();
+        final int[] depthsChanged = new int[1];
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, new TransactionConfidenceEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                walletEvents.add(tx.getConfidence().getDepthInBlocks());
+            }
+        });
+        wallet.addTransactionDepthsChangedEventListener(Threading.SAME_THREAD, new TransactionDepthsChangedEventListener() {
+            @Override
+            public void onTransactionDepthsChanged(Wallet wallet, int bestChainHeight) {
+                depthsChanged[0]++;
+            }
+        });
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        Transaction tx2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        final List<Integer> txEvents = new ArrayList<>();
+        tx2.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                if (reason == ChangeReason.DEPTH)
+                    txEvents.add(confidence.getDepthInBlocks());
+            }
+        });
+        // Both transactions arriving in a block caused a type change event, and tx1 reached depth 2.
+        assertEquals(3, walletEvents.size());
+        walletEvents.clear();
+        for (int i = 0; i < 3; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(5, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(4, tx2.getConfidence().getDepthInBlocks());
+        // Only tx2 reaching depth 2, tx1 reaching depth 4 and then tx2 reaching depth 4 caused events.
+        assertEquals(Arrays.asList(2, 4, 4), walletEvents);
+        assertEquals(5, depthsChanged[0]);
+        // Listeners on individual transactions still hear about every block.
+        assertEquals(Arrays.asList(2, 3, 4), txEvents);
+
+        wallet.setDepthNotificationThresholds(null);
+        walletEvents.clear();
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Collections.sort(walletEvents);
+        assertEquals(Arrays.asList(5, 6), walletEvents);
+    }
+
+    @Test
+    public void depthNotificationThresholdsClearSeenPeersBelowHorizon() throws Exception {
+        wallet.setDepthNotificationThresholds(1, 6);
+        PeerAddress peer = new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 1, 2, 3, 4 }));
+        Transaction tx1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        tx1.getConfidence().markBroadcastBy(peer);
+        int horizon = wallet.getContext().getEventHorizon();
+        for (int i = 1; i < horizon; i++)
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(horizon, tx1.getConfidence().getDepthInBlocks());
+        assertEquals(1, tx1.getConfidence().numBroadcastPeers());
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(0, tx1.getConfidence().numBroadcastPeers());
+
+        // A transaction that is already buried when it's added doesn't have to pass the horizon block by block.
+        Transaction tx2 = createFakeTx(PARAMS, COIN, myAddress);
+        tx2.getConfidence().setAppearedAtChainHeight(1);
+        tx2.getConfidence().setDepthInBlocks(horizon + 10);
+        tx2.getConfidence().markBroadcastBy(peer);
+        wallet.addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx2));
+        assertEquals(0, tx2.getConfidence().numBroadcastPeers());
+    }
+
     @Test
     public void coinSelection_coinTimesDepth() throws Exception {
         Transaction txCent = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
@@ -3372,6 +3466,78 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getTransactionSigners().get(1).isReady());
     }
 
+    @Test
+    public void feeCalculationSelectsCoinsOnce() throws Exception {
+        for (int i = 0; i < 20; i++)
+            sendMoneyToWallet(wallet, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, wallet.freshReceiveAddress());
+        final AtomicInteger selections = new AtomicInteger();
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, valueOf(0, 15));
+        req.feePerKb = Transaction.DEFAULT_TX_FEE;
+        req.coinSelector = new DefaultCoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                selections.incrementAndGet();
+                return super.select(target, candidates);
+            }
+        };
+        wallet.completeTx(req);
+        // The coins selected for the fee of the transaction without them cover the fee for the inputs they add.
+        assertEquals(1, selections.get());
+        assertEquals(16, req.tx.getInputs().size());
+        Coin feeForSize = Transaction.DEFAULT_TX_FEE.multiply(req.tx.getMessageSize()).divide(1000);
+        assertTrue(req.tx.getFee().compareTo(feeForSize) >= 0);
+        // The estimate of the size of the signatures is an upper bound, but a close one.
+        assertTrue(req.tx.getFee().subtract(feeForSize).compareTo(Transaction.DEFAULT_TX_FEE.multiply(16 * 3).divide(1000)) < 0);
+    }
+
+    @Test
+    public void completeTxReusesSerialization() throws Exception {
+        for (int i = 0; i < 10; i++)
+            sendMoneyToWallet(wallet, AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT, wallet.freshReceiveAddress());
+        // Counts how often the transaction is serialized from scratch, which serializes each of its outputs.
+        final AtomicInteger serializations = new AtomicInteger();
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(new TransactionOutput(PARAMS, tx, valueOf(0, 95).divide(10), OTHER_ADDRESS) {
+            @Override
+            protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+                serializations.incrementAndGet();
+                super.bitcoinSerializeToStream(stream);
+            }
+        });
+        SendRequest req = SendRequest.forTx(tx);
+        wallet.completeTx(req);
+        assertEquals(10, tx.getInputs().size());
+        assertEquals(tx.unsafeBitcoinSerialize().length, tx.getMessageSize());
+        // Once to check which inputs are signed already, once to hash the inputs for signing and once to hash the
+        // signed transaction. Fee calculation and the size checks don't serialize at all, whatever the number of inputs.
+        assertEquals(3, serializations.get());
+    }
+
+    @Test
+    public void parallelSigningGivesSameTransaction() throws Exception {
+        // Enough inputs to need several jobs, spending keys from all over the key chain.
+        for (int i = 0; i < 40; i++)
+            sendMoneyToWallet(wallet, AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(0, 10 + i),
+                    wallet.freshReceiveAddress());
+        SendRequest sequential = SendRequest.emptyWallet(OTHER_ADDRESS);
+        wallet.completeTx(sequential);
+        assertEquals(40, sequential.tx.getInputs().size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            wallet.setSigningExecutor(executor);
+            SendRequest parallel = SendRequest.emptyWallet(OTHER_ADDRESS);
+            wallet.completeTx(parallel);
+            assertArrayEquals(sequential.tx.bitcoinSerialize(), parallel.tx.bitcoinSerialize());
+            parallel.tx.verify();
+            for (TransactionInput input : parallel.tx.getInputs())
+                input.verify(input.getConnectedOutput());
+        } finally {
+            wallet.setSigningExecutor(null);
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void watchingMarriedWallet() throws Exception {
         DeterministicKey watchKey = wallet.getWatchingKey();
@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.BriefLogFormatter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A program that measures how many filtered blocks per second a {@link FilteredBlockServer} can serve to a number of
+ * simulated SPV clients, each having its own Bloom filter and asking for all blocks in a single getdata. The same
+ * workload is also run through {@link BloomFilter#applyAndUpdate(Block)}, which is what serving without the cache
+ * costs. Everything is generated in memory, no network is needed.
+ *
+ * <p>Usage: FilteredBlockServerBenchmark [clients] [blocks] [transactions per block] [rounds]</p>
+ */
+public class FilteredBlockServerBenchmark {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int KEYS_PER_CLIENT = 10;
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int numBlocks = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int txnsPerBlock = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        Context.propagate(new Context(PARAMS));
+
+        System.out.printf("Generating %d blocks with %d transactions each for %d clients...%n", numBlocks,
+                txnsPerBlock, numClients);
+        Random random = new Random(1);
+        List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < numClients * KEYS_PER_CLIENT; i++)
+            keys.add(new ECKey());
+        List<Block> blocks = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int b = 0; b < numBlocks; b++) {
+            Block block = prev.createNextBlock(null);
+            for (int t = 0; t < txnsPerBlock; t++) {
+                Transaction tx = new Transaction(PARAMS);
+                byte[] prevHash = new byte[32];
+                random.nextBytes(prevHash);
+                tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                        new TransactionOutPoint(PARAMS, 0, Sha256Hash.wrap(prevHash))));
+                tx.addOutput(Coin.CENT, keys.get(random.nextInt(keys.size())).toAddress(PARAMS));
+                tx.addOutput(Coin.CENT, new ECKey().toAddress(PARAMS));
+                block.addTransaction(tx);
+            }
+            block.solve();
+            blocks.add(block);
+            prev = block;
+        }
+
+        FilteredBlockServer server = new FilteredBlockServer(numBlocks);
+        long start = System.nanoTime();
+        for (Block block : blocks)
+            server.addBlock(block);
+        System.out.printf("Caching took %d ms%n", (System.nanoTime() - start) / 1000000);
+
+        final GetDataMessage getdata = new GetDataMessage(PARAMS);
+        for (Block block : blocks)
+            getdata.addFilteredBlock(block.getHash());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (int round = 0; round < rounds; round++) {
+                final List<BloomFilter> filters = makeFilters(keys, numClients);
+                long uncached = run(executor, numClients, new Client() {
+                    @Override
+                    public int serve(int client, List<Block> blocks, FilteredBlockServer server) {
+                        int matched = 0;
+                        for (Block block : blocks)
+                            matched += filters.get(client).applyAndUpdate(block).getAssociatedTransactions().size();
+                        return matched;
+                    }
+                }, blocks, server);
+                final List<BloomFilter> filters2 = makeFilters(keys, numClients);
+                long cached = run(executor, numClients, new Client() {
+                    @Override
+                    public int serve(int client, List<Block> blocks, FilteredBlockServer server) {
+                        return server.serve(filters2.get(client), getdata).size() - blocks.size();
+                    }
+                }, blocks, server);
+                double total = (double) numClients * numBlocks;
+                System.out.printf("Round %d: uncached %.0f blocks/sec, cached %.0f blocks/sec%n", round,
+                        total / (uncached / 1e9), total / (cached / 1e9));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface Client {
+        /** Serves all blocks to the given client, returning the number of matched transactions. */
+        int serve(int client, List<Block> blocks, FilteredBlockServer server);
+    }
+
+    private static List<BloomFilter> makeFilters(List<ECKey> keys, int numClients) {
+        List<BloomFilter> filters = new ArrayList<>(numClients);
+        for (int c = 0; c < numClients; c++) {
+            BloomFilter filter = new BloomFilter(KEYS_PER_CLIENT * 2, 0.0001, c, BloomFilter.BloomUpdate.UPDATE_ALL);
+            for (int k = 0; k < KEYS_PER_CLIENT; k++)
+                filter.insert(keys.get(c * KEYS_PER_CLIENT + k));
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    private static long run(ExecutorService executor, int numClients, final Client client, final List<Block> blocks,
+                            final FilteredBlockServer server) throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>(numClients);
+        long start = System.nanoTime();
+        for (int c = 0; c < numClients; c++) {
+            final int clientIndex = c;
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return client.serve(clientIndex, blocks, server);
+                }
+            }));
+        }
+        for (Future<Integer> future : futures)
+            future.get();
+        return System.nanoTime() - start;
+    }
+}
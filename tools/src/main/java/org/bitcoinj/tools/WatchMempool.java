@@ -21,12 +21,20 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.bitcoinj.core.listeners.*;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TxConfidenceTable;
+import org.bitcoinj.core.TxMemoryPool;
+import org.bitcoinj.core.Utils;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.DefaultRiskAnalysis;
 import org.bitcoinj.wallet.RiskAnalysis.Result;
@@ -35,6 +43,11 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 
+/**
+ * Watches the transactions relayed on the network, printing statistics of their risk analysis and of the memory pool
+ * every few seconds. The pool only holds the transactions announced since the tool started. To remove them once they
+ * confirm, the chain is followed from the newest checkpoint: headers only up to an hour ago, and full blocks from then.
+ */
 public class WatchMempool {
     private static Logger log = LoggerFactory.getLogger(WatchMempool.class);
     private static final NetworkParameters PARAMS = MainNetParams.get();
@@ -43,12 +56,23 @@ public class WatchMempool {
     private static final String TOTAL_KEY = "TOTAL";
     private static final long START_MS = System.currentTimeMillis();
     private static final long STATISTICS_FREQUENCY_MS = 1000 * 5;
+    private static final TxMemoryPool pool = new TxMemoryPool(PARAMS);
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         BriefLogFormatter.init();
-        PeerGroup peerGroup = new PeerGroup(PARAMS);
+        // The default confidence table is sized for wallets, watching the whole mempool needs a lot more room.
+        Context.propagate(new Context(PARAMS, new TxConfidenceTable(TxConfidenceTable.MEMPOOL_SIZE)));
+        long catchupTime = Utils.currentTimeSeconds() - 60 * 60;
+        BlockStore store = new MemoryBlockStore(PARAMS);
+        CheckpointManager.checkpoint(PARAMS, CheckpointManager.openStream(PARAMS), store, catchupTime);
+        PeerGroup peerGroup = new PeerGroup(PARAMS, new BlockChain(PARAMS, store));
         peerGroup.setMaxConnections(32);
         peerGroup.addPeerDiscovery(new DnsDiscovery(PARAMS));
+        // Blocks are downloaded in full, so that the pool sees all the transactions they confirm.
+        peerGroup.setBloomFilteringEnabled(false);
+        peerGroup.setFastCatchupTimeSecs(catchupTime);
+        peerGroup.addOnTransactionBroadcastListener(pool);
+        peerGroup.addBlocksDownloadedEventListener(pool);
         peerGroup.addOnTransactionBroadcastListener(new OnTransactionBroadcastListener() {
             @Override
             public void onTransaction(Peer peer, Transaction tx) {
@@ -61,6 +85,7 @@ public class WatchMempool {
             }
         });
         peerGroup.start();
+        peerGroup.startBlockChainDownload(new DownloadProgressTracker());
 
         while (true) {
             Thread.sleep(STATISTICS_FREQUENCY_MS);
@@ -78,6 +103,8 @@ public class WatchMempool {
 
     private static synchronized void printCounters() {
         System.out.printf("Runtime: %d minutes\n", (System.currentTimeMillis() - START_MS) / 1000 / 60);
+        System.out.printf("  %s, %s per kB to be in the first 1 MB\n", pool,
+                pool.getFeeRateForBytes(1000 * 1000).toFriendlyString());
         Integer total = counters.get(TOTAL_KEY);
         if (total == null)
             return;